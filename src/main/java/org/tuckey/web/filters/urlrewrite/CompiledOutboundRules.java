@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.MatchIndex;
+
+import java.util.List;
+
+/**
+ * The outbound rules run at one point of encodeURL (before or after the container's encodeURL) in the order they are
+ * run, along with an index of them by "from".  Never changes once built.
+ */
+final class CompiledOutboundRules {
+
+    private final OutboundRule[] rules;
+    private final MatchIndex ruleIndex;
+
+    CompiledOutboundRules(List rules, MatchIndex ruleIndex) {
+        this.rules = (OutboundRule[]) rules.toArray(new OutboundRule[rules.size()]);
+        this.ruleIndex = ruleIndex;
+    }
+
+    OutboundRule getRule(int ruleIdx) {
+        return rules[ruleIdx];
+    }
+
+    int size() {
+        return rules.length;
+    }
+
+    /**
+     * Get the index of each rule that could match the url.
+     *
+     * @return rule indexes in ascending order, the array may be shared so must not be modified
+     */
+    int[] getCandidates(String url) {
+        return ruleIndex.getCandidates(url);
+    }
+
+    MatchIndex getRuleIndex() {
+        return ruleIndex;
+    }
+
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.LruCache;
+import org.tuckey.web.filters.urlrewrite.utils.MatchIndex;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The inbound rules in the order they are run along with everything worked out from that order.  Never changes once
+ * built so a RuleChain can use it without locking while the conf swaps in a new one.
+ */
+final class CompiledRules {
+
+    private final List rules;
+    private final MatchIndex ruleIndex;
+    private final int[] pureRunEnds;
+    private final LruCache ruleCache;
+
+    CompiledRules(List rules, MatchIndex ruleIndex, int[] pureRunEnds, LruCache ruleCache) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.ruleIndex = ruleIndex;
+        this.pureRunEnds = pureRunEnds;
+        this.ruleCache = ruleCache;
+    }
+
+    /**
+     * @return a copy with a different cache
+     */
+    CompiledRules withRuleCache(LruCache ruleCache) {
+        return new CompiledRules(rules, ruleIndex, pureRunEnds, ruleCache);
+    }
+
+    List getRules() {
+        return rules;
+    }
+
+    MatchIndex getRuleIndex() {
+        return ruleIndex;
+    }
+
+    LruCache getRuleCache() {
+        return ruleCache;
+    }
+
+    /**
+     * @return for each rule the value of getPureRunEnd
+     */
+    int[] getPureRunEnds() {
+        return pureRunEnds;
+    }
+
+    /**
+     * @return the index of the first rule after the run of pure rules starting at ruleIdx, or -1 if the rule is not
+     *         pure
+     */
+    int getPureRunEnd(int ruleIdx) {
+        if (ruleIdx >= pureRunEnds.length) return -1;
+        return pureRunEnds[ruleIdx];
+    }
+
+    boolean isAllRulesPure() {
+        return pureRunEnds.length > 0 && pureRunEnds[0] == pureRunEnds.length;
+    }
+
+    boolean isAnyRulePure() {
+        for (int i = 0; i < pureRunEnds.length; i++) {
+            if (pureRunEnds[i] != -1) return true;
+        }
+        return false;
+    }
+
+}
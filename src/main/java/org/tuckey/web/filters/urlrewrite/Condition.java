@@ -34,6 +34,11 @@
  */
 package org.tuckey.web.filters.urlrewrite;
 
+import org.tuckey.web.filters.urlrewrite.extend.RewriteMap;
+import org.tuckey.web.filters.urlrewrite.functions.MapFunction;
+import org.tuckey.web.filters.urlrewrite.utils.CoarseClock;
+import org.tuckey.web.filters.urlrewrite.utils.IpRangeFile;
+import org.tuckey.web.filters.urlrewrite.utils.IpRangeTrie;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
 import org.tuckey.web.filters.urlrewrite.utils.NumberUtils;
 import org.tuckey.web.filters.urlrewrite.utils.RegexPattern;
@@ -101,6 +106,7 @@ public class Condition extends TypeConverter {
 
     private boolean valid = false;
     private boolean initialised = false;
+    private boolean lazyCompile = false;
 
     // Operators
     private static final short OPERATOR_EQUAL = 1;
@@ -116,10 +122,21 @@ public class Condition extends TypeConverter {
     private static final short OPERATOR_NOT_DIR = 11;
     private static final short OPERATOR_NOT_FILE = 12;
     private static final short OPERATOR_NOT_FILE_WITH_SIZE = 13;
+    private static final short OPERATOR_IN_RANGE = 14;
+    private static final short OPERATOR_NOT_IN_RANGE = 15;
+    private static final short OPERATOR_IN_MAP = 16;
+    private static final short OPERATOR_NOT_IN_MAP = 17;
 
     // if we are doing an instanceof test the class we want to test against
     Class instanceOfClass = null;
 
+    // if we are doing an inrange test the ranges, either given in the value or loaded from a file
+    private IpRangeTrie ipRanges = null;
+    private IpRangeFile ipRangeFile = null;
+
+    // if we are doing an inmap test the map named in the value
+    private RewriteMap map = null;
+
     // the rule that "owns" this condition.
     private RuleBase rule;
 
@@ -142,6 +159,18 @@ public class Condition extends TypeConverter {
      * @return true on match
      */
     public ConditionMatch getConditionMatch(final HttpServletRequest hsRequest) {
+        return getConditionMatch(new EvaluationContext(hsRequest));
+    }
+
+    /**
+     * Will check and see if the condition matches the request, using values already looked up for the request where
+     * possible.
+     *
+     * @param evaluationContext values for the request being matched
+     * @return true on match
+     */
+    public ConditionMatch getConditionMatch(final EvaluationContext evaluationContext) {
+        final HttpServletRequest hsRequest = evaluationContext.getRequest();
         if (!initialised) {
             log.debug("condition not initialised skipping");
             // error initialising do not process
@@ -154,25 +183,25 @@ public class Condition extends TypeConverter {
 
         switch (type) {
             case TYPE_TIME:
-                return evaluateNumericCondition(System.currentTimeMillis());
+                return evaluateNumericCondition(CoarseClock.currentTimeMillis());
             case TYPE_TIME_YEAR:
-                return evaluateCalendarCondition(Calendar.YEAR);
+                return evaluateCalendarCondition(evaluationContext, Calendar.YEAR);
             case TYPE_TIME_MONTH:
-                return evaluateCalendarCondition(Calendar.MONTH);
+                return evaluateCalendarCondition(evaluationContext, Calendar.MONTH);
             case TYPE_TIME_DAY_OF_MONTH:
-                return evaluateCalendarCondition(Calendar.DAY_OF_MONTH);
+                return evaluateCalendarCondition(evaluationContext, Calendar.DAY_OF_MONTH);
             case TYPE_TIME_DAY_OF_WEEK:
-                return evaluateCalendarCondition(Calendar.DAY_OF_WEEK);
+                return evaluateCalendarCondition(evaluationContext, Calendar.DAY_OF_WEEK);
             case TYPE_TIME_AMPM:
-                return evaluateCalendarCondition(Calendar.AM_PM);
+                return evaluateCalendarCondition(evaluationContext, Calendar.AM_PM);
             case TYPE_TIME_HOUR_OF_DAY:
-                return evaluateCalendarCondition(Calendar.HOUR_OF_DAY);
+                return evaluateCalendarCondition(evaluationContext, Calendar.HOUR_OF_DAY);
             case TYPE_TIME_MINUTE:
-                return evaluateCalendarCondition(Calendar.MINUTE);
+                return evaluateCalendarCondition(evaluationContext, Calendar.MINUTE);
             case TYPE_TIME_SECOND:
-                return evaluateCalendarCondition(Calendar.SECOND);
+                return evaluateCalendarCondition(evaluationContext, Calendar.SECOND);
             case TYPE_TIME_MILLISECOND:
-                return evaluateCalendarCondition(Calendar.MILLISECOND);
+                return evaluateCalendarCondition(evaluationContext, Calendar.MILLISECOND);
 
             case TYPE_ATTRIBUTE:
                 return evaluateAttributeCondition(name == null ? null : hsRequest.getAttribute(name));
@@ -187,7 +216,7 @@ public class Condition extends TypeConverter {
             case TYPE_CONTEXT_PATH:
                 return evaluateStringCondition(hsRequest.getContextPath());
             case TYPE_COOKIE:
-                return evaluateCookieCondition(hsRequest.getCookies(), name);
+                return evaluateCookieCondition(evaluationContext, name);
             case TYPE_LOCAL_PORT:
                 return evaluateNumericCondition(hsRequest.getLocalPort());
             case TYPE_METHOD:
@@ -219,15 +248,10 @@ public class Condition extends TypeConverter {
             case TYPE_REQUEST_URI:
                 return evaluateStringCondition(hsRequest.getRequestURI());
             case TYPE_REQUEST_URL:
-                StringBuffer requestUrlBuff = hsRequest.getRequestURL();
-                String requestUrlStr = null;
-                if (requestUrlBuff != null) {
-                    requestUrlStr = requestUrlBuff.toString();
-                }
-                return evaluateStringCondition(requestUrlStr);
+                return evaluateStringCondition(evaluationContext.getRequestURL());
             case TYPE_SESSION_ATTRIBUTE:
                 Object sessionAttributeValue = null;
-                final HttpSession session = hsRequest.getSession(false);
+                final HttpSession session = evaluationContext.getSession();
                 if (session != null && name != null) {
                     sessionAttributeValue = session.getAttribute(name);
                 }
@@ -235,7 +259,7 @@ public class Condition extends TypeConverter {
 
             case TYPE_SESSION_IS_NEW:
                 boolean sessionNew = false;
-                final HttpSession sessionIsNew = hsRequest.getSession(false);
+                final HttpSession sessionIsNew = evaluationContext.getSession();
                 if (sessionIsNew != null) {
                     sessionNew = sessionIsNew.isNew();
                 }
@@ -272,7 +296,7 @@ public class Condition extends TypeConverter {
                 }
 
             default:
-                return evaluateHeaderCondition(hsRequest);
+                return evaluateHeaderCondition(evaluationContext);
         }
     }
 
@@ -312,28 +336,30 @@ public class Condition extends TypeConverter {
     }
 
 
-    private ConditionMatch evaluateCookieCondition(Cookie[] cookies, String name) {
-        if (cookies == null) {
-            // we will have to do an exists check
-            return evaluateBoolCondition(false);
-        }
+    private ConditionMatch evaluateCookieCondition(EvaluationContext evaluationContext, String name) {
         if (name == null) {
             return evaluateBoolCondition(false);
         }
-        for (int i = 0; i < cookies.length; i++) {
-            Cookie cookie = cookies[i];
-            if (cookie == null) {
-                continue;
-            }
-            if (name.equals(cookie.getName())) {
-                return evaluateStringCondition(cookie.getValue());
-            }
+        Cookie cookie = evaluationContext.getCookie(name);
+        if (cookie == null) {
+            // we will have to do an exists check
+            return evaluateBoolCondition(false);
         }
-        return evaluateBoolCondition(false);
+        return evaluateStringCondition(cookie.getValue());
     }
 
 
     private ConditionMatch evaluateStringCondition(String value) {
+        if (operator == OPERATOR_IN_RANGE || operator == OPERATOR_NOT_IN_RANGE) {
+            return evaluateIpRangeCondition(value);
+        }
+        if (operator == OPERATOR_IN_MAP || operator == OPERATOR_NOT_IN_MAP) {
+            boolean inMap = map != null && value != null && map.containsKey(value);
+            if (log.isDebugEnabled()) {
+                log.debug("\"" + value + "\"" + (inMap ? " is" : " is not") + " in map " + strValue);
+            }
+            return evaluateBoolCondition(inMap == (operator == OPERATOR_IN_MAP));
+        }
         if (pattern == null && value == null) {
             log.debug("value is empty and pattern is also, condition false");
             return evaluateBoolCondition(false);
@@ -378,6 +404,21 @@ public class Condition extends TypeConverter {
         return evaluateBoolCondition(matcher, matcher.find());
     }
 
+    private ConditionMatch evaluateIpRangeCondition(String value) {
+        IpRangeTrie trie = ipRangeFile == null ? ipRanges : ipRangeFile.getTrie();
+        boolean inRange = false;
+        if (trie != null && value != null) {
+            // for a list of hops (ie, X-Forwarded-For) check the last, it was added by the nearest proxy so it
+            // cannot be set by the client
+            int comma = value.lastIndexOf(',');
+            inRange = trie.contains(value, comma + 1, value.length());
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("\"" + value + "\"" + (inRange ? " is" : " is not") + " in range");
+        }
+        return evaluateBoolCondition(inRange == (operator == OPERATOR_IN_RANGE));
+    }
+
     /**
      * Evaluate taking into account the operator, not only boolean operators considered.
      */
@@ -400,10 +441,10 @@ public class Condition extends TypeConverter {
         return conditionMatch;
     }
 
-    private ConditionMatch evaluateHeaderCondition(final HttpServletRequest hsRequest) {
+    private ConditionMatch evaluateHeaderCondition(final EvaluationContext evaluationContext) {
         String headerValue = null;
         if (name != null) {
-            headerValue = hsRequest.getHeader(name);
+            headerValue = evaluationContext.getHeader(name);
         }
         return evaluateStringCondition(headerValue);
     }
@@ -411,10 +452,11 @@ public class Condition extends TypeConverter {
     /**
      * Will evaluate a calendar condition.
      *
+     * @param evaluationContext values for the request being matched
      * @param calField the calendar field from Calendar
      */
-    private ConditionMatch evaluateCalendarCondition(final int calField) {
-        return evaluateNumericCondition((Calendar.getInstance()).get(calField));
+    private ConditionMatch evaluateCalendarCondition(final EvaluationContext evaluationContext, final int calField) {
+        return evaluateNumericCondition(evaluationContext.getCalendarField(calField));
     }
 
     /**
@@ -536,6 +578,17 @@ public class Condition extends TypeConverter {
     }
 
     private void initStringValue() {
+        if (operator == OPERATOR_IN_RANGE || operator == OPERATOR_NOT_IN_RANGE) {
+            initIpRangeValue();
+            return;
+        }
+        if (operator == OPERATOR_IN_MAP || operator == OPERATOR_NOT_IN_MAP) {
+            // the conf's maps are initialised before its rules
+            strValue = StringUtils.trim(strValue);
+            map = strValue == null ? null : MapFunction.getMap(strValue);
+            if (map == null) setError("there is no map named " + strValue);
+            return;
+        }
         if (StringUtils.isBlank(strValue)) {
             log.debug("value is blank initing pattern to null");
             pattern = null;
@@ -561,7 +614,7 @@ public class Condition extends TypeConverter {
 
                 } else {
                     // default is regex
-                    pattern = new RegexPattern(strValue, caseSensitive);
+                    pattern = new RegexPattern(strValue, caseSensitive, lazyCompile);
                 }
 
             } catch (StringMatchingPatternSyntaxException e) {
@@ -570,6 +623,42 @@ public class Condition extends TypeConverter {
         }
     }
 
+    /**
+     * Will init the ranges for an inrange condition, either a list of ranges or file: and the path of a file of them.
+     */
+    private void initIpRangeValue() {
+        ipRanges = null;
+        ipRangeFile = null;
+        String value = StringUtils.trim(strValue);
+        if (StringUtils.isBlank(value)) {
+            setError("a list of ip ranges, or file: and the path of a file of them, must be set for operator " +
+                    getOperator());
+            return;
+        }
+        if (value.startsWith("file:")) {
+            String path = StringUtils.trim(value.substring("file:".length()));
+            File file = new File(path);
+            if (rule != null && rule.getServletContext() != null) {
+                String realPath = rule.getServletContext().getRealPath(path);
+                if (realPath != null && new File(realPath).isFile()) file = new File(realPath);
+            }
+            if (!file.isFile()) {
+                setError("ip range file " + path + " does not exist");
+                return;
+            }
+            ipRangeFile = IpRangeFile.forFile(file);
+        } else {
+            IpRangeTrie trie = new IpRangeTrie();
+            try {
+                trie.addAll(value);
+            } catch (IllegalArgumentException e) {
+                setError(e.getMessage());
+                return;
+            }
+            ipRanges = trie;
+        }
+    }
+
     /**
      * Will init a numeric value type ie port.
      */
@@ -621,6 +710,14 @@ public class Condition extends TypeConverter {
                 return "notfile";
             case OPERATOR_NOT_FILE_WITH_SIZE:
                 return "notfilewithsize";
+            case OPERATOR_IN_RANGE:
+                return "inrange";
+            case OPERATOR_NOT_IN_RANGE:
+                return "notinrange";
+            case OPERATOR_IN_MAP:
+                return "inmap";
+            case OPERATOR_NOT_IN_MAP:
+                return "notinmap";
             default:
                 return "";
         }
@@ -658,6 +755,14 @@ public class Condition extends TypeConverter {
             this.operator = OPERATOR_NOT_FILE;
         } else if ("notfilewithsize".equals(operator)) {
             this.operator = OPERATOR_NOT_FILE_WITH_SIZE;
+        } else if ("inrange".equals(operator)) {
+            this.operator = OPERATOR_IN_RANGE;
+        } else if ("notinrange".equals(operator)) {
+            this.operator = OPERATOR_NOT_IN_RANGE;
+        } else if ("inmap".equals(operator)) {
+            this.operator = OPERATOR_IN_MAP;
+        } else if ("notinmap".equals(operator)) {
+            this.operator = OPERATOR_NOT_IN_MAP;
         } else {
             setError("Operator " + operator + " is not valid");
         }
@@ -753,6 +858,13 @@ public class Condition extends TypeConverter {
         return "Condtition " + id;
     }
 
+    /**
+     * Don't compile a regular expression value until the condition is first evaluated.
+     */
+    void setLazyCompile(boolean lazyCompile) {
+        this.lazyCompile = lazyCompile;
+    }
+
     public void setRule(RuleBase rule) {
         this.rule = rule;
     }
@@ -34,9 +34,16 @@
  */
 package org.tuckey.web.filters.urlrewrite;
 
+import org.tuckey.web.filters.urlrewrite.extend.RewriteMap;
+import org.tuckey.web.filters.urlrewrite.functions.MapFunction;
 import org.tuckey.web.filters.urlrewrite.gzip.GzipFilter;
+import org.tuckey.web.filters.urlrewrite.utils.IpRangeFile;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.LruCache;
 import org.tuckey.web.filters.urlrewrite.utils.ModRewriteConfLoader;
+import org.tuckey.web.filters.urlrewrite.utils.MatchIndex;
+import org.tuckey.web.filters.urlrewrite.utils.MultiPatternIndex;
+import org.tuckey.web.filters.urlrewrite.utils.PrefixIndex;
 import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -44,20 +51,38 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Text;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
 
 import javax.servlet.ServletContext;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Configuration object for urlrewrite filter.
@@ -72,13 +97,35 @@ public class Conf {
     private final List errors = new ArrayList();
     private final List rules = new ArrayList(50);
     private final List catchElems = new ArrayList(10);
+    private final List maps = new ArrayList(10);
+    // name to RewriteMap for the maps that initialised ok, only this conf's rules can see them
+    private volatile Map rewriteMaps = Collections.EMPTY_MAP;
+    // File to IpRangeFile for the files named by conditions, shared by this conf's conditions only
+    private volatile Map ipRangeFiles = Collections.EMPTY_MAP;
+    // set once a reordered copy (see withHitWeightedOrder) has taken over the rules, maps and caches of this conf
+    private volatile boolean handedOn = false;
+    private Executor reloadExecutor = null;
     private List outboundRules = new ArrayList(50);
+    private volatile CompiledRules compiledRules = null;
+    private volatile CompiledOutboundRules compiledOutboundRules = null;
+    private volatile CompiledOutboundRules compiledEncodeFirstOutboundRules = null;
+    private volatile CompiledOutboundRules compiledBodyOutboundRules = null;
+    private String[] outboundBodyContentTypes = {DEFAULT_OUTBOUND_BODY_CONTENT_TYPES};
+    private int ruleCacheSize = DEFAULT_RULE_CACHE_SIZE;
+    private boolean ruleTimingEnabled = false;
+    // volatile as the caches are replaced when their size is set while requests are reading them
+    private volatile LruCache noMatchCache = null;
+    private int noMatchCacheSize = DEFAULT_NO_MATCH_CACHE_SIZE;
+    private volatile LruCache outboundCache = null;
+    private volatile LruCache encodedOutboundCache = null;
+    private int outboundCacheSize = DEFAULT_OUTBOUND_CACHE_SIZE;
     private boolean ok = false;
     private Date loadedDate = null;
     private int ruleIdCounter = 0;
     private int outboundRuleIdCounter = 0;
     private String fileName;
     private String confSystemId;
+    private List includedSystemIds = Collections.EMPTY_LIST;
 
     protected boolean useQueryString;
     protected boolean useContext;
@@ -92,6 +139,37 @@ public class Conf {
 
     protected String defaultMatchType = null;
 
+    public static final String MATCH_ENGINE_PREFIX = "prefix";
+    public static final String MATCH_ENGINE_MULTI = "multi";
+
+    protected String matchEngine = MATCH_ENGINE_PREFIX;
+
+    public static final String LOADER_DOM = "dom";
+    public static final String LOADER_SAX = "sax";
+
+    private String loader = LOADER_DOM;
+    private long loadTime = 0;
+    private long loadAllocatedBytes = -1;
+    private ConfCache confCache = null;
+    private String confCacheHash = null;
+    private boolean loadedFromCache = false;
+    // the cache the conf was loaded from until initialise has used the indexes read from it
+    private ConfCache loadedCache = null;
+
+    protected boolean lazyCompile = false;
+
+    private int initThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Fewer rules than this per thread are initialised on the calling thread, as starting threads would take longer.
+     */
+    private static final int MIN_RULES_PER_INIT_THREAD = 250;
+
+    public static final int DEFAULT_RULE_CACHE_SIZE = 10000;
+    public static final int DEFAULT_NO_MATCH_CACHE_SIZE = 10000;
+    public static final int DEFAULT_OUTBOUND_CACHE_SIZE = 10000;
+    public static final String DEFAULT_OUTBOUND_BODY_CONTENT_TYPES = "text/html";
+
     private ServletContext context;
     private boolean docProcessed = false;
     private boolean engineEnabled = true;
@@ -120,17 +198,121 @@ public class Conf {
      */
     public Conf(ServletContext context, final InputStream inputStream, String fileName, String systemId,
                 boolean modRewriteStyleConf) {
+        this(context, inputStream, fileName, systemId, modRewriteStyleConf, LOADER_DOM, true);
+    }
+
+    /**
+     * Constructor allowing the way XML style configuration is read to be chosen.
+     *
+     * @param fileName            to display on status screen
+     * @param modRewriteStyleConf true if loading mod_rewrite style conf
+     * @param loader              "sax" to read the conf as a stream rather than building a dom of the whole file
+     *                            first, uses much less memory for very large conf files, "dom" otherwise
+     * @param validate            false to skip validating the conf against the dtd, only used by the sax loader
+     */
+    public Conf(ServletContext context, final InputStream inputStream, String fileName, String systemId,
+                boolean modRewriteStyleConf, String loader, boolean validate) {
+        this(context, inputStream, fileName, systemId, modRewriteStyleConf, loader, validate, null);
+    }
+
+    /**
+     * Constructor allowing a binary cache of the conf to be used.
+     *
+     * @param cacheFile where to keep a binary copy of the conf, it is loaded instead of parsing the XML while the
+     *                  conf file is unchanged, null for no cache
+     */
+    public Conf(ServletContext context, final InputStream inputStream, String fileName, String systemId,
+                boolean modRewriteStyleConf, String loader, boolean validate, File cacheFile) {
         // make sure context is setup before calling initialise()
         this.context = context;
         this.fileName = fileName;
         this.confSystemId = systemId;
+        long start = System.currentTimeMillis();
+        long allocatedBefore = getAllocatedBytes();
         if (modRewriteStyleConf) {
             loadModRewriteStyle(inputStream);
+        } else if (cacheFile != null) {
+            loadUsingCache(inputStream, cacheFile, loader, validate);
         } else {
-            loadDom(inputStream);
+            loadXml(inputStream, loader, validate);
         }
         if (docProcessed) initialise();
+        if (confCache != null) {
+            // only keep confs that loaded ok
+            if (ok) confCache.save(confCacheHash, includedSystemIds, this);
+            confCache = null;
+        }
         loadedDate = new Date();
+        loadTime = loadedDate.getTime() - start;
+        long allocatedAfter = getAllocatedBytes();
+        if (allocatedBefore != -1 && allocatedAfter != -1) loadAllocatedBytes = allocatedAfter - allocatedBefore;
+        if (log.isDebugEnabled()) {
+            log.debug("conf loaded using " + this.loader + " loader in " + loadTime + "ms" +
+                    (loadAllocatedBytes == -1 ? "" : " allocating " + loadAllocatedBytes / 1024 + "KB"));
+        }
+    }
+
+    /**
+     * The number of bytes the current thread has allocated so far, only available on jvms that can measure it, such
+     * as HotSpot.
+     *
+     * @return the bytes or -1 if the jvm can't tell
+     */
+    private static long getAllocatedBytes() {
+        try {
+            // com.sun.management.ThreadMXBean is not on every jvm
+            Class beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            Object bean = ManagementFactory.getThreadMXBean();
+            if (!beanClass.isInstance(bean)) return -1;
+            Method method = beanClass.getMethod("getThreadAllocatedBytes", new Class[]{long.class});
+            Object bytes = method.invoke(bean, new Object[]{new Long(Thread.currentThread().getId())});
+            return ((Long) bytes).longValue();
+        } catch (Exception e) {
+            return -1;
+        } catch (LinkageError e) {
+            return -1;
+        }
+    }
+
+    private void loadXml(InputStream inputStream, String loader, boolean validate) {
+        if (LOADER_SAX.equalsIgnoreCase(StringUtils.trim(loader))) {
+            this.loader = LOADER_SAX;
+            loadSax(inputStream, validate);
+        } else {
+            loadDom(inputStream);
+        }
+    }
+
+    /**
+     * Load from the cache file if it was made from the same conf file, otherwise read the XML and record it so that
+     * the cache can be written once the conf has initialised ok.
+     */
+    private void loadUsingCache(InputStream inputStream, File cacheFile, String loader, boolean validate) {
+        if (inputStream == null) {
+            log.error("inputstream is null");
+            return;
+        }
+        byte[] confBytes;
+        try {
+            confBytes = ConfCache.readFully(inputStream);
+        } catch (IOException e) {
+            addError("Exception loading conf " + " " + e.getMessage(), e);
+            return;
+        }
+        String hash = ConfCache.hash(confBytes);
+        ConfCache cache = new ConfCache(cacheFile);
+        if (cache.load(this, hash)) {
+            this.loader = "cache";
+            loadedFromCache = true;
+            loadedCache = cache;
+            includedSystemIds = cache.getIncludedSystemIds();
+            docProcessed = true;
+            return;
+        }
+        cache.startRecording();
+        confCache = cache;
+        confCacheHash = hash;
+        loadXml(new ByteArrayInputStream(confBytes), loader, validate);
     }
 
     protected void loadModRewriteStyle(InputStream inputStream) {
@@ -167,6 +349,55 @@ public class Conf {
         this(null, inputStream, conffile, conffile);
     }
 
+    /**
+     * Copy an initialised conf with the rules in a different order, see withHitWeightedOrder.
+     */
+    private Conf(Conf conf, List orderedRules) {
+        errors.addAll(conf.errors);
+        rules.addAll(orderedRules);
+        catchElems.addAll(conf.catchElems);
+        maps.addAll(conf.maps);
+        rewriteMaps = conf.rewriteMaps;
+        ipRangeFiles = conf.ipRangeFiles;
+        reloadExecutor = conf.reloadExecutor;
+        outboundRules = new ArrayList(conf.outboundRules);
+        compiledOutboundRules = conf.compiledOutboundRules;
+        compiledEncodeFirstOutboundRules = conf.compiledEncodeFirstOutboundRules;
+        compiledBodyOutboundRules = conf.compiledBodyOutboundRules;
+        outboundBodyContentTypes = conf.outboundBodyContentTypes;
+        ruleCacheSize = conf.ruleCacheSize;
+        ruleTimingEnabled = conf.ruleTimingEnabled;
+        // whether a url matches no rules and what the outbound rules do with it does not depend on the rule order
+        noMatchCache = conf.noMatchCache;
+        noMatchCacheSize = conf.noMatchCacheSize;
+        outboundCache = conf.outboundCache;
+        encodedOutboundCache = conf.encodedOutboundCache;
+        outboundCacheSize = conf.outboundCacheSize;
+        ok = conf.ok;
+        loadedDate = conf.loadedDate;
+        ruleIdCounter = conf.ruleIdCounter;
+        outboundRuleIdCounter = conf.outboundRuleIdCounter;
+        fileName = conf.fileName;
+        confSystemId = conf.confSystemId;
+        includedSystemIds = conf.includedSystemIds;
+        useQueryString = conf.useQueryString;
+        useContext = conf.useContext;
+        decodeUsing = conf.decodeUsing;
+        decodeUsingEncodingHeader = conf.decodeUsingEncodingHeader;
+        defaultMatchType = conf.defaultMatchType;
+        matchEngine = conf.matchEngine;
+        loader = conf.loader;
+        loadTime = conf.loadTime;
+        loadAllocatedBytes = conf.loadAllocatedBytes;
+        loadedFromCache = conf.loadedFromCache;
+        lazyCompile = conf.lazyCompile;
+        initThreads = conf.initThreads;
+        context = conf.context;
+        docProcessed = conf.docProcessed;
+        engineEnabled = conf.engineEnabled;
+        compiledRules = compileRules(orderedRules);
+    }
+
     /**
      * Load the dom document from the inputstream
      * <p/>
@@ -206,6 +437,7 @@ public class Conf {
         try {
             log.debug("about to parse conf");
             Document doc = parser.parse(inputStream, confSystemId);
+            includedSystemIds = handler.getIncludedSystemIds();
             processConfDoc(doc);
 
         } catch (SAXParseException e) {
@@ -216,6 +448,74 @@ public class Conf {
         }
     }
 
+    /**
+     * Read the conf from the inputstream as a stream of sax events, rules are added as they are read.
+     * <p/>
+     * Note, protected so that is can be extended.
+     *
+     * @param inputStream stream of the conf file to load
+     * @param validate    true to validate the conf file against the dtd
+     */
+    protected synchronized void loadSax(final InputStream inputStream, boolean validate) {
+        if (inputStream == null) {
+            log.error("inputstream is null");
+            return;
+        }
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        log.debug("SAX parser factory is: " + factory.getClass().getName());
+        factory.setValidating(validate);
+        factory.setNamespaceAware(true);
+        ConfSaxHandler handler;
+        XMLReader reader;
+        try {
+            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            handler = new ConfSaxHandler(this, builder.newDocument(), confSystemId);
+            reader = factory.newSAXParser().getXMLReader();
+            reader.setContentHandler(handler);
+            reader.setErrorHandler(handler);
+            reader.setEntityResolver(handler);
+            reader.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
+        } catch (Exception e) {
+            log.error("Unable to setup SAX parser for reading conf", e);
+            return;
+        }
+        log.debug("SAX Parser: " + reader.getClass().getName());
+
+        try {
+            log.debug("about to parse conf");
+            InputSource inputSource = new InputSource(inputStream);
+            inputSource.setSystemId(confSystemId);
+            reader.parse(inputSource);
+            includedSystemIds = handler.getIncludedSystemIds();
+            docProcessed = true;
+
+        } catch (SAXParseException e) {
+            clearPartialLoad();
+            addError("Parse error on line " + e.getLineNumber() + " " + e.getMessage(), e);
+
+        } catch (Exception e) {
+            clearPartialLoad();
+            addError("Exception loading conf " + " " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Forget anything read before the sax loader failed, so the conf is the same as if the dom loader had failed.
+     */
+    private void clearPartialLoad() {
+        rules.clear();
+        outboundRules.clear();
+        catchElems.clear();
+        maps.clear();
+        ruleIdCounter = 0;
+        outboundRuleIdCounter = 0;
+        useQueryString = false;
+        useContext = false;
+        decodeUsing = DEFAULT_DECODE_USING;
+        defaultMatchType = null;
+        matchEngine = MATCH_ENGINE_PREFIX;
+    }
+
     /**
      * Process dom document and populate Conf object.
      * <p/>
@@ -223,7 +523,20 @@ public class Conf {
      */
     protected void processConfDoc(Document doc) {
         Element rootElement = doc.getDocumentElement();
+        processRootElement(rootElement);
+
+        NodeList rootElementList = rootElement.getChildNodes();
+        for (int i = 0; i < rootElementList.getLength(); i++) {
+            processConfElement(rootElementList.item(i));
+        }
+        docProcessed = true;
+    }
 
+    /**
+     * Process the attributes of the urlrewrite element.
+     */
+    void processRootElement(Element rootElement) {
+        if (confCache != null) confCache.record(rootElement, true);
         if ("true".equalsIgnoreCase(getAttrValue(rootElement, "use-query-string"))) setUseQueryString(true);
         if ("true".equalsIgnoreCase(getAttrValue(rootElement, "use-context"))) {
             log.debug("use-context set to true");
@@ -231,83 +544,97 @@ public class Conf {
         }
         setDecodeUsing(getAttrValue(rootElement, "decode-using"));
         setDefaultMatchType(getAttrValue(rootElement, "default-match-type"));
+        setMatchEngine(getAttrValue(rootElement, "match-engine"));
+        if ("true".equalsIgnoreCase(getAttrValue(rootElement, "lazy-compile"))) setLazyCompile(true);
+    }
 
-        NodeList rootElementList = rootElement.getChildNodes();
-        for (int i = 0; i < rootElementList.getLength(); i++) {
-            Node node = rootElementList.item(i);
+    /**
+     * Process a child of the urlrewrite element, ie, a map, rule, class-rule, outbound-rule or catch.
+     */
+    void processConfElement(Node node) {
+        if (confCache != null) confCache.record(node, false);
+        if (node.getNodeType() == Node.ELEMENT_NODE &&
+                ((Element) node).getTagName().equals("rule")) {
+            Element ruleElement = (Element) node;
+            // we have a rule node
+            NormalRule rule = new NormalRule();
 
-            if (node.getNodeType() == Node.ELEMENT_NODE &&
-                    ((Element) node).getTagName().equals("rule")) {
-                Element ruleElement = (Element) node;
-                // we have a rule node
-                NormalRule rule = new NormalRule();
+            processRuleBasics(ruleElement, rule);
+            procesConditions(ruleElement, rule);
+            processRuns(ruleElement, rule);
 
-                processRuleBasics(ruleElement, rule);
-                procesConditions(ruleElement, rule);
-                processRuns(ruleElement, rule);
+            Node toNode = ruleElement.getElementsByTagName("to").item(0);
+            rule.setTo(getNodeValue(toNode));
+            rule.setToType(getAttrValue(toNode, "type"));
+            rule.setToContextStr(getAttrValue(toNode, "context"));
+            rule.setToLast(getAttrValue(toNode, "last"));
+            rule.setQueryStringAppend(getAttrValue(toNode, "qsappend"));
+            if ("true".equalsIgnoreCase(getAttrValue(toNode, "encode"))) rule.setEncodeToUrl(true);
 
-                Node toNode = ruleElement.getElementsByTagName("to").item(0);
-                rule.setTo(getNodeValue(toNode));
-                rule.setToType(getAttrValue(toNode, "type"));
-                rule.setToContextStr(getAttrValue(toNode, "context"));
-                rule.setToLast(getAttrValue(toNode, "last"));
-                rule.setQueryStringAppend(getAttrValue(toNode, "qsappend"));
-                if ("true".equalsIgnoreCase(getAttrValue(toNode, "encode"))) rule.setEncodeToUrl(true);
+            processSetAttributes(ruleElement, rule);
 
-                processSetAttributes(ruleElement, rule);
+            addRule(rule);
 
-                addRule(rule);
+        } else if (node.getNodeType() == Node.ELEMENT_NODE &&
+                ((Element) node).getTagName().equals("class-rule")) {
+            Element ruleElement = (Element) node;
 
-            } else if (node.getNodeType() == Node.ELEMENT_NODE &&
-                    ((Element) node).getTagName().equals("class-rule")) {
-                Element ruleElement = (Element) node;
+            ClassRule classRule = new ClassRule();
+            if ("false".equalsIgnoreCase(getAttrValue(ruleElement, "enabled"))) classRule.setEnabled(false);
+            if ("false".equalsIgnoreCase(getAttrValue(ruleElement, "last"))) classRule.setLast(false);
+            classRule.setClassStr(getAttrValue(ruleElement, "class"));
+            classRule.setMethodStr(getAttrValue(ruleElement, "method"));
 
-                ClassRule classRule = new ClassRule();
-                if ("false".equalsIgnoreCase(getAttrValue(ruleElement, "enabled"))) classRule.setEnabled(false);
-                if ("false".equalsIgnoreCase(getAttrValue(ruleElement, "last"))) classRule.setLast(false);
-                classRule.setClassStr(getAttrValue(ruleElement, "class"));
-                classRule.setMethodStr(getAttrValue(ruleElement, "method"));
+            addRule(classRule);
 
-                addRule(classRule);
+        } else if (node.getNodeType() == Node.ELEMENT_NODE &&
+                ((Element) node).getTagName().equals("outbound-rule")) {
 
-            } else if (node.getNodeType() == Node.ELEMENT_NODE &&
-                    ((Element) node).getTagName().equals("outbound-rule")) {
+            Element ruleElement = (Element) node;
+            // we have a rule node
+            OutboundRule rule = new OutboundRule();
 
-                Element ruleElement = (Element) node;
-                // we have a rule node
-                OutboundRule rule = new OutboundRule();
+            processRuleBasics(ruleElement, rule);
+            if ("true".equalsIgnoreCase(getAttrValue(ruleElement, "encodefirst"))) rule.setEncodeFirst(true);
+            if ("true".equalsIgnoreCase(getAttrValue(ruleElement, "rewrite-body"))) rule.setRewriteBody(true);
 
-                processRuleBasics(ruleElement, rule);
-                if ("true".equalsIgnoreCase(getAttrValue(ruleElement, "encodefirst"))) rule.setEncodeFirst(true);
+            procesConditions(ruleElement, rule);
+            processRuns(ruleElement, rule);
 
-                procesConditions(ruleElement, rule);
-                processRuns(ruleElement, rule);
+            Node toNode = ruleElement.getElementsByTagName("to").item(0);
+            rule.setTo(getNodeValue(toNode));
+            rule.setToLast(getAttrValue(toNode, "last"));
+            if ("false".equalsIgnoreCase(getAttrValue(toNode, "encode"))) rule.setEncodeToUrl(false);
 
-                Node toNode = ruleElement.getElementsByTagName("to").item(0);
-                rule.setTo(getNodeValue(toNode));
-                rule.setToLast(getAttrValue(toNode, "last"));
-                if ("false".equalsIgnoreCase(getAttrValue(toNode, "encode"))) rule.setEncodeToUrl(false);
+            processSetAttributes(ruleElement, rule);
 
-                processSetAttributes(ruleElement, rule);
+            addOutboundRule(rule);
 
-                addOutboundRule(rule);
+        } else if (node.getNodeType() == Node.ELEMENT_NODE &&
+                ((Element) node).getTagName().equals("catch")) {
 
-            } else if (node.getNodeType() == Node.ELEMENT_NODE &&
-                    ((Element) node).getTagName().equals("catch")) {
+            Element catchXMLElement = (Element) node;
+            // we have a rule node
+            CatchElem catchElem = new CatchElem();
 
-                Element catchXMLElement = (Element) node;
-                // we have a rule node
-                CatchElem catchElem = new CatchElem();
+            catchElem.setClassStr(getAttrValue(catchXMLElement, "class"));
 
-                catchElem.setClassStr(getAttrValue(catchXMLElement, "class"));
+            processRuns(catchXMLElement, catchElem);
 
-                processRuns(catchXMLElement, catchElem);
+            catchElems.add(catchElem);
 
-                catchElems.add(catchElem);
+        } else if (node.getNodeType() == Node.ELEMENT_NODE &&
+                ((Element) node).getTagName().equals("map")) {
 
-            }
+            Element mapElement = (Element) node;
+            MapElem mapElem = new MapElem();
+            mapElem.setName(getAttrValue(mapElement, "name"));
+            mapElem.setType(getAttrValue(mapElement, "type"));
+            mapElem.setFile(getAttrValue(mapElement, "file"));
+            mapElem.setFunction(getAttrValue(mapElement, "function"));
+
+            addMap(mapElem);
         }
-        docProcessed = true;
     }
 
     private void processRuleBasics(Element ruleElement, RuleBase rule) {
@@ -433,21 +760,35 @@ public class Conf {
         }
 
         initDecodeUsing(decodeUsing);
+        // a conf read from a cache is initialised using the indexes that were written to it, only the first time
+        ConfCache cached = loadedCache;
+        loadedCache = null;
 
         boolean rulesOk = true;
-        for (int i = 0; i < rules.size(); i++) {
-            final Rule rule = (Rule) rules.get(i);
-            if (!rule.initialise(context)) {
-                // if we failed to initialise anything set the status to bad
+        // maps first as rules look them up when they are initialised
+        Map newRewriteMaps = new HashMap();
+        for (int i = 0; i < maps.size(); i++) {
+            final MapElem mapElem = (MapElem) maps.get(i);
+            if (mapElem.initialise(context)) {
+                newRewriteMaps.put(mapElem.getName(), mapElem.getMap());
+            } else {
+                addError(mapElem.getError());
                 rulesOk = false;
             }
         }
-        for (int i = 0; i < outboundRules.size(); i++) {
-            final OutboundRule outboundRule = (OutboundRule) outboundRules.get(i);
-            if (!outboundRule.initialise(context)) {
-                // if we failed to initialise anything set the status to bad
-                rulesOk = false;
-            }
+        rewriteMaps = newRewriteMaps;
+        ipRangeFiles = new HashMap();
+        long start = System.currentTimeMillis();
+        if (!initialiseRules(rules, "rule", cached != null)) {
+            // if we failed to initialise anything set the status to bad
+            rulesOk = false;
+        }
+        if (!initialiseRules(outboundRules, "outbound rule", cached != null)) {
+            rulesOk = false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("initialised " + (rules.size() + outboundRules.size()) + " rules in " +
+                    (System.currentTimeMillis() - start) + "ms");
         }
         for (int i = 0; i < catchElems.size(); i++) {
             final CatchElem catchElem = (CatchElem) catchElems.get(i);
@@ -459,11 +800,290 @@ public class Conf {
         if (rulesOk) {
             ok = true;
         }
+        setReloadExecutor(reloadExecutor);
+        if (cached != null) {
+            compiledRules = compileRules(rules, cached.getRuleIndex(), cached.getPureRunEnds());
+        } else {
+            compiledRules = compileRules(rules);
+        }
+        compileOutboundRules(cached);
+        initNoMatchCache();
+        initOutboundCache();
         if (log.isDebugEnabled()) {
             log.debug("conf status " + ok);
         }
     }
 
+    /**
+     * Initialise a list of rules.  When there are lots of rules they are spread across a number of threads, except
+     * for rules with run's which are always initialised on the calling thread, in order, as they call application
+     * code that may not expect to be called concurrently.
+     *
+     * @param ruleList  rules or outbound rules
+     * @param ruleLabel used to describe a rule in any error
+     * @param cached    true if the rules were read from a conf cache, their "from" and "to" were checked when the
+     *                  cache was written so there is nothing to compile and they are initialised on the calling thread
+     * @return true if every rule initialised ok
+     */
+    private boolean initialiseRules(final List ruleList, String ruleLabel, boolean cached) {
+        if (cached) {
+            boolean ok = true;
+            for (int i = 0; i < ruleList.size(); i++) {
+                if (!initialiseRule(ruleList.get(i), true)) ok = false;
+            }
+            return ok;
+        }
+        for (int i = 0; i < ruleList.size(); i++) {
+            final Object rule = ruleList.get(i);
+            if (lazyCompile && rule instanceof RuleBase) ((RuleBase) rule).setLazyCompile(true);
+        }
+        int threads = Math.min(initThreads, ruleList.size() / MIN_RULES_PER_INIT_THREAD);
+        if (threads <= 1) {
+            boolean ok = true;
+            for (int i = 0; i < ruleList.size(); i++) {
+                if (!initialiseRule(ruleList.get(i), false)) ok = false;
+            }
+            return ok;
+        }
+
+        final boolean[] results = new boolean[ruleList.size()];
+        final Exception[] failures = new Exception[ruleList.size()];
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(java.lang.Runnable r) {
+                Thread thread = new Thread(r, "UrlRewriteFilter rule init");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List futures = new ArrayList();
+        try {
+            // a few batches per thread so that a slow batch doesn't hold up the rest
+            int batchSize = Math.max(1, ruleList.size() / (threads * 4));
+            for (int batchStart = 0; batchStart < ruleList.size(); batchStart += batchSize) {
+                final int from = batchStart;
+                final int to = Math.min(ruleList.size(), batchStart + batchSize);
+                futures.add(executor.submit(new java.lang.Runnable() {
+                    public void run() {
+                        for (int i = from; i < to; i++) {
+                            final Object rule = ruleList.get(i);
+                            if (!isConcurrentInitSafe(rule)) continue;
+                            try {
+                                results[i] = initialiseRule(rule, false);
+                            } catch (Exception e) {
+                                failures[i] = e;
+                            }
+                        }
+                    }
+                }));
+            }
+            // meanwhile the rules that must be done in order
+            for (int i = 0; i < ruleList.size(); i++) {
+                final Object rule = ruleList.get(i);
+                if (!isConcurrentInitSafe(rule)) results[i] = initialiseRule(rule, false);
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                ((Future) futures.get(i)).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            addError("interrupted while initialising rules", e);
+            return false;
+        } catch (ExecutionException e) {
+            addError("unable to initialise rules", e);
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // report in rule order so that errors are the same whatever order the threads ran in
+        boolean ok = true;
+        for (int i = 0; i < results.length; i++) {
+            if (failures[i] != null) {
+                addError("Exception initialising " + ruleLabel + " " + i + " " + failures[i].getMessage(), failures[i]);
+            }
+            if (!results[i]) ok = false;
+        }
+        return ok;
+    }
+
+    /**
+     * Rules with run's call application code when initialised, so are initialised one at a time.
+     */
+    private static boolean isConcurrentInitSafe(Object rule) {
+        return rule instanceof RuleBase && ((RuleBase) rule).getRuns().isEmpty();
+    }
+
+    private boolean initialiseRule(Object rule, boolean cached) {
+        // functions and conditions find this conf's maps and ip range files while they are initialised
+        MapFunction.setCurrentMaps(rewriteMaps);
+        IpRangeFile.setCurrentFiles(ipRangeFiles);
+        try {
+            if (cached && rule instanceof RuleBase) return ((RuleBase) rule).initialiseCached(context);
+            if (rule instanceof OutboundRule) return ((OutboundRule) rule).initialise(context);
+            return ((Rule) rule).initialise(context);
+        } finally {
+            MapFunction.setCurrentMaps(null);
+            IpRangeFile.setCurrentFiles(null);
+        }
+    }
+
+    /**
+     * Work out everything needed to run the rules in the order specified.
+     */
+    private CompiledRules compileRules(List orderedRules) {
+        return compileRules(orderedRules, buildRuleIndex(orderedRules, "rules"), buildPureRuns(orderedRules));
+    }
+
+    private CompiledRules compileRules(List orderedRules, MatchIndex ruleIndex, int[] pureRunEnds) {
+        CompiledRules compiled = new CompiledRules(new ArrayList(orderedRules), ruleIndex, pureRunEnds, null);
+        return compiled.withRuleCache(newRuleCache(compiled));
+    }
+
+    /**
+     * Index the rules by their "from" so that each request only needs to run the rules that have a chance of
+     * matching.  By default rules are indexed by the literal prefix of "from", or the literal suffix of wildcard
+     * "from"s without a prefix, when match-engine is "multi" all the "from" expressions are combined into a single
+     * automaton.
+     */
+    private MatchIndex buildRuleIndex(List orderedRules, String ruleLabel) {
+        MatchIndex ruleIndex;
+        if (MATCH_ENGINE_MULTI.equals(matchEngine)) {
+            ruleIndex = buildMultiPatternIndex(orderedRules);
+        } else {
+            PrefixIndex index = new PrefixIndex();
+            for (int i = 0; i < orderedRules.size(); i++) {
+                final RuleBase rule = getIndexableRule(orderedRules.get(i));
+                String prefix = null;
+                String suffix = null;
+                if (rule != null) {
+                    prefix = rule.getFromLiteralPrefix();
+                    suffix = rule.getFromLiteralSuffix();
+                }
+                index.add(prefix, suffix, i);
+            }
+            index.compact();
+            ruleIndex = index;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("indexed " + ruleIndex.getIndexedCount() + " of " + ruleIndex.size() + " " + ruleLabel +
+                    " using " + matchEngine + " engine");
+        }
+        return ruleIndex;
+    }
+
+    private MatchIndex buildMultiPatternIndex(List orderedRules) {
+        MultiPatternIndex index = new MultiPatternIndex();
+        for (int i = 0; i < orderedRules.size(); i++) {
+            final RuleBase rule = getIndexableRule(orderedRules.get(i));
+            if (rule == null || !rule.isValid()) {
+                index.addUnindexed(i);
+                continue;
+            }
+            if (rule.isMatchTypeWildcard()) {
+                index.addLiteralPrefix(rule.getFromLiteralPrefix(), false, i);
+            } else {
+                index.add(rule.getFrom(), rule.isFromCaseSensitive(), i);
+            }
+        }
+        index.compile();
+        return index;
+    }
+
+    /**
+     * @return the rule if it can be skipped when its "from" can't match, otherwise null
+     */
+    private static RuleBase getIndexableRule(Object rule) {
+        if (rule instanceof OutboundRule) return (RuleBase) rule;
+        // filter rules stop rule processing whenever they are run so they must never be skipped
+        if (rule instanceof NormalRule && !((NormalRule) rule).isFilter()) return (RuleBase) rule;
+        return null;
+    }
+
+    /**
+     * Split the outbound rules into those run before the container's encodeURL and those run after it (encodefirst),
+     * each indexed in the same way as the rules.  The rules that also rewrite links in response bodies get their own
+     * index.
+     *
+     * @param cached the cache the conf was read from, to use the indexes written to it, or null to build them
+     */
+    private void compileOutboundRules(ConfCache cached) {
+        List rulesBeforeEncode = new ArrayList();
+        List rulesAfterEncode = new ArrayList();
+        List bodyRules = new ArrayList();
+        for (int i = 0; i < outboundRules.size(); i++) {
+            final OutboundRule outboundRule = (OutboundRule) outboundRules.get(i);
+            if (outboundRule.isEncodeFirst()) {
+                rulesAfterEncode.add(outboundRule);
+            } else {
+                rulesBeforeEncode.add(outboundRule);
+            }
+            if (outboundRule.isRewriteBody()) bodyRules.add(outboundRule);
+        }
+        if (cached != null) {
+            compiledBodyOutboundRules = bodyRules.isEmpty() ? null :
+                    new CompiledOutboundRules(bodyRules, cached.getBodyOutboundRuleIndex());
+            compiledOutboundRules = new CompiledOutboundRules(rulesBeforeEncode, cached.getOutboundRuleIndex());
+            compiledEncodeFirstOutboundRules = new CompiledOutboundRules(rulesAfterEncode,
+                    cached.getEncodeFirstOutboundRuleIndex());
+            return;
+        }
+        compiledBodyOutboundRules = bodyRules.isEmpty() ? null :
+                new CompiledOutboundRules(bodyRules, buildRuleIndex(bodyRules, "body outbound rules"));
+        compiledOutboundRules = new CompiledOutboundRules(rulesBeforeEncode,
+                buildRuleIndex(rulesBeforeEncode, "outbound rules"));
+        compiledEncodeFirstOutboundRules = new CompiledOutboundRules(rulesAfterEncode,
+                buildRuleIndex(rulesAfterEncode, "encodefirst outbound rules"));
+    }
+
+    /**
+     * Work out where each run of pure rules ends, the result of a run depends only on the url it starts with so it
+     * can be cached.
+     */
+    private static int[] buildPureRuns(List orderedRules) {
+        int[] ends = new int[orderedRules.size()];
+        int end = orderedRules.size();
+        for (int i = orderedRules.size() - 1; i >= 0; i--) {
+            final Rule rule = (Rule) orderedRules.get(i);
+            if (rule instanceof NormalRule && ((NormalRule) rule).isPure()) {
+                ends[i] = end;
+            } else {
+                ends[i] = -1;
+                end = i;
+            }
+        }
+        return ends;
+    }
+
+    private LruCache newRuleCache(CompiledRules compiled) {
+        return ruleCacheSize > 0 && compiled.isAnyRulePure() ? new LruCache(ruleCacheSize) : null;
+    }
+
+    /**
+     * Urls that matched no rules can only be remembered when every rule depends only on the url.
+     */
+    private void initNoMatchCache() {
+        if (noMatchCacheSize > 0 && isAllRulesPure()) {
+            noMatchCache = new LruCache(noMatchCacheSize);
+        } else {
+            noMatchCache = null;
+        }
+    }
+
+    /**
+     * The results of running the outbound rules can only be remembered when every outbound rule depends only on the
+     * url.  Results from before and after the container's encodeURL are kept apart, each gets half of the size.
+     */
+    private void initOutboundCache() {
+        if (outboundCacheSize > 0 && isAllOutboundRulesPure()) {
+            int size = Math.max(1, outboundCacheSize / 2);
+            outboundCache = new LruCache(size);
+            encodedOutboundCache = new LruCache(size);
+        } else {
+            outboundCache = null;
+            encodedOutboundCache = null;
+        }
+    }
+
     private void initDecodeUsing(String decodeUsingSetting) {
         decodeUsingSetting = StringUtils.trimToNull(decodeUsingSetting);
         if (decodeUsingSetting == null) decodeUsingSetting = DEFAULT_DECODE_USING;
@@ -496,10 +1116,30 @@ public class Conf {
      * Destory the conf gracefully.
      */
     public void destroy() {
+        if (handedOn) {
+            // the reordered copy has everything except the rule cache
+            LruCache ruleCache = getRuleCache();
+            if (ruleCache != null) ruleCache.clear();
+            return;
+        }
         for (int i = 0; i < rules.size(); i++) {
             final Rule rule = (Rule) rules.get(i);
             rule.destroy();
         }
+        LruCache ruleCache = getRuleCache();
+        if (ruleCache != null) ruleCache.clear();
+        if (noMatchCache != null) noMatchCache.clear();
+        if (outboundCache != null) outboundCache.clear();
+        if (encodedOutboundCache != null) encodedOutboundCache.clear();
+        // the rules have the maps too, so empty them rather than just letting go
+        Map oldRewriteMaps = rewriteMaps;
+        rewriteMaps = Collections.EMPTY_MAP;
+        oldRewriteMaps.clear();
+        Map oldIpRangeFiles = ipRangeFiles;
+        ipRangeFiles = Collections.EMPTY_MAP;
+        synchronized (oldIpRangeFiles) {
+            oldIpRangeFiles.clear();
+        }
     }
 
     /**
@@ -509,7 +1149,11 @@ public class Conf {
      */
     public void addRule(final Rule rule) {
         rule.setId(ruleIdCounter++);
+        if (rule instanceof RuleBase) ((RuleBase) rule).setTimed(ruleTimingEnabled);
         rules.add(rule);
+        // index and cache are out of date until initialise is called again
+        compiledRules = null;
+        noMatchCache = null;
     }
 
     /**
@@ -519,7 +1163,23 @@ public class Conf {
      */
     public void addOutboundRule(final OutboundRule outboundRule) {
         outboundRule.setId(outboundRuleIdCounter++);
+        outboundRule.setTimed(ruleTimingEnabled);
         outboundRules.add(outboundRule);
+        // compiled rules and cache are out of date until initialise is called again
+        compiledOutboundRules = null;
+        compiledEncodeFirstOutboundRules = null;
+        compiledBodyOutboundRules = null;
+        outboundCache = null;
+        encodedOutboundCache = null;
+    }
+
+    /**
+     * Will add the map to the maps list.
+     *
+     * @param mapElem The map to add
+     */
+    public void addMap(final MapElem mapElem) {
+        maps.add(mapElem);
     }
 
     /**
@@ -540,6 +1200,127 @@ public class Conf {
         return rules;
     }
 
+    /**
+     * Will get the index of rules by "from".
+     *
+     * @return the index or null if the conf has not been initialised since the last rule was added
+     */
+    public MatchIndex getRuleIndex() {
+        CompiledRules current = compiledRules;
+        return current == null ? null : current.getRuleIndex();
+    }
+
+    /**
+     * The rules as they are run, null if the conf has not been initialised since the last rule was added.
+     */
+    CompiledRules getCompiledRules() {
+        return compiledRules;
+    }
+
+    /**
+     * Make a copy of this conf that runs the rules that can be safely reordered (see RuleOrderAnalysis) in order of
+     * how often they have matched.  This conf is left as it is so requests already using it are not affected.
+     * <p/>
+     * The copy shares this conf's rules, maps and caches, once the copy is made destroying this conf leaves them
+     * alone, they are destroyed with the copy.
+     *
+     * @return the copy or null if the order would not change or the conf has not been initialised
+     */
+    public synchronized Conf withHitWeightedOrder() {
+        CompiledRules current = compiledRules;
+        if (current == null || handedOn) return null;
+        RuleOrderAnalysis analysis = new RuleOrderAnalysis(current.getRules());
+        List order = analysis.getHitWeightedOrder();
+        if (!analysis.isOrderChanged(order)) return null;
+        Conf reordered = new Conf(this, order);
+        handedOn = true;
+        log.info("rules reordered by number of matches");
+        return reordered;
+    }
+
+    /**
+     * Will get the end of the run of pure rules starting at the rule with the index specified.
+     *
+     * @return the index of the first rule after the run, or -1 if the rule is not pure
+     */
+    public int getPureRunEnd(int ruleIdx) {
+        CompiledRules current = compiledRules;
+        return current == null ? -1 : current.getPureRunEnd(ruleIdx);
+    }
+
+    /**
+     * @return true if there is at least one rule and every rule is pure
+     */
+    public boolean isAllRulesPure() {
+        CompiledRules current = compiledRules;
+        return current != null && current.isAllRulesPure();
+    }
+
+    /**
+     * Will get the cache of urls that matched no rules.
+     *
+     * @return the cache or null if it is disabled, not every rule is pure or the conf has not been initialised
+     */
+    public LruCache getNoMatchCache() {
+        return noMatchCache;
+    }
+
+    public int getNoMatchCacheSize() {
+        return noMatchCacheSize;
+    }
+
+    /**
+     * Set the maximum number of urls that matched no rules to remember, 0 disables.  Any urls already remembered are
+     * dropped.
+     */
+    public void setNoMatchCacheSize(int noMatchCacheSize) {
+        this.noMatchCacheSize = noMatchCacheSize;
+        if (compiledRules != null) initNoMatchCache();
+    }
+
+    /**
+     * Will get the cache of results from runs of pure rules.
+     *
+     * @return the cache or null if caching is disabled, there are no pure rules or the conf has not been initialised
+     */
+    public LruCache getRuleCache() {
+        CompiledRules current = compiledRules;
+        return current == null ? null : current.getRuleCache();
+    }
+
+    public int getRuleCacheSize() {
+        return ruleCacheSize;
+    }
+
+    /**
+     * Set the maximum number of results to cache, 0 disables the cache.  Any results already cached are dropped.
+     */
+    public void setRuleCacheSize(int ruleCacheSize) {
+        this.ruleCacheSize = ruleCacheSize;
+        CompiledRules current = compiledRules;
+        if (current != null) {
+            compiledRules = current.withRuleCache(newRuleCache(current));
+        }
+    }
+
+    public boolean isRuleTimingEnabled() {
+        return ruleTimingEnabled;
+    }
+
+    /**
+     * Set to time each run of each rule, only needed when the timings are used as reading the clock twice for every
+     * rule run adds up.  Rule runs are always counted.
+     */
+    public void setRuleTimingEnabled(boolean ruleTimingEnabled) {
+        this.ruleTimingEnabled = ruleTimingEnabled;
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i) instanceof RuleBase) ((RuleBase) rules.get(i)).setTimed(ruleTimingEnabled);
+        }
+        for (int i = 0; i < outboundRules.size(); i++) {
+            ((OutboundRule) outboundRules.get(i)).setTimed(ruleTimingEnabled);
+        }
+    }
+
     /**
      * Will get the List of outbound rules.
      *
@@ -549,6 +1330,96 @@ public class Conf {
         return outboundRules;
     }
 
+    /**
+     * The outbound rules as they are run.
+     *
+     * @param encodeUrlHasBeenRun true for the encodefirst rules run after the container's encodeURL
+     * @return the rules or null if the conf has not been initialised since the last outbound rule was added
+     */
+    CompiledOutboundRules getCompiledOutboundRules(boolean encodeUrlHasBeenRun) {
+        return encodeUrlHasBeenRun ? compiledEncodeFirstOutboundRules : compiledOutboundRules;
+    }
+
+    /**
+     * The outbound rules with rewrite-body set, run against the links in response bodies.
+     *
+     * @return the rules or null if there are none or the conf has not been initialised since the last outbound rule
+     *         was added
+     */
+    CompiledOutboundRules getCompiledBodyOutboundRules() {
+        return compiledBodyOutboundRules;
+    }
+
+    /**
+     * true if responses of this content type have their links rewritten by the rewrite-body outbound rules.
+     *
+     * @param contentType the response's content type, parameters such as charset are ignored
+     */
+    public boolean isOutboundBodyContentType(String contentType) {
+        if (contentType == null) return false;
+        int paramsStart = contentType.indexOf(';');
+        if (paramsStart != -1) contentType = contentType.substring(0, paramsStart);
+        contentType = contentType.trim();
+        for (int i = 0; i < outboundBodyContentTypes.length; i++) {
+            if (outboundBodyContentTypes[i].equalsIgnoreCase(contentType)) return true;
+        }
+        return false;
+    }
+
+    public String[] getOutboundBodyContentTypes() {
+        return outboundBodyContentTypes.clone();
+    }
+
+    /**
+     * Set the content types of the responses rewrite-body outbound rules are run on.
+     *
+     * @param contentTypes comma separated, eg, "text/html, application/xhtml+xml"
+     */
+    public void setOutboundBodyContentTypes(String contentTypes) {
+        List types = new ArrayList();
+        String[] parts = contentTypes == null ? new String[0] : contentTypes.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            String type = parts[i].trim();
+            if (type.length() > 0) types.add(type);
+        }
+        outboundBodyContentTypes = (String[]) types.toArray(new String[types.size()]);
+    }
+
+    /**
+     * @return true if there is at least one outbound rule and every outbound rule is pure
+     */
+    public boolean isAllOutboundRulesPure() {
+        if (outboundRules.isEmpty()) return false;
+        for (int i = 0; i < outboundRules.size(); i++) {
+            if (!((OutboundRule) outboundRules.get(i)).isPure()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Will get the cache of results from running the outbound rules.
+     *
+     * @param encodeUrlHasBeenRun true for the cache of results from the rules run after the container's encodeURL
+     * @return the cache or null if it is disabled, not every outbound rule is pure or the conf has not been
+     *         initialised
+     */
+    public LruCache getOutboundCache(boolean encodeUrlHasBeenRun) {
+        return encodeUrlHasBeenRun ? encodedOutboundCache : outboundCache;
+    }
+
+    public int getOutboundCacheSize() {
+        return outboundCacheSize;
+    }
+
+    /**
+     * Set the maximum number of outbound results to cache, 0 disables the cache.  Any results already cached are
+     * dropped.
+     */
+    public void setOutboundCacheSize(int outboundCacheSize) {
+        this.outboundCacheSize = outboundCacheSize;
+        if (compiledRules != null) initOutboundCache();
+    }
+
     /**
      * true if the conf has been loaded ok.
      *
@@ -575,6 +1446,46 @@ public class Conf {
         return fileName;
     }
 
+    /**
+     * @return true if the conf was loaded from a binary cache rather than by reading the XML
+     */
+    public boolean isLoadedFromCache() {
+        return loadedFromCache;
+    }
+
+    /**
+     * The way the conf file was read, "dom", "sax" or "cache".
+     */
+    public String getLoader() {
+        return loader;
+    }
+
+    /**
+     * How long it took to read and initialise the conf in millis.
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * How many bytes the loading thread allocated while reading and initialising the conf, rules initialised on
+     * other threads are not counted.
+     *
+     * @return the bytes or -1 if the jvm can't measure it
+     */
+    public long getLoadAllocatedBytes() {
+        return loadAllocatedBytes;
+    }
+
+    /**
+     * The system ids of any external entities the conf file included.
+     *
+     * @return list of String
+     */
+    public List getIncludedSystemIds() {
+        return includedSystemIds;
+    }
+
 
     public boolean isUseQueryString() {
         return useQueryString;
@@ -612,10 +1523,77 @@ public class Conf {
         return defaultMatchType;
     }
 
+    public void setMatchEngine(String matchEngine) {
+        if (MATCH_ENGINE_MULTI.equalsIgnoreCase(StringUtils.trimToNull(matchEngine))) {
+            this.matchEngine = MATCH_ENGINE_MULTI;
+        } else {
+            this.matchEngine = MATCH_ENGINE_PREFIX;
+        }
+    }
+
+    public String getMatchEngine() {
+        return matchEngine;
+    }
+
+    public boolean isLazyCompile() {
+        return lazyCompile;
+    }
+
+    /**
+     * Compile the "from" of each rule when it is first run rather than when the conf is loaded.
+     */
+    public void setLazyCompile(boolean lazyCompile) {
+        this.lazyCompile = lazyCompile;
+    }
+
+    public int getInitThreads() {
+        return initThreads;
+    }
+
+    /**
+     * The number of threads to use to initialise large numbers of rules, 1 to initialise them all on the calling
+     * thread.  Defaults to the number of processors.
+     */
+    public void setInitThreads(int initThreads) {
+        this.initThreads = initThreads;
+    }
+
     public List getCatchElems() {
         return catchElems;
     }
 
+    public List getMaps() {
+        return maps;
+    }
+
+    /**
+     * @return the map with the name that rules in this conf can use, or null if there isn't one or it failed to load
+     */
+    public RewriteMap getRewriteMap(String name) {
+        return (RewriteMap) rewriteMaps.get(name);
+    }
+
+    /**
+     * @return the ip range files (IpRangeFile) named by conditions in this conf
+     */
+    public Collection getIpRangeFiles() {
+        Map files = ipRangeFiles;
+        synchronized (files) {
+            return new ArrayList(files.values());
+        }
+    }
+
+    /**
+     * Set where ip range files check for changes and reload, null to do it on the request that finds a check is due.
+     */
+    public void setReloadExecutor(Executor reloadExecutor) {
+        this.reloadExecutor = reloadExecutor;
+        Collection files = getIpRangeFiles();
+        for (Iterator iterator = files.iterator(); iterator.hasNext();) {
+            ((IpRangeFile) iterator.next()).setReloadExecutor(reloadExecutor);
+        }
+    }
+
     public boolean isDecodeUsingCustomCharsetRequired() {
         return decodeUsing != null;
     }
@@ -0,0 +1,544 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.MatchIndex;
+import org.tuckey.web.filters.urlrewrite.utils.MultiPatternIndex;
+import org.tuckey.web.filters.urlrewrite.utils.PrefixIndex;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A binary copy of a conf file, in the form it takes once initialised, that can be loaded without parsing the XML or
+ * compiling and indexing the rules again.
+ * <p/>
+ * The cache holds the elements of the conf as they were passed to Conf while it was loaded, after entities have been
+ * expanded and dtd defaults applied, followed by what initialising the conf worked out: each rule's "from" and its
+ * literal prefix, the flags describing its "to", the indexes of the rules by "from" and the runs of pure rules.
+ * Loading from the cache passes the same elements to Conf again, then the rules are initialised from their cached
+ * form (see RuleBase.initialiseCached) and the indexes are used as they are.  Regular expressions are compiled when
+ * they are first used.  Only confs that loaded ok are cached.
+ * <p/>
+ * The cache is keyed by a hash of the conf file, and of any files it included, and is ignored if any of them have
+ * changed.
+ */
+public class ConfCache {
+
+    private static Log log = Log.getLog(ConfCache.class);
+
+    // "URCC"
+    private static final int MAGIC = 0x55524343;
+    private static final int VERSION = 2;
+
+    private static final byte END = 0;
+    private static final byte ELEMENT = 1;
+    private static final byte TEXT = 2;
+    private static final byte CDATA = 3;
+
+    private static final byte NO_INDEX = 0;
+    private static final byte PREFIX_INDEX = 1;
+    private static final byte MULTI_PATTERN_INDEX = 2;
+
+    private static final int STOP_FILTER_CHAIN_ON_MATCH = 1;
+    private static final int NO_SUBSTITUTION = 1 << 1;
+    private static final int TO_EMPTY = 1 << 2;
+    private static final int TO_CONTAINS_BACK_REFERENCE = 1 << 3;
+    private static final int TO_CONTAINS_VARIABLE = 1 << 4;
+    private static final int TO_CONTAINS_FUNCTION = 1 << 5;
+
+    private final File file;
+    private List includedSystemIds = Collections.EMPTY_LIST;
+
+    private ByteArrayOutputStream recorded;
+    private DataOutputStream recorder;
+
+    // read from the cache by load
+    private MatchIndex ruleIndex;
+    private int[] pureRunEnds;
+    private MatchIndex outboundRuleIndex;
+    private MatchIndex encodeFirstOutboundRuleIndex;
+    private MatchIndex bodyOutboundRuleIndex;
+
+    public ConfCache(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The system ids of the files the conf loaded from the cache included.
+     */
+    public List getIncludedSystemIds() {
+        return includedSystemIds;
+    }
+
+    /**
+     * The index of the rules by "from" read from the cache.
+     */
+    MatchIndex getRuleIndex() {
+        return ruleIndex;
+    }
+
+    /**
+     * Where each run of pure rules ends, as worked out by Conf, read from the cache.
+     */
+    int[] getPureRunEnds() {
+        return pureRunEnds;
+    }
+
+    MatchIndex getOutboundRuleIndex() {
+        return outboundRuleIndex;
+    }
+
+    MatchIndex getEncodeFirstOutboundRuleIndex() {
+        return encodeFirstOutboundRuleIndex;
+    }
+
+    /**
+     * @return the index or null if no outbound rules rewrite bodies
+     */
+    MatchIndex getBodyOutboundRuleIndex() {
+        return bodyOutboundRuleIndex;
+    }
+
+    /**
+     * @return the hex SHA-1 of the bytes
+     */
+    public static String hash(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available " + e.getMessage());
+        }
+        byte[] hash = digest.digest(bytes);
+        StringBuffer hex = new StringBuffer(hash.length * 2);
+        for (int i = 0; i < hash.length; i++) {
+            hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Load the conf from the cache file if it was made from a conf file with the hash specified.  The rules are
+     * given their cached form, the conf must then be initialised using the indexes read from the cache.
+     *
+     * @return false if there is no cache file, it is out of date or it cannot be read, nothing will have been
+     *         added to the conf
+     */
+    boolean load(Conf conf, String confHash) {
+        if (!file.exists()) {
+            log.debug("no conf cache at " + file);
+            return false;
+        }
+        try {
+            byte[] bytes;
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                bytes = readFully(fis);
+            } finally {
+                fis.close();
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.info("conf cache " + file + " is not a cache file or from a different version, ignoring");
+                return false;
+            }
+            long checksum = in.readLong();
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 16, bytes.length - 16);
+            if (crc.getValue() != checksum) {
+                log.error("conf cache " + file + " is corrupt, ignoring");
+                return false;
+            }
+            if (!confHash.equals(in.readUTF())) {
+                log.info("conf file has changed since conf cache " + file + " was written, ignoring");
+                return false;
+            }
+            int includedCount = in.readInt();
+            List included = new ArrayList(includedCount);
+            for (int i = 0; i < includedCount; i++) {
+                String systemId = in.readUTF();
+                String includedHash = in.readUTF();
+                if (!includedHash.equals(hashOf(systemId))) {
+                    log.info("included file " + systemId + " has changed since conf cache " + file +
+                            " was written, ignoring");
+                    return false;
+                }
+                included.add(systemId);
+            }
+
+            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            Element rootElement = readElement(in, document);
+            List elements = new ArrayList();
+            int ruleCount = 0;
+            int outboundRuleCount = 0;
+            while (in.readByte() == ELEMENT) {
+                Element element = readElement(in, document);
+                String tagName = element.getTagName();
+                if ("rule".equals(tagName) || "class-rule".equals(tagName)) ruleCount++;
+                if ("outbound-rule".equals(tagName)) outboundRuleCount++;
+                elements.add(element);
+            }
+
+            RuleForm[] ruleForms = readRuleForms(in, ruleCount);
+            RuleForm[] outboundRuleForms = readRuleForms(in, outboundRuleCount);
+            MatchIndex readRuleIndex = readIndex(in);
+            int[] readPureRunEnds = new int[in.readInt()];
+            for (int i = 0; i < readPureRunEnds.length; i++) {
+                readPureRunEnds[i] = in.readInt();
+            }
+            MatchIndex readOutboundRuleIndex = readIndex(in);
+            MatchIndex readEncodeFirstOutboundRuleIndex = readIndex(in);
+            MatchIndex readBodyOutboundRuleIndex = readIndex(in);
+            if (readRuleIndex == null || readRuleIndex.size() != ruleCount || readPureRunEnds.length != ruleCount ||
+                    readOutboundRuleIndex == null || readEncodeFirstOutboundRuleIndex == null ||
+                    readOutboundRuleIndex.size() + readEncodeFirstOutboundRuleIndex.size() != outboundRuleCount) {
+                throw new IOException("indexes do not match the rules");
+            }
+
+            conf.processRootElement(rootElement);
+            for (int i = 0; i < elements.size(); i++) {
+                conf.processConfElement((Element) elements.get(i));
+            }
+            applyRuleForms(conf.getRules(), ruleForms);
+            applyRuleForms(conf.getOutboundRules(), outboundRuleForms);
+            ruleIndex = readRuleIndex;
+            pureRunEnds = readPureRunEnds;
+            outboundRuleIndex = readOutboundRuleIndex;
+            encodeFirstOutboundRuleIndex = readEncodeFirstOutboundRuleIndex;
+            bodyOutboundRuleIndex = readBodyOutboundRuleIndex;
+            includedSystemIds = included;
+            log.info("loaded conf from cache " + file);
+            return true;
+
+        } catch (IOException e) {
+            log.error("unable to read conf cache " + file + ", ignoring", e);
+        } catch (ParserConfigurationException e) {
+            log.error("unable to read conf cache " + file + ", ignoring", e);
+        }
+        return false;
+    }
+
+    private static RuleForm[] readRuleForms(DataInputStream in, int expectedCount) throws IOException {
+        int count = in.readInt();
+        if (count != expectedCount) {
+            throw new IOException(count + " cached rules but " + expectedCount + " rule elements");
+        }
+        RuleForm[] ruleForms = new RuleForm[count];
+        for (int i = 0; i < count; i++) {
+            if (!in.readBoolean()) continue;
+            RuleForm ruleForm = new RuleForm();
+            ruleForm.from = in.readUTF();
+            ruleForm.fromLiteralPrefix = in.readUTF();
+            ruleForm.flags = in.readByte();
+            ruleForms[i] = ruleForm;
+        }
+        return ruleForms;
+    }
+
+    private static void applyRuleForms(List ruleList, RuleForm[] ruleForms) throws IOException {
+        for (int i = 0; i < ruleForms.length; i++) {
+            Object rule = ruleList.get(i);
+            RuleForm ruleForm = ruleForms[i];
+            if ((ruleForm != null) != (rule instanceof RuleBase)) {
+                throw new IOException("cached rule " + i + " is a different type of rule");
+            }
+            if (ruleForm == null) continue;
+            int flags = ruleForm.flags;
+            ((RuleBase) rule).setCachedForm(ruleForm.from, ruleForm.fromLiteralPrefix,
+                    (flags & STOP_FILTER_CHAIN_ON_MATCH) != 0, (flags & NO_SUBSTITUTION) != 0,
+                    (flags & TO_EMPTY) != 0, (flags & TO_CONTAINS_BACK_REFERENCE) != 0,
+                    (flags & TO_CONTAINS_VARIABLE) != 0, (flags & TO_CONTAINS_FUNCTION) != 0);
+        }
+    }
+
+    private static MatchIndex readIndex(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == NO_INDEX) return null;
+        if (type == PREFIX_INDEX) return PrefixIndex.readFrom(in);
+        if (type == MULTI_PATTERN_INDEX) return MultiPatternIndex.readFrom(in);
+        throw new IOException("unknown index type " + type);
+    }
+
+    private static String hashOf(String systemId) {
+        try {
+            InputStream is = new URL(systemId).openStream();
+            try {
+                return hash(readFully(is));
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Element readElement(DataInputStream in, Document document) throws IOException {
+        Element element = document.createElement(in.readUTF());
+        int attributeCount = in.readInt();
+        for (int i = 0; i < attributeCount; i++) {
+            element.setAttribute(in.readUTF(), in.readUTF());
+        }
+        byte type;
+        while ((type = in.readByte()) != END) {
+            if (type == ELEMENT) {
+                element.appendChild(readElement(in, document));
+            } else if (type == TEXT) {
+                element.appendChild(document.createTextNode(in.readUTF()));
+            } else if (type == CDATA) {
+                element.appendChild(document.createCDATASection(in.readUTF()));
+            } else {
+                throw new IOException("unknown node type " + type);
+            }
+        }
+        return element;
+    }
+
+    /**
+     * Start keeping the elements passed to record so that they can be saved.
+     */
+    void startRecording() {
+        recorded = new ByteArrayOutputStream();
+        recorder = new DataOutputStream(recorded);
+    }
+
+    /**
+     * Keep an element read from the conf file.  The first element recorded must be the root element, its children
+     * are not kept, each child should be recorded separately after it.
+     */
+    void record(Node node, boolean root) {
+        if (recorder == null || node.getNodeType() != Node.ELEMENT_NODE) return;
+        try {
+            if (!root) recorder.writeByte(ELEMENT);
+            writeElement(recorder, (Element) node, !root);
+        } catch (IOException e) {
+            // eg, a string too long to write, the conf just won't be cached
+            log.info("unable to cache conf " + e.getMessage());
+            recorder = null;
+        }
+    }
+
+    private static void writeElement(DataOutputStream out, Element element, boolean withChildren)
+            throws IOException {
+        out.writeUTF(element.getTagName());
+        NamedNodeMap attributes = element.getAttributes();
+        out.writeInt(attributes.getLength());
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node attribute = attributes.item(i);
+            out.writeUTF(attribute.getNodeName());
+            out.writeUTF(attribute.getNodeValue());
+        }
+        if (withChildren) {
+            NodeList children = element.getChildNodes();
+            for (int i = 0; i < children.getLength(); i++) {
+                Node child = children.item(i);
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    out.writeByte(ELEMENT);
+                    writeElement(out, (Element) child, true);
+                } else if (child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                    out.writeByte(CDATA);
+                    out.writeUTF(((Text) child).getData());
+                } else if (child.getNodeType() == Node.TEXT_NODE) {
+                    out.writeByte(TEXT);
+                    out.writeUTF(((Text) child).getData());
+                }
+            }
+        }
+        out.writeByte(END);
+    }
+
+    private static void writeRuleForms(DataOutputStream out, List ruleList) throws IOException {
+        out.writeInt(ruleList.size());
+        for (int i = 0; i < ruleList.size(); i++) {
+            Object rule = ruleList.get(i);
+            // class rules have nothing to cache
+            out.writeBoolean(rule instanceof RuleBase);
+            if (!(rule instanceof RuleBase)) continue;
+            RuleBase ruleBase = (RuleBase) rule;
+            out.writeUTF(ruleBase.getFrom());
+            out.writeUTF(ruleBase.getFromLiteralPrefix());
+            int flags = 0;
+            if (ruleBase.isStopFilterChainOnMatch()) flags |= STOP_FILTER_CHAIN_ON_MATCH;
+            if (ruleBase.isNoSubstitution()) flags |= NO_SUBSTITUTION;
+            if (ruleBase.isToEmpty()) flags |= TO_EMPTY;
+            if (ruleBase.isToContainsBackReference()) flags |= TO_CONTAINS_BACK_REFERENCE;
+            if (ruleBase.isToContainsVariable()) flags |= TO_CONTAINS_VARIABLE;
+            if (ruleBase.isToContainsFunction()) flags |= TO_CONTAINS_FUNCTION;
+            out.writeByte(flags);
+        }
+    }
+
+    private static void writeIndex(DataOutputStream out, MatchIndex index) throws IOException {
+        if (index == null) {
+            out.writeByte(NO_INDEX);
+        } else if (index instanceof PrefixIndex) {
+            out.writeByte(PREFIX_INDEX);
+            ((PrefixIndex) index).writeTo(out);
+        } else if (index instanceof MultiPatternIndex) {
+            out.writeByte(MULTI_PATTERN_INDEX);
+            ((MultiPatternIndex) index).writeTo(out);
+        } else {
+            throw new IOException("unable to cache a " + index.getClass().getName());
+        }
+    }
+
+    private static MatchIndex getIndex(CompiledOutboundRules compiled) {
+        return compiled == null ? null : compiled.getRuleIndex();
+    }
+
+    /**
+     * Write the recorded elements, and the form of the conf once initialised, to the cache file.
+     *
+     * @param confHash          hash of the conf file the elements were read from
+     * @param includedSystemIds the files the conf file included
+     * @param conf              the conf, initialised ok
+     */
+    void save(String confHash, List includedSystemIds, Conf conf) {
+        if (recorder == null) return;
+        try {
+            recorder.writeByte(END);
+            recorder.flush();
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeUTF(confHash);
+            out.writeInt(includedSystemIds.size());
+            for (int i = 0; i < includedSystemIds.size(); i++) {
+                String systemId = (String) includedSystemIds.get(i);
+                String includedHash = hashOf(systemId);
+                if (includedHash == null) {
+                    log.info("unable to read included file " + systemId + ", conf will not be cached");
+                    return;
+                }
+                out.writeUTF(systemId);
+                out.writeUTF(includedHash);
+            }
+            recorded.writeTo(out);
+            writeRuleForms(out, conf.getRules());
+            writeRuleForms(out, conf.getOutboundRules());
+            CompiledRules compiledRules = conf.getCompiledRules();
+            writeIndex(out, compiledRules.getRuleIndex());
+            int[] ends = compiledRules.getPureRunEnds();
+            out.writeInt(ends.length);
+            for (int i = 0; i < ends.length; i++) {
+                out.writeInt(ends[i]);
+            }
+            writeIndex(out, getIndex(conf.getCompiledOutboundRules(false)));
+            writeIndex(out, getIndex(conf.getCompiledOutboundRules(true)));
+            writeIndex(out, getIndex(conf.getCompiledBodyOutboundRules()));
+            out.flush();
+            byte[] bodyBytes = body.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bodyBytes);
+
+            // write to a temp file then rename so that a half written cache is never read
+            File tempFile = new File(file.getPath() + ".tmp");
+            DataOutputStream fileOut = new DataOutputStream(new FileOutputStream(tempFile));
+            try {
+                fileOut.writeInt(MAGIC);
+                fileOut.writeInt(VERSION);
+                fileOut.writeLong(crc.getValue());
+                fileOut.write(bodyBytes);
+            } finally {
+                fileOut.close();
+            }
+            if (file.exists() && !file.delete()) {
+                log.error("unable to replace conf cache " + file);
+                tempFile.delete();
+                return;
+            }
+            if (!tempFile.renameTo(file)) {
+                log.error("unable to write conf cache " + file);
+                tempFile.delete();
+                return;
+            }
+            log.info("wrote conf cache " + file);
+
+        } catch (IOException e) {
+            log.error("unable to write conf cache " + file, e);
+        } finally {
+            recorded = null;
+            recorder = null;
+        }
+    }
+
+    /**
+     * What a rule's initialise worked out from its "from" and "to", see RuleBase.setCachedForm.
+     */
+    private static class RuleForm {
+        private String from;
+        private String fromLiteralPrefix;
+        private int flags;
+    }
+
+}
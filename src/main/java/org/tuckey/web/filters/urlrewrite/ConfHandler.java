@@ -40,7 +40,9 @@ import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -58,6 +60,8 @@ public class ConfHandler extends DefaultHandler {
 
     private String confSystemId;
 
+    private final List includedSystemIds = new ArrayList();
+
     private static Hashtable dtdPaths = new Hashtable();
 
     static {
@@ -91,10 +95,12 @@ public class ConfHandler extends DefaultHandler {
             if (log.isDebugEnabled()) {
                 log.debug("Couldn't resolve entity with no publicId, system id is " + systemId);
             }
+            String resolvedSystemId = systemId;
             if (confSystemId != null && !hasProtocol(systemId)) {
-                return new InputSource(confSystemId.substring(0, confSystemId.lastIndexOf('/')) + "/" + systemId);
+                resolvedSystemId = confSystemId.substring(0, confSystemId.lastIndexOf('/')) + "/" + systemId;
             }
-            return new InputSource(systemId);
+            includedSystemIds.add(resolvedSystemId);
+            return new InputSource(resolvedSystemId);
         }
         String entity = (String) dtdPaths.get(publicId);
 
@@ -111,6 +117,14 @@ public class ConfHandler extends DefaultHandler {
         return new InputSource(ConfHandler.class.getResourceAsStream(entity));
     }
 
+    /**
+     * The system ids of the entities included in the conf, ie, files other than the conf file the rules were
+     * loaded from.
+     */
+    public List getIncludedSystemIds() {
+        return includedSystemIds;
+    }
+
     /**
      * Check for protocol on a systemId.
      * eg, file://blah, http://blah, jndi://blah have protocols
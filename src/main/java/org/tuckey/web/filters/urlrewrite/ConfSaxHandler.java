@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Reads a conf file as a stream of SAX events rather than building a DOM of the whole file first.
+ * <p/>
+ * Only the element being read (eg, a single rule) is held in memory.  Each child of the root element is built as a
+ * small detached DOM element, mirroring what the DOM parser would have built for it, and passed to the same code
+ * that processes a full DOM so that both produce the same Conf.
+ */
+class ConfSaxHandler extends ConfHandler implements LexicalHandler {
+
+    private final Conf conf;
+
+    /**
+     * Only used to create nodes, nothing is added to it.
+     */
+    private final Document document;
+
+    private int depth = 0;
+    private Node current = null;
+    private boolean inCdata = false;
+
+    public ConfSaxHandler(Conf conf, Document document, String confSystemId) {
+        super(confSystemId);
+        this.conf = conf;
+        this.document = document;
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        depth++;
+        Element element = document.createElement(qName);
+        for (int i = 0; i < attributes.getLength(); i++) {
+            element.setAttribute(attributes.getQName(i), attributes.getValue(i));
+        }
+        if (depth == 1) {
+            conf.processRootElement(element);
+        } else if (depth == 2) {
+            current = element;
+        } else {
+            current.appendChild(element);
+            current = element;
+        }
+    }
+
+    public void endElement(String uri, String localName, String qName) {
+        if (depth == 2) {
+            conf.processConfElement(current);
+            current = null;
+        } else if (depth > 2) {
+            current = current.getParentNode();
+        }
+        depth--;
+    }
+
+    public void characters(char ch[], int start, int length) {
+        if (current == null) return;
+        Node last = current.getLastChild();
+        if (inCdata) {
+            ((Text) last).appendData(new String(ch, start, length));
+        } else if (last != null && last.getNodeType() == Node.TEXT_NODE) {
+            // text is delivered in chunks, the dom parser joins them into one node
+            ((Text) last).appendData(new String(ch, start, length));
+        } else {
+            current.appendChild(document.createTextNode(new String(ch, start, length)));
+        }
+    }
+
+    public void ignorableWhitespace(char ch[], int start, int length) {
+        // the dom parser is set to ignore element content whitespace
+    }
+
+    //
+    // LexicalHandler methods
+    //
+
+    public void startCDATA() {
+        inCdata = true;
+        if (current != null) current.appendChild(document.createCDATASection(""));
+    }
+
+    public void endCDATA() {
+        inCdata = false;
+    }
+
+    public void comment(char ch[], int start, int length) {
+        // the dom parser is set to ignore comments
+    }
+
+    public void startDTD(String name, String publicId, String systemId) {
+        // not needed
+    }
+
+    public void endDTD() {
+        // not needed
+    }
+
+    public void startEntity(String name) {
+        // entities are expanded in place
+    }
+
+    public void endEntity(String name) {
+        // entities are expanded in place
+    }
+
+}
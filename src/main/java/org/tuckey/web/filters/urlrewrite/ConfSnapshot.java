@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.StripedCounter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A loaded conf and the rewriter built from it, as published to requests by UrlRewriteFilter.
+ * <p/>
+ * A published snapshot is never changed.  A reload, or a hit weighted reorder of the rules (see
+ * Conf.withHitWeightedOrder), builds a new snapshot and swaps it in, requests already using the old one carry on
+ * with it.
+ * <p/>
+ * Each request acquires the current snapshot before using it and releases it afterwards, once a snapshot has been
+ * replaced (retired) the last request to release it destroys it.  Acquire and release only add to striped counters
+ * so requests do not contend with each other or with a reload.
+ */
+public final class ConfSnapshot {
+
+    private final Conf conf;
+    private final UrlRewriter urlRewriter;
+    private final long created;
+    private final List rules;
+    private final List outboundRules;
+    private final List catchElems;
+
+    private final StripedCounter acquires = new StripedCounter();
+    private final StripedCounter releases = new StripedCounter();
+    private volatile boolean retired = false;
+    private volatile boolean destroyed = false;
+
+    public ConfSnapshot(UrlRewriter urlRewriter) {
+        this.urlRewriter = urlRewriter;
+        this.conf = urlRewriter.getConf();
+        this.created = System.currentTimeMillis();
+        this.rules = unmodifiableCopy(conf.getRules());
+        this.outboundRules = unmodifiableCopy(conf.getOutboundRules());
+        this.catchElems = unmodifiableCopy(conf.getCatchElems());
+    }
+
+    private static List unmodifiableCopy(List list) {
+        if (list == null) return Collections.EMPTY_LIST;
+        return Collections.unmodifiableList(new ArrayList(list));
+    }
+
+    /**
+     * Mark this snapshot as in use by the calling thread.
+     *
+     * @return false if the snapshot has been retired, the caller should acquire the current snapshot instead
+     */
+    public boolean acquire() {
+        acquires.increment();
+        // re-check after counting so that a retire we did not see cannot miss us when checking for drained
+        if (retired) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Mark that the calling thread has finished with this snapshot, must be paired with a successful acquire.  If
+     * the snapshot has been retired and this was the last request using it, it is destroyed.
+     */
+    public void release() {
+        releases.increment();
+        if (isDrained()) destroy();
+    }
+
+    /**
+     * Stop any new requests from acquiring this snapshot, it is destroyed now if no requests are using it,
+     * otherwise when the last one releases it.
+     */
+    public void retire() {
+        retired = true;
+        if (isDrained()) destroy();
+    }
+
+    public boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * The number of requests using this snapshot.  Only exact once the snapshot is retired.
+     */
+    public long getInFlight() {
+        // releases are read first so that any release counted has its acquire counted too
+        long released = releases.sum();
+        return acquires.sum() - released;
+    }
+
+    /**
+     * Has this snapshot been retired and released by every request that acquired it.
+     */
+    public boolean isDrained() {
+        return retired && getInFlight() == 0;
+    }
+
+    /**
+     * Destroy the conf held by this snapshot, only the first call has any effect.
+     */
+    public synchronized void destroy() {
+        if (destroyed) return;
+        destroyed = true;
+        retired = true;
+        urlRewriter.destroy();
+    }
+
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    public Conf getConf() {
+        return conf;
+    }
+
+    public UrlRewriter getUrlRewriter() {
+        return urlRewriter;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * The rules in the order they are run, may differ from the conf file if rules have been reordered.
+     */
+    public List getRules() {
+        return rules;
+    }
+
+    public List getOutboundRules() {
+        return outboundRules;
+    }
+
+    public List getCatchElems() {
+        return catchElems;
+    }
+
+}
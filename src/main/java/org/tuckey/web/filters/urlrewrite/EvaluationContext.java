@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.CoarseClock;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Values looked up from a request while it is being matched against rules.  Lookups that can be expensive in the
+ * container (headers, cookies, the request url, the session and the time) are made at most once so that the
+ * conditions and "to" substitutions of every rule the request passes through can share them.
+ * <p/>
+ * One is made per request per RuleChain, it is not thread safe.
+ */
+public class EvaluationContext {
+
+    private static final Object NONE = new Object();
+
+    private final HttpServletRequest hsRequest;
+
+    private Map headers;
+    private Object cookies;
+    private Map cookiesByName;
+    private String requestUrl;
+    private boolean requestUrlFetched;
+    private HttpSession session;
+    private CoarseClock.Tick tick;
+
+    public EvaluationContext(HttpServletRequest hsRequest) {
+        this.hsRequest = hsRequest;
+    }
+
+    public HttpServletRequest getRequest() {
+        return hsRequest;
+    }
+
+    /**
+     * @see HttpServletRequest#getHeader(String)
+     */
+    public String getHeader(String name) {
+        if (headers == null) {
+            headers = new HashMap();
+        }
+        Object value = headers.get(name);
+        if (value == null) {
+            String header = hsRequest.getHeader(name);
+            headers.put(name, header == null ? NONE : header);
+            return header;
+        }
+        return value == NONE ? null : (String) value;
+    }
+
+    /**
+     * @see HttpServletRequest#getCookies()
+     */
+    public Cookie[] getCookies() {
+        if (cookies == null) {
+            Cookie[] requestCookies = hsRequest.getCookies();
+            cookies = requestCookies == null ? NONE : requestCookies;
+        }
+        return cookies == NONE ? null : (Cookie[]) cookies;
+    }
+
+    /**
+     * Get the first cookie with the given name, the cookies are indexed by name on the first call.
+     *
+     * @return the cookie or null if the request has no cookie with that name
+     */
+    public Cookie getCookie(String name) {
+        if (cookiesByName == null) {
+            cookiesByName = new HashMap();
+            Cookie[] requestCookies = getCookies();
+            if (requestCookies != null) {
+                for (int i = 0; i < requestCookies.length; i++) {
+                    Cookie cookie = requestCookies[i];
+                    if (cookie == null || cookiesByName.containsKey(cookie.getName())) {
+                        continue;
+                    }
+                    cookiesByName.put(cookie.getName(), cookie);
+                }
+            }
+        }
+        return (Cookie) cookiesByName.get(name);
+    }
+
+    /**
+     * The request url as a string.
+     *
+     * @see HttpServletRequest#getRequestURL()
+     */
+    public String getRequestURL() {
+        if (!requestUrlFetched) {
+            StringBuffer requestUrlBuff = hsRequest.getRequestURL();
+            if (requestUrlBuff != null) {
+                requestUrl = requestUrlBuff.toString();
+            }
+            requestUrlFetched = true;
+        }
+        return requestUrl;
+    }
+
+    /**
+     * The session, if there is one.  Note, a missing session isn't remembered as one may be created by a rule.
+     *
+     * @see HttpServletRequest#getSession(boolean)
+     */
+    public HttpSession getSession() {
+        if (session == null) {
+            session = hsRequest.getSession(false);
+        }
+        return session;
+    }
+
+    /**
+     * Get a field of the current time, the time is read from the clock once for the whole request.
+     *
+     * @param calField the calendar field from Calendar
+     */
+    public int getCalendarField(int calField) {
+        if (tick == null) {
+            tick = CoarseClock.now();
+        }
+        return tick.get(calField);
+    }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.extend.RewriteFunction;
+import org.tuckey.web.filters.urlrewrite.extend.RewriteMap;
+import org.tuckey.web.filters.urlrewrite.substitution.FunctionReplacer;
+import org.tuckey.web.filters.urlrewrite.utils.FileRewriteMap;
+import org.tuckey.web.filters.urlrewrite.utils.HashRewriteMap;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.MapFile;
+import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * A map that rules can look values up in with ${map:name:key}, or check keys are in with the inmap condition
+ * operator.
+ * <p/>
+ * Types are:
+ * <ul>
+ * <li>mmap, a file built by MapFileBuilder that is memory mapped</li>
+ * <li>txt, a text file of keys and values</li>
+ * <li>rnd, a text file of keys and values where a value can be choices separated by |, one is picked at random</li>
+ * <li>int, a function applied to the key, eg, toupper (as Apache's internal maps)</li>
+ * </ul>
+ * Maps loaded from files are loaded again when the file changes.
+ */
+public class MapElem {
+
+    private static Log log = Log.getLog(MapElem.class);
+
+    private String name;
+    private String type = "mmap";
+    private String file;
+    private String function;
+    private long checkInterval = FileRewriteMap.DEFAULT_CHECK_INTERVAL;
+    private String error = null;
+    private boolean valid = false;
+    private boolean initialised = false;
+    private RewriteMap map;
+
+    /**
+     * Load the map, the conf makes it available to its rules by name.
+     *
+     * @return true on success
+     */
+    public boolean initialise(ServletContext servletContext) {
+        initialised = true;
+        valid = false;
+        if (StringUtils.isBlank(name)) {
+            setError("map must have a name");
+            return false;
+        }
+        if ("int".equals(type)) {
+            final RewriteFunction rewriteFunction = function == null ? null : FunctionReplacer.newFunction(function);
+            if (rewriteFunction == null) {
+                setError("map " + name + " function " + function + " is not a known function");
+                return false;
+            }
+            rewriteFunction.init(null);
+            map = new RewriteMap() {
+                public String get(String key) {
+                    return rewriteFunction.execute(key);
+                }
+            };
+
+        } else if ("mmap".equals(type) || "txt".equals(type) || "rnd".equals(type)) {
+            File mapFile = getFile(servletContext);
+            if (mapFile == null) return false;
+            final boolean mapped = "mmap".equals(type);
+            final boolean randomChoices = "rnd".equals(type);
+            FileRewriteMap fileMap = new FileRewriteMap(mapFile, checkInterval) {
+                protected RewriteMap load(File file) throws IOException {
+                    if (mapped) return MapFile.open(file);
+                    return loadText(file, randomChoices);
+                }
+            };
+            try {
+                fileMap.reload();
+            } catch (IOException e) {
+                setError("could not load map " + name + " from " + mapFile + " got a " + e.toString());
+                return false;
+            }
+            map = fileMap;
+
+        } else {
+            setError("map " + name + " type " + type + " is not valid");
+            return false;
+        }
+        valid = true;
+        return true;
+    }
+
+    private File getFile(ServletContext servletContext) {
+        if (StringUtils.isBlank(file)) {
+            setError("map " + name + " must have a file");
+            return null;
+        }
+        File mapFile = new File(file);
+        if (servletContext != null) {
+            String realPath = servletContext.getRealPath(file);
+            if (realPath != null && new File(realPath).isFile()) mapFile = new File(realPath);
+        }
+        if (!mapFile.isFile()) {
+            setError("map " + name + " file " + file + " does not exist");
+            return null;
+        }
+        return mapFile;
+    }
+
+    private static HashRewriteMap loadText(File mapFile, boolean randomChoices) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(mapFile), "UTF-8");
+        try {
+            return HashRewriteMap.load(reader, randomChoices);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @param type mmap (the default), txt, rnd or int
+     */
+    public void setType(String type) {
+        this.type = StringUtils.isBlank(type) ? "mmap" : type;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    public String getFunction() {
+        return function;
+    }
+
+    /**
+     * @param function for int maps the name of a function, eg, toupper, tolower, escape or unescape
+     */
+    public void setFunction(String function) {
+        this.function = function;
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * @param checkInterval millis between checks of the file for changes
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    public RewriteMap getMap() {
+        return map;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public boolean isInitialised() {
+        return initialised;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    private void setError(String error) {
+        this.error = error;
+        log.error(error);
+    }
+
+}
@@ -127,7 +127,14 @@ public class NormalRule extends RuleBase implements Rule {
         } else {
             log.debug("loaded rule " + getDisplayName() + " (" + from + ", " + to + " " + toType + ")");
         }
+        return initialiseToContext(context, ok);
+    }
+
+    boolean initialiseCached(ServletContext context) {
+        return initialiseToContext(context, super.initialiseCached(context));
+    }
 
+    private boolean initialiseToContext(ServletContext context, boolean ok) {
         if ( !StringUtils.isBlank(toContextStr)) {
             log.debug("looking for context " + toContextStr);
             if ( context == null) {
@@ -150,6 +157,14 @@ public class NormalRule extends RuleBase implements Rule {
     }
 
 
+    /**
+     * As well as the checks in RuleBase a rule that appends the query string depends on more than the url.
+     */
+    public boolean isPure() {
+        return super.isPure() && !queryStringAppend;
+    }
+
+
     /**
      * Redirect or passthrough, passthrough is the default.
      *
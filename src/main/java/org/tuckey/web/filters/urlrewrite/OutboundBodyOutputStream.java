@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import javax.servlet.ServletOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * The output stream handed out when the links in a response body are rewritten, the bytes are passed through an
+ * OutboundBodyRewriter a chunk at a time as ISO-8859-1 chars and written back out as the same bytes.
+ *
+ * @see OutboundBodyRewriter
+ */
+class OutboundBodyOutputStream extends ServletOutputStream {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    // the chars the state machine acts on
+    private static final String MARKUP = "<>!-/?=\"' \t\r\n\f";
+
+    private final OutboundBodyRewriter rewriter;
+    private final char[] chars = new char[CHUNK_SIZE];
+
+    OutboundBodyOutputStream(OutputStream out, UrlRewriteWrappedResponse response, String charset) {
+        this.rewriter = new OutboundBodyRewriter(new BytesWriter(out), response, charset);
+    }
+
+    /**
+     * true if the markup is encoded as single bytes with the same values as in ASCII, eg, UTF-8 or ISO-8859-1 but
+     * not UTF-16.
+     */
+    static boolean isAsciiCompatible(String charset) {
+        try {
+            return Arrays.equals(MARKUP.getBytes(charset), MARKUP.getBytes("US-ASCII"));
+        } catch (UnsupportedEncodingException e) {
+            return false;
+        }
+    }
+
+    OutboundBodyRewriter getRewriter() {
+        return rewriter;
+    }
+
+    public void write(int b) throws IOException {
+        rewriter.write((char) (b & 0xff));
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int chunkLen = Math.min(len, CHUNK_SIZE);
+            for (int i = 0; i < chunkLen; i++) {
+                chars[i] = (char) (b[off + i] & 0xff);
+            }
+            rewriter.write(chars, 0, chunkLen);
+            off += chunkLen;
+            len -= chunkLen;
+        }
+    }
+
+    public void flush() throws IOException {
+        rewriter.flush();
+    }
+
+    public void close() throws IOException {
+        rewriter.close();
+    }
+
+    /**
+     * Turns the chars back into the bytes they came from without any buffering of its own.
+     */
+    private static class BytesWriter extends Writer {
+
+        private final OutputStream out;
+        private final byte[] bytes = new byte[CHUNK_SIZE];
+
+        BytesWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunkLen = Math.min(len, CHUNK_SIZE);
+                for (int i = 0; i < chunkLen; i++) {
+                    bytes[i] = (byte) cbuf[off + i];
+                }
+                out.write(bytes, 0, chunkLen);
+                off += chunkLen;
+                len -= chunkLen;
+            }
+        }
+
+        public void write(String str) throws IOException {
+            write(str.toCharArray(), 0, str.length());
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+}
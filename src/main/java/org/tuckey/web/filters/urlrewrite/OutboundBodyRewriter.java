@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+/**
+ * Rewrites the links in an HTML response body as it is written.  A small state machine follows the markup one chunk
+ * at a time, everything is passed straight through apart from the value of an href, src or action attribute which is
+ * held until its closing quote arrives and then run through the rewrite-body outbound rules.  The memory used does
+ * not depend on the size of the body, values longer than MAX_URL_LENGTH are written out as they are.
+ * <p/>
+ * When the body is written as bytes each byte comes in as the char with the same value (ISO-8859-1), the markup looked
+ * for is the same in any ASCII compatible charset so only the urls need decoding with the response's charset.
+ */
+class OutboundBodyRewriter extends Writer {
+
+    static final int MAX_URL_LENGTH = 4096;
+
+    private static final String BYTES_CHARSET = "ISO-8859-1";
+
+    // text between tags
+    private static final int TEXT = 0;
+    // after <
+    private static final int TAG_OPEN = 1;
+    // after <!
+    private static final int MARKUP_DECLARATION = 2;
+    // inside <!-- -->
+    private static final int COMMENT = 3;
+    // end tags, doctypes and processing instructions, nothing to do until >
+    private static final int SKIP_TAG = 4;
+    private static final int TAG_NAME = 5;
+    // between attributes
+    private static final int IN_TAG = 6;
+    private static final int ATTR_NAME = 7;
+    private static final int AFTER_ATTR_NAME = 8;
+    private static final int BEFORE_VALUE = 9;
+    private static final int VALUE = 10;
+
+    private final Writer out;
+    private final UrlRewriteWrappedResponse response;
+    private final String charset;
+
+    private int state = TEXT;
+    private int dashes;
+    // only names up to the length of "action" are of interest, -1 once the name is longer
+    private final char[] attrName = new char[6];
+    private int attrNameLength;
+    // the quote the value is in or 0 if it is unquoted
+    private char quote;
+    private boolean holdingUrl;
+    private final StringBuilder url = new StringBuilder();
+
+    /**
+     * @param out      where to write the rewritten body
+     * @param response the response whose rules are run on the links
+     * @param charset  the charset of the body if it is being written as bytes, null if it is written as chars
+     */
+    OutboundBodyRewriter(Writer out, UrlRewriteWrappedResponse response, String charset) {
+        this.out = out;
+        this.response = response;
+        this.charset = charset;
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        final int end = off + len;
+        // start of the chars that have been looked at but not yet written out
+        int runStart = off;
+        int i = off;
+        while (i < end) {
+            char c = cbuf[i];
+            switch (state) {
+                case TEXT:
+                    while (i < end && cbuf[i] != '<') i++;
+                    if (i < end) state = TAG_OPEN;
+                    break;
+
+                case TAG_OPEN:
+                    if (isLetter(c)) {
+                        state = TAG_NAME;
+                    } else if (c == '!') {
+                        state = MARKUP_DECLARATION;
+                        dashes = 0;
+                    } else if (c == '/' || c == '?') {
+                        state = SKIP_TAG;
+                    } else if (c != '<') {
+                        state = TEXT;
+                    }
+                    break;
+
+                case MARKUP_DECLARATION:
+                    if (c == '-' && ++dashes == 2) {
+                        state = COMMENT;
+                        dashes = 0;
+                    } else if (c == '>') {
+                        state = TEXT;
+                    } else if (c != '-') {
+                        state = SKIP_TAG;
+                    }
+                    break;
+
+                case COMMENT:
+                    if (c == '-') {
+                        dashes++;
+                    } else {
+                        if (c == '>' && dashes >= 2) state = TEXT;
+                        dashes = 0;
+                    }
+                    break;
+
+                case SKIP_TAG:
+                    if (c == '>') state = TEXT;
+                    break;
+
+                case TAG_NAME:
+                    if (c == '>') {
+                        state = TEXT;
+                    } else if (isWhitespace(c) || c == '/') {
+                        state = IN_TAG;
+                    }
+                    break;
+
+                case IN_TAG:
+                case AFTER_ATTR_NAME:
+                    if (c == '>') {
+                        state = TEXT;
+                    } else if (c == '/') {
+                        state = IN_TAG;
+                    } else if (c == '=' && state == AFTER_ATTR_NAME) {
+                        state = BEFORE_VALUE;
+                    } else if (!isWhitespace(c)) {
+                        state = ATTR_NAME;
+                        attrNameLength = 0;
+                        appendAttrName(c);
+                    }
+                    break;
+
+                case ATTR_NAME:
+                    if (c == '=') {
+                        state = BEFORE_VALUE;
+                    } else if (c == '>') {
+                        state = TEXT;
+                    } else if (c == '/') {
+                        state = IN_TAG;
+                    } else if (isWhitespace(c)) {
+                        state = AFTER_ATTR_NAME;
+                    } else {
+                        appendAttrName(c);
+                    }
+                    break;
+
+                case BEFORE_VALUE:
+                    if (c == '>') {
+                        state = TEXT;
+                    } else if (!isWhitespace(c)) {
+                        state = VALUE;
+                        holdingUrl = isUrlAttrName();
+                        boolean quoted = c == '"' || c == '\'';
+                        quote = quoted ? c : 0;
+                        if (holdingUrl) {
+                            // write out everything before the url, from here on the chars are held back
+                            int valueStart = quoted ? i + 1 : i;
+                            out.write(cbuf, runStart, valueStart - runStart);
+                            runStart = valueStart;
+                        }
+                        // the first char of an unquoted value
+                        if (!quoted) continue;
+                    }
+                    break;
+
+                case VALUE:
+                    if (quote == 0 ? c == '>' || isWhitespace(c) : c == quote) {
+                        if (holdingUrl) {
+                            url.append(cbuf, runStart, i - runStart);
+                            runStart = i;
+                            writeUrl();
+                            holdingUrl = false;
+                        }
+                        state = c == '>' ? TEXT : IN_TAG;
+                    } else if (holdingUrl && url.length() + i + 1 - runStart > MAX_URL_LENGTH) {
+                        // too long to be a link worth rewriting, the chars from runStart go out with the run
+                        out.write(url.toString());
+                        url.setLength(0);
+                        holdingUrl = false;
+                    }
+                    break;
+            }
+            i++;
+        }
+        if (holdingUrl) {
+            // the url carries on in the next write
+            url.append(cbuf, runStart, end - runStart);
+        } else if (runStart < end) {
+            out.write(cbuf, runStart, end - runStart);
+        }
+    }
+
+    /**
+     * Write out any url that is still being held, only the case when the body ends part way through an attribute.
+     */
+    void finish() throws IOException {
+        if (url.length() > 0) {
+            out.write(url.toString());
+            url.setLength(0);
+        }
+        holdingUrl = false;
+    }
+
+    /**
+     * Forget where in the markup the body is up to, for when the response's buffer is reset.
+     */
+    void reset() {
+        state = TEXT;
+        url.setLength(0);
+        holdingUrl = false;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    private void writeUrl() throws IOException {
+        String value = url.toString();
+        url.setLength(0);
+        out.write(rewriteUrl(value));
+    }
+
+    private String rewriteUrl(String value) throws UnsupportedEncodingException {
+        if (value.length() == 0) return value;
+        // ascii is the same in the chars as in the bytes
+        if (charset == null || isAscii(value)) {
+            String rewritten = response.rewriteBodyUrl(value);
+            if (rewritten == null) return value;
+            if (charset == null || isAscii(rewritten)) return rewritten;
+            return new String(rewritten.getBytes(charset), BYTES_CHARSET);
+        }
+        String decoded = new String(value.getBytes(BYTES_CHARSET), charset);
+        String rewritten = response.rewriteBodyUrl(decoded);
+        if (rewritten == null || rewritten.equals(decoded)) return value;
+        return new String(rewritten.getBytes(charset), BYTES_CHARSET);
+    }
+
+    private void appendAttrName(char c) {
+        if (attrNameLength == -1) return;
+        if (attrNameLength == attrName.length) {
+            attrNameLength = -1;
+        } else {
+            attrName[attrNameLength++] = c;
+        }
+    }
+
+    private boolean isUrlAttrName() {
+        switch (attrNameLength) {
+            case 3:
+                return attrNameIs("src");
+            case 4:
+                return attrNameIs("href");
+            case 6:
+                return attrNameIs("action");
+            default:
+                return false;
+        }
+    }
+
+    private boolean attrNameIs(String name) {
+        for (int i = 0; i < attrNameLength; i++) {
+            char c = attrName[i];
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (c != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) return false;
+        }
+        return true;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+}
@@ -55,6 +55,7 @@ public class OutboundRule extends RuleBase {
 
     private boolean encodeFirst;
     private boolean encodeToUrl = true;
+    private boolean rewriteBody;
 
     /**
      * Constructor.
@@ -138,6 +139,17 @@ public class OutboundRule extends RuleBase {
     public void setEncodeToUrl(boolean encodeToUrl) {
         this.encodeToUrl = encodeToUrl;
     }
+
+    /**
+     * @return true if this rule is also run against the links (href, src and action) in response bodies
+     */
+    public boolean isRewriteBody() {
+        return rewriteBody;
+    }
+
+    public void setRewriteBody(boolean rewriteBody) {
+        this.rewriteBody = rewriteBody;
+    }
 }
 
 
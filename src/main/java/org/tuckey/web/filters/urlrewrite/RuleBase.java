@@ -36,10 +36,8 @@ package org.tuckey.web.filters.urlrewrite;
 
 import org.tuckey.web.filters.urlrewrite.extend.RewriteMatch;
 import org.tuckey.web.filters.urlrewrite.substitution.BackReferenceReplacer;
-import org.tuckey.web.filters.urlrewrite.substitution.ChainedSubstitutionFilters;
 import org.tuckey.web.filters.urlrewrite.substitution.FunctionReplacer;
-import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionContext;
-import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionFilterChain;
+import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionProgram;
 import org.tuckey.web.filters.urlrewrite.substitution.VariableReplacer;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
 import org.tuckey.web.filters.urlrewrite.utils.RegexPattern;
@@ -75,6 +73,7 @@ public class RuleBase implements Runnable {
     private boolean enabled = true;
 
     private boolean fromCaseSensitive;
+    private boolean lazyCompile = false;
     protected boolean initialised;
     protected boolean valid;
 
@@ -100,6 +99,10 @@ public class RuleBase implements Runnable {
     private boolean toContainsVariable = false;
     private boolean toContainsBackReference = false;
     private boolean toContainsFunction = false;
+    private SubstitutionProgram toProgram;
+
+    // the literal prefix of "from" when the rule was read from a conf cache, see setCachedForm
+    private String cachedFromLiteralPrefix = null;
 
     public static final String MATCH_TYPE_WILDCARD = "wildcard";
     public static final String DEFAULT_MATCH_TYPE = "regex";
@@ -107,6 +110,9 @@ public class RuleBase implements Runnable {
     private boolean filter = false;
     private ServletContext servletContext;
 
+    private final RuleStatistics statistics = new RuleStatistics();
+    private volatile boolean timed = false;
+
     /**
      * Constructor.
      */
@@ -126,6 +132,21 @@ public class RuleBase implements Runnable {
     protected RuleExecutionOutput matchesBase(String url, final HttpServletRequest hsRequest,
                                               final HttpServletResponse hsResponse, RuleChain chain)
             throws IOException, ServletException, InvocationTargetException {
+        if (!timed) {
+            statistics.recordEvaluation();
+            return matchesBaseUntimed(url, hsRequest, hsResponse, chain);
+        }
+        long start = System.nanoTime();
+        try {
+            return matchesBaseUntimed(url, hsRequest, hsResponse, chain);
+        } finally {
+            statistics.recordEvaluation(System.nanoTime() - start);
+        }
+    }
+
+    private RuleExecutionOutput matchesBaseUntimed(String url, final HttpServletRequest hsRequest,
+                                                   final HttpServletResponse hsResponse, RuleChain chain)
+            throws IOException, ServletException, InvocationTargetException {
         // make sure all the conditions match
         if (log.isDebugEnabled()) {
             String displayName = getDisplayName();
@@ -172,15 +193,21 @@ public class RuleBase implements Runnable {
         if (log.isDebugEnabled()) {
             log.debug("matched \"from\"");
         }
+        statistics.recordFromMatch();
 
         int conditionsSize = conditions.size();
         ConditionMatch lastConditionMatch = null;
+        // values looked up from the request are shared by all the rules in the chain
+        EvaluationContext evaluationContext = null;
+        if (conditionsSize > 0 || performToReplacement) {
+            evaluationContext = chain == null ? new EvaluationContext(hsRequest) : chain.getEvaluationContext(hsRequest);
+        }
         if (conditionsSize > 0) {
             boolean processNextOr = false;
             boolean currentResult = true;
             for (int i = 0; i < conditionsSize; i++) {
                 final Condition condition = (Condition) conditions.get(i);
-                ConditionMatch conditionMatch = condition.getConditionMatch(hsRequest);
+                ConditionMatch conditionMatch = condition.getConditionMatch(evaluationContext);
                 if (conditionMatch != null) {
                     lastConditionMatch = conditionMatch;
                 }
@@ -200,6 +227,8 @@ public class RuleBase implements Runnable {
                 log.debug("conditions match");
             }
         }
+        statistics.recordConditionPass();
+        if (chain != null) chain.ruleMatched();
 
         // set a req attrib in case people want to use it
         hsRequest.setAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched", Boolean.TRUE);
@@ -226,10 +255,8 @@ public class RuleBase implements Runnable {
         }
 
         String replacedTo = null;
-        if (performToReplacement && to != null) {
-            SubstitutionContext substitutionContext = new SubstitutionContext(hsRequest, matcher, lastConditionMatch, to);
-            SubstitutionFilterChain substitutionFilter = ChainedSubstitutionFilters.getDefaultSubstitutionChain(true, toContainsFunction, toContainsVariable, toContainsBackReference, servletContext);
-            replacedTo = substitutionFilter.substitute(url, substitutionContext);
+        if (performToReplacement && toProgram != null) {
+            replacedTo = toProgram.substitute(url, evaluationContext, matcher, lastConditionMatch);
         }
 
         RuleExecutionOutput ruleExecutionOutput = new RuleExecutionOutput(replacedTo, true, lastRunMatch);
@@ -271,30 +298,7 @@ public class RuleBase implements Runnable {
         this.servletContext = context;
         // check all the conditions
         initialised = true;
-        boolean ok = true;
-        for (int i = 0; i < conditions.size(); i++) {
-            final Condition condition = (Condition) conditions.get(i);
-            condition.setRule(this);
-            if (!condition.initialise()) {
-                ok = false;
-            }
-        }
-        for (int i = 0; i < runs.size(); i++) {
-            final Run run = (Run) runs.get(i);
-            if (!run.initialise(context)) {
-                ok = false;
-            }
-            if (run.isFilter()) {
-                log.debug("rule is a filtering rule");
-                filter = true;
-            }
-        }
-        for (int i = 0; i < setAttributes.size(); i++) {
-            final SetAttribute setAttribute = (SetAttribute) setAttributes.get(i);
-            if (!setAttribute.initialise()) {
-                ok = false;
-            }
-        }
+        boolean ok = initialiseElements(context, false);
         // make sure default set for matchType
         if (!isMatchTypeWildcard()) {
             matchType = DEFAULT_MATCH_TYPE;
@@ -313,7 +317,7 @@ public class RuleBase implements Runnable {
 
             } else {
                 // default is regexp
-                pattern = new RegexPattern(from, fromCaseSensitive);
+                pattern = new RegexPattern(from, fromCaseSensitive, lazyCompile);
             }
 
         } catch (StringMatchingPatternSyntaxException e) {
@@ -342,6 +346,9 @@ public class RuleBase implements Runnable {
             if (FunctionReplacer.containsFunction(to)) {
                 toContainsFunction = true;
             }
+            // parse the to once now rather than on every match
+            toProgram = new SubstitutionProgram(to, toContainsFunction, toContainsVariable, toContainsBackReference,
+                    servletContext);
         }
 
         if (ok) {
@@ -356,6 +363,123 @@ public class RuleBase implements Runnable {
         return ok;
     }
 
+    /**
+     * Set what initialise worked out from the "from" and "to" of a rule that was written to a conf cache, the rule
+     * can then be initialised with initialiseCached.
+     *
+     * @param from              the "from" after any default was applied
+     * @param fromLiteralPrefix the literal prefix of "from", only used for regular expressions
+     */
+    void setCachedForm(String from, String fromLiteralPrefix, boolean stopFilterChainOnMatch, boolean noSubstitution,
+                       boolean toEmpty, boolean toContainsBackReference, boolean toContainsVariable,
+                       boolean toContainsFunction) {
+        this.from = from;
+        this.cachedFromLiteralPrefix = fromLiteralPrefix;
+        this.stopFilterChainOnMatch = stopFilterChainOnMatch;
+        this.noSubstitution = noSubstitution;
+        this.toEmpty = toEmpty;
+        this.toContainsBackReference = toContainsBackReference;
+        this.toContainsVariable = toContainsVariable;
+        this.toContainsFunction = toContainsFunction;
+    }
+
+    /**
+     * Initialise a rule given its cached form (see setCachedForm) rather than checking the "from" and "to" again.
+     * Regular expressions, including those of the conditions, are compiled when they are first used as they were
+     * already found to be valid when the cache was written.
+     *
+     * @return true on success
+     */
+    boolean initialiseCached(ServletContext context) {
+        this.servletContext = context;
+        initialised = true;
+        boolean ok = initialiseElements(context, true);
+        if (!isMatchTypeWildcard()) {
+            matchType = DEFAULT_MATCH_TYPE;
+        }
+        if (isMatchTypeWildcard()) {
+            pattern = new WildcardPattern(from);
+        } else {
+            pattern = new RegexPattern(from, fromCaseSensitive, cachedFromLiteralPrefix);
+        }
+        if (!stopFilterChainOnMatch && !noSubstitution && !toEmpty && !StringUtils.isBlank(to)) {
+            toProgram = new SubstitutionProgram(to, toContainsFunction, toContainsVariable, toContainsBackReference,
+                    servletContext);
+        }
+        if (errors.size() > 0) {
+            ok = false;
+        }
+        valid = ok;
+        return ok;
+    }
+
+    /**
+     * Initialise the conditions, runs and sets.
+     *
+     * @param lazyConditions true to compile the conditions' regular expressions when they are first used
+     * @return true if they all initialised ok
+     */
+    private boolean initialiseElements(ServletContext context, boolean lazyConditions) {
+        boolean ok = true;
+        for (int i = 0; i < conditions.size(); i++) {
+            final Condition condition = (Condition) conditions.get(i);
+            condition.setRule(this);
+            condition.setLazyCompile(lazyConditions);
+            if (!condition.initialise()) {
+                ok = false;
+            }
+        }
+        for (int i = 0; i < runs.size(); i++) {
+            final Run run = (Run) runs.get(i);
+            if (!run.initialise(context)) {
+                ok = false;
+            }
+            if (run.isFilter()) {
+                log.debug("rule is a filtering rule");
+                filter = true;
+            }
+        }
+        for (int i = 0; i < setAttributes.size(); i++) {
+            final SetAttribute setAttribute = (SetAttribute) setAttributes.get(i);
+            if (!setAttribute.initialise()) {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Literal text that a url must start with for "from" to match, used to index rules.
+     *
+     * @return the prefix, or an empty string if there isn't one or the rule has not been initialised ok
+     */
+    public String getFromLiteralPrefix() {
+        if (pattern == null) return "";
+        return pattern.getLiteralPrefix();
+    }
+
+    /**
+     * Literal text that a url must end with for "from" to match, used to index rules that have no prefix.
+     *
+     * @return the suffix, or an empty string if there isn't one or the rule has not been initialised ok
+     */
+    public String getFromLiteralSuffix() {
+        if (pattern == null) return "";
+        return pattern.getLiteralSuffix();
+    }
+
+    /**
+     * A rule is pure when its outcome depends only on the url, ie, it has no conditions, set's or run's and the "to"
+     * does not use any variables or functions.  Functions are left out as maps can be random or reload and custom
+     * functions can do anything.  The result of running pure rules can safely be cached by url.
+     *
+     * @return true if the rule is pure
+     */
+    public boolean isPure() {
+        return conditions.size() == 0 && runs.size() == 0 && setAttributes.size() == 0 && !filter &&
+                !toContainsVariable && !toContainsFunction;
+    }
+
     public boolean isMatchTypeWildcard() {
         return MATCH_TYPE_WILDCARD.equalsIgnoreCase(matchType);
     }
@@ -544,6 +668,18 @@ public class RuleBase implements Runnable {
         this.fromCaseSensitive = fromCaseSensitive;
     }
 
+    public boolean isLazyCompile() {
+        return lazyCompile;
+    }
+
+    /**
+     * Don't compile a regular expression "from" until the rule is first run, speeds up loading confs with lots of
+     * rules that are rarely used but means an invalid expression is only reported when the rule is first run.
+     */
+    public void setLazyCompile(boolean lazyCompile) {
+        this.lazyCompile = lazyCompile;
+    }
+
     public List getRuns() {
         return runs;
     }
@@ -569,10 +705,39 @@ public class RuleBase implements Runnable {
         return filter;
     }
 
+    public boolean isStopFilterChainOnMatch() {
+        return stopFilterChainOnMatch;
+    }
+
+    /**
+     * Will get the counts of how often this rule has been run and matched.
+     */
+    public RuleStatistics getStatistics() {
+        return statistics;
+    }
+
+    public boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * Set to time each run of the rule, see RuleStatistics.getTotalNanos().
+     */
+    public void setTimed(boolean timed) {
+        this.timed = timed;
+    }
+
     public boolean isNoSubstitution() {
 		return noSubstitution;
 	}
 
+    /**
+     * @return true if the "to" is blank, the rule only sets attributes and/or runs
+     */
+    boolean isToEmpty() {
+        return toEmpty;
+    }
+
     public ServletContext getServletContext() {
         return servletContext;
     }
@@ -35,6 +35,8 @@
 package org.tuckey.web.filters.urlrewrite;
 
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.LruCache;
+import org.tuckey.web.filters.urlrewrite.utils.MatchIndex;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -44,6 +46,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
 
@@ -59,27 +62,82 @@ public class RuleChain implements FilterChain {
 
     // if called then call continue to process rules and call chain as if nothing happened
     private int ruleIdxToRun = 0;
+    private final String originalUrl;
     private RewrittenUrl finalRewrittenRequest = null;
     private String finalToUrl;
     private List rules;
     private boolean requestRewritten;
+    // number of rules that have matched, whether or not they rewrote the url
+    private int matchedCount = 0;
+    // the rules run for this request, only kept when urls that matched no rules are remembered
+    private List evaluatedRules;
     private boolean rewriteHandled = false;
     private boolean responseHandled;
     private FilterChain parentChain;
     private UrlRewriter urlRewriter;
 
+    // rules that could match the url, only used when the conf has an up to date index
+    private MatchIndex ruleIndex;
+    private int[] candidateIdxs;
+    private int candidatePos;
+    private String candidatesUrl;
+
+    // results of runs of pure rules, null when disabled
+    private CompiledRules compiledRules;
+    private LruCache ruleCache;
+
+    // values looked up from the request, shared by the conditions and substitutions of all the rules
+    private EvaluationContext evaluationContext;
+
     public RuleChain(UrlRewriter urlRewriter, String originalUrl, FilterChain parentChain) {
+        this.originalUrl = originalUrl;
         this.finalToUrl = originalUrl;
         this.urlRewriter = urlRewriter;
-        this.rules = urlRewriter.getConf().getRules();
         this.parentChain = parentChain;
+        // read once, the conf may swap in a new order while this request is running
+        CompiledRules compiled = urlRewriter.getConf().getCompiledRules();
+        if (compiled != null) {
+            this.compiledRules = compiled;
+            this.rules = compiled.getRules();
+            this.ruleIndex = compiled.getRuleIndex();
+            this.ruleCache = compiled.getRuleCache();
+        } else {
+            this.rules = urlRewriter.getConf().getRules();
+        }
+        if (urlRewriter.getConf().getNoMatchCache() != null) {
+            evaluatedRules = new ArrayList();
+        }
+    }
+
+    /**
+     * Values looked up for the request, made again if a rule has passed a different (eg, wrapped) request on.
+     */
+    public EvaluationContext getEvaluationContext(HttpServletRequest hsRequest) {
+        if (evaluationContext == null || evaluationContext.getRequest() != hsRequest) {
+            evaluationContext = new EvaluationContext(hsRequest);
+        }
+        return evaluationContext;
     }
 
     private void doRuleProcessing(HttpServletRequest hsRequest, HttpServletResponse hsResponse)
             throws IOException, ServletException, InvocationTargetException {
         // return to next level up and contniue to process rules
-        int currentIdx = ruleIdxToRun++;
+        int currentIdx = getNextCandidateIdx();
+        if (currentIdx >= rules.size()) {
+            // none of the remaining rules can match
+            dontProcessAnyMoreRules();
+            return;
+        }
+        if (ruleCache != null && finalToUrl != null) {
+            int runEnd = compiledRules.getPureRunEnd(currentIdx);
+            if (runEnd != -1) {
+                processPureRules(currentIdx, runEnd, hsRequest, hsResponse);
+                return;
+            }
+        }
+        ruleIdxToRun = currentIdx + 1;
         final Rule rule = (Rule) rules.get(currentIdx);
+        if (evaluatedRules != null) evaluatedRules.add(rule);
         final RewrittenUrl rewrittenUrl = rule.matches(finalToUrl, hsRequest, hsResponse, this);
 
         // if this is a filter don't process any more rules, only process them via doFilter
@@ -101,10 +159,119 @@ public class RuleChain implements FilterChain {
         // if doFilter wasn't called then either execute the returning object or assume run has handled it
     }
 
+    /**
+     * Process a run of pure rules, the outcome depends only on the url so it is looked up in the cache first.
+     */
+    private void processPureRules(int startIdx, int runEnd, HttpServletRequest hsRequest,
+                                  HttpServletResponse hsResponse)
+            throws IOException, ServletException, InvocationTargetException {
+        PureRunKey key = new PureRunKey(startIdx, finalToUrl);
+        PureRunResult result = (PureRunResult) ruleCache.get(key);
+        if (result != null) {
+            if (log.isTraceEnabled()) {
+                log.trace("rule cache hit for " + finalToUrl);
+            }
+            // count the rules as if they had been run so that the statistics follow the traffic
+            for (int i = 0; i < result.evaluatedRules.length; i++) {
+                RuleBase rule = result.evaluatedRules[i];
+                rule.getStatistics().recordCachedEvaluation(result.matchedRules[i]);
+                if (evaluatedRules != null) evaluatedRules.add(rule);
+            }
+            if (result.matched) {
+                // as if the rules had been run
+                matchedCount++;
+                hsRequest.setAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched", Boolean.TRUE);
+            }
+            if (result.rewrittenUrl != null) {
+                finalRewrittenRequest = result.rewrittenUrl;
+                finalToUrl = result.rewrittenUrl.getTarget();
+            }
+            ruleIdxToRun = result.nextIdx;
+            return;
+        }
+
+        RewrittenUrl runRewrittenUrl = null;
+        int matchedCountBefore = matchedCount;
+        List runRules = new ArrayList();
+        List runMatches = new ArrayList();
+        int currentIdx = startIdx;
+        while (currentIdx < runEnd) {
+            ruleIdxToRun = currentIdx + 1;
+            final Rule rule = (Rule) rules.get(currentIdx);
+            if (evaluatedRules != null) evaluatedRules.add(rule);
+            int matchedCountBeforeRule = matchedCount;
+            final RewrittenUrl rewrittenUrl = rule.matches(finalToUrl, hsRequest, hsResponse, this);
+            runRules.add(rule);
+            runMatches.add(Boolean.valueOf(matchedCount > matchedCountBeforeRule));
+            if (rewrittenUrl != null) {
+                runRewrittenUrl = rewrittenUrl;
+                finalRewrittenRequest = rewrittenUrl;
+                finalToUrl = rewrittenUrl.getTarget();
+                if (rule.isLast()) {
+                    dontProcessAnyMoreRules();
+                    break;
+                }
+            }
+            currentIdx = getNextCandidateIdx();
+        }
+        // nothing else in the run could match
+        if (ruleIdxToRun < runEnd) ruleIdxToRun = runEnd;
+        RuleBase[] runRuleArray = (RuleBase[]) runRules.toArray(new RuleBase[runRules.size()]);
+        boolean[] runMatchArray = new boolean[runMatches.size()];
+        for (int i = 0; i < runMatchArray.length; i++) {
+            runMatchArray[i] = ((Boolean) runMatches.get(i)).booleanValue();
+        }
+        ruleCache.put(key, new PureRunResult(runRewrittenUrl, matchedCount > matchedCountBefore, ruleIdxToRun,
+                runRuleArray, runMatchArray));
+    }
+
+    /**
+     * Find the next rule that could match the current url, skipping rules the index rules out.
+     */
+    private int getNextCandidateIdx() {
+        if (ruleIndex == null) return ruleIdxToRun;
+        // identity check is enough, a rewrite always gives us a new string
+        if (candidateIdxs == null || candidatesUrl != finalToUrl) {
+            candidateIdxs = ruleIndex.getCandidates(finalToUrl);
+            candidatesUrl = finalToUrl;
+            candidatePos = 0;
+        }
+        while (candidatePos < candidateIdxs.length && candidateIdxs[candidatePos] < ruleIdxToRun) {
+            candidatePos++;
+        }
+        if (candidatePos == candidateIdxs.length) return rules.size();
+        return candidateIdxs[candidatePos];
+    }
+
     private void dontProcessAnyMoreRules() {
         ruleIdxToRun = rules.size();
     }
 
+    /**
+     * Called by a rule run by this chain when its "from" and conditions have matched.
+     */
+    void ruleMatched() {
+        matchedCount++;
+    }
+
+    /**
+     * @return true if any rule has matched, even if it did not rewrite the url (eg, an empty "to")
+     */
+    public boolean isAnyRuleMatched() {
+        return matchedCount > 0;
+    }
+
+    /**
+     * @return the rules run for this request, null unless urls that matched no rules are remembered
+     */
+    public List getEvaluatedRules() {
+        return evaluatedRules;
+    }
+
+    public String getOriginalUrl() {
+        return originalUrl;
+    }
+
     public RewrittenUrl getFinalRewrittenRequest() {
         return finalRewrittenRequest;
     }
@@ -177,4 +344,50 @@ public class RuleChain implements FilterChain {
         }
     }
 
+    /**
+     * The url at the start of a run of pure rules.
+     */
+    private static final class PureRunKey {
+        private final int ruleIdx;
+        private final String url;
+        private final int hashCode;
+
+        PureRunKey(int ruleIdx, String url) {
+            this.ruleIdx = ruleIdx;
+            this.url = url;
+            this.hashCode = 31 * url.hashCode() + ruleIdx;
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof PureRunKey)) return false;
+            PureRunKey other = (PureRunKey) o;
+            return ruleIdx == other.ruleIdx && url.equals(other.url);
+        }
+    }
+
+    /**
+     * The outcome of a run of pure rules, the last url rewritten (if any), if any rule matched and where to carry on
+     * from.  Also the rules that were run and which of them matched, so that a cache hit can be counted.
+     */
+    private static final class PureRunResult {
+        private final RewrittenUrl rewrittenUrl;
+        private final boolean matched;
+        private final int nextIdx;
+        private final RuleBase[] evaluatedRules;
+        private final boolean[] matchedRules;
+
+        PureRunResult(RewrittenUrl rewrittenUrl, boolean matched, int nextIdx, RuleBase[] evaluatedRules,
+                      boolean[] matchedRules) {
+            this.rewrittenUrl = rewrittenUrl;
+            this.matched = matched;
+            this.nextIdx = nextIdx;
+            this.evaluatedRules = evaluatedRules;
+            this.matchedRules = matchedRules;
+        }
+    }
+
 }
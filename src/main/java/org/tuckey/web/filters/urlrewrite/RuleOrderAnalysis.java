@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Works out which rules can be run in a different order without changing the outcome of any request.
+ * <p/>
+ * Rules are grouped when they are next to each other and:
+ * <ul>
+ * <li>have no set's or run's (no side effects),</li>
+ * <li>either stop rule processing when they match (last="true" or a "to" of null) or leave the url as it is (a "to"
+ * of -) so the rules after them see the same url whichever order they are run in,</li>
+ * <li>have "from" patterns that start with literal text that is not the start of any other "from" in the group so no
+ * url can match more than one of them.</li>
+ * </ul>
+ * Within a group at most one rule can match a given url, so the rules can be run in any order, the most frequently
+ * matched first is the fastest.
+ */
+public class RuleOrderAnalysis {
+
+    private final List rules;
+    private final List groups = new ArrayList();
+
+    public RuleOrderAnalysis(List rules) {
+        this.rules = rules;
+        analyse();
+    }
+
+    private void analyse() {
+        SortedSet prefixes = new TreeSet();
+        int start = 0;
+        for (int i = 0; i <= rules.size(); i++) {
+            String prefix = null;
+            if (i < rules.size()) {
+                Rule rule = (Rule) rules.get(i);
+                if (isReorderable(rule)) prefix = foldCase(((NormalRule) rule).getFromLiteralPrefix());
+            }
+            if (prefix != null && !clashes(prefixes, prefix)) {
+                if (prefixes.isEmpty()) start = i;
+                prefixes.add(prefix);
+                continue;
+            }
+            if (prefixes.size() > 1) groups.add(new int[]{start, i});
+            prefixes.clear();
+            if (prefix != null) {
+                start = i;
+                prefixes.add(prefix);
+            }
+        }
+    }
+
+    /**
+     * Can the rule be moved, ignoring the rules around it.
+     */
+    public static boolean isReorderable(Rule rule) {
+        if (!(rule instanceof NormalRule)) return false;
+        NormalRule normalRule = (NormalRule) rule;
+        if (!normalRule.isValid() || normalRule.isFilter()) return false;
+        if (normalRule.getRuns().size() > 0 || normalRule.getSetAttributes().size() > 0) return false;
+        if (!normalRule.isLast() && !normalRule.isStopFilterChainOnMatch() && !normalRule.isNoSubstitution()) {
+            return false;
+        }
+        return normalRule.getFromLiteralPrefix().length() > 0;
+    }
+
+    /**
+     * A prefix clashes when it is the start of another prefix or another prefix is the start of it, in a sorted set
+     * only the neighbours need to be checked.
+     */
+    private static boolean clashes(SortedSet prefixes, String prefix) {
+        if (prefixes.contains(prefix)) return true;
+        SortedSet head = prefixes.headSet(prefix);
+        if (!head.isEmpty() && prefix.startsWith((String) head.last())) return true;
+        SortedSet tail = prefixes.tailSet(prefix);
+        return !tail.isEmpty() && ((String) tail.first()).startsWith(prefix);
+    }
+
+    /**
+     * Case insensitive patterns only fold US-ASCII, folding every prefix is safe as it can only cause more clashes.
+     */
+    private static String foldCase(String prefix) {
+        char[] chars = prefix.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') chars[i] = (char) (chars[i] + ('a' - 'A'));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return a List of int[] each holding the index of the first rule in a group and the index after the last
+     */
+    public List getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return the rules with each group sorted so that the rules that have matched the most come first
+     */
+    public List getHitWeightedOrder() {
+        List ordered = new ArrayList(rules);
+        for (int i = 0; i < groups.size(); i++) {
+            int[] group = (int[]) groups.get(i);
+            List groupRules = new ArrayList(ordered.subList(group[0], group[1]));
+            // stable, rules with the same count stay in conf order
+            Collections.sort(groupRules, HIT_COMPARATOR);
+            for (int j = 0; j < groupRules.size(); j++) {
+                ordered.set(group[0] + j, groupRules.get(j));
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * @return true if the order specified is different to the order this analysis was done on
+     */
+    public boolean isOrderChanged(List order) {
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i) != order.get(i)) return true;
+        }
+        return false;
+    }
+
+    private static final Comparator HIT_COMPARATOR = new Comparator() {
+        public int compare(Object o1, Object o2) {
+            long hits1 = ((RuleBase) o1).getStatistics().getConditionPasses();
+            long hits2 = ((RuleBase) o2).getStatistics().getConditionPasses();
+            return hits1 > hits2 ? -1 : (hits1 == hits2 ? 0 : 1);
+        }
+    };
+
+}
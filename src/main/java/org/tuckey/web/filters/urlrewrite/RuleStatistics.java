@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import org.tuckey.web.filters.urlrewrite.utils.StripedCounter;
+
+/**
+ * Counts how often a rule is run and how often it matches.
+ */
+public class RuleStatistics {
+
+    private static final int EVALUATIONS = 0;
+    private static final int FROM_MATCHES = 1;
+    private static final int CONDITION_PASSES = 2;
+    private static final int NANOS = 3;
+
+    // one counter for all the values so that a large number of rules does not need a large amount of memory
+    private final StripedCounter counter = new StripedCounter(4);
+
+    void recordEvaluation() {
+        counter.increment(EVALUATIONS);
+    }
+
+    void recordEvaluation(long tookNanos) {
+        counter.increment(EVALUATIONS);
+        counter.add(NANOS, tookNanos);
+    }
+
+    /**
+     * Count a run that was answered from a cache as if the rule had been run.  Only pure rules are cached and they
+     * have no conditions, so a "from" match is also a condition pass.
+     */
+    void recordCachedEvaluation(boolean matched) {
+        counter.increment(EVALUATIONS);
+        if (matched) {
+            counter.increment(FROM_MATCHES);
+            counter.increment(CONDITION_PASSES);
+        }
+    }
+
+    void recordFromMatch() {
+        counter.increment(FROM_MATCHES);
+    }
+
+    void recordConditionPass() {
+        counter.increment(CONDITION_PASSES);
+    }
+
+    /**
+     * @return the number of times the rule has been run against a url
+     */
+    public long getEvaluations() {
+        return counter.sum(EVALUATIONS);
+    }
+
+    /**
+     * @return the number of times "from" matched
+     */
+    public long getFromMatches() {
+        return counter.sum(FROM_MATCHES);
+    }
+
+    /**
+     * @return the number of times "from" matched and all the conditions (if any) passed
+     */
+    public long getConditionPasses() {
+        return counter.sum(CONDITION_PASSES);
+    }
+
+    /**
+     * @return total time spent running the rule in nanoseconds, including any set's and run's, 0 unless timing is
+     * enabled on the conf
+     */
+    public long getTotalNanos() {
+        return counter.sum(NANOS);
+    }
+
+    public void reset() {
+        counter.reset();
+    }
+
+}
@@ -34,6 +34,7 @@
  */
 package org.tuckey.web.filters.urlrewrite;
 
+import org.tuckey.web.filters.urlrewrite.functions.MapFunction;
 import org.tuckey.web.filters.urlrewrite.substitution.BackReferenceReplacer;
 import org.tuckey.web.filters.urlrewrite.substitution.ChainedSubstitutionFilters;
 import org.tuckey.web.filters.urlrewrite.substitution.FunctionReplacer;
@@ -51,6 +52,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -92,6 +94,8 @@ public class SetAttribute {
     private boolean valueContainsVariable = false;
     private boolean valueContainsBackRef = false;
     private boolean valueContainsFunction = false;
+    // the maps of the conf, the functions in the value are initialised each time it is set
+    private Map maps = null;
 
     public String getType() {
         if (type == SET_TYPE_RESPONSE_HEADER) return "response-header";
@@ -183,7 +187,16 @@ public class SetAttribute {
         
         SubstitutionContext substitutionContext = new SubstitutionContext(hsRequest, toMatcher, lastConditionMatch, null);
         SubstitutionFilterChain substitutionFilter = ChainedSubstitutionFilters.getDefaultSubstitutionChain(false, valueContainsFunction, valueContainsVariable, valueContainsBackRef);
-        value = substitutionFilter.substitute(value, substitutionContext);
+        if (maps != null) {
+            MapFunction.setCurrentMaps(maps);
+            try {
+                value = substitutionFilter.substitute(value, substitutionContext);
+            } finally {
+                MapFunction.setCurrentMaps(null);
+            }
+        } else {
+            value = substitutionFilter.substitute(value, substitutionContext);
+        }
 
         if (type == SET_TYPE_REQUEST) {
             log.debug("setting request attrib");
@@ -263,6 +276,7 @@ public class SetAttribute {
             }
             if (FunctionReplacer.containsFunction(value)) {
                 valueContainsFunction = true;
+                maps = MapFunction.getCurrentMaps();
             }
         }
 
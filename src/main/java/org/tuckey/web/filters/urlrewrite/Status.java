@@ -35,6 +35,7 @@
 package org.tuckey.web.filters.urlrewrite;
 
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.LruCache;
 import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
 
 import javax.servlet.http.Cookie;
@@ -78,6 +79,7 @@ public class Status {
         showHeader();
         showRunningInfo();
         showConf();
+        showRuleStatistics();
         showRequestInfo(hsRequest);
         showFooter();
     }
@@ -293,6 +295,9 @@ public class Status {
             if (!rule.isEncodeToUrl()) {
                 print(", <code>response.encodeURL()</code> will not be called");
             }
+            if (rule.isRewriteBody()) {
+                print(", the links in response bodies will also be rewritten");
+            }
             println(".</p>");
 
             showConditions(rule);
@@ -348,7 +353,11 @@ public class Status {
         println("<p>Conf");
         if (conf == null ) println(" <em>empty</em>.</p>");
         if (conf != null && conf.isLoadedFromFile()) println("file <code>" + conf.getFileName() + "</code>");
-        if (conf != null ) println("loaded <em>" + conf.getLoadedDate() + "</em>.</p>");
+        if (conf != null ) println("loaded <em>" + conf.getLoadedDate() + "</em> in <em>" + conf.getLoadTime() +
+                "ms</em> using the <em>" + conf.getLoader() + "</em> loader" +
+                (conf.getLoadAllocatedBytes() == -1 ? "" :
+                        ", allocating <em>" + conf.getLoadAllocatedBytes() / 1024 + "KB</em>") + ".</p>");
+        if (conf != null ) showRuleCache();
         if (urlRewriteFilter != null) {
             if (urlRewriteFilter.isConfReloadCheckEnabled()) {
                 Date nextReloadCheckDate = new Date(urlRewriteFilter.getConfReloadLastCheck().getTime() +
@@ -358,13 +367,126 @@ public class Status {
                         urlRewriteFilter.getConfReloadLastCheck() + "</em>, next check at <em>" +
                         nextReloadCheckDate + "</em> in <em>" +
                         Math.round((nextReloadCheckDate.getTime() - System.currentTimeMillis()) / 1000d) + "s</em>.");
+            } else if (urlRewriteFilter.isConfReloadWatchEnabled()) {
+                println("<p>Conf file reload <em>watching</em> <em>" +
+                        urlRewriteFilter.getConfReloadWatchedFiles().size() + "</em> files, checked every <em>" +
+                        urlRewriteFilter.getConfReloadWatchIntervalSeconds() + "s</em> in the background, " +
+                        "reloaded <em>" + urlRewriteFilter.getConfReloadDebounce() +
+                        "ms</em> after the last change.</p>");
             } else {
                 println("Conf file reload check <em>disabled</em>");
             }
+            if (urlRewriteFilter.getClockResolution() > 0) {
+                println("<p>Time conditions and variables use a clock that ticks every <em>" +
+                        urlRewriteFilter.getClockResolution() + "ms</em>.</p>");
+            } else {
+                println("<p>Time conditions and variables use the exact time.</p>");
+            }
             println("<p>Status path <code>" + urlRewriteFilter.getStatusPath() + "</code>.</p>");
         }
     }
 
+    private void showRuleCache() {
+        LruCache ruleCache = conf.getRuleCache();
+        if (ruleCache != null) {
+            println("<p>Rule cache <em>enabled</em>, holding <em>" + ruleCache.size() + "</em> of a maximum <em>" +
+                    ruleCache.getMaxSize() + "</em> results, <em>" + ruleCache.getHitCount() + "</em> hits, <em>" +
+                    ruleCache.getMissCount() + "</em> misses, <em>" + ruleCache.getEvictionCount() +
+                    "</em> evictions (set init-param <code>ruleCacheSize</code> to 0 to disable).</p>");
+        } else if (conf.getRuleCacheSize() > 0) {
+            println("<p>Rule cache <em>not used</em>, there are no rules that depend only on the url.</p>");
+        } else {
+            println("<p>Rule cache <em>disabled</em> (init-param <code>ruleCacheSize</code> is 0).</p>");
+        }
+        LruCache noMatchCache = conf.getNoMatchCache();
+        if (noMatchCache != null) {
+            println("<p>No match cache <em>enabled</em>, remembering <em>" + noMatchCache.size() +
+                    "</em> of a maximum <em>" + noMatchCache.getMaxSize() + "</em> urls that matched no rules, <em>" +
+                    noMatchCache.getHitCount() + "</em> hits, <em>" + noMatchCache.getMissCount() + "</em> misses, <em>" +
+                    noMatchCache.getEvictionCount() + "</em> evictions (set init-param <code>noMatchCacheSize</code>" +
+                    " to 0 to disable).</p>");
+        } else if (conf.getNoMatchCacheSize() > 0) {
+            println("<p>No match cache <em>not used</em>, some rules depend on more than the url.</p>");
+        } else {
+            println("<p>No match cache <em>disabled</em> (init-param <code>noMatchCacheSize</code> is 0).</p>");
+        }
+        LruCache outboundCache = conf.getOutboundCache(false);
+        LruCache encodedOutboundCache = conf.getOutboundCache(true);
+        if (outboundCache != null && encodedOutboundCache != null) {
+            long hits = outboundCache.getHitCount() + encodedOutboundCache.getHitCount();
+            long misses = outboundCache.getMissCount() + encodedOutboundCache.getMissCount();
+            println("<p>Outbound cache <em>enabled</em>, holding <em>" +
+                    (outboundCache.size() + encodedOutboundCache.size()) + "</em> of a maximum <em>" +
+                    (outboundCache.getMaxSize() + encodedOutboundCache.getMaxSize()) + "</em> results, <em>" + hits +
+                    "</em> hits, <em>" + misses + "</em> misses" +
+                    (hits + misses > 0 ? " (<em>" + (hits * 100 / (hits + misses)) + "%</em> hit rate)" : "") +
+                    ", <em>" + (outboundCache.getEvictionCount() + encodedOutboundCache.getEvictionCount()) +
+                    "</em> evictions (set init-param <code>outboundCacheSize</code> to 0 to disable).</p>");
+        } else if (conf.getOutboundCacheSize() > 0) {
+            println("<p>Outbound cache <em>not used</em>, there are no outbound rules or some depend on more than " +
+                    "the url.</p>");
+        } else {
+            println("<p>Outbound cache <em>disabled</em> (init-param <code>outboundCacheSize</code> is 0).</p>");
+        }
+    }
+
+    private void showRuleStatistics() {
+        if (conf == null) return;
+        final List rules = conf.getRules();
+        println("<h2>Rule Statistics</h2>");
+        println("<p>Rules are listed in the order they are run. Rules answered from a cache are counted but not timed." +
+                " Rules are only timed when <code>ruleReorderInterval</code> is set.</p>");
+        println("<table>");
+        println("<tr><th>Rule</th><th>Evaluations</th><th>From matches</th><th>Condition passes</th>" +
+                "<th>Total ms</th><th>Avg &micro;s</th></tr>");
+        for (int i = 0; i < rules.size(); i++) {
+            if (!(rules.get(i) instanceof RuleBase)) continue;
+            RuleBase rule = (RuleBase) rules.get(i);
+            RuleStatistics statistics = rule.getStatistics();
+            long evaluations = statistics.getEvaluations();
+            long nanos = statistics.getTotalNanos();
+            String timings = "-</td><td>-";
+            if (rule.isTimed()) {
+                timings = nanos / 1000000 + "</td><td>" + (evaluations == 0 ? 0 : nanos / evaluations / 1000);
+            }
+            println("<tr><td>" + rule.getDisplayName() + "</td><td>" + evaluations + "</td><td>" +
+                    statistics.getFromMatches() + "</td><td>" + statistics.getConditionPasses() + "</td><td>" +
+                    timings + "</td></tr>");
+        }
+        println("</table>");
+
+        RuleOrderAnalysis analysis = new RuleOrderAnalysis(rules);
+        List groups = analysis.getGroups();
+        if (groups.size() == 0) {
+            println("<p>No rules can be safely reordered.</p>");
+            println("<hr />");
+            return;
+        }
+        List hitWeightedOrder = analysis.getHitWeightedOrder();
+        println("<p>These groups of rules can be run in any order without changing the outcome of any request" +
+                " (suggested order by condition passes)");
+        if (urlRewriteFilter != null && urlRewriteFilter.getRuleReorderInterval() > 0) {
+            println(", the suggested order is applied every <em>" + urlRewriteFilter.getRuleReorderInterval() +
+                    "s</em>");
+        } else {
+            println(", set init-param <code>ruleReorderInterval</code> to apply the suggested order");
+        }
+        println(".</p>");
+        println("<ul>");
+        for (int i = 0; i < groups.size(); i++) {
+            int[] group = (int[]) groups.get(i);
+            StringBuffer suggested = new StringBuffer();
+            for (int j = group[0]; j < group[1]; j++) {
+                if (j > group[0]) suggested.append(", ");
+                suggested.append(((Rule) hitWeightedOrder.get(j)).getDisplayName());
+            }
+            println("<li>" + ((Rule) rules.get(group[0])).getDisplayName() + " to " +
+                    ((Rule) rules.get(group[1] - 1)).getDisplayName() + ": " + suggested + "</li>");
+        }
+        println("</ul>");
+        println("<hr />");
+    }
+
     private void displayRuleErrors(final List rules) {
         for (int i = 0; i < rules.size(); i++) {
             Object ruleObj = rules.get(i);
@@ -525,6 +647,8 @@ public class Status {
                         ("notequal".equals(condition.getOperator()) ? "NOT equal to" : "") +
                         ("greaterorequal".equals(condition.getOperator()) ? "is greater than or equal to" : "") +
                         ("lessorequal".equals(condition.getOperator()) ? "is less than or equal to" : "") +
+                        ("inrange".equals(condition.getOperator()) ? "in the range" : "") +
+                        ("notinrange".equals(condition.getOperator()) ? "NOT in the range" : "") +
                         "</code> the value <code>" +
                         (StringUtils.isBlank(condition.getValue()) ? condition.getName() : condition.getValue()) + "</code>");
             }
@@ -34,6 +34,9 @@
  */
 package org.tuckey.web.filters.urlrewrite;
 
+import org.tuckey.web.filters.urlrewrite.substitution.FunctionReplacer;
+import org.tuckey.web.filters.urlrewrite.utils.CoarseClock;
+import org.tuckey.web.filters.urlrewrite.utils.FileWatcher;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
 import org.tuckey.web.filters.urlrewrite.utils.ModRewriteConfLoader;
 import org.tuckey.web.filters.urlrewrite.utils.NumberUtils;
@@ -54,9 +57,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Based on the popular and very useful mod_rewrite for apache, UrlRewriteFilter is a Java Web Filter for any J2EE
@@ -88,9 +99,14 @@ public class UrlRewriteFilter implements Filter {
     public static final String DEFAULT_WEB_CONF_PATH = "/WEB-INF/urlrewrite.xml";
 
     /**
-     * The conf for this filter.
+     * The current conf for this filter, as a ConfSnapshot, null if no conf is loaded.
      */
-    private UrlRewriter urlRewriter = null;
+    private final AtomicReference currentSnapshot = new AtomicReference();
+
+    /**
+     * The snapshot acquired by the request the current thread is processing.
+     */
+    private final ThreadLocal requestSnapshot = new ThreadLocal();
 
     /**
      * A user defined setting that can enable conf reloading.
@@ -102,6 +118,20 @@ public class UrlRewriteFilter implements Filter {
      */
     private int confReloadCheckInterval = 0;
 
+    /**
+     * A user defined setting that moves conf reload checks off the request path onto a background file watcher.
+     */
+    private boolean confReloadWatchEnabled = false;
+
+    /**
+     * A user defined setting that says how long the conf files must be unchanged before reloading (millis).
+     */
+    private long confReloadDebounce = DEFAULT_CONF_RELOAD_DEBOUNCE;
+    public static final long DEFAULT_CONF_RELOAD_DEBOUNCE = 500;
+    private static final int DEFAULT_CONF_RELOAD_WATCH_INTERVAL = 1000;
+
+    private volatile FileWatcher confWatcher = null;
+
     /**
      * A user defined setting that will allow configuration to be swapped via an HTTP to rewrite-status.
      */
@@ -110,9 +140,9 @@ public class UrlRewriteFilter implements Filter {
     /**
      * The last time that the conf file was loaded.
      */
-    private long confLastLoad = 0;
-    private Conf confLastLoaded = null;
-    private long confReloadLastCheck = 30;
+    private volatile long confLastLoad = 0;
+    private volatile Conf confLastLoaded = null;
+    private volatile long confReloadLastCheck = 30;
     private boolean confLoadedFromFile = true;
 
     /**
@@ -123,12 +153,69 @@ public class UrlRewriteFilter implements Filter {
     /**
      * Flag to make sure we don't bog the filter down during heavy load.
      */
-    private boolean confReloadInProgress = false;
+    private final AtomicBoolean confReloadInProgress = new AtomicBoolean(false);
+
+    /**
+     * Held while a conf is being loaded so that loads do not overlap.
+     */
+    private final Object confLoadLock = new Object();
+
+    /**
+     * Runs conf reloads, rule reorders and ip range file reloads off the request threads, created when first needed.
+     */
+    private ExecutorService backgroundExecutor = null;
 
     private boolean statusEnabled = true;
     private String statusPath = "/rewrite-status";
 
     private boolean modRewriteStyleConf = false;
+
+    /**
+     * How to read the conf file, "dom" or "sax" (streamed, for very large conf files).
+     */
+    private String confLoader = Conf.LOADER_DOM;
+
+    /**
+     * Validate the conf file against the dtd when it is read with the sax loader.
+     */
+    private boolean confValidate = true;
+
+    /**
+     * Keep a binary copy of the conf next to the conf file to load instead of the XML while it is unchanged.
+     */
+    private boolean confCacheEnabled = false;
+
+    // how often the clock used by time conditions and variables ticks, 0 for exact time
+    private long clockResolution = 0;
+    private boolean clockStarted = false;
+
+    /**
+     * The number of results to cache for rules that depend only on the url, 0 disables.
+     */
+    private int ruleCacheSize = Conf.DEFAULT_RULE_CACHE_SIZE;
+
+    /**
+     * The number of urls that matched no rules to remember, 0 disables.
+     */
+    private int noMatchCacheSize = Conf.DEFAULT_NO_MATCH_CACHE_SIZE;
+
+    /**
+     * The number of outbound rule results to cache when every outbound rule depends only on the url, 0 disables.
+     */
+    private int outboundCacheSize = Conf.DEFAULT_OUTBOUND_CACHE_SIZE;
+
+    /**
+     * The content types of the responses that have their links rewritten by rewrite-body outbound rules.
+     */
+    private String outboundBodyContentTypes = Conf.DEFAULT_OUTBOUND_BODY_CONTENT_TYPES;
+
+    /**
+     * How often to reorder rules by the number of times they have matched (millis), 0 disables.
+     */
+    private int ruleReorderInterval = 0;
+    private volatile long ruleReorderLastCheck = 0;
+    private final AtomicBoolean ruleReorderInProgress = new AtomicBoolean(false);
+
     public static final String DEFAULT_MOD_REWRITE_STYLE_CONF_PATH = "/WEB-INF/.htaccess";
 
     private ServerNameMatcher statusServerNameMatcher;
@@ -199,6 +286,100 @@ public class UrlRewriteFilter implements Filter {
             confReloadCheckEnabled = false;
         }
 
+        String confReloadWatchStr = filterConfig.getInitParameter("confReloadWatch");
+        if ("true".equalsIgnoreCase(StringUtils.trim(confReloadWatchStr))) {
+            confReloadWatchEnabled = true;
+            String confReloadDebounceStr = filterConfig.getInitParameter("confReloadDebounce");
+            if (!StringUtils.isBlank(confReloadDebounceStr)) {
+                confReloadDebounce = NumberUtils.stringToInt(StringUtils.trim(confReloadDebounceStr),
+                        (int) DEFAULT_CONF_RELOAD_DEBOUNCE);
+            }
+            // the watcher does the checking so requests don't need to
+            confReloadCheckEnabled = false;
+            log.info("conf files will be watched for changes every " + getConfReloadWatchInterval() / 1000 +
+                    "s and reloaded after " + confReloadDebounce + "ms without further changes");
+        }
+
+        String ruleCacheSizeStr = filterConfig.getInitParameter("ruleCacheSize");
+        if (!StringUtils.isBlank(ruleCacheSizeStr)) {
+            ruleCacheSize = NumberUtils.stringToInt(StringUtils.trim(ruleCacheSizeStr), Conf.DEFAULT_RULE_CACHE_SIZE);
+            if (ruleCacheSize > 0) {
+                log.info("rule cache size set to " + ruleCacheSize);
+            } else {
+                log.info("rule cache disabled");
+            }
+        }
+
+        String noMatchCacheSizeStr = filterConfig.getInitParameter("noMatchCacheSize");
+        if (!StringUtils.isBlank(noMatchCacheSizeStr)) {
+            noMatchCacheSize = NumberUtils.stringToInt(StringUtils.trim(noMatchCacheSizeStr),
+                    Conf.DEFAULT_NO_MATCH_CACHE_SIZE);
+            if (noMatchCacheSize > 0) {
+                log.info("no match cache size set to " + noMatchCacheSize);
+            } else {
+                log.info("no match cache disabled");
+            }
+        }
+
+        String outboundCacheSizeStr = filterConfig.getInitParameter("outboundCacheSize");
+        if (!StringUtils.isBlank(outboundCacheSizeStr)) {
+            outboundCacheSize = NumberUtils.stringToInt(StringUtils.trim(outboundCacheSizeStr),
+                    Conf.DEFAULT_OUTBOUND_CACHE_SIZE);
+            if (outboundCacheSize > 0) {
+                log.info("outbound cache size set to " + outboundCacheSize);
+            } else {
+                log.info("outbound cache disabled");
+            }
+        }
+
+        String outboundBodyContentTypesStr = filterConfig.getInitParameter("outboundBodyContentTypes");
+        if (!StringUtils.isBlank(outboundBodyContentTypesStr)) {
+            outboundBodyContentTypes = StringUtils.trim(outboundBodyContentTypesStr);
+            log.info("outbound body content types set to " + outboundBodyContentTypes);
+        }
+
+        String ruleReorderIntervalStr = filterConfig.getInitParameter("ruleReorderInterval");
+        if (!StringUtils.isBlank(ruleReorderIntervalStr)) {
+            // convert to millis
+            ruleReorderInterval = 1000 * NumberUtils.stringToInt(StringUtils.trim(ruleReorderIntervalStr));
+            if (ruleReorderInterval > 0) {
+                ruleReorderLastCheck = System.currentTimeMillis();
+                log.info("rules will be reordered by number of matches every " + ruleReorderInterval / 1000 + "s");
+            }
+        }
+
+        String confLoaderStr = filterConfig.getInitParameter("confLoader");
+        if (!StringUtils.isBlank(confLoaderStr)) {
+            confLoader = Conf.LOADER_SAX.equalsIgnoreCase(StringUtils.trim(confLoaderStr)) ?
+                    Conf.LOADER_SAX : Conf.LOADER_DOM;
+            log.info("conf will be read using the " + confLoader + " loader");
+        }
+        String confValidateStr = filterConfig.getInitParameter("confValidate");
+        if (!StringUtils.isBlank(confValidateStr)) {
+            confValidate = !"false".equalsIgnoreCase(StringUtils.trim(confValidateStr));
+        }
+
+        String confCacheStr = filterConfig.getInitParameter("confCache");
+        if (!StringUtils.isBlank(confCacheStr)) {
+            confCacheEnabled = "true".equalsIgnoreCase(StringUtils.trim(confCacheStr));
+        }
+
+        String clockResolutionStr = filterConfig.getInitParameter("clockResolution");
+        if (!StringUtils.isBlank(clockResolutionStr)) {
+            clockResolution = NumberUtils.stringToLong(StringUtils.trim(clockResolutionStr), 0);
+        }
+        if (clockResolution > 0) {
+            CoarseClock.start(clockResolution);
+            clockStarted = true;
+            log.info("time conditions will use a clock that ticks every " + clockResolution + "ms");
+        }
+
+        // functions must be registered before the conf is loaded so that calls to them can be compiled
+        String functionsStr = filterConfig.getInitParameter("functions");
+        if (!StringUtils.isBlank(functionsStr)) {
+            registerFunctions(functionsStr);
+        }
+
         String modRewriteConf = filterConfig.getInitParameter("modRewriteConf");
         if (!StringUtils.isBlank(modRewriteConf)) {
             modRewriteStyleConf = "true".equals(StringUtils.trim(modRewriteConf).toLowerCase());
@@ -246,7 +427,118 @@ public class UrlRewriteFilter implements Filter {
         }   else {
 
             loadUrlRewriter(filterConfig);
+            if (confReloadWatchEnabled) {
+                startConfWatcher();
+            }
+        }
+    }
+
+    /**
+     * The binary cache of the conf is kept next to the conf file, eg, /WEB-INF/urlrewrite.xml.cache.
+     *
+     * @return the file or null if the conf cache is not enabled or the conf file is not on the file system
+     */
+    private File getConfCacheFile() {
+        if (!confCacheEnabled || modRewriteStyleConf || context == null) return null;
+        String realPath = context.getRealPath(confPath);
+        if (realPath == null) {
+            log.info("unable to use conf cache as conf file " + confPath + " is not on the file system");
+            return null;
+        }
+        return new File(realPath + ".cache");
+    }
+
+    private int getConfReloadWatchInterval() {
+        return confReloadCheckInterval > 0 ? confReloadCheckInterval : DEFAULT_CONF_RELOAD_WATCH_INTERVAL;
+    }
+
+    private synchronized void startConfWatcher() {
+        if (confWatcher != null) return;
+        FileWatcher watcher = new FileWatcher(getConfReloadWatchInterval(), confReloadDebounce,
+                new java.lang.Runnable() {
+                    public void run() {
+                        confFilesChanged();
+                    }
+                });
+        watcher.setFiles(getConfFiles(confLastLoaded));
+        if (watcher.getFiles().isEmpty()) {
+            log.error("unable to watch conf file " + confPath + " as it is not on the file system, " +
+                    "conf will not be reloaded");
+        }
+        watcher.start();
+        confWatcher = watcher;
+    }
+
+    private synchronized void stopConfWatcher() {
+        if (confWatcher != null) {
+            confWatcher.stop();
+            confWatcher = null;
+        }
+    }
+
+    /**
+     * Registers the functions in a list like "name:com.example.MyFunction, other:com.example.OtherFunction".
+     */
+    private void registerFunctions(String functionsStr) {
+        String[] functionStrs = functionsStr.trim().split("[,\\s]+");
+        for (int i = 0; i < functionStrs.length; i++) {
+            String functionStr = functionStrs[i];
+            int colonIdx = functionStr.indexOf(':');
+            if (colonIdx < 1 || colonIdx + 1 >= functionStr.length()) {
+                log.error("function " + functionStr + " should be in the form name:class");
+                continue;
+            }
+            String name = functionStr.substring(0, colonIdx);
+            String classStr = functionStr.substring(colonIdx + 1);
+            try {
+                FunctionReplacer.registerFunction(name, Class.forName(classStr));
+                log.info("registered function " + name + " as " + classStr);
+            } catch (ClassNotFoundException e) {
+                log.error("could not find function class " + classStr, e);
+            } catch (IllegalArgumentException e) {
+                log.error("could not register function " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Called by the conf watcher on its own thread once the conf files have changed.
+     */
+    private void confFilesChanged() {
+        if (!confReloadInProgress.compareAndSet(false, true)) return;
+        try {
+            reloadConfLocal(true);
+        } finally {
+            confReloadInProgress.set(false);
+        }
+    }
+
+    /**
+     * The files the conf was loaded from, the conf file and any files it included.
+     *
+     * @return list of java.io.File
+     */
+    private List getConfFiles(Conf conf) {
+        List files = new ArrayList();
+        if (context != null) {
+            String realPath = context.getRealPath(confPath);
+            if (realPath != null) {
+                files.add(new File(realPath));
+            }
+        }
+        if (conf != null) {
+            List includedSystemIds = conf.getIncludedSystemIds();
+            for (int i = 0; i < includedSystemIds.size(); i++) {
+                String systemId = (String) includedSystemIds.get(i);
+                if (!systemId.startsWith("file:")) continue;
+                try {
+                    files.add(new File(new URI(systemId)));
+                } catch (Exception e) {
+                    log.debug("unable to watch included file " + systemId, e);
+                }
+            }
         }
+        return files;
     }
 
     /**
@@ -280,14 +572,20 @@ public class UrlRewriteFilter implements Filter {
         if (inputStream == null) {
             log.error("unable to find urlrewrite conf file at " + confPath);
             // set the writer back to null
-            if (urlRewriter != null) {
+            if (currentSnapshot.get() != null) {
                 log.error("unloading existing conf");
-                urlRewriter = null;
+                publishSnapshot(null);
             }
 
         } else {
-            Conf conf = new Conf(context, inputStream, confPath, confUrlStr, modRewriteStyleConf);
+            Conf conf = new Conf(context, inputStream, confPath, confUrlStr, modRewriteStyleConf, confLoader,
+                    confValidate, getConfCacheFile());
             checkConf(conf);
+            FileWatcher watcher = confWatcher;
+            if (watcher != null) {
+                // the included files may have changed
+                watcher.setFiles(getConfFiles(conf));
+            }
         }
     }
 
@@ -305,9 +603,15 @@ public class UrlRewriteFilter implements Filter {
             }
             log.debug("conf is " + (conf.isOk() ? "ok" : "NOT ok"));
         }
+        conf.setRuleCacheSize(ruleCacheSize);
+        conf.setNoMatchCacheSize(noMatchCacheSize);
+        conf.setOutboundCacheSize(outboundCacheSize);
+        conf.setOutboundBodyContentTypes(outboundBodyContentTypes);
+        conf.setRuleTimingEnabled(ruleReorderInterval > 0);
+        conf.setReloadExecutor(getBackgroundExecutor());
         confLastLoaded = conf;
         if (conf.isOk() && conf.isEngineEnabled()) {
-            urlRewriter = new UrlRewriter(conf);
+            publishSnapshot(new ConfSnapshot(new UrlRewriter(conf)));
             log.info("loaded (conf ok)");
 
         } else {
@@ -317,13 +621,63 @@ public class UrlRewriteFilter implements Filter {
             if (!conf.isEngineEnabled()) {
                 log.error("Engine explicitly disabled in conf"); // not really an error but we want ot to show in logs
             }
-            if (urlRewriter != null) {
+            if (currentSnapshot.get() != null) {
                 log.error("unloading existing conf");
-                urlRewriter = null;
+                publishSnapshot(null);
             }
         }
     }
 
+    /**
+     * Make the snapshot the one new requests use, the snapshot it replaces is destroyed by the last request using it.
+     */
+    private void publishSnapshot(ConfSnapshot snapshot) {
+        ConfSnapshot replaced = (ConfSnapshot) currentSnapshot.getAndSet(snapshot);
+        if (replaced != null) replaced.retire();
+    }
+
+    /**
+     * Get the current snapshot and mark it as in use, must be paired with a release.
+     *
+     * @return the snapshot or null if no conf is loaded
+     */
+    private ConfSnapshot acquireSnapshot() {
+        while (true) {
+            ConfSnapshot snapshot = (ConfSnapshot) currentSnapshot.get();
+            if (snapshot == null || snapshot.acquire()) return snapshot;
+            // replaced between the get and the acquire, try the new one
+        }
+    }
+
+    /**
+     * The conf currently used for new requests.
+     *
+     * @return the snapshot or null if no conf is loaded
+     */
+    public ConfSnapshot getConfSnapshot() {
+        return (ConfSnapshot) currentSnapshot.get();
+    }
+
+    private synchronized ExecutorService getBackgroundExecutor() {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(java.lang.Runnable r) {
+                    Thread thread = new Thread(r, "UrlRewriteFilter background");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return backgroundExecutor;
+    }
+
+    private synchronized void shutdownBackgroundExecutor() {
+        if (backgroundExecutor != null) {
+            backgroundExecutor.shutdownNow();
+            backgroundExecutor = null;
+        }
+    }
+
     /**
      * Destroy is called by the application server when it unloads this filter.
      */
@@ -334,19 +688,34 @@ public class UrlRewriteFilter implements Filter {
     }
 
     public void destroyActual() {
+        stopConfWatcher();
+        shutdownBackgroundExecutor();
         destroyUrlRewriter();
         context = null;
         confLastLoad = 0;
         confPath = DEFAULT_WEB_CONF_PATH;
         confReloadCheckEnabled = false;
         confReloadCheckInterval = 0;
-        confReloadInProgress = false;
+        confReloadInProgress.set(false);
+        confReloadWatchEnabled = false;
+        confLoader = Conf.LOADER_DOM;
+        confValidate = true;
+        confCacheEnabled = false;
+        confReloadDebounce = DEFAULT_CONF_RELOAD_DEBOUNCE;
+        ruleReorderInterval = 0;
+        ruleReorderInProgress.set(false);
+        if (clockStarted) {
+            CoarseClock.stop();
+            clockStarted = false;
+        }
+        clockResolution = 0;
     }
 
     protected void destroyUrlRewriter() {
-        if (urlRewriter != null) {
-            urlRewriter.destroy();
-            urlRewriter = null;
+        // the container has stopped sending requests so no need to wait for them
+        ConfSnapshot snapshot = (ConfSnapshot) currentSnapshot.getAndSet(null);
+        if (snapshot != null) {
+            snapshot.destroy();
         }
     }
 
@@ -362,6 +731,26 @@ public class UrlRewriteFilter implements Filter {
     public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
             throws IOException, ServletException {
 
+        // hold on to the conf this request started with even if a reload replaces it part way through
+        ConfSnapshot snapshot = acquireSnapshot();
+        Object outerSnapshot = requestSnapshot.get();
+        requestSnapshot.set(snapshot);
+        try {
+            doFilterWithSnapshot(request, response, chain);
+        } finally {
+            if (outerSnapshot == null) {
+                requestSnapshot.remove();
+            } else {
+                // a forward or include back through this filter, restore the outer request's snapshot
+                requestSnapshot.set(outerSnapshot);
+            }
+            if (snapshot != null) snapshot.release();
+        }
+    }
+
+    private void doFilterWithSnapshot(final ServletRequest request, final ServletResponse response,
+                                      final FilterChain chain) throws IOException, ServletException {
+
         UrlRewriter urlRewriter = getUrlRewriter(request, response, chain);
 
         final HttpServletRequest hsRequest = (HttpServletRequest) request;
@@ -398,6 +787,7 @@ public class UrlRewriteFilter implements Filter {
         if (!requestRewritten) {
             chain.doFilter(hsRequest, urlRewriteWrappedResponse);
         }
+        urlRewriteWrappedResponse.finishBody();
     }
 
 
@@ -408,10 +798,15 @@ public class UrlRewriteFilter implements Filter {
      */
     protected UrlRewriter getUrlRewriter(ServletRequest request, ServletResponse response, FilterChain chain) {
         // check to see if the conf needs reloading
-        if (isTimeToReloadConf()) {
-            reloadConf();
+        if (confReloadCheckEnabled && isTimeToReloadConf()) {
+            reloadConfInBackground();
         }
-        return urlRewriter;
+        if (isTimeToReorderRules()) {
+            reorderRulesInBackground();
+        }
+        ConfSnapshot snapshot = (ConfSnapshot) requestSnapshot.get();
+        if (snapshot == null) snapshot = (ConfSnapshot) currentSnapshot.get();
+        return snapshot == null ? null : snapshot.getUrlRewriter();
     }
 
     /**
@@ -420,32 +815,115 @@ public class UrlRewriteFilter implements Filter {
     public boolean isTimeToReloadConf() {
         if (!confLoadedFromFile) return false;
         long now = System.currentTimeMillis();
-        return confReloadCheckEnabled && !confReloadInProgress && (now - confReloadCheckInterval) > confReloadLastCheck;
+        return confReloadCheckEnabled && !confReloadInProgress.get() && (now - confReloadCheckInterval) > confReloadLastCheck;
+    }
+
+    /**
+     * Is it time to reorder the rules by the number of times they have matched.
+     */
+    public boolean isTimeToReorderRules() {
+        if (ruleReorderInterval <= 0 || ruleReorderInProgress.get() || currentSnapshot.get() == null) return false;
+        long now = System.currentTimeMillis();
+        return (now - ruleReorderInterval) > ruleReorderLastCheck;
+    }
+
+    /**
+     * Run the rules that can safely be reordered in order of the number of times they have matched.  The reordered
+     * conf is published in the same way as a reload, requests already in progress finish using the old order.
+     */
+    public void reorderRules() {
+        ruleReorderLastCheck = System.currentTimeMillis();
+        // hold off reloads so that a conf loaded meanwhile is not replaced by a reordered copy of the old one
+        synchronized (confLoadLock) {
+            ConfSnapshot snapshot = (ConfSnapshot) currentSnapshot.get();
+            if (snapshot == null) return;
+            Conf reordered = snapshot.getConf().withHitWeightedOrder();
+            if (reordered == null) return;
+            if (confLastLoaded == snapshot.getConf()) confLastLoaded = reordered;
+            publishSnapshot(new ConfSnapshot(new UrlRewriter(reordered)));
+        }
+    }
+
+    /**
+     * Reorder the rules on a background thread, requests carry on using the current order until it is done.  Does
+     * nothing if a reorder is already in progress.
+     */
+    public void reorderRulesInBackground() {
+        if (!ruleReorderInProgress.compareAndSet(false, true)) return;
+        ruleReorderLastCheck = System.currentTimeMillis();
+        try {
+            getBackgroundExecutor().execute(new java.lang.Runnable() {
+                public void run() {
+                    try {
+                        reorderRules();
+                    } finally {
+                        ruleReorderInProgress.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            ruleReorderInProgress.set(false);
+            log.error("unable to start rule reorder", e);
+        }
+    }
+
+    /**
+     * Start a reload check on a background thread, requests carry on using the current conf until the new one has
+     * loaded.  Does nothing if a reload is already in progress.
+     */
+    public void reloadConfInBackground() {
+        if (!confReloadInProgress.compareAndSet(false, true)) return;
+        confReloadLastCheck = System.currentTimeMillis();
+        try {
+            getBackgroundExecutor().execute(new java.lang.Runnable() {
+                public void run() {
+                    try {
+                        reloadConfLocal(false);
+                    } finally {
+                        confReloadInProgress.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            confReloadInProgress.set(false);
+            log.error("unable to start conf reload", e);
+        }
     }
 
     /**
      * Forcibly reload the configuration now.
      */
     public void reloadConf() {
-        long now = System.currentTimeMillis();
-        confReloadInProgress = true;
-        confReloadLastCheck = now;
-
-        log.debug("starting conf reload check");
-        long confFileCurrentTime = getConfFileLastModified();
-        if (confLastLoad < confFileCurrentTime) {
-            // reload conf
-            confLastLoad = System.currentTimeMillis();
-            log.info("conf file modified since last load, reloading");
-            try{
-                loadUrlRewriterLocal();
-            } catch(Exception ex){
-                log.error("Error in reloading the conf file. No rules to be applied for subsequent requests.", ex);
+        confReloadInProgress.set(true);
+        try {
+            reloadConfLocal(false);
+        } finally {
+            confReloadInProgress.set(false);
+        }
+    }
+
+    /**
+     * @param force reload even if the conf file has not been modified, eg, when an included file has changed
+     */
+    private void reloadConfLocal(boolean force) {
+        synchronized (confLoadLock) {
+            confReloadLastCheck = System.currentTimeMillis();
+
+            log.debug("starting conf reload check");
+            long confFileCurrentTime = getConfFileLastModified();
+            if (force || confLastLoad < confFileCurrentTime) {
+                // reload conf
+                confLastLoad = System.currentTimeMillis();
+                log.info("conf file modified since last load, reloading");
+                try{
+                    loadUrlRewriterLocal();
+                } catch(Exception ex){
+                    log.error("Error in reloading the conf file. No rules to be applied for subsequent requests.", ex);
+                }
+            } else {
+                log.debug("conf is not modified");
             }
-        } else {
-            log.debug("conf is not modified");
         }
-        confReloadInProgress = false;
     }
 
     /**
@@ -481,8 +959,10 @@ public class UrlRewriteFilter implements Filter {
         if ( allowConfSwapViaHttp ) {
             String newConfPath = request.getParameter("conf");
             if ( !StringUtils.isBlank(newConfPath)) {
-                confPath = newConfPath;
-                loadUrlRewriterLocal();
+                synchronized (confLoadLock) {
+                    confPath = newConfPath;
+                    loadUrlRewriterLocal();
+                }
             }
         }
 
@@ -511,10 +991,59 @@ public class UrlRewriteFilter implements Filter {
         return confReloadCheckInterval / 1000;
     }
 
+    /**
+     * @return how often the clock used by time conditions and variables ticks in ms, 0 if it uses the exact time
+     */
+    public long getClockResolution() {
+        return clockStarted ? clockResolution : 0;
+    }
+
+    public boolean isConfReloadWatchEnabled() {
+        return confReloadWatchEnabled;
+    }
+
+    /**
+     * The files being watched for changes.
+     *
+     * @return list of java.io.File, empty if not watching
+     */
+    public List getConfReloadWatchedFiles() {
+        FileWatcher watcher = confWatcher;
+        return watcher == null ? new ArrayList() : watcher.getFiles();
+    }
+
+    public int getConfReloadWatchIntervalSeconds() {
+        return getConfReloadWatchInterval() / 1000;
+    }
+
+    public long getConfReloadDebounce() {
+        return confReloadDebounce;
+    }
+
     public Date getConfReloadLastCheck() {
         return new Date(confReloadLastCheck);
     }
 
+    public int getRuleCacheSize() {
+        return ruleCacheSize;
+    }
+
+    public int getNoMatchCacheSize() {
+        return noMatchCacheSize;
+    }
+
+    public int getOutboundCacheSize() {
+        return outboundCacheSize;
+    }
+
+    public String getOutboundBodyContentTypes() {
+        return outboundBodyContentTypes;
+    }
+
+    public int getRuleReorderInterval() {
+        return ruleReorderInterval / 1000;
+    }
+
     public boolean isStatusEnabled() {
         return statusEnabled;
     }
@@ -524,7 +1053,7 @@ public class UrlRewriteFilter implements Filter {
     }
 
     public boolean isLoaded() {
-        return urlRewriter != null;
+        return currentSnapshot.get() != null;
     }
 
     public static String getFullVersionString() {
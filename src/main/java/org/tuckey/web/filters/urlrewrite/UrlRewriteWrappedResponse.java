@@ -34,9 +34,12 @@
  */
 package org.tuckey.web.filters.urlrewrite;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.HashMap;
 
 /**
@@ -55,6 +58,11 @@ public class UrlRewriteWrappedResponse extends HttpServletResponseWrapper {
     HashMap overridenRequestParameters;
     String overridenMethod;
 
+    // set once the body is being written through rewrite-body outbound rules
+    private OutboundBodyRewriter bodyRewriter;
+    private ServletOutputStream bodyOutputStream;
+    private PrintWriter bodyWriter;
+
     public UrlRewriteWrappedResponse(HttpServletResponse httpServletResponse, HttpServletRequest httpServletRequest,
                                      UrlRewriter urlRerwiter) {
         super(httpServletResponse);
@@ -131,6 +139,110 @@ public class UrlRewriteWrappedResponse extends HttpServletResponseWrapper {
         return urlRerwiter.processEncodeURL(httpServletResponse, httpServletRequest, true, s);
     }
 
+    /**
+     * Gets the output stream, if any outbound rules rewrite the body and this response is one of their content types
+     * the links in what is written to it are rewritten.
+     */
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (bodyOutputStream != null) return bodyOutputStream;
+        String charset = getBodyCharset();
+        if (!isRewriteBody() || !OutboundBodyOutputStream.isAsciiCompatible(charset)) return super.getOutputStream();
+        OutboundBodyOutputStream outputStream = new OutboundBodyOutputStream(super.getOutputStream(), this, charset);
+        bodyRewriter = outputStream.getRewriter();
+        bodyOutputStream = outputStream;
+        return bodyOutputStream;
+    }
+
+    /**
+     * Gets the writer, if any outbound rules rewrite the body and this response is one of their content types the
+     * links in what is written to it are rewritten.
+     */
+    public PrintWriter getWriter() throws IOException {
+        if (bodyWriter != null) return bodyWriter;
+        if (!isRewriteBody()) return super.getWriter();
+        bodyRewriter = new OutboundBodyRewriter(super.getWriter(), this, null);
+        bodyWriter = new PrintWriter(bodyRewriter);
+        return bodyWriter;
+    }
+
+    /**
+     * The length of a body that has its links rewritten is not known up front so it is left for the container to
+     * work out.
+     */
+    public void setContentLength(int len) {
+        if (isRewriteBody()) return;
+        super.setContentLength(len);
+    }
+
+    public void setHeader(String name, String value) {
+        if ("Content-Length".equalsIgnoreCase(name) && isRewriteBody()) return;
+        super.setHeader(name, value);
+    }
+
+    public void setIntHeader(String name, int value) {
+        if ("Content-Length".equalsIgnoreCase(name) && isRewriteBody()) return;
+        super.setIntHeader(name, value);
+    }
+
+    public void addHeader(String name, String value) {
+        if ("Content-Length".equalsIgnoreCase(name) && isRewriteBody()) return;
+        super.addHeader(name, value);
+    }
+
+    public void addIntHeader(String name, int value) {
+        if ("Content-Length".equalsIgnoreCase(name) && isRewriteBody()) return;
+        super.addIntHeader(name, value);
+    }
+
+    public void flushBuffer() throws IOException {
+        if (bodyWriter != null) bodyWriter.flush();
+        if (bodyOutputStream != null) bodyOutputStream.flush();
+        super.flushBuffer();
+    }
+
+    public void resetBuffer() {
+        super.resetBuffer();
+        if (bodyRewriter != null) bodyRewriter.reset();
+    }
+
+    public void reset() {
+        super.reset();
+        if (bodyRewriter != null) bodyRewriter.reset();
+    }
+
+    /**
+     * Called once the request has been handled to write out anything still held back for rewriting.
+     */
+    public void finishBody() throws IOException {
+        if (bodyRewriter == null) return;
+        bodyRewriter.finish();
+    }
+
+    /**
+     * true if there are outbound rules that rewrite the body, this response is one of their content types and it
+     * is not already compressed.
+     */
+    private boolean isRewriteBody() {
+        if (urlRerwiter == null) return false;
+        Conf conf = urlRerwiter.getConf();
+        return conf.getCompiledBodyOutboundRules() != null
+                && conf.isOutboundBodyContentType(getContentType())
+                && !containsHeader("Content-Encoding");
+    }
+
+    private String getBodyCharset() {
+        String charset = getCharacterEncoding();
+        // the servlet default
+        return charset == null ? "ISO-8859-1" : charset;
+    }
+
+    /**
+     * Run the rewrite-body outbound rules on a link found in the body.
+     */
+    String rewriteBodyUrl(String url) {
+        return urlRerwiter.processBodyUrl(httpServletResponse, httpServletRequest, url);
+    }
+
     public void addOverridenRequestParameter(String k, String v) {
         if (overridenRequestParameters == null) overridenRequestParameters = new HashMap();
         if (overridenRequestParameters.get(k) == null) {
@@ -35,6 +35,7 @@
 package org.tuckey.web.filters.urlrewrite;
 
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.LruCache;
 import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
 import org.tuckey.web.filters.urlrewrite.utils.URLDecoder;
 
@@ -45,6 +46,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -75,6 +77,7 @@ public class UrlRewriter {
         RuleChain chain = getNewChain(hsRequest, null);
         if (chain == null) return null;
         chain.process(hsRequest, hsResponse);
+        rememberNoMatch(chain);
         return chain.getFinalRewrittenRequest();
     }
 
@@ -90,6 +93,7 @@ public class UrlRewriter {
         RuleChain chain = getNewChain(hsRequest, parentChain);
         if (chain == null) return false;
         chain.doRules(hsRequest, hsResponse);
+        rememberNoMatch(chain);
         return chain.isResponseHandled();
     }
 
@@ -208,10 +212,37 @@ public class UrlRewriter {
             return null;
         }
 
+        LruCache noMatchCache = conf.getNoMatchCache();
+        if (noMatchCache != null) {
+            RuleBase[] evaluatedRules = (RuleBase[]) noMatchCache.get(originalUrl);
+            if (evaluatedRules != null) {
+                log.debug("url matched no rules last time.  not rewriting request.");
+                // count the rules as misses as if they had been run
+                for (int i = 0; i < evaluatedRules.length; i++) {
+                    evaluatedRules[i].getStatistics().recordCachedEvaluation(false);
+                }
+                return null;
+            }
+        }
+
         return new RuleChain(this, originalUrl, parentChain);
     }
 
 
+    /**
+     * When every rule depends only on the url a url that matched nothing will never match anything.  A rule that
+     * matched without rewriting (eg, an empty "to") still counts as a match.  The rules that were run are kept so
+     * that later hits can be counted against them.
+     */
+    private void rememberNoMatch(RuleChain chain) {
+        LruCache noMatchCache = conf.getNoMatchCache();
+        if (noMatchCache != null && !chain.isAnyRuleMatched()) {
+            List evaluatedRules = chain.getEvaluatedRules();
+            noMatchCache.put(chain.getOriginalUrl(),
+                    evaluatedRules.toArray(new RuleBase[evaluatedRules.size()]));
+        }
+    }
+
     /**
      * Handle an exception thrown by a Run element.
      */
@@ -308,20 +339,84 @@ public class UrlRewriter {
             return new RewrittenOutboundUrl(null, true);
         }
 
+        // results are handed out as new objects as the response changes the target
+        LruCache outboundCache = conf.getOutboundCache(encodeUrlHasBeenRun);
+        if (outboundCache != null) {
+            OutboundResult cached = (OutboundResult) outboundCache.get(outboundUrl);
+            if (cached != null) {
+                // count the rules as if they had been run so that the statistics follow the traffic
+                boolean matched = false;
+                for (int i = 0; i < cached.evaluatedRules.length; i++) {
+                    cached.evaluatedRules[i].getStatistics().recordCachedEvaluation(cached.matchedRules[i]);
+                    if (cached.matchedRules[i]) matched = true;
+                }
+                if (matched) hsRequest.setAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched", Boolean.TRUE);
+                return new RewrittenOutboundUrl(cached.target, cached.encode);
+            }
+        }
+
+        final CompiledOutboundRules outboundRules = conf.getCompiledOutboundRules(encodeUrlHasBeenRun);
+        if (outboundRules == null) {
+            // conf not initialised since the last outbound rule was added, none of them can match
+            log.debug("outbound rules not initialised");
+            return new RewrittenOutboundUrl(outboundUrl, true);
+        }
+        if (outboundCache == null) {
+            return runOutboundRules(outboundRules, hsResponse, hsRequest, outboundUrl, null, null);
+        }
+        List evaluatedRules = new ArrayList();
+        List matchedRules = new ArrayList();
+        RewrittenOutboundUrl rewrittenOutboundUrl = runOutboundRules(outboundRules, hsResponse, hsRequest, outboundUrl,
+                evaluatedRules, matchedRules);
+        boolean[] matchedRuleArray = new boolean[matchedRules.size()];
+        for (int i = 0; i < matchedRuleArray.length; i++) {
+            matchedRuleArray[i] = ((Boolean) matchedRules.get(i)).booleanValue();
+        }
+        outboundCache.put(outboundUrl, new OutboundResult(rewrittenOutboundUrl.getTarget(),
+                rewrittenOutboundUrl.isEncode(),
+                (RuleBase[]) evaluatedRules.toArray(new RuleBase[evaluatedRules.size()]), matchedRuleArray));
+        return rewrittenOutboundUrl;
+    }
+
+    /**
+     * Handles rewriting the links in response bodies, i.e. the href, src and action attributes written by the page
+     * are run through the outbound rules that have rewrite-body set.
+     *
+     * @param hsResponse response
+     * @param hsRequest  request
+     * @param bodyUrl    the value of the attribute
+     * @return the url to write in its place
+     * @see OutboundBodyRewriter
+     */
+    protected String processBodyUrl(HttpServletResponse hsResponse, HttpServletRequest hsRequest, String bodyUrl) {
+        final CompiledOutboundRules bodyRules = conf.getCompiledBodyOutboundRules();
+        if (bodyRules == null) return bodyUrl;
+        return runOutboundRules(bodyRules, hsResponse, hsRequest, bodyUrl, null, null).getTarget();
+    }
+
+    /**
+     * @param evaluatedRules if not null the rules run are added to it
+     * @param matchedRules   if not null a Boolean is added for each rule run, true if it matched
+     */
+    private RewrittenOutboundUrl runOutboundRules(CompiledOutboundRules outboundRules, HttpServletResponse hsResponse,
+                                                  HttpServletRequest hsRequest, String outboundUrl,
+                                                  List evaluatedRules, List matchedRules) {
         // attempt to match the rules
         boolean finalEncodeOutboundUrl = true;
         String finalToUrl = outboundUrl;
-        final List outboundRules = conf.getOutboundRules();
         try {
-            for (int i = 0; i < outboundRules.size(); i++) {
-                final OutboundRule outboundRule = (OutboundRule) outboundRules.get(i);
-                if (!encodeUrlHasBeenRun && outboundRule.isEncodeFirst()) {
-                    continue;
-                }
-                if (encodeUrlHasBeenRun && !outboundRule.isEncodeFirst()) {
-                    continue;
-                }
+            // only the rules the index says could match the current url are run
+            int[] candidates = outboundRules.getCandidates(finalToUrl);
+            int candidatePos = 0;
+            while (candidatePos < candidates.length) {
+                final int ruleIdx = candidates[candidatePos++];
+                final OutboundRule outboundRule = outboundRules.getRule(ruleIdx);
                 final RewrittenOutboundUrl rewrittenUrl = outboundRule.execute(finalToUrl, hsRequest, hsResponse);
+                if (evaluatedRules != null) {
+                    // only pure rules are cached, they have no set's or run's so always rewrite when they match
+                    evaluatedRules.add(outboundRule);
+                    matchedRules.add(Boolean.valueOf(rewrittenUrl != null));
+                }
                 if (rewrittenUrl != null) {
                     // means this rule has matched
                     if (log.isDebugEnabled()) {
@@ -334,6 +429,12 @@ public class UrlRewriter {
                         // there can be no more matches on this request
                         break;
                     }
+                    // the url has changed so the remaining rules that could match have too
+                    candidates = outboundRules.getCandidates(finalToUrl);
+                    candidatePos = 0;
+                    while (candidatePos < candidates.length && candidates[candidatePos] <= ruleIdx) {
+                        candidatePos++;
+                    }
                 }
             }
         } catch (InvocationTargetException e) {
@@ -356,6 +457,24 @@ public class UrlRewriter {
         conf.destroy();
     }
 
+    /**
+     * The outcome of running the outbound rules on a url, along with the rules that were run and which of them
+     * matched, so that a cache hit can be counted.
+     */
+    private static final class OutboundResult {
+        private final String target;
+        private final boolean encode;
+        private final RuleBase[] evaluatedRules;
+        private final boolean[] matchedRules;
+
+        OutboundResult(String target, boolean encode, RuleBase[] evaluatedRules, boolean[] matchedRules) {
+            this.target = target;
+            this.encode = encode;
+            this.evaluatedRules = evaluatedRules;
+            this.matchedRules = matchedRules;
+        }
+    }
+
 }
 
 
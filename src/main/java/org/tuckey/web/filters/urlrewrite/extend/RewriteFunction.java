@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.extend;
+
+/**
+ * A function that can be called from a "to" or "set", eg, ${myfunction:$1}.
+ * <p/>
+ * A new instance is made (using the no argument constructor) for each place the function is used and init is called
+ * once with the text after the function name when the rule is initialised, execute is then called on every match.
+ * Register functions using the "functions" init-param of the filter or FunctionReplacer.registerFunction.
+ * Note, execute may be called by many threads at once.
+ */
+public abstract class RewriteFunction {
+
+    /**
+     * Called once, when the rule is initialised, with the text after the function name, eg, "UTF-8:$1" for
+     * ${escape:UTF-8:$1}, or null if there is none.  Any constant parameters should be parsed here.
+     *
+     * @return the part of the argument that should have back references, variables and functions substituted on each
+     *         call and be passed to execute, by default all of it
+     */
+    public String init(String argument) {
+        return argument;
+    }
+
+    /**
+     * Run the function.
+     *
+     * @param subject the substituted part of the argument returned by init (null if init returned null)
+     * @return the value to put in place of the function
+     */
+    public abstract String execute(String subject);
+
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.functions;
+
+import org.tuckey.web.filters.urlrewrite.extend.RewriteFunction;
+import org.tuckey.web.filters.urlrewrite.extend.RewriteMap;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import java.util.Map;
+
+/**
+ * Looks a value up in a map, eg, ${map:legacy:$1} will give the value for the first back reference in the map named
+ * legacy, or an empty string if it isn't in the map.  A default can be given after a |, eg, ${map:legacy:$1|/home},
+ * it is used as is, back references etc in it are not replaced.
+ * <p/>
+ * Each conf has its own maps.  The conf sets them with setCurrentMaps while it initialises its rules and each function
+ * and condition keeps the maps of the conf it was initialised for, so confs with maps of the same name don't clash
+ * and a conf's maps go when the conf does.
+ */
+public class MapFunction extends RewriteFunction {
+
+    private static Log log = Log.getLog(MapFunction.class);
+
+    // the maps (name to RewriteMap) of the conf being initialised by this thread
+    private static final ThreadLocal currentMaps = new ThreadLocal();
+
+    private Map maps;
+    private String mapName;
+    private String defaultValue = "";
+
+    /**
+     * Set the maps that functions and conditions initialised by this thread will use.
+     *
+     * @param maps map of name to RewriteMap, null when done
+     */
+    public static void setCurrentMaps(Map maps) {
+        if (maps == null) {
+            currentMaps.remove();
+        } else {
+            currentMaps.set(maps);
+        }
+    }
+
+    /**
+     * @return the maps set with setCurrentMaps, or null
+     */
+    public static Map getCurrentMaps() {
+        return (Map) currentMaps.get();
+    }
+
+    /**
+     * @return the map with the name from the maps set with setCurrentMaps, or null
+     */
+    public static RewriteMap getMap(String name) {
+        Map maps = getCurrentMaps();
+        return maps == null ? null : (RewriteMap) maps.get(name);
+    }
+
+    public String init(String argument) {
+        int colon = argument == null ? -1 : argument.indexOf(':');
+        if (colon == -1) {
+            log.error("map function needs a map name and key, eg, ${map:name:$1}, got " + argument);
+            return null;
+        }
+        mapName = argument.substring(0, colon);
+        maps = getCurrentMaps();
+        if (maps == null || !maps.containsKey(mapName)) log.error("no map named " + mapName);
+        String key = argument.substring(colon + 1);
+        int bar = key.lastIndexOf('|');
+        if (bar != -1) {
+            defaultValue = key.substring(bar + 1);
+            key = key.substring(0, bar);
+        }
+        return key;
+    }
+
+    public String execute(String subject) {
+        if (mapName == null || maps == null) return defaultValue;
+        RewriteMap map = (RewriteMap) maps.get(mapName);
+        if (map == null) return defaultValue;
+        String value = map.get(subject);
+        return value == null ? defaultValue : value;
+    }
+
+}
@@ -1,5 +1,6 @@
 package org.tuckey.web.filters.urlrewrite.functions;
 
+import org.tuckey.web.filters.urlrewrite.extend.RewriteFunction;
 import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionContext;
 import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionFilterChain;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
@@ -7,11 +8,15 @@ import org.tuckey.web.filters.urlrewrite.utils.Log;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 
+/**
+ * The built in functions, eg, ${lower:...}.  Each is available as a RewriteFunction so that the argument can be parsed
+ * once when a rule is initialised and as a static method that does the whole call.
+ */
 public class StringFunctions {
 
     private static Log log = Log.getLog(StringFunctions.class);
@@ -19,25 +24,19 @@ public class StringFunctions {
     private static final Pattern FIND_ENCODING_PATTERN = Pattern.compile("^[0-9a-zA-Z-]+:");
 
     public static String toLower(final String s, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        return s == null ? null : nextFilter.substitute(s, ctx).toLowerCase();
+        return call(new ToLower(), s, nextFilter, ctx);
     }
 
     public static String toUpper(final String s, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        return s == null ? null : nextFilter.substitute(s, ctx).toUpperCase();
+        return call(new ToUpper(), s, nextFilter, ctx);
     }
 
     public static String trim(final String str, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        if (str == null) {
-            return null;
-        }
-        return nextFilter.substitute(str, ctx).trim();
+        return call(new Trim(), str, nextFilter, ctx);
     }
 
     public static String length(final String str, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        if (str == null) {
-            return "0";
-        }
-        return String.valueOf(nextFilter.substitute(str, ctx).length());
+        return call(new Length(), str, nextFilter, ctx);
     }
 
     /**
@@ -48,19 +47,7 @@ public class StringFunctions {
      * @param nextFilter
      */
     public static String escape(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String encoding = "UTF-8";
-        if (FIND_ENCODING_PATTERN.matcher(subject).find()) {
-            encoding = subject.substring(0, subject.indexOf(':'));
-            subject = subject.substring(subject.indexOf(':') + 1);
-            if (!Charset.isSupported(encoding)) encoding = "UTF-8";
-        }
-        subject = nextFilter.substitute(subject, ctx);
-        try {
-            return URLEncoder.encode(subject, encoding);
-        } catch (UnsupportedEncodingException e) {
-            log.error(e, e);
-        }
-        return "";
+        return call(new Escape(), subject, nextFilter, ctx);
     }
 
     /**
@@ -71,19 +58,7 @@ public class StringFunctions {
      * @param ctx
      */
     public static String escapePath(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String encoding = "UTF-8";
-        if (FIND_ENCODING_PATTERN.matcher(subject).find()) {
-            encoding = subject.substring(0, subject.indexOf(':'));
-            subject = subject.substring(subject.indexOf(':') + 1);
-            if (!Charset.isSupported(encoding)) encoding = "UTF-8";
-        }
-        subject = nextFilter.substitute(subject, ctx);
-        try {
-            return org.tuckey.web.filters.urlrewrite.utils.URLEncoder.encodePathSegment(subject, encoding);
-        } catch (UnsupportedEncodingException e) {
-            log.error(e, e);
-        }
-        return "";
+        return call(new EscapePath(), subject, nextFilter, ctx);
     }
 
     /**
@@ -94,19 +69,7 @@ public class StringFunctions {
      * @param ctx
      */
     public static String unescape(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String encoding = "UTF-8";
-        if (FIND_ENCODING_PATTERN.matcher(subject).find()) {
-            encoding = subject.substring(0, subject.indexOf(':'));
-            subject = subject.substring(subject.indexOf(':') + 1);
-            if (!Charset.isSupported(encoding)) encoding = "UTF-8";
-        }
-        subject = nextFilter.substitute(subject, ctx);
-        try {
-            return URLDecoder.decode(subject, encoding);
-        } catch (UnsupportedEncodingException e) {
-            log.error(e, e);
-        }
-        return "";
+        return call(new Unescape(), subject, nextFilter, ctx);
     }
 
     /**
@@ -117,50 +80,157 @@ public class StringFunctions {
      * @param ctx
      */
     public static String unescapePath(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String encoding = "UTF-8";
-        if (FIND_ENCODING_PATTERN.matcher(subject).find()) {
-            encoding = subject.substring(0, subject.indexOf(':'));
-            subject = subject.substring(subject.indexOf(':') + 1);
-            if (!Charset.isSupported(encoding)) encoding = "UTF-8";
+        return call(new UnescapePath(), subject, nextFilter, ctx);
+    }
+
+    public static String replaceAll(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
+        return call(new ReplaceAll(), subject, nextFilter, ctx);
+    }
+
+    public static String replaceFirst(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
+        return call(new ReplaceFirst(), subject, nextFilter, ctx);
+    }
+
+    private static String call(RewriteFunction function, String argument, SubstitutionFilterChain nextFilter,
+                               SubstitutionContext ctx) {
+        String subject = function.init(argument);
+        return function.execute(subject == null ? null : nextFilter.substitute(subject, ctx));
+    }
+
+    public static class ToLower extends RewriteFunction {
+        public String execute(String subject) {
+            return subject == null ? null : subject.toLowerCase();
+        }
+    }
+
+    public static class ToUpper extends RewriteFunction {
+        public String execute(String subject) {
+            return subject == null ? null : subject.toUpperCase();
+        }
+    }
+
+    public static class Trim extends RewriteFunction {
+        public String execute(String subject) {
+            return subject == null ? null : subject.trim();
         }
-        subject = nextFilter.substitute(subject, ctx);
-        try {
+    }
+
+    public static class Length extends RewriteFunction {
+        public String execute(String subject) {
+            return subject == null ? "0" : String.valueOf(subject.length());
+        }
+    }
+
+    /**
+     * Base for the functions that take an optional encoding before the subject, eg, "UTF-16:a b".
+     */
+    private abstract static class EncodingFunction extends RewriteFunction {
+
+        protected String encoding = "UTF-8";
+
+        public String init(String argument) {
+            if (argument != null && FIND_ENCODING_PATTERN.matcher(argument).find()) {
+                String specifiedEncoding = argument.substring(0, argument.indexOf(':'));
+                if (Charset.isSupported(specifiedEncoding)) encoding = specifiedEncoding;
+                return argument.substring(argument.indexOf(':') + 1);
+            }
+            return argument;
+        }
+
+        public String execute(String subject) {
+            if (subject == null) {
+                return "";
+            }
+            try {
+                return code(subject);
+            } catch (UnsupportedEncodingException e) {
+                log.error(e, e);
+            } catch (URISyntaxException e) {
+                log.error(e, e);
+            }
+            return "";
+        }
+
+        protected abstract String code(String subject) throws UnsupportedEncodingException, URISyntaxException;
+    }
+
+    public static class Escape extends EncodingFunction {
+        protected String code(String subject) throws UnsupportedEncodingException {
+            return org.tuckey.web.filters.urlrewrite.utils.URLEncoder.encodeQuery(subject, encoding);
+        }
+    }
+
+    public static class EscapePath extends EncodingFunction {
+        protected String code(String subject) throws UnsupportedEncodingException {
+            return org.tuckey.web.filters.urlrewrite.utils.URLEncoder.encodePathSegment(subject, encoding);
+        }
+    }
+
+    public static class Unescape extends EncodingFunction {
+        protected String code(String subject) throws UnsupportedEncodingException {
+            return URLDecoder.decode(subject, encoding);
+        }
+    }
+
+    public static class UnescapePath extends EncodingFunction {
+        protected String code(String subject) throws URISyntaxException {
             return org.tuckey.web.filters.urlrewrite.utils.URLDecoder.decodePath(subject, encoding);
-        } catch (URISyntaxException e) {
-            log.error(e, e);
         }
-        return "";
     }
 
+    /**
+     * Replaces all matches, the argument is "subject:regex:replacement", the regex and replacement are constant so
+     * the regex is compiled once.
+     */
+    public static class ReplaceAll extends RewriteFunction {
 
-    public static String replaceAll(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String replace = "";
-        String with = "";
-        if (FIND_COLON_PATTERN.matcher(subject).find()) {
-            replace = subject.substring(subject.indexOf(':') + 1);
-            subject = subject.substring(0, subject.indexOf(':'));
-            if (FIND_COLON_PATTERN.matcher(replace).find()) {
-                with = replace.substring(replace.indexOf(':') + 1);
-                replace = replace.substring(0, replace.indexOf(':'));
+        protected String replace = "";
+        protected String with = "";
+        protected Pattern pattern;
+
+        public String init(String argument) {
+            if (argument == null) {
+                return null;
             }
+            String subject = argument;
+            if (FIND_COLON_PATTERN.matcher(subject).find()) {
+                replace = subject.substring(subject.indexOf(':') + 1);
+                subject = subject.substring(0, subject.indexOf(':'));
+                if (FIND_COLON_PATTERN.matcher(replace).find()) {
+                    with = replace.substring(replace.indexOf(':') + 1);
+                    replace = replace.substring(0, replace.indexOf(':'));
+                }
+            }
+            try {
+                pattern = Pattern.compile(replace);
+            } catch (PatternSyntaxException e) {
+                // leave it to be reported each time the function is run
+                log.error("replace pattern " + replace + " is not valid", e);
+            }
+            return subject;
+        }
+
+        public String execute(String subject) {
+            if (subject == null) {
+                return "";
+            }
+            if (pattern == null) {
+                return subject.replaceAll(replace, with);
+            }
+            return pattern.matcher(subject).replaceAll(with);
         }
-        subject = nextFilter.substitute(subject, ctx);
-        return subject.replaceAll(replace, with);
     }
 
-    public static String replaceFirst(String subject, SubstitutionFilterChain nextFilter, SubstitutionContext ctx) {
-        String replace = "";
-        String with = "";
-        if (FIND_COLON_PATTERN.matcher(subject).find()) {
-            replace = subject.substring(subject.indexOf(':') + 1);
-            subject = subject.substring(0, subject.indexOf(':'));
-            if (FIND_COLON_PATTERN.matcher(replace).find()) {
-                with = replace.substring(replace.indexOf(':') + 1);
-                replace = replace.substring(0, replace.indexOf(':'));
+    public static class ReplaceFirst extends ReplaceAll {
+        public String execute(String subject) {
+            if (subject == null) {
+                return "";
+            }
+            if (pattern == null) {
+                return subject.replaceFirst(replace, with);
             }
+            return pattern.matcher(subject).replaceFirst(with);
         }
-        subject = nextFilter.substitute(subject, ctx);
-        return subject.replaceFirst(replace, with);
     }
 
 }
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.gzip;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A bounded pool of Deflaters for writing gzip.  Each Deflater holds native memory that otherwise lives on until it is
+ * ended or finalised, so they are reset and reused rather than created for every response.  When more are in use than
+ * the pool holds the extra ones are ended as they come back.
+ */
+class DeflaterPool {
+
+    private final BlockingQueue idle;
+    private final int level;
+    private final int strategy;
+
+    /**
+     * @param maxIdle  the most Deflaters to keep for reuse, 0 creates a new one each time
+     * @param level    compression level, 0-9 or Deflater.DEFAULT_COMPRESSION
+     * @param strategy Deflater.DEFAULT_STRATEGY, FILTERED or HUFFMAN_ONLY
+     */
+    DeflaterPool(int maxIdle, int level, int strategy) {
+        this.idle = maxIdle > 0 ? new ArrayBlockingQueue(maxIdle) : null;
+        this.level = level;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Get a Deflater that writes raw deflate data (the gzip header and trailer are written separately).
+     */
+    Deflater take() {
+        Deflater deflater = idle == null ? null : (Deflater) idle.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            deflater.setStrategy(strategy);
+        }
+        return deflater;
+    }
+
+    /**
+     * Hand a Deflater back once the stream using it is finished with, whether it completed or not.
+     */
+    void give(Deflater deflater) {
+        // reset keeps the level and strategy
+        deflater.reset();
+        if (idle == null || !idle.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    int getIdleCount() {
+        return idle == null ? 0 : idle.size();
+    }
+
+    /**
+     * End the Deflaters waiting to be reused.
+     */
+    void destroy() {
+        if (idle == null) return;
+        Deflater deflater;
+        while ((deflater = (Deflater) idle.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+}
@@ -154,6 +154,18 @@ public class GenericResponseWrapper extends HttpServletResponseWrapper implement
     }
 
 
+    /**
+     * The length of the body before it was gzipped is dropped, GzipFilter sets the length of the gzipped body when it
+     * knows it.
+     */
+    public void setContentLength(final int len) {
+        // dropped
+    }
+
+    private static boolean isContentLength(String name) {
+        return "Content-Length".equalsIgnoreCase(name);
+    }
+
     /**
      * Gets the print writer.
      */
@@ -171,6 +183,7 @@ public class GenericResponseWrapper extends HttpServletResponseWrapper implement
      */
     @Override
     public void addHeader(String name, String value) {
+        if (isContentLength(name)) return;
         List<Serializable> values = this.headersMap.get(name);
         if (values == null) {
             values = new LinkedList<Serializable>();
@@ -186,6 +199,7 @@ public class GenericResponseWrapper extends HttpServletResponseWrapper implement
      */
     @Override
     public void setHeader(String name, String value) {
+        if (isContentLength(name)) return;
         final LinkedList<Serializable> values = new LinkedList<Serializable>();
         values.add(value);
         this.headersMap.put(name, values);
@@ -225,6 +239,7 @@ public class GenericResponseWrapper extends HttpServletResponseWrapper implement
      */
     @Override
     public void addIntHeader(String name, int value) {
+        if (isContentLength(name)) return;
         List<Serializable> values = this.headersMap.get(name);
         if (values == null) {
             values = new LinkedList<Serializable>();
@@ -240,6 +255,7 @@ public class GenericResponseWrapper extends HttpServletResponseWrapper implement
      */
     @Override
     public void setIntHeader(String name, int value) {
+        if (isContentLength(name)) return;
         final LinkedList<Serializable> values = new LinkedList<Serializable>();
         values.add(value);
         this.headersMap.put(name, values);
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.gzip;
+
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Takes the gzipped body of a response.  The body is held in memory until it grows past the buffer size, then the gzip
+ * header is set and everything is written straight to the response from then on, the container sends it chunked as
+ * there is no Content-Length.  A body that never grows past the buffer size is left for GzipFilter to check and write
+ * with a Content-Length as before.
+ */
+class GzipBodyStream extends OutputStream {
+
+    private static final Log LOG = Log.getLog(GzipBodyStream.class);
+
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final int bufferSize;
+    private GenericResponseWrapper wrapper;
+    private ByteArrayOutputStream buffer;
+    // set once the body is being streamed
+    private OutputStream out;
+
+    /**
+     * @param bufferSize the number of gzipped bytes to hold before streaming, at least the size of an empty gzipped
+     *                   body so that an empty body is always held
+     */
+    GzipBodyStream(HttpServletRequest request, HttpServletResponse response, int bufferSize) {
+        this.request = request;
+        this.response = response;
+        this.bufferSize = Math.max(bufferSize, ResponseUtil.EMPTY_GZIPPED_CONTENT_SIZE);
+        this.buffer = new ByteArrayOutputStream(Math.min(this.bufferSize, 512));
+    }
+
+    /**
+     * The status of the response is taken from the wrapper when streaming starts.
+     */
+    void setResponseWrapper(GenericResponseWrapper wrapper) {
+        this.wrapper = wrapper;
+    }
+
+    public void write(int b) throws IOException {
+        if (out == null && buffer.size() + 1 > bufferSize) startStreaming();
+        if (out == null) {
+            buffer.write(b);
+        } else {
+            out.write(b);
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (out == null && buffer.size() + len > bufferSize) startStreaming();
+        if (out == null) {
+            buffer.write(b, off, len);
+        } else {
+            out.write(b, off, len);
+        }
+    }
+
+    public void flush() throws IOException {
+        if (out != null) out.flush();
+    }
+
+    /**
+     * @return true if the body has outgrown the buffer and has been written to the response
+     */
+    boolean isStreaming() {
+        return out != null;
+    }
+
+    /**
+     * @return the gzipped body when it has not outgrown the buffer
+     */
+    byte[] toByteArray() {
+        return buffer.toByteArray();
+    }
+
+    private void startStreaming() throws IOException {
+        if (response.isCommitted() || ResponseUtil.shouldBodyBeZero(request, wrapper.getStatus())
+                || wrapper.getStatus() == HttpServletResponse.SC_RESET_CONTENT) {
+            // the response went out some other way or must not have a body, as when buffering it is dropped
+            out = new DiscardOutputStream();
+        } else {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(request.getRequestURL() + " gzipped body is larger than " + bufferSize + " bytes, streaming");
+            }
+            ResponseUtil.addGzipHeader(response);
+            out = response.getOutputStream();
+            buffer.writeTo(out);
+        }
+        buffer = null;
+    }
+
+    private static class DiscardOutputStream extends OutputStream {
+        public void write(int b) {
+            // dropped
+        }
+
+        public void write(byte[] b, int off, int len) {
+            // dropped
+        }
+    }
+
+}
@@ -19,16 +19,17 @@ package org.tuckey.web.filters.urlrewrite.gzip;
  *  limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Enumeration;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.NumberUtils;
+import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
 
 /**
  * Provides GZIP compression of responses.
@@ -36,6 +37,12 @@ import org.tuckey.web.filters.urlrewrite.utils.Log;
  * See the filter-mappings.xml entry for the gzip filter for the URL patterns which will be gzipped. At present this
  * includes .jsp, .js and .css.
  * <p/>
+ * The gzipped body is held in memory up to bufferSize bytes (init-param, default 8192) so small responses get a
+ * Content-Length, larger ones are streamed to the client as they are gzipped.
+ * <p/>
+ * Deflaters are taken from a pool of up to deflaterPoolSize (default 32) and reset between responses.  The
+ * compressionLevel (0-9, default 6) and compressionStrategy (default, filtered or huffman-only) can also be set.
+ * <p/>
  *
  * @author <a href="mailto:gluck@thoughtworks.com">Greg Luck</a>
  * @author <a href="mailto:amurdoch@thoughtworks.com">Adam Murdoch</a>
@@ -45,19 +52,72 @@ public class GzipFilter implements javax.servlet.Filter  {
 
     private static final Log LOG = Log.getLog(GzipFilter.class);
 
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_DEFLATER_POOL_SIZE = 32;
+
+    // the size of the buffer the Deflater writes into
+    private static final int DEFLATE_BUFFER_SIZE = 4096;
+
+    /**
+     * The number of gzipped bytes to hold before streaming the body.
+     */
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private DeflaterPool deflaterPool = new DeflaterPool(DEFAULT_DEFLATER_POOL_SIZE, Deflater.DEFAULT_COMPRESSION,
+            Deflater.DEFAULT_STRATEGY);
+
     /**
      * Performs initialisation.
      *
      * @param filterConfig
      */
     public void init(FilterConfig filterConfig) throws ServletException {
+        if (filterConfig == null) return;
+        String bufferSizeStr = filterConfig.getInitParameter("bufferSize");
+        if (!StringUtils.isBlank(bufferSizeStr)) {
+            bufferSize = NumberUtils.stringToInt(StringUtils.trim(bufferSizeStr), DEFAULT_BUFFER_SIZE);
+            LOG.info("gzip buffer size set to " + bufferSize);
+        }
+
+        int deflaterPoolSize = DEFAULT_DEFLATER_POOL_SIZE;
+        String deflaterPoolSizeStr = filterConfig.getInitParameter("deflaterPoolSize");
+        if (!StringUtils.isBlank(deflaterPoolSizeStr)) {
+            deflaterPoolSize = NumberUtils.stringToInt(StringUtils.trim(deflaterPoolSizeStr),
+                    DEFAULT_DEFLATER_POOL_SIZE);
+            LOG.info("gzip deflater pool size set to " + deflaterPoolSize);
+        }
+
+        int level = Deflater.DEFAULT_COMPRESSION;
+        String levelStr = filterConfig.getInitParameter("compressionLevel");
+        if (!StringUtils.isBlank(levelStr)) {
+            level = NumberUtils.stringToInt(StringUtils.trim(levelStr), Deflater.DEFAULT_COMPRESSION);
+            if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                LOG.error("gzip compressionLevel must be 0-9, using the default");
+                level = Deflater.DEFAULT_COMPRESSION;
+            } else {
+                LOG.info("gzip compression level set to " + level);
+            }
+        }
+
+        int strategy = Deflater.DEFAULT_STRATEGY;
+        String strategyStr = StringUtils.trim(filterConfig.getInitParameter("compressionStrategy"));
+        if ("filtered".equalsIgnoreCase(strategyStr)) {
+            strategy = Deflater.FILTERED;
+        } else if ("huffman-only".equalsIgnoreCase(strategyStr)) {
+            strategy = Deflater.HUFFMAN_ONLY;
+        } else if (!StringUtils.isBlank(strategyStr) && !"default".equalsIgnoreCase(strategyStr)) {
+            LOG.error("gzip compressionStrategy must be default, filtered or huffman-only, using the default");
+        }
+
+        deflaterPool.destroy();
+        deflaterPool = new DeflaterPool(deflaterPoolSize, level, strategy);
     }
 
     /**
      * A template method that performs any Filter specific destruction tasks. Called from {@link #destroy()}
      */
     public void destroy() {
-        // noop
+        deflaterPool.destroy();
     }
 
     /**
@@ -75,17 +135,31 @@ public class GzipFilter implements javax.servlet.Filter  {
                 LOG.debug(request.getRequestURL() + ". Writing with gzip compression");
             }
 
-            // Create a gzip stream
-            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
-            final GZIPOutputStream gzout = new GZIPOutputStream(compressed);
-
-            // Handle the request
-            final GenericResponseWrapper wrapper = new GenericResponseWrapper(response, gzout);
-            wrapper.setDisableFlushBuffer();
-            chain.doFilter(request, wrapper);
-            wrapper.flush();
+            // Create a gzip stream, the body is held until it outgrows the buffer and then streamed
+            final GzipBodyStream body = new GzipBodyStream(request, response, bufferSize);
+            final Deflater deflater = deflaterPool.take();
+            PooledGzipOutputStream gzout = null;
+            final GenericResponseWrapper wrapper;
+            try {
+                gzout = new PooledGzipOutputStream(body, deflater, DEFLATE_BUFFER_SIZE);
+
+                // Handle the request
+                wrapper = new GenericResponseWrapper(response, gzout);
+                wrapper.setDisableFlushBuffer();
+                body.setResponseWrapper(wrapper);
+                chain.doFilter(request, wrapper);
+                wrapper.flush();
+
+                gzout.close();
+            } finally {
+                if (gzout != null) gzout.release();
+                deflaterPool.give(deflater);
+            }
 
-            gzout.close();
+            // headers and all of the body have already gone out
+            if (body.isStreaming()) {
+                return;
+            }
 
             // double check one more time before writing out
             // repsonse might have been committed due to error
@@ -105,7 +179,7 @@ public class GzipFilter implements javax.servlet.Filter  {
 
 
             // Saneness checks
-            byte[] compressedBytes = compressed.toByteArray();
+            byte[] compressedBytes = body.toByteArray();
             boolean shouldGzippedBodyBeZero = ResponseUtil.shouldGzippedBodyBeZero(compressedBytes, request);
             boolean shouldBodyBeZero = ResponseUtil.shouldBodyBeZero(request, wrapper.getStatus());
             if (shouldGzippedBodyBeZero || shouldBodyBeZero) {
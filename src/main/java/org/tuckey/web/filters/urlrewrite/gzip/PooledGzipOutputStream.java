@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.gzip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes gzip like GZIPOutputStream but with a Deflater that is passed in, so that it can come from a
+ * DeflaterPool.  The Deflater is not ended when the stream is closed, it is up to the caller to release the stream
+ * and hand the Deflater back.
+ */
+class PooledGzipOutputStream extends DeflaterOutputStream {
+
+    // magic, deflate, no flags, no modification time, no extra flags, unknown os
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final CRC32 crc = new CRC32();
+    private boolean finished;
+
+    PooledGzipOutputStream(OutputStream out, Deflater deflater, int size) throws IOException {
+        super(out, deflater, size);
+        out.write(HEADER);
+    }
+
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        // the Deflater may be in use by another stream by now
+        if (finished) throw new IOException("gzip stream already finished");
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    /**
+     * Finishes the deflate data and writes the gzip trailer without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        def.finish();
+        while (!def.finished()) {
+            deflate();
+        }
+        byte[] trailer = new byte[8];
+        writeInt(trailer, 0, (int) crc.getValue());
+        writeInt(trailer, 4, (int) def.getBytesRead());
+        out.write(trailer);
+    }
+
+    /**
+     * Stop using the Deflater so that it can be handed back to the pool, anything written after this fails.
+     */
+    void release() {
+        finished = true;
+    }
+
+    // little endian as gzip requires
+    private static void writeInt(byte[] b, int off, int i) {
+        b[off] = (byte) i;
+        b[off + 1] = (byte) (i >> 8);
+        b[off + 2] = (byte) (i >> 16);
+        b[off + 3] = (byte) (i >> 24);
+    }
+
+}
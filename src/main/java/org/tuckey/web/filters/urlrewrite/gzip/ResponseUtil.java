@@ -46,7 +46,7 @@ public final class ResponseUtil {
      * <p/>
      * Therefore 20 bytes can be used indicate that the gzip byte[] will be empty when ungzipped.
      */
-    private static final int EMPTY_GZIPPED_CONTENT_SIZE = 20;
+    static final int EMPTY_GZIPPED_CONTENT_SIZE = 20;
 
     /**
      * Utility class. No public constructor.
@@ -51,7 +51,7 @@ public class BackReferenceReplacer implements SubstitutionFilter {
 
     private static Log log = Log.getLog(BackReferenceReplacer.class);
 
-    private static Pattern backRefPattern = Pattern.compile("(?<!\\\\)%([0-9])");
+    static final Pattern backRefPattern = Pattern.compile("(?<!\\\\)%([0-9])");
 
     /**
      * look for back reference a % followed by a number
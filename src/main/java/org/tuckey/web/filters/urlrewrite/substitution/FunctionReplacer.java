@@ -34,10 +34,16 @@
  */
 package org.tuckey.web.filters.urlrewrite.substitution;
 
+import org.tuckey.web.filters.urlrewrite.extend.RewriteFunction;
+import org.tuckey.web.filters.urlrewrite.functions.MapFunction;
 import org.tuckey.web.filters.urlrewrite.functions.StringFunctions;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
 
+import java.lang.reflect.InvocationTargetException;
 import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -51,7 +57,26 @@ public class FunctionReplacer implements SubstitutionFilter {
 
     private static Log log = Log.getLog(VariableReplacer.class);
 
-    private static Pattern functionPattern = Pattern.compile("(?<!\\\\)\\$\\{(.*)\\}");
+    static final Pattern functionPattern = Pattern.compile("(?<!\\\\)\\$\\{(.*)\\}");
+
+    private static final Map functions = new TreeMap(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        registerFunction("replace", StringFunctions.ReplaceAll.class);
+        registerFunction("replaceAll", StringFunctions.ReplaceAll.class);
+        registerFunction("replaceFirst", StringFunctions.ReplaceFirst.class);
+        registerFunction("escape", StringFunctions.Escape.class);
+        registerFunction("escapePath", StringFunctions.EscapePath.class);
+        registerFunction("unescape", StringFunctions.Unescape.class);
+        registerFunction("unescapePath", StringFunctions.UnescapePath.class);
+        registerFunction("lower", StringFunctions.ToLower.class);
+        registerFunction("toLower", StringFunctions.ToLower.class);
+        registerFunction("upper", StringFunctions.ToUpper.class);
+        registerFunction("toUpper", StringFunctions.ToUpper.class);
+        registerFunction("trim", StringFunctions.Trim.class);
+        registerFunction("length", StringFunctions.Length.class);
+        registerFunction("map", MapFunction.class);
+    }
 
     public static boolean containsFunction(String to) {
         Matcher functionMatcher = functionPattern.matcher(to);
@@ -104,55 +129,91 @@ public class FunctionReplacer implements SubstitutionFilter {
 
 
     /**
-     * Handles the fetching of the variable value from the request.
+     * Handles the running of the function.
      */
-    private String functionReplace(String originalVarStr, SubstitutionContext ctx, final SubstitutionFilterChain nextFilter) {
-        // get the sub name if any ie for headers etc header:user-agent
-        String varSubName = null;
-        String varType;
-        int colonIdx = originalVarStr.indexOf(":");
-        if (colonIdx != -1 && colonIdx + 1 < originalVarStr.length()) {
-            varSubName = originalVarStr.substring(colonIdx + 1);
-            varType = originalVarStr.substring(0, colonIdx);
-            if (log.isDebugEnabled()) log.debug("function ${" + originalVarStr + "} type: " + varType +
-                    ", name: '" + varSubName + "'");
-        } else {
-            varType = originalVarStr;
-            if (log.isDebugEnabled()) log.debug("function ${" + originalVarStr + "} type: " + varType);
+    private String functionReplace(String originalVarStr, SubstitutionContext ctx, SubstitutionFilterChain nextFilter) {
+        String varType = getFunctionName(originalVarStr);
+        String varSubName = getFunctionArgument(originalVarStr);
+        if (log.isDebugEnabled()) log.debug("function ${" + originalVarStr + "} type: " + varType +
+                (varSubName == null ? "" : ", name: '" + varSubName + "'"));
+        RewriteFunction function = newFunction(varType);
+        if (function == null) {
+            log.error("function ${" + originalVarStr + "} type '" + varType + "' not a valid type");
+            return "";
         }
-        String functionResult = "";
-        SubstitutionFilterChain redoFunctionFilter = new SubstitutionFilterChain() {
-            public String substitute(String string, SubstitutionContext ctx) {
-                return FunctionReplacer.this.substitute(string, ctx, nextFilter);
-            }
+        String subject = function.init(varSubName);
+        if (subject != null) {
+            subject = substitute(subject, ctx, nextFilter);
+        }
+        return function.execute(subject);
+    }
 
-        };
-        // check for some built in functions
-        if ("replace".equalsIgnoreCase(varType) || "replaceAll".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.replaceAll(varSubName, redoFunctionFilter, ctx);
-        } else if ("replaceFirst".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.replaceFirst(varSubName, redoFunctionFilter, ctx);
-        } else if ("escape".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.escape(varSubName, redoFunctionFilter, ctx);
-        } else if ("escapePath".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.escapePath(varSubName, redoFunctionFilter, ctx);
-        } else if ("unescape".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.unescape(varSubName, redoFunctionFilter, ctx);
-        } else if ("unescapePath".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.unescapePath(varSubName, redoFunctionFilter, ctx);
-        } else if ("lower".equalsIgnoreCase(varType) || "toLower".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.toLower(varSubName, redoFunctionFilter, ctx);
-        } else if ("upper".equalsIgnoreCase(varType) || "toUpper".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.toUpper(varSubName, redoFunctionFilter, ctx);
-        } else if ("trim".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.trim(varSubName, redoFunctionFilter, ctx);
-        } else if ("length".equalsIgnoreCase(varType)) {
-            functionResult = StringFunctions.length(varSubName, redoFunctionFilter, ctx);
-        } else {
-            log.error("function ${" + originalVarStr + "} type '" + varType + "' not a valid type");
+    /**
+     * The name of the function in a call, eg, "lower" for "lower:$1".
+     */
+    static String getFunctionName(String varStr) {
+        int colonIdx = varStr.indexOf(":");
+        if (colonIdx != -1 && colonIdx + 1 < varStr.length()) {
+            return varStr.substring(0, colonIdx);
+        }
+        return varStr;
+    }
+
+    /**
+     * The text after the name of the function in a call, eg, "$1" for "lower:$1", null if there is none.
+     */
+    static String getFunctionArgument(String varStr) {
+        int colonIdx = varStr.indexOf(":");
+        if (colonIdx != -1 && colonIdx + 1 < varStr.length()) {
+            return varStr.substring(colonIdx + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Register a function so that it can be used in a to or set, eg, ${name:...}.  Names are not case sensitive and
+     * registering a name that already exists will replace it.
+     *
+     * @param name          the name of the function
+     * @param functionClass a class that extends RewriteFunction and has a no argument constructor
+     */
+    public static void registerFunction(String name, Class functionClass) {
+        if (StringUtils.isBlank(name)) {
+            throw new IllegalArgumentException("function name is blank");
+        }
+        if (functionClass == null || !RewriteFunction.class.isAssignableFrom(functionClass)) {
+            throw new IllegalArgumentException("function " + name + " must extend " + RewriteFunction.class.getName());
+        }
+        synchronized (functions) {
+            functions.put(name, functionClass);
         }
-        return functionResult;
     }
 
+    /**
+     * Make a new instance of the function registered under name.
+     *
+     * @return the function, or null if there is no function with that name or it could not be made
+     */
+    public static RewriteFunction newFunction(String name) {
+        Class functionClass;
+        synchronized (functions) {
+            functionClass = (Class) functions.get(name);
+        }
+        if (functionClass == null) {
+            return null;
+        }
+        try {
+            return (RewriteFunction) functionClass.getConstructor(new Class[0]).newInstance(new Object[0]);
+        } catch (NoSuchMethodException e) {
+            log.error("function " + name + " has no public no argument constructor", e);
+        } catch (InstantiationException e) {
+            log.error("could not create function " + name, e);
+        } catch (IllegalAccessException e) {
+            log.error("could not create function " + name, e);
+        } catch (InvocationTargetException e) {
+            log.error("could not create function " + name, e.getCause());
+        }
+        return null;
+    }
 
 }
@@ -50,7 +50,7 @@ public class MatcherReplacer implements SubstitutionFilter {
 
     private static Log log = Log.getLog(MatcherReplacer.class);
 
-    private static Pattern backRefPattern = Pattern.compile("(?<!\\\\)\\$([0-9])");
+    static final Pattern backRefPattern = Pattern.compile("(?<!\\\\)\\$([0-9])");
 
     public String substitute(String replacePattern, SubstitutionContext ctx,
                              SubstitutionFilterChain nextFilter) {
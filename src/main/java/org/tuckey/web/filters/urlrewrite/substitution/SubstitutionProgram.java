@@ -0,0 +1,295 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.substitution;
+
+import org.tuckey.web.filters.urlrewrite.ConditionMatch;
+import org.tuckey.web.filters.urlrewrite.EvaluationContext;
+import org.tuckey.web.filters.urlrewrite.extend.RewriteFunction;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.StringMatchingMatcher;
+
+import javax.servlet.ServletContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * A "to" string parsed once into a list of segments (literal text, $n and %n back references, %{var} variables and
+ * ${fn:...} functions) that can be evaluated in a single pass.
+ * <p/>
+ * The output is the same as the default substitution chain (PatternReplacer, FunctionReplacer, VariableReplacer,
+ * BackReferenceReplacer, MatcherReplacer then UnescapeReplacer) as the "to" is split up using exactly the same
+ * expressions, in the same order, and literal text is unescaped up front.  Function calls are made and initialised
+ * up front too with their arguments compiled into programs of their own.  Instances are immutable and thread safe.
+ */
+public final class SubstitutionProgram {
+
+    private static Log log = Log.getLog(SubstitutionProgram.class);
+
+    private static final int LITERAL = 0;
+    private static final int FROM_BACK_REFERENCE = 1;
+    private static final int CONDITION_BACK_REFERENCE = 2;
+    private static final int VARIABLE = 3;
+    private static final int FUNCTION = 4;
+
+    private final String to;
+    private final boolean withVariable;
+    private final boolean withBackReference;
+    private final ServletContext servletContext;
+
+    private final Segment[] segments;
+    private final int literalLength;
+
+    /**
+     * @param to                the "to" to compile
+     * @param withFunction      true if ${...} functions should be substituted
+     * @param withVariable      true if %{...} variables should be substituted
+     * @param withBackReference true if %n condition back references should be substituted
+     * @param sc                servlet context used for %{context:...} variables, may be null
+     */
+    public SubstitutionProgram(String to, boolean withFunction, boolean withVariable, boolean withBackReference,
+                               ServletContext sc) {
+        this.to = to;
+        this.withVariable = withVariable;
+        this.withBackReference = withBackReference;
+        this.servletContext = sc;
+
+        List compiled = new ArrayList();
+        if (withFunction) {
+            compileFunctions(compiled, to);
+        } else {
+            compileAfterFunctions(compiled, to);
+        }
+        segments = (Segment[]) compiled.toArray(new Segment[compiled.size()]);
+
+        int length = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].type == LITERAL) length += segments[i].text.length();
+        }
+        literalLength = length;
+        if (log.isDebugEnabled()) log.debug("compiled " + to + " into " + segments.length + " segments");
+    }
+
+    private void compileFunctions(List compiled, String s) {
+        Matcher functionMatcher = FunctionReplacer.functionPattern.matcher(s);
+        int lastAppendPosition = 0;
+        while (functionMatcher.find()) {
+            compileAfterFunctions(compiled, s.substring(lastAppendPosition, functionMatcher.start()));
+            compileFunction(compiled, functionMatcher.group(1));
+            lastAppendPosition = functionMatcher.end();
+        }
+        compileAfterFunctions(compiled, s.substring(lastAppendPosition));
+    }
+
+    private void compileFunction(List compiled, String varStr) {
+        String name = FunctionReplacer.getFunctionName(varStr);
+        RewriteFunction function = FunctionReplacer.newFunction(name);
+        if (function == null) {
+            // an unknown function is replaced with nothing
+            log.error("function ${" + varStr + "} type '" + name + "' not a valid type");
+            return;
+        }
+        Segment segment = new Segment(FUNCTION, varStr, 0);
+        segment.function = function;
+        String subject = function.init(FunctionReplacer.getFunctionArgument(varStr));
+        if (subject != null) {
+            // arguments are substituted the same as the to except that functions are always looked for
+            segment.argument = new SubstitutionProgram(subject, true, withVariable, withBackReference, servletContext);
+        }
+        compiled.add(segment);
+    }
+
+    private void compileAfterFunctions(List compiled, String s) {
+        if (withVariable) {
+            compileVariables(compiled, s);
+        } else {
+            compileAfterVariables(compiled, s);
+        }
+    }
+
+    private void compileVariables(List compiled, String s) {
+        Matcher varMatcher = VariableReplacer.toVariablePattern.matcher(s);
+        int lastAppendPosition = 0;
+        while (varMatcher.find()) {
+            compileAfterVariables(compiled, s.substring(lastAppendPosition, varMatcher.start()));
+            compiled.add(new Segment(VARIABLE, varMatcher.group(1), 0));
+            lastAppendPosition = varMatcher.end();
+        }
+        compileAfterVariables(compiled, s.substring(lastAppendPosition));
+    }
+
+    private void compileAfterVariables(List compiled, String s) {
+        if (withBackReference) {
+            compileConditionBackReferences(compiled, s);
+        } else {
+            compileFromBackReferences(compiled, s);
+        }
+    }
+
+    private void compileConditionBackReferences(List compiled, String s) {
+        Matcher backRefMatcher = BackReferenceReplacer.backRefPattern.matcher(s);
+        int lastAppendPosition = 0;
+        while (backRefMatcher.find()) {
+            compileFromBackReferences(compiled, s.substring(lastAppendPosition, backRefMatcher.start()));
+            compiled.add(new Segment(CONDITION_BACK_REFERENCE, null, Integer.parseInt(backRefMatcher.group(1))));
+            lastAppendPosition = backRefMatcher.end();
+        }
+        compileFromBackReferences(compiled, s.substring(lastAppendPosition));
+    }
+
+    private static void compileFromBackReferences(List compiled, String s) {
+        Matcher backRefMatcher = MatcherReplacer.backRefPattern.matcher(s);
+        int lastAppendPosition = 0;
+        while (backRefMatcher.find()) {
+            compileLiteral(compiled, s.substring(lastAppendPosition, backRefMatcher.start()));
+            compiled.add(new Segment(FROM_BACK_REFERENCE, null, Integer.parseInt(backRefMatcher.group(1))));
+            lastAppendPosition = backRefMatcher.end();
+        }
+        compileLiteral(compiled, s.substring(lastAppendPosition));
+    }
+
+    private static void compileLiteral(List compiled, String s) {
+        String unescaped = UnescapeReplacer.unescape(s);
+        if (unescaped.length() > 0) compiled.add(new Segment(LITERAL, unescaped, 0));
+    }
+
+    /**
+     * Replaces each match of the "from" in the url with the evaluated "to", exactly as PatternReplacer does.
+     *
+     * @param url                the url the "from" was matched against
+     * @param evaluationContext  values for the request, for %{...} variables
+     * @param matcher            the "from" matcher, for $n back references
+     * @param lastConditionMatch the last condition to match, for %n back references, may be null
+     */
+    public String substitute(String url, EvaluationContext evaluationContext, StringMatchingMatcher matcher,
+                             ConditionMatch lastConditionMatch) {
+        matcher.reset();
+        StringBuilder sb = new StringBuilder(url.length() + literalLength);
+        int lastMatchEnd = 0;
+        while (matcher.find()) {
+            // we do not substitute on the non-matched string since it is straight from the URL
+            sb.append(url, lastMatchEnd, matcher.start());
+            evaluate(sb, evaluationContext, matcher, lastConditionMatch);
+            lastMatchEnd = matcher.end();
+            // get out of there for wildcard patterns
+            if (!matcher.isMultipleMatchingSupported())
+                break;
+        }
+        // put the remaining ending non-matched string
+        if (lastMatchEnd < url.length())
+            sb.append(url, lastMatchEnd, url.length());
+        return sb.toString();
+    }
+
+    /**
+     * Evaluates the program on its own, ie, without replacing matches of the "from" in a url.
+     */
+    public String evaluate(EvaluationContext evaluationContext, StringMatchingMatcher matcher,
+                           ConditionMatch lastConditionMatch) {
+        StringBuilder sb = new StringBuilder(literalLength + 16);
+        evaluate(sb, evaluationContext, matcher, lastConditionMatch);
+        return sb.toString();
+    }
+
+    private void evaluate(StringBuilder sb, EvaluationContext evaluationContext, StringMatchingMatcher matcher,
+                          ConditionMatch lastConditionMatch) {
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            switch (segment.type) {
+                case LITERAL:
+                    sb.append(segment.text);
+                    break;
+
+                case FROM_BACK_REFERENCE:
+                    if (segment.ref > matcher.groupCount()) {
+                        log.error("backref %" + segment.ref + " not found in conditon ");
+                    } else {
+                        String group = matcher.group(segment.ref);
+                        if (group != null) sb.append(group);
+                    }
+                    break;
+
+                case CONDITION_BACK_REFERENCE:
+                    StringMatchingMatcher conditionMatcher = lastConditionMatch == null ? null : lastConditionMatch.getMatcher();
+                    int conditionGroupCount = conditionMatcher == null ? 0 : conditionMatcher.groupCount();
+                    if (conditionGroupCount < 1) {
+                        // BackReferenceReplacer leaves the reference alone when there is nothing to refer to
+                        sb.append('%').append(segment.ref);
+                    } else if (segment.ref > conditionGroupCount) {
+                        log.error("backref %" + segment.ref + " not found in conditon ");
+                    } else {
+                        sb.append(conditionMatcher.group(segment.ref));
+                    }
+                    break;
+
+                case VARIABLE:
+                    sb.append(VariableReplacer.resolve(segment.text, evaluationContext, servletContext));
+                    break;
+
+                case FUNCTION:
+                    String subject = segment.argument == null ? null :
+                            segment.argument.evaluate(evaluationContext, matcher, lastConditionMatch);
+                    sb.append(segment.function.execute(subject));
+                    break;
+            }
+        }
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    /**
+     * @return the number of segments the "to" was compiled into
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    private static class Segment {
+        private final int type;
+        private final String text;
+        private final int ref;
+        private RewriteFunction function;
+        private SubstitutionProgram argument;
+
+        public Segment(int type, String text, int ref) {
+            this.type = type;
+            this.text = text;
+            this.ref = ref;
+        }
+    }
+
+}
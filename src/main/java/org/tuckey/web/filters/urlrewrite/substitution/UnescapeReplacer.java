@@ -44,8 +44,14 @@ public class UnescapeReplacer implements SubstitutionFilter {
 
     public String substitute(String from, SubstitutionContext ctx,
                              SubstitutionFilterChain nextFilter) {
-        String unescaped = from.replaceAll("(?<!\\\\)\\\\", "");
-        return nextFilter.substitute(unescaped, ctx);
+        return nextFilter.substitute(unescape(from), ctx);
+    }
+
+    /**
+     * Removes any backslash that is not itself escaped.
+     */
+    static String unescape(String from) {
+        return from.replaceAll("(?<!\\\\)\\\\", "");
     }
 
 }
@@ -34,7 +34,9 @@
  */
 package org.tuckey.web.filters.urlrewrite.substitution;
 
+import org.tuckey.web.filters.urlrewrite.EvaluationContext;
 import org.tuckey.web.filters.urlrewrite.TypeConverter;
+import org.tuckey.web.filters.urlrewrite.utils.CoarseClock;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
 import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
 
@@ -57,7 +59,7 @@ public class VariableReplacer implements SubstitutionFilter {
 
     private static Log log = Log.getLog(VariableReplacer.class);
 
-    private static Pattern toVariablePattern = Pattern.compile("(?<!\\\\)%\\{([-a-zA-Z:]*)\\}");
+    static final Pattern toVariablePattern = Pattern.compile("(?<!\\\\)%\\{([-a-zA-Z:]*)\\}");
 
     private static ServletContext servletContext;
     
@@ -90,6 +92,7 @@ public class VariableReplacer implements SubstitutionFilter {
         Matcher varMatcher = toVariablePattern.matcher(subjectOfReplacement);
         StringBuffer sb = new StringBuffer();
         boolean anyMatches = false;
+        EvaluationContext evaluationContext = null;
 
         int lastAppendPosition = 0;
         while (varMatcher.find()) {
@@ -105,7 +108,8 @@ public class VariableReplacer implements SubstitutionFilter {
             String varStr = varMatcher.group(1);
             String varValue = "";
             if (varStr != null) {
-                varValue = varReplace(varStr, ctx.getHsRequest());
+                if (evaluationContext == null) evaluationContext = new EvaluationContext(ctx.getHsRequest());
+                varValue = varReplace(varStr, evaluationContext);
                 if (log.isDebugEnabled()) log.debug("resolved to: " + varValue);
             } else {
                 if (log.isDebugEnabled()) log.debug("variable reference is null " + varMatcher);
@@ -124,10 +128,21 @@ public class VariableReplacer implements SubstitutionFilter {
         return nextFilter.substitute(subjectOfReplacement, ctx);
     }
 
+    /**
+     * Resolves a single variable, eg, "header:user-agent", the same way substitute does.
+     */
+    static String resolve(String varStr, EvaluationContext evaluationContext, ServletContext sc) {
+        if (sc != null) {
+            servletContext = sc;
+        }
+        return varReplace(varStr, evaluationContext);
+    }
+
     /**
      * Handles the fetching of the variable value from the request.
      */
-    private static String varReplace(String originalVarStr, HttpServletRequest hsRequest) {
+    private static String varReplace(String originalVarStr, EvaluationContext evaluationContext) {
+        HttpServletRequest hsRequest = evaluationContext.getRequest();
         // get the sub name if any ie for headers etc header:user-agent
         String varSubName = null;
         String varType;
@@ -147,25 +162,25 @@ public class VariableReplacer implements SubstitutionFilter {
 
         switch (type.getTypeShort()) {
             case TypeConverter.TYPE_TIME:
-                return String.valueOf(System.currentTimeMillis());
+                return String.valueOf(CoarseClock.currentTimeMillis());
             case TypeConverter.TYPE_TIME_YEAR:
-                return calendarVariable(Calendar.YEAR);
+                return calendarVariable(evaluationContext, Calendar.YEAR);
             case TypeConverter.TYPE_TIME_MONTH:
-                return calendarVariable(Calendar.MONTH);
+                return calendarVariable(evaluationContext, Calendar.MONTH);
             case TypeConverter.TYPE_TIME_DAY_OF_MONTH:
-                return calendarVariable(Calendar.DAY_OF_MONTH);
+                return calendarVariable(evaluationContext, Calendar.DAY_OF_MONTH);
             case TypeConverter.TYPE_TIME_DAY_OF_WEEK:
-                return calendarVariable(Calendar.DAY_OF_WEEK);
+                return calendarVariable(evaluationContext, Calendar.DAY_OF_WEEK);
             case TypeConverter.TYPE_TIME_AMPM:
-                return calendarVariable(Calendar.AM_PM);
+                return calendarVariable(evaluationContext, Calendar.AM_PM);
             case TypeConverter.TYPE_TIME_HOUR_OF_DAY:
-                return calendarVariable(Calendar.HOUR_OF_DAY);
+                return calendarVariable(evaluationContext, Calendar.HOUR_OF_DAY);
             case TypeConverter.TYPE_TIME_MINUTE:
-                return calendarVariable(Calendar.MINUTE);
+                return calendarVariable(evaluationContext, Calendar.MINUTE);
             case TypeConverter.TYPE_TIME_SECOND:
-                return calendarVariable(Calendar.SECOND);
+                return calendarVariable(evaluationContext, Calendar.SECOND);
             case TypeConverter.TYPE_TIME_MILLISECOND:
-                return calendarVariable(Calendar.MILLISECOND);
+                return calendarVariable(evaluationContext, Calendar.MILLISECOND);
 
             case TypeConverter.TYPE_ATTRIBUTE:
                 return attributeVariable(varSubName == null ? null : hsRequest.getAttribute(varSubName), varSubName);
@@ -180,7 +195,7 @@ public class VariableReplacer implements SubstitutionFilter {
             case TypeConverter.TYPE_CONTEXT_PATH:
                 return StringUtils.notNull(hsRequest.getContextPath());
             case TypeConverter.TYPE_COOKIE:
-                return cookieVariable(hsRequest.getCookies(), varSubName);
+                return cookieVariable(evaluationContext, varSubName);
             case TypeConverter.TYPE_LOCAL_PORT:
                 return String.valueOf(hsRequest.getLocalPort());
             case TypeConverter.TYPE_METHOD:
@@ -206,15 +221,10 @@ public class VariableReplacer implements SubstitutionFilter {
             case TypeConverter.TYPE_REQUEST_URI:
                 return StringUtils.notNull(hsRequest.getRequestURI());
             case TypeConverter.TYPE_REQUEST_URL:
-                StringBuffer requestUrlBuff = hsRequest.getRequestURL();
-                String requestUrlStr = null;
-                if (requestUrlBuff != null) {
-                    requestUrlStr = requestUrlBuff.toString();
-                }
-                return StringUtils.notNull(requestUrlStr);
+                return StringUtils.notNull(evaluationContext.getRequestURL());
             case TypeConverter.TYPE_SESSION_ATTRIBUTE:
                 Object sessionAttributeValue = null;
-                HttpSession session = hsRequest.getSession(false);
+                HttpSession session = evaluationContext.getSession();
                 if (session != null && varSubName != null) {
                     sessionAttributeValue = session.getAttribute(varSubName);
                 }
@@ -222,7 +232,7 @@ public class VariableReplacer implements SubstitutionFilter {
 
             case TypeConverter.TYPE_SESSION_IS_NEW:
                 boolean sessionNew = false;
-                HttpSession sessionIsNew = hsRequest.getSession(false);
+                HttpSession sessionIsNew = evaluationContext.getSession();
                 if (sessionIsNew != null) {
                     sessionNew = sessionIsNew.isNew();
                 }
@@ -242,7 +252,7 @@ public class VariableReplacer implements SubstitutionFilter {
                 return e.getClass().getName();
 
             case TypeConverter.TYPE_HEADER:
-                return StringUtils.notNull(hsRequest.getHeader(varSubName));
+                return StringUtils.notNull(evaluationContext.getHeader(varSubName));
 
             case TypeConverter.TYPE_SERVLET_CONTEXT:
             	//ServletContext servletContext = (hsRequest.getSession(true).getServletContext());   
@@ -275,28 +285,23 @@ public class VariableReplacer implements SubstitutionFilter {
         return StringUtils.notNull(attribValue);
     }
 
-    private static String cookieVariable(Cookie[] cookies, String name) {
-        if (cookies == null) {
+    private static String cookieVariable(EvaluationContext evaluationContext, String name) {
+        if (evaluationContext.getCookies() == null) {
             // we will have to do an exists check
             return "";
         }
         if (name == null) {
             return "";
         }
-        for (int i = 0; i < cookies.length; i++) {
-            Cookie cookie = cookies[i];
-            if (cookie == null) {
-                continue;
-            }
-            if (name.equals(cookie.getName())) {
-                return StringUtils.notNull(cookie.getValue());
-            }
+        Cookie cookie = evaluationContext.getCookie(name);
+        if (cookie == null) {
+            return null;
         }
-        return null;
+        return StringUtils.notNull(cookie.getValue());
     }
 
-    private static String calendarVariable(final int calField) {
-        return String.valueOf((Calendar.getInstance()).get(calField));
+    private static String calendarVariable(EvaluationContext evaluationContext, final int calField) {
+        return String.valueOf(evaluationContext.getCalendarField(calField));
     }
 
 
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import java.util.Calendar;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock shared by all the time conditions and variables.  While it is running a background thread works out the
+ * current time and its calendar fields once per tick so that reading them does not allocate a Calendar, the cost is
+ * that the time is only accurate to the resolution.  When it is not running the time is worked out on each call.
+ * <p/>
+ * It is started and stopped by the filter, see the clockResolution init-param.
+ */
+public final class CoarseClock {
+
+    private static Log log = Log.getLog(CoarseClock.class);
+
+    private static volatile Tick current;
+
+    private static ScheduledExecutorService ticker;
+    private static long resolution;
+    private static int users;
+
+    private CoarseClock() {
+    }
+
+    /**
+     * Start ticking, or tick more often if already started with a coarser resolution.  Each call must be matched by a
+     * call to stop.
+     *
+     * @param resolutionMillis how often to tick
+     */
+    public static synchronized void start(long resolutionMillis) {
+        if (resolutionMillis < 1) {
+            throw new IllegalArgumentException("resolution must be at least 1ms");
+        }
+        users++;
+        if (ticker != null && resolution <= resolutionMillis) {
+            return;
+        }
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+        resolution = resolutionMillis;
+        current = new Tick(System.currentTimeMillis());
+        ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "UrlRewriteFilter clock");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ticker.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                current = new Tick(System.currentTimeMillis());
+            }
+        }, resolution, resolution, TimeUnit.MILLISECONDS);
+        log.info("clock ticking every " + resolution + "ms");
+    }
+
+    /**
+     * Stop ticking once everyone that started the clock has stopped it.
+     */
+    public static synchronized void stop() {
+        if (users == 0) {
+            return;
+        }
+        users--;
+        if (users == 0 && ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+            current = null;
+            resolution = 0;
+            log.debug("clock stopped");
+        }
+    }
+
+    public static boolean isRunning() {
+        return current != null;
+    }
+
+    /**
+     * @return how often the clock ticks in ms, or 0 if it is not running
+     */
+    public static synchronized long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * The time as at the last tick, or the exact time if the clock is not running.
+     */
+    public static Tick now() {
+        Tick tick = current;
+        return tick == null ? new Tick(System.currentTimeMillis()) : tick;
+    }
+
+    /**
+     * The time in ms as at the last tick, or the exact time if the clock is not running.
+     */
+    public static long currentTimeMillis() {
+        Tick tick = current;
+        return tick == null ? System.currentTimeMillis() : tick.millis;
+    }
+
+    /**
+     * The time and its calendar fields (in the default time zone) at a point in time.
+     */
+    public static final class Tick {
+        private final long millis;
+        private final int year;
+        private final int month;
+        private final int dayOfMonth;
+        private final int dayOfWeek;
+        private final int amPm;
+        private final int hourOfDay;
+        private final int minute;
+        private final int second;
+        private final int millisecond;
+
+        Tick(long millis) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(millis);
+            this.millis = millis;
+            year = calendar.get(Calendar.YEAR);
+            month = calendar.get(Calendar.MONTH);
+            dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
+            dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK);
+            amPm = calendar.get(Calendar.AM_PM);
+            hourOfDay = calendar.get(Calendar.HOUR_OF_DAY);
+            minute = calendar.get(Calendar.MINUTE);
+            second = calendar.get(Calendar.SECOND);
+            millisecond = calendar.get(Calendar.MILLISECOND);
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @param calField one of the Calendar fields used by conditions, eg, Calendar.HOUR_OF_DAY
+         */
+        public int get(int calField) {
+            switch (calField) {
+                case Calendar.YEAR:
+                    return year;
+                case Calendar.MONTH:
+                    return month;
+                case Calendar.DAY_OF_MONTH:
+                    return dayOfMonth;
+                case Calendar.DAY_OF_WEEK:
+                    return dayOfWeek;
+                case Calendar.AM_PM:
+                    return amPm;
+                case Calendar.HOUR_OF_DAY:
+                    return hourOfDay;
+                case Calendar.MINUTE:
+                    return minute;
+                case Calendar.SECOND:
+                    return second;
+                case Calendar.MILLISECOND:
+                    return millisecond;
+                default:
+                    throw new IllegalArgumentException("calendar field " + calField + " is not supported");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+/**
+ * A wildcard pattern compiled once into its literal segments so that it can be matched any number of times without
+ * allocating anything.
+ * <p/>
+ * Matching gives exactly the same result as WildcardHelper, ie, <code>*</code> matches zero or more characters other
+ * than '/', <code>**</code> matches zero or more of any character, a <code>*</code> takes the first place its
+ * following literal text occurs and a <code>**</code> the last, there is no backtracking and the whole string must
+ * be matched.  Rather than copying the text matched by each wildcard into a map its start and end offsets are
+ * written into an int array owned by the caller, the text is only cut out of the string if it is asked for.  As the
+ * string must start with the text before the first wildcard and end with the text after the last one these and the
+ * minimum length are checked before anything else so most strings that don't match are turned away straight away.
+ *
+ * @see WildcardHelper
+ */
+public class CompiledWildcard {
+
+    private final String pattern;
+
+    /**
+     * The literal text before, between and after the wildcards, there is always one more than there are wildcards.
+     */
+    private final String[] literals;
+
+    /**
+     * For each wildcard true if it is a <code>**</code>.
+     */
+    private final boolean[] pathWildcards;
+
+    private final int minLength;
+
+    public CompiledWildcard(String pattern) {
+        this.pattern = pattern;
+        int wildcardCount = 0;
+        String[] segments = new String[pattern.length() + 1];
+        boolean[] paths = new boolean[pattern.length()];
+        StringBuffer literal = new StringBuffer();
+        boolean escaped = false;
+        // true if the last thing added was a wildcard, a second * straight after makes it a **
+        boolean afterWildcard = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (escaped) {
+                literal.append(c);
+                escaped = false;
+                afterWildcard = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '*') {
+                if (afterWildcard) {
+                    paths[wildcardCount - 1] = true;
+                } else {
+                    segments[wildcardCount] = literal.toString();
+                    literal.setLength(0);
+                    wildcardCount++;
+                    afterWildcard = true;
+                }
+            } else {
+                literal.append(c);
+                afterWildcard = false;
+            }
+        }
+        segments[wildcardCount] = literal.toString();
+
+        literals = new String[wildcardCount + 1];
+        int length = 0;
+        for (int i = 0; i < literals.length; i++) {
+            literals[i] = segments[i];
+            length += segments[i].length();
+        }
+        pathWildcards = new boolean[wildcardCount];
+        System.arraycopy(paths, 0, pathWildcards, 0, wildcardCount);
+        minLength = length;
+    }
+
+    /**
+     * The number of wildcards, ie, the number of groups a match gives.
+     */
+    public int getWildcardCount() {
+        return pathWildcards.length;
+    }
+
+    /**
+     * Literal text any matching string must start with.
+     */
+    public String getLiteralPrefix() {
+        return literals[0];
+    }
+
+    /**
+     * Literal text any matching string must end with, blank if the pattern ends in a wildcard.
+     */
+    public String getLiteralSuffix() {
+        return literals[literals.length - 1];
+    }
+
+    /**
+     * Match the whole of a string against the pattern.
+     *
+     * @param str    the string to match
+     * @param groups if not null must have room for two ints per wildcard, the start and end of the text each
+     *               wildcard matched is put into it
+     * @return true if the string matches
+     * @throws NullPointerException if str is null
+     */
+    public boolean match(String str, int[] groups) {
+        int strLength = str.length();
+        if (strLength < minLength) return false;
+        String prefix = literals[0];
+        if (!str.startsWith(prefix)) return false;
+        int wildcardCount = pathWildcards.length;
+        if (wildcardCount == 0) return strLength == prefix.length();
+        if (!str.endsWith(literals[wildcardCount])) return false;
+
+        int pos = prefix.length();
+        for (int i = 0; i < wildcardCount; i++) {
+            String literal = literals[i + 1];
+            int offset;
+            if (literal.length() == 0) {
+                // only the last wildcard can be followed by nothing, it takes the rest of the string
+                offset = strLength;
+            } else if (pathWildcards[i]) {
+                offset = str.lastIndexOf(literal);
+                if (offset < pos) return false;
+            } else {
+                offset = str.indexOf(literal, pos);
+                if (offset < 0) return false;
+            }
+            if (!pathWildcards[i]) {
+                for (int j = pos; j < offset; j++) {
+                    if (str.charAt(j) == '/') return false;
+                }
+            }
+            if (groups != null) {
+                groups[i * 2] = pos;
+                groups[i * 2 + 1] = offset;
+            }
+            pos = offset + literal.length();
+        }
+        return pos == strLength;
+    }
+
+    public String toString() {
+        return pattern;
+    }
+
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import org.tuckey.web.filters.urlrewrite.extend.RewriteMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A map loaded from a file that is loaded again when the file changes, without the conf needing to be reloaded.
+ * <p/>
+ * The file is checked for changes at most once every check interval, by the first lookup after the interval has
+ * passed.  That lookup loads the file again, other lookups carry on using the old map until the new one is ready.  If
+ * the file cannot be loaded the old map is kept.
+ * <p/>
+ * Note, a memory mapped file should be replaced (eg, by renaming a new file over it) rather than written in place.
+ */
+public abstract class FileRewriteMap extends RewriteMap {
+
+    private static Log log = Log.getLog(FileRewriteMap.class);
+
+    public static final long DEFAULT_CHECK_INTERVAL = 5000;
+
+    private final File file;
+    private final long checkInterval;
+
+    private volatile RewriteMap map;
+    private volatile long nextCheck = 0;
+    private final AtomicBoolean checking = new AtomicBoolean(false);
+    private long lastModified = -1;
+    private long length = -1;
+
+    /**
+     * @param file          the file to load the map from
+     * @param checkInterval millis between checks of the file for changes
+     */
+    public FileRewriteMap(File file, long checkInterval) {
+        this.file = file;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Load the map from the file.
+     */
+    protected abstract RewriteMap load(File file) throws IOException;
+
+    /**
+     * Load the file now, replacing the current map once it has been loaded.
+     *
+     * @throws IOException if the file could not be loaded, the current map is kept
+     */
+    public synchronized void reload() throws IOException {
+        lastModified = file.lastModified();
+        length = file.length();
+        long start = System.currentTimeMillis();
+        map = load(file);
+        nextCheck = CoarseClock.currentTimeMillis() + checkInterval;
+        if (log.isInfoEnabled()) {
+            log.info("loaded map from " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Get the current map, loading the file again first if it is time to check it and it has changed.
+     *
+     * @return the map, or null if the file has never been loaded
+     */
+    public RewriteMap getMap() {
+        long now = CoarseClock.currentTimeMillis();
+        if (now >= nextCheck && checking.compareAndSet(false, true)) {
+            try {
+                nextCheck = now + checkInterval;
+                if (isChanged()) reload();
+            } catch (IOException e) {
+                log.error("unable to reload map from " + file + ", keeping the old map", e);
+            } finally {
+                checking.set(false);
+            }
+        }
+        return map;
+    }
+
+    private synchronized boolean isChanged() {
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    public String get(String key) {
+        RewriteMap current = getMap();
+        return current == null ? null : current.get(key);
+    }
+
+    public boolean containsKey(String key) {
+        RewriteMap current = getMap();
+        return current != null && current.containsKey(key);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a set of files for changes on a background thread and calls back once they have stopped changing.
+ * <p/>
+ * Files are polled for their last modified time and length on a single daemon thread.  A burst of writes (eg, an
+ * editor saving, or a deploy copying several files) causes one callback, made once no further change has been seen
+ * for the debounce time.  Files that do not exist are watched for being created.
+ */
+public class FileWatcher {
+
+    private static Log log = Log.getLog(FileWatcher.class);
+
+    private final long pollInterval;
+    private final long debounce;
+    private final Runnable onChange;
+
+    private volatile List files = Collections.EMPTY_LIST;
+    // only touched by the polling thread, or by callers of poll when not started
+    private final Map stamps = new HashMap();
+    private long lastChangeSeen = 0;
+    private boolean changePending = false;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param pollInterval millis between checks of the files
+     * @param debounce     millis the files must be unchanged for before the callback is made
+     * @param onChange     called on the polling thread when the files have changed
+     */
+    public FileWatcher(long pollInterval, long debounce, Runnable onChange) {
+        this.pollInterval = pollInterval;
+        this.debounce = debounce;
+        this.onChange = onChange;
+    }
+
+    /**
+     * Set the files to watch.  Files already being watched keep their state, so changes made while a previous
+     * change was being handled are not lost.
+     *
+     * @param files list of java.io.File
+     */
+    public void setFiles(List files) {
+        this.files = Collections.unmodifiableList(new ArrayList(files));
+    }
+
+    public List getFiles() {
+        return files;
+    }
+
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    public long getDebounce() {
+        return debounce;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) return;
+        // take the current state so that only changes from now on trigger the callback
+        poll(System.currentTimeMillis());
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "UrlRewriteFilter file watcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    if (poll(System.currentTimeMillis())) onChange.run();
+                } catch (Throwable t) {
+                    // an exception would stop any further polls being scheduled
+                    log.error("error handling file change", t);
+                }
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler == null) return;
+        scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    public synchronized boolean isStarted() {
+        return scheduler != null;
+    }
+
+    /**
+     * Check the files for changes.  Called on the polling thread, public so that it can be driven directly when
+     * not started.
+     *
+     * @param now the current time in millis
+     * @return true if the files changed and have been unchanged for the debounce time since
+     */
+    public boolean poll(long now) {
+        List current = files;
+        boolean changed = false;
+        for (int i = 0; i < current.size(); i++) {
+            File file = (File) current.get(i);
+            String stamp = file.lastModified() + ":" + file.length();
+            Object previous = stamps.put(file, stamp);
+            if (previous != null && !previous.equals(stamp)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("detected change to " + file);
+                }
+                changed = true;
+            }
+        }
+        // forget files no longer watched
+        if (stamps.size() > current.size()) stamps.keySet().retainAll(current);
+
+        if (changed) {
+            changePending = true;
+            lastChangeSeen = now;
+            return false;
+        }
+        if (changePending && now - lastChangeSeen >= debounce) {
+            changePending = false;
+            return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import org.tuckey.web.filters.urlrewrite.extend.RewriteMap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Random;
+
+/**
+ * A map held on the heap in an open addressing hash table, used for text (txt) and random (rnd) maps.
+ * <p/>
+ * Keys and values are interned as they are added, so the many values that are often the same (eg, lots of old urls
+ * redirecting to one new page) are only held once, and the table is two arrays rather than an entry object per key.
+ * The table is kept at most half full and probed linearly.
+ * <p/>
+ * The value of a random map can be a number of choices separated by |, one of which is picked at random on each
+ * lookup (as Apache's rnd maps).  Adding is not thread safe, a map should be filled before it is shared.
+ */
+public class HashRewriteMap extends RewriteMap {
+
+    private static Log log = Log.getLog(HashRewriteMap.class);
+
+    private static final Random random = new Random();
+
+    private String[] keys;
+    // a String, or a String[] of choices for a random map
+    private Object[] values;
+    private int size = 0;
+
+    public HashRewriteMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of entries expected, so that the table doesn't need to grow while loading
+     */
+    public HashRewriteMap(int expectedSize) {
+        int capacity = 2;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new String[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * Add an entry, if the key has already been added the first value is kept.
+     *
+     * @return true if the entry was added
+     */
+    public boolean put(String key, String value) {
+        return putValue(key, value.intern());
+    }
+
+    /**
+     * Add an entry with a number of values, one of which is picked at random on each lookup.
+     *
+     * @return true if the entry was added
+     */
+    public boolean putChoices(String key, String[] choices) {
+        if (choices.length == 0) return put(key, "");
+        if (choices.length == 1) return put(key, choices[0]);
+        String[] interned = new String[choices.length];
+        for (int i = 0; i < choices.length; i++) {
+            interned[i] = choices[i].intern();
+        }
+        return putValue(key, interned);
+    }
+
+    private boolean putValue(String key, Object value) {
+        if ((size + 1) * 2 > keys.length) grow();
+        int mask = keys.length - 1;
+        int slot = spread(key.hashCode()) & mask;
+        while (keys[slot] != null) {
+            if (keys[slot].equals(key)) return false;
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key.intern();
+        values[slot] = value;
+        size++;
+        return true;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+            int slot = spread(oldKeys[i].hashCode()) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    public String get(String key) {
+        if (key == null) return null;
+        String[] keys = this.keys;
+        int mask = keys.length - 1;
+        int slot = spread(key.hashCode()) & mask;
+        String slotKey;
+        while ((slotKey = keys[slot]) != null) {
+            if (slotKey == key || slotKey.equals(key)) {
+                Object value = values[slot];
+                if (value instanceof String) return (String) value;
+                String[] choices = (String[]) value;
+                return choices[random.nextInt(choices.length)];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Load a text map, lines of a key and a value separated by whitespace, # starts a comment.  For a random map
+     * values are split on | into choices.  Lines without a value are logged and skipped.
+     */
+    public static HashRewriteMap load(Reader reader, boolean randomChoices) throws IOException {
+        BufferedReader in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        HashRewriteMap map = new HashRewriteMap();
+        int lineNumber = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            String[] entry = MapFileBuilder.splitLine(line);
+            if (entry == null) continue;
+            if (entry.length == 1) {
+                log.error("line " + lineNumber + " has no value, skipped");
+                continue;
+            }
+            if (randomChoices) {
+                map.putChoices(entry[0], entry[1].split("\\|"));
+            } else {
+                map.put(entry[0], entry[1]);
+            }
+        }
+        return map;
+    }
+
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A list of IP ranges loaded from a file into an IpRangeTrie and swapped for a new one when the file changes, without
+ * the conf needing to be reloaded.
+ * <p/>
+ * The file is checked for changes at most once every check interval, started by the first request to look at the
+ * ranges after the interval has passed.  When a reload executor is set the check and reload are done on it, otherwise
+ * by that request.  Requests carry on using the old ranges until the new ones are ready.  If the file cannot be read
+ * the old ranges are kept.
+ * <p/>
+ * Conditions in the same conf that name the same file share one instance, see forFile.
+ */
+public class IpRangeFile {
+
+    private static Log log = Log.getLog(IpRangeFile.class);
+
+    public static final long DEFAULT_CHECK_INTERVAL = 5000;
+
+    // the files (absolute File to IpRangeFile) of the conf being initialised by this thread
+    private static final ThreadLocal currentFiles = new ThreadLocal();
+
+    private final File file;
+    private final long checkInterval;
+
+    private volatile IpRangeTrie trie = new IpRangeTrie();
+    private volatile long nextCheck = 0;
+    private volatile Executor reloadExecutor = null;
+    private final AtomicBoolean checking = new AtomicBoolean(false);
+    private volatile long lastModified = -1;
+    private volatile long length = -1;
+
+    /**
+     * Set the files that forFile will share instances through on this thread.
+     *
+     * @param files map of File to IpRangeFile, null when done
+     */
+    public static void setCurrentFiles(Map files) {
+        if (files == null) {
+            currentFiles.remove();
+        } else {
+            currentFiles.set(files);
+        }
+    }
+
+    /**
+     * Get the instance for a file from the files set with setCurrentFiles, loading it if this is the first time it
+     * has been asked for.  If no files are set a new instance is made each time.
+     */
+    public static IpRangeFile forFile(File file) {
+        File key = file.getAbsoluteFile();
+        Map files = (Map) currentFiles.get();
+        if (files == null) return new IpRangeFile(key, DEFAULT_CHECK_INTERVAL);
+        synchronized (files) {
+            IpRangeFile ipRangeFile = (IpRangeFile) files.get(key);
+            if (ipRangeFile == null) {
+                ipRangeFile = new IpRangeFile(key, DEFAULT_CHECK_INTERVAL);
+                files.put(key, ipRangeFile);
+            }
+            return ipRangeFile;
+        }
+    }
+
+    /**
+     * Create and load.
+     *
+     * @param file          the file to load ranges from
+     * @param checkInterval millis between checks of the file for changes
+     */
+    public IpRangeFile(File file, long checkInterval) {
+        this.file = file;
+        this.checkInterval = checkInterval;
+        reload();
+    }
+
+    /**
+     * Get the current ranges, reloading them first if it is time to check the file and it has changed.
+     */
+    public IpRangeTrie getTrie() {
+        long now = CoarseClock.currentTimeMillis();
+        if (now >= nextCheck && checking.compareAndSet(false, true)) {
+            nextCheck = now + checkInterval;
+            Executor executor = reloadExecutor;
+            if (executor == null) {
+                check();
+            } else {
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            check();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    checking.set(false);
+                    log.error("unable to start check of " + file, e);
+                }
+            }
+        }
+        return trie;
+    }
+
+    private void check() {
+        try {
+            if (isChanged()) reload();
+        } finally {
+            checking.set(false);
+        }
+    }
+
+    /**
+     * @see IpRangeTrie#contains(String)
+     */
+    public boolean contains(String address) {
+        return getTrie().contains(address);
+    }
+
+    private boolean isChanged() {
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    /**
+     * Load the file now, replacing the current ranges once it has been read.  No lock is held while reading, requests
+     * carry on using the current ranges.
+     */
+    public void reload() {
+        lastModified = file.lastModified();
+        length = file.length();
+        long start = System.currentTimeMillis();
+        IpRangeTrie newTrie = new IpRangeTrie();
+        InputStreamReader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            int invalid = newTrie.load(reader);
+            if (invalid > 0) log.error(invalid + " invalid ranges in " + file + " were skipped");
+        } catch (IOException e) {
+            log.error("unable to load ip ranges from " + file + ", keeping " + trie.getRangeCount() + " ranges", e);
+            return;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.error("unable to close " + file, e);
+                }
+            }
+        }
+        trie = newTrie;
+        log.info("loaded " + newTrie.getRangeCount() + " ip ranges from " + file + " in " +
+                (System.currentTimeMillis() - start) + "ms");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    public Executor getReloadExecutor() {
+        return reloadExecutor;
+    }
+
+    /**
+     * Set where checks for changes and reloads are run, null to run them on the request that finds a check is due.
+     */
+    public void setReloadExecutor(Executor reloadExecutor) {
+        this.reloadExecutor = reloadExecutor;
+    }
+
+}
@@ -0,0 +1,411 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+
+/**
+ * A set of IPv4 and IPv6 address ranges held in a binary trie, so that checking an address takes at most one step
+ * per bit of the address (32 or 128) no matter how many ranges are held.
+ * <p/>
+ * Ranges are given in CIDR notation (eg, 10.0.0.0/8 or 2001:db8::/32), as a single address, or as a start and end
+ * address separated by a dash (eg, 10.0.0.1-10.0.0.20).  IPv4 addresses in IPv4 mapped IPv6 form (eg,
+ * ::ffff:10.1.2.3) are checked against the IPv4 ranges.  Addresses are parsed directly, no DNS lookups are made.
+ * <p/>
+ * The nodes of the trie are kept in int arrays rather than objects so that very large lists load quickly and take
+ * little memory.  Adding ranges is not thread safe, a trie should be filled before it is shared.
+ */
+public class IpRangeTrie {
+
+    private static Log log = Log.getLog(IpRangeTrie.class);
+
+    private static final BigInteger ONE = BigInteger.valueOf(1);
+
+    private final BitTrie ipv4 = new BitTrie();
+    private final BitTrie ipv6 = new BitTrie();
+    private int rangeCount = 0;
+
+    /**
+     * Add a range.
+     *
+     * @param range a CIDR block, an address, or two addresses separated by a dash
+     * @throws IllegalArgumentException if the range cannot be parsed
+     */
+    public void add(String range) {
+        add(range, 0, range.length());
+    }
+
+    private void add(String s, int start, int end) {
+        int slash = s.indexOf('/', start);
+        int dash = s.indexOf('-', start);
+        if (slash != -1 && slash < end) {
+            byte[] address = parseAddress(s, start, slash);
+            if (address == null) throw invalid(s, start, end);
+            int bits = address.length * 8;
+            int prefixLength = parsePrefixLength(s, slash + 1, end);
+            if (prefixLength < 0 || prefixLength > bits) throw invalid(s, start, end);
+            addPrefix(address, prefixLength);
+
+        } else if (dash != -1 && dash < end) {
+            byte[] first = parseAddress(s, start, dash);
+            byte[] last = parseAddress(s, dash + 1, end);
+            if (first == null || last == null || first.length != last.length) throw invalid(s, start, end);
+            addRange(first, last, s, start, end);
+
+        } else {
+            byte[] address = parseAddress(s, start, end);
+            if (address == null) throw invalid(s, start, end);
+            addPrefix(address, address.length * 8);
+        }
+        rangeCount++;
+    }
+
+    /**
+     * Add a list of ranges separated by commas or whitespace.
+     *
+     * @throws IllegalArgumentException if any of the ranges cannot be parsed
+     */
+    public void addAll(String list) {
+        int length = list.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && isSeparator(list.charAt(i))) i++;
+            int start = i;
+            while (i < length && !isSeparator(list.charAt(i))) i++;
+            if (i > start) add(list, start, i);
+        }
+    }
+
+    /**
+     * Add the ranges read from a list with one or more ranges on each line.  Anything after a # on a line is a
+     * comment.  Lines that cannot be parsed are logged and skipped.
+     *
+     * @return the number of ranges that could not be parsed
+     */
+    public int load(Reader reader) throws IOException {
+        BufferedReader in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        int invalid = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment != -1) line = line.substring(0, comment);
+            try {
+                addAll(line);
+            } catch (IllegalArgumentException e) {
+                log.error("line " + lineNumber + ": " + e.getMessage());
+                invalid++;
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * @param address an IPv4 or IPv6 address, surrounding whitespace, brackets and any zone id are ignored
+     * @return true if the address is in one of the ranges, false if not or if it is not a valid address
+     */
+    public boolean contains(String address) {
+        if (address == null) return false;
+        return contains(address, 0, address.length());
+    }
+
+    /**
+     * Check the address in part of a string, saves taking a substring of a list of addresses.
+     */
+    public boolean contains(String s, int start, int end) {
+        byte[] address = parseAddress(s, start, end);
+        if (address == null) return false;
+        if (address.length == 4) return ipv4.contains(address, 0, 32);
+        if (isIpv4Mapped(address)) return ipv4.contains(address, 12, 32);
+        return ipv6.contains(address, 0, 128);
+    }
+
+    /**
+     * @return the number of ranges that have been added
+     */
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    /**
+     * @return the number of nodes in the trie
+     */
+    public int getNodeCount() {
+        return ipv4.size + ipv6.size;
+    }
+
+    private void addPrefix(byte[] address, int prefixLength) {
+        if (address.length == 4) {
+            ipv4.insert(address, 0, prefixLength);
+        } else if (isIpv4Mapped(address) && prefixLength >= 96) {
+            ipv4.insert(address, 12, prefixLength - 96);
+        } else {
+            ipv6.insert(address, 0, prefixLength);
+        }
+    }
+
+    /**
+     * Split a range into the CIDR blocks that cover it.
+     */
+    private void addRange(byte[] first, byte[] last, String s, int start, int end) {
+        int bits = first.length * 8;
+        BigInteger from = new BigInteger(1, first);
+        BigInteger to = new BigInteger(1, last);
+        if (from.compareTo(to) > 0) throw invalid(s, start, end);
+        while (from.compareTo(to) <= 0) {
+            int blockBits = from.signum() == 0 ? bits : from.getLowestSetBit();
+            int spanBits = to.subtract(from).add(ONE).bitLength() - 1;
+            if (spanBits < blockBits) blockBits = spanBits;
+            addPrefix(toBytes(from, first.length), bits - blockBits);
+            from = from.add(ONE.shiftLeft(blockBits));
+        }
+    }
+
+    private static byte[] toBytes(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        byte[] address = new byte[length];
+        int copy = Math.min(bytes.length, length);
+        System.arraycopy(bytes, bytes.length - copy, address, length - copy, copy);
+        return address;
+    }
+
+    private static boolean isIpv4Mapped(byte[] address) {
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0) return false;
+        }
+        return address[10] == (byte) 0xff && address[11] == (byte) 0xff;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ',' || Character.isWhitespace(c);
+    }
+
+    private static int parsePrefixLength(String s, int start, int end) {
+        while (start < end && Character.isWhitespace(s.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(s.charAt(end - 1))) end--;
+        if (start == end || end - start > 3) return -1;
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static IllegalArgumentException invalid(String s, int start, int end) {
+        return new IllegalArgumentException("\"" + s.substring(start, end) + "\" is not a valid ip address or range");
+    }
+
+    /**
+     * Parse an IPv4 or IPv6 address.
+     *
+     * @return 4 or 16 bytes, or null if the string is not an address
+     */
+    public static byte[] parseAddress(String s) {
+        if (s == null) return null;
+        return parseAddress(s, 0, s.length());
+    }
+
+    static byte[] parseAddress(String s, int start, int end) {
+        while (start < end && Character.isWhitespace(s.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(s.charAt(end - 1))) end--;
+        if (end - start > 1 && s.charAt(start) == '[' && s.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+        boolean ipv6 = false;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == ':') {
+                ipv6 = true;
+            } else if (c == '%' && ipv6) {
+                // zone id eg, fe80::1%eth0
+                end = i;
+                break;
+            }
+        }
+        if (start == end) return null;
+        if (ipv6) return parseIpv6(s, start, end);
+        byte[] address = new byte[4];
+        return parseIpv4(s, start, end, address, 0) ? address : null;
+    }
+
+    private static boolean parseIpv4(String s, int start, int end, byte[] address, int offset) {
+        int part = 0;
+        int value = -1;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                if (value < 0 || part == 3) return false;
+                address[offset + part++] = (byte) value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) return false;
+            } else {
+                return false;
+            }
+        }
+        if (value < 0 || part != 3) return false;
+        address[offset + 3] = (byte) value;
+        return true;
+    }
+
+    private static byte[] parseIpv6(String s, int start, int end) {
+        byte[] address = new byte[16];
+        int pos = 0;
+        // the byte position of the ::, if any
+        int gap = -1;
+        int i = start;
+        if (s.charAt(i) == ':') {
+            if (i + 1 == end || s.charAt(i + 1) != ':') return null;
+            gap = 0;
+            i += 2;
+        }
+        while (i < end) {
+            int groupStart = i;
+            int value = 0;
+            while (i < end) {
+                int digit = Character.digit(s.charAt(i), 16);
+                if (digit < 0) break;
+                value = (value << 4) | digit;
+                i++;
+            }
+            if (i < end && s.charAt(i) == '.') {
+                // an IPv4 address as the last 32 bits
+                if (pos > 12 || !parseIpv4(s, groupStart, end, address, pos)) return null;
+                pos += 4;
+                break;
+            }
+            if (i == groupStart || i - groupStart > 4 || pos > 14) return null;
+            address[pos++] = (byte) (value >> 8);
+            address[pos++] = (byte) value;
+            if (i == end) break;
+            if (s.charAt(i) != ':') return null;
+            i++;
+            if (i < end && s.charAt(i) == ':') {
+                if (gap != -1) return null;
+                gap = pos;
+                i++;
+            } else if (i == end) {
+                return null;
+            }
+        }
+        if (gap == -1) return pos == 16 ? address : null;
+        if (pos == 16) return null;
+        int tail = pos - gap;
+        System.arraycopy(address, gap, address, 16 - tail, tail);
+        for (int j = gap; j < 16 - tail; j++) {
+            address[j] = 0;
+        }
+        return address;
+    }
+
+    /**
+     * A binary trie of prefixes.  Node 0 is the root, a child of 0 means there is no child and a child of FULL means
+     * a prefix ends there so every address below it matches.
+     */
+    private static final class BitTrie {
+
+        private static final int FULL = -1;
+
+        private int[] zero = new int[64];
+        private int[] one = new int[64];
+        private int size = 1;
+        private boolean all = false;
+
+        void insert(byte[] address, int offset, int prefixLength) {
+            if (all) return;
+            if (prefixLength == 0) {
+                all = true;
+                return;
+            }
+            int node = 0;
+            for (int i = 0; i < prefixLength; i++) {
+                boolean bit = ((address[offset + (i >> 3)] >> (7 - (i & 7))) & 1) == 1;
+                int child = bit ? one[node] : zero[node];
+                if (child == FULL) {
+                    // already covered by a shorter prefix
+                    return;
+                }
+                if (i == prefixLength - 1) {
+                    child = FULL;
+                } else if (child == 0) {
+                    child = newNode();
+                } else {
+                    node = child;
+                    continue;
+                }
+                if (bit) {
+                    one[node] = child;
+                } else {
+                    zero[node] = child;
+                }
+                node = child;
+            }
+        }
+
+        boolean contains(byte[] address, int offset, int bits) {
+            if (all) return true;
+            int node = 0;
+            for (int i = 0; i < bits; i++) {
+                boolean bit = ((address[offset + (i >> 3)] >> (7 - (i & 7))) & 1) == 1;
+                int child = bit ? one[node] : zero[node];
+                if (child == FULL) return true;
+                if (child == 0) return false;
+                node = child;
+            }
+            return false;
+        }
+
+        private int newNode() {
+            if (size == zero.length) {
+                int[] newZero = new int[size * 2];
+                int[] newOne = new int[size * 2];
+                System.arraycopy(zero, 0, newZero, 0, size);
+                System.arraycopy(one, 0, newOne, 0, size);
+                zero = newZero;
+                one = newOne;
+            }
+            return size++;
+        }
+    }
+
+}
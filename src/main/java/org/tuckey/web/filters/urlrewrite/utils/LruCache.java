@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, thread safe, least recently used cache.
+ * <p/>
+ * Entries are spread over a number of stripes, each of which is a small LRU map with its own lock, so that
+ * concurrent requests rarely wait on each other.  Each stripe evicts its own least recently used entry once it holds
+ * its share of the maximum size.
+ */
+public class LruCache {
+
+    private static final int DEFAULT_STRIPES = 16;
+
+    private final Stripe[] stripes;
+    private final int maxSize;
+
+    private static final int HITS = 0;
+    private static final int MISSES = 1;
+    private static final int EVICTIONS = 2;
+
+    // striped so that counting does not add a contended write to every get
+    private final StripedCounter counts = new StripedCounter(3);
+
+    public LruCache(int maxSize) {
+        this(maxSize, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param maxSize the maximum number of entries to hold, must be greater than zero
+     * @param stripes the number of independently locked stripes, rounded up to a power of two
+     */
+    public LruCache(int maxSize, int stripes) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be greater than zero");
+        int stripeCount = 1;
+        while (stripeCount < stripes && stripeCount < maxSize) stripeCount <<= 1;
+        this.maxSize = maxSize;
+        this.stripes = new Stripe[stripeCount];
+        int perStripe = (maxSize + stripeCount - 1) / stripeCount;
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * @return the cached value, or null if there isn't one
+     */
+    public Object get(Object key) {
+        Stripe stripe = stripeFor(key);
+        Object value;
+        synchronized (stripe) {
+            value = stripe.get(key);
+        }
+        if (value == null) {
+            counts.increment(MISSES);
+        } else {
+            counts.increment(HITS);
+        }
+        return value;
+    }
+
+    public void put(Object key, Object value) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.put(key, value);
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[i];
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[i];
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return counts.sum(HITS);
+    }
+
+    public long getMissCount() {
+        return counts.sum(MISSES);
+    }
+
+    public long getEvictionCount() {
+        return counts.sum(EVICTIONS);
+    }
+
+    private Stripe stripeFor(Object key) {
+        int h = key.hashCode();
+        // spread the high bits down, as in HashMap
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    private final class Stripe extends LinkedHashMap {
+        private final int maxStripeSize;
+
+        Stripe(int maxStripeSize) {
+            super(16, 0.75f, true);
+            this.maxStripeSize = maxStripeSize;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            if (size() > maxStripeSize) {
+                counts.increment(EVICTIONS);
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
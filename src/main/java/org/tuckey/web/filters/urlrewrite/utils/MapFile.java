@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import org.tuckey.web.filters.urlrewrite.extend.RewriteMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A map held in a hash table laid out in a ByteBuffer, normally a file built by MapFileBuilder and memory mapped so
+ * that the map is not held on the heap, however big it is.
+ * <p/>
+ * The layout is a header (magic, version, slot count, entry count), a table of slots and then the entries.  Each
+ * slot is the hash of a key and the offset of its entry, or 0 if the slot is empty.  Each entry is the length and
+ * UTF-8 bytes of the key followed by the length and UTF-8 bytes of the value.  The table is open addressed with
+ * linear probing and at most half full, so a lookup looks at very few slots.
+ * <p/>
+ * Keys are hashed and compared in their UTF-8 form without being encoded, so looking up a key that is not in the map
+ * allocates nothing.  When the key is found its value is decoded straight from the buffer into a char buffer kept
+ * per thread, the only allocations are the String returned and a small view of the buffer to decode from.
+ */
+public class MapFile extends RewriteMap {
+
+    static final int MAGIC = 0x55524d46;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int SLOT_SIZE = 8;
+
+    private static final long SURROGATE_PAIR = 1L << 35;
+    private static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal DECODERS = new ThreadLocal() {
+        protected Object initialValue() {
+            return new Decoder();
+        }
+    };
+
+    private final ByteBuffer buffer;
+    private final int slotCount;
+    private final int size;
+
+    /**
+     * @throws IllegalArgumentException if the buffer does not hold a map
+     */
+    public MapFile(ByteBuffer buffer) {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("not a map file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("map file version " + buffer.getInt(4) + " is not supported");
+        }
+        this.buffer = buffer;
+        this.slotCount = buffer.getInt(8);
+        this.size = buffer.getInt(12);
+    }
+
+    /**
+     * Memory map a file built by MapFileBuilder.
+     */
+    public static MapFile open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException(file + " is too big to map");
+            // the mapping stays valid after the file is closed
+            return new MapFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + " is " + e.getMessage());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public String get(String key) {
+        int entry = find(key);
+        if (entry == -1) return null;
+        int valuePosition = entry + 4 + buffer.getInt(entry);
+        int valueLength = buffer.getInt(valuePosition);
+        if (valueLength == 0) return "";
+        // a view so that the position and limit of the shared buffer are left alone
+        ByteBuffer value = buffer.duplicate();
+        value.limit(valuePosition + 4 + valueLength);
+        value.position(valuePosition + 4);
+        return ((Decoder) DECODERS.get()).decode(value, valueLength);
+    }
+
+    public boolean containsKey(String key) {
+        return find(key) != -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the position of the entry for the key or -1
+     */
+    private int find(String key) {
+        if (key == null) return -1;
+        int hash = hash(key);
+        int mask = slotCount - 1;
+        int slot = hash & mask;
+        while (true) {
+            int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+            int entry = buffer.getInt(slotPosition + 4);
+            if (entry == 0) return -1;
+            if (buffer.getInt(slotPosition) == hash && keyEquals(entry, key)) return entry;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(int entry, String key) {
+        int position = entry + 4;
+        int end = position + buffer.getInt(entry);
+        int length = key.length();
+        for (int i = 0; i < length; i++) {
+            long encoded = utf8(key, i);
+            int count = (int) (encoded >>> 32) & 0x7;
+            if (position + count > end) return false;
+            for (int j = count - 1; j >= 0; j--) {
+                if (buffer.get(position++) != (byte) (encoded >>> (j * 8))) return false;
+            }
+            if ((encoded & SURROGATE_PAIR) != 0) i++;
+        }
+        return position == end;
+    }
+
+    /**
+     * Encode the character at i as UTF-8 the same way String.getBytes does.
+     *
+     * @return the bytes (last byte lowest), the number of bytes in bits 32-34 and bit 35 set if two chars were used
+     */
+    private static long utf8(String s, int i) {
+        char c = s.charAt(i);
+        if (c < 0x80) return (1L << 32) | c;
+        if (c < 0x800) return (2L << 32) | ((0xc0 | (c >> 6)) << 8) | (0x80 | (c & 0x3f));
+        if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            return SURROGATE_PAIR | (4L << 32) | ((long) (0xf0 | (cp >> 18)) << 24) |
+                    ((0x80 | ((cp >> 12) & 0x3f)) << 16) | ((0x80 | ((cp >> 6) & 0x3f)) << 8) | (0x80 | (cp & 0x3f));
+        }
+        // an unpaired surrogate is encoded as ?
+        if (c >= '\uD800' && c <= '\uDFFF') return (1L << 32) | '?';
+        return (3L << 32) | ((0xe0 | (c >> 12)) << 16) | ((0x80 | ((c >> 6) & 0x3f)) << 8) | (0x80 | (c & 0x3f));
+    }
+
+    /**
+     * FNV-1a hash of the UTF-8 bytes of the string.
+     */
+    static int hash(String s) {
+        int hash = FNV_OFFSET;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            long encoded = utf8(s, i);
+            int count = (int) (encoded >>> 32) & 0x7;
+            for (int j = count - 1; j >= 0; j--) {
+                hash ^= (int) (encoded >>> (j * 8)) & 0xff;
+                hash *= FNV_PRIME;
+            }
+            if ((encoded & SURROGATE_PAIR) != 0) i++;
+        }
+        return hash;
+    }
+
+    /**
+     * Decodes UTF-8 values into a char buffer that is only reallocated when a longer value is decoded.
+     */
+    private static final class Decoder {
+        private final CharsetDecoder decoder = UTF8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private CharBuffer chars = CharBuffer.allocate(256);
+
+        String decode(ByteBuffer bytes, int length) {
+            // UTF-8 never has more chars than bytes
+            if (chars.capacity() < length) chars = CharBuffer.allocate(length);
+            chars.clear();
+            decoder.reset();
+            // with replacement on errors and room for every char this always decodes the whole value
+            decoder.decode(bytes, chars, true);
+            decoder.flush(chars);
+            chars.flip();
+            return chars.toString();
+        }
+    }
+
+    static int hash(byte[] bytes) {
+        int hash = FNV_OFFSET;
+        for (int i = 0; i < bytes.length; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+}
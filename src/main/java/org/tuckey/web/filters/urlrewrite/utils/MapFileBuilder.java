@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds the hash table read by MapFile, either into a file ahead of time or straight into memory.
+ * <p/>
+ * Map files can be built from the command line from a text map (lines of a key and a value separated by whitespace,
+ * # starts a comment, the same as an Apache txt RewriteMap):
+ * <pre>
+ * java -cp urlrewritefilter.jar org.tuckey.web.filters.urlrewrite.utils.MapFileBuilder legacy.txt legacy.map
+ * </pre>
+ */
+public class MapFileBuilder {
+
+    private static Log log = Log.getLog(MapFileBuilder.class);
+
+    private final List keys = new ArrayList();
+    private final List values = new ArrayList();
+    private final Set seen = new HashSet();
+    private long entryBytes = 0;
+
+    /**
+     * Add an entry, if the key has already been added the first value is kept.
+     *
+     * @return true if the entry was added
+     */
+    public boolean put(String key, String value) {
+        if (!seen.add(key)) return false;
+        byte[] keyBytes = getBytes(key);
+        byte[] valueBytes = getBytes(value);
+        keys.add(keyBytes);
+        values.add(valueBytes);
+        entryBytes += 8 + keyBytes.length + valueBytes.length;
+        return true;
+    }
+
+    /**
+     * Add the entries from a text map.  Lines that don't have a key and a value are logged and skipped, as are any
+     * words after the value.
+     *
+     * @return the number of lines skipped
+     */
+    public int load(Reader reader) throws IOException {
+        BufferedReader in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        int skipped = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            String[] entry = splitLine(line);
+            if (entry == null) continue;
+            if (entry.length == 1) {
+                log.error("line " + lineNumber + " has no value, skipped");
+                skipped++;
+                continue;
+            }
+            put(entry[0], entry[1]);
+        }
+        return skipped;
+    }
+
+    /**
+     * Split a line of a text map into its key and value, ignoring any comment and any words after the value.
+     *
+     * @return null if the line is blank, the key alone if there is no value, otherwise the key and value
+     */
+    static String[] splitLine(String line) {
+        int comment = line.indexOf('#');
+        int length = comment == -1 ? line.length() : comment;
+        int i = 0;
+        while (i < length && Character.isWhitespace(line.charAt(i))) i++;
+        if (i == length) return null;
+        int keyStart = i;
+        while (i < length && !Character.isWhitespace(line.charAt(i))) i++;
+        String key = line.substring(keyStart, i);
+        while (i < length && Character.isWhitespace(line.charAt(i))) i++;
+        int valueStart = i;
+        while (i < length && !Character.isWhitespace(line.charAt(i))) i++;
+        if (valueStart == i) return new String[]{key};
+        return new String[]{key, line.substring(valueStart, i)};
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * @return the number of bytes the map will take
+     */
+    public long getBuildSize() {
+        return MapFile.HEADER_SIZE + (long) getSlotCount() * MapFile.SLOT_SIZE + entryBytes;
+    }
+
+    /**
+     * Build the map into a direct buffer, so that it is kept off the heap.
+     */
+    public MapFile build() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(checkedBuildSize());
+        build(buffer);
+        return new MapFile(buffer);
+    }
+
+    /**
+     * Build the map into a file that can be opened with MapFile.open.
+     */
+    public void write(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(checkedBuildSize());
+        build(buffer);
+        buffer.flip();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private int checkedBuildSize() {
+        long buildSize = getBuildSize();
+        if (buildSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("map of " + buildSize + " bytes is too big, maps are limited to 2GB");
+        }
+        return (int) buildSize;
+    }
+
+    private int getSlotCount() {
+        // at most half full, so that probes are short
+        int slotCount = 2;
+        while (slotCount < keys.size() * 2) {
+            slotCount <<= 1;
+        }
+        return slotCount;
+    }
+
+    private void build(ByteBuffer buffer) {
+        int slotCount = getSlotCount();
+        int mask = slotCount - 1;
+        buffer.putInt(MapFile.MAGIC);
+        buffer.putInt(MapFile.VERSION);
+        buffer.putInt(slotCount);
+        buffer.putInt(keys.size());
+
+        int entry = MapFile.HEADER_SIZE + slotCount * MapFile.SLOT_SIZE;
+        // the slots are zeroed in a new buffer, so only the used ones need writing
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = (byte[]) keys.get(i);
+            byte[] value = (byte[]) values.get(i);
+            int hash = MapFile.hash(key);
+            int slot = hash & mask;
+            while (buffer.getInt(MapFile.HEADER_SIZE + slot * MapFile.SLOT_SIZE + 4) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            buffer.putInt(MapFile.HEADER_SIZE + slot * MapFile.SLOT_SIZE, hash);
+            buffer.putInt(MapFile.HEADER_SIZE + slot * MapFile.SLOT_SIZE + 4, entry);
+
+            buffer.position(entry);
+            buffer.putInt(key.length);
+            buffer.put(key);
+            buffer.putInt(value.length);
+            buffer.put(value);
+            entry = buffer.position();
+        }
+        buffer.position(entry);
+    }
+
+    private static byte[] getBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /**
+     * Build a map file from a text map.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: MapFileBuilder <text map> <map file>");
+            System.exit(1);
+        }
+        long start = System.currentTimeMillis();
+        MapFileBuilder builder = new MapFileBuilder();
+        Reader reader = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+        try {
+            builder.load(reader);
+        } finally {
+            reader.close();
+        }
+        builder.write(new File(args[1]));
+        System.out.println("wrote " + builder.size() + " entries (" + builder.getBuildSize() + " bytes) to " + args[1] +
+                " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+}
@@ -2,6 +2,7 @@ package org.tuckey.web.filters.urlrewrite.utils;
 
 import org.tuckey.web.filters.urlrewrite.Condition;
 import org.tuckey.web.filters.urlrewrite.Conf;
+import org.tuckey.web.filters.urlrewrite.MapElem;
 import org.tuckey.web.filters.urlrewrite.NormalRule;
 import org.tuckey.web.filters.urlrewrite.SetAttribute;
 
@@ -10,7 +11,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,6 +30,7 @@ public class ModRewriteConfLoader {
     private final Pattern ENGINE_PATTERN = Pattern.compile("RewriteEngine\\s+([a-zA-Z0-9]+)\\s*$");
     private final Pattern CONDITION_PATTERN = Pattern.compile("RewriteCond\\s+(.*)$");
     private final Pattern RULE_PATTERN = Pattern.compile("RewriteRule\\s+(.*)$");
+    private final Pattern MAP_PATTERN = Pattern.compile("RewriteMap\\s+(\\S+)\\s+([a-zA-Z]+)(?:=[a-zA-Z]+)?:(\\S+).*$");
 
     public void process(InputStream is, Conf conf) throws IOException {
         String line;
@@ -44,6 +49,8 @@ public class ModRewriteConfLoader {
         StringBuffer notesBuffer = new StringBuffer();
         String logLevelStr = null;
         String logTypeStr = null;
+        Set mapNames = new HashSet();
+        List rules = new ArrayList();
 
         for (int i = 0; i < lines.length; i++) {
             String line = StringUtils.trimToNull(lines[i]);
@@ -76,17 +83,19 @@ public class ModRewriteConfLoader {
                 logTypeStr = parseLogType(logTypeStr, line);
 
             } else if (line.startsWith("RewriteMap")) {
-                log.error("RewriteMap not supported, ignored");
+                processRewriteMap(conf, mapNames, line);
 
             } else if (line.startsWith("RewriteOptions")) {
                 log.error("RewriteOptions not supported, ignored");
 
             } else if (line.startsWith("RewriteRule")) {
-                parseRule(conf, conditionsBuffer, notesBuffer, line);
+                rules.add(parseRule(conf, conditionsBuffer, notesBuffer, line));
                 notesBuffer = new StringBuffer();
                 conditionsBuffer = new ArrayList();
             }
         }
+        // once the whole file is read so that maps declared after the rules that use them are found
+        resolveMapReferences(rules, mapNames);
         if (logTypeStr != null || logLevelStr != null) {
             String logStr = (logTypeStr == null ? "" : logTypeStr) + (logLevelStr == null ? "" : ":" + logLevelStr);
             log.debug("setting log to: " + logStr);
@@ -97,7 +106,7 @@ public class ModRewriteConfLoader {
         }
     }
 
-    private void parseRule(Conf conf, List conditionsBuffer, StringBuffer notesBuffer, String line) {
+    private NormalRule parseRule(Conf conf, List conditionsBuffer, StringBuffer notesBuffer, String line) {
         NormalRule rule = processRule(line);
         for (int j = 0; j < conditionsBuffer.size(); j++) {
             Condition condition = (Condition) conditionsBuffer.get(j);
@@ -105,6 +114,54 @@ public class ModRewriteConfLoader {
         }
         if (notesBuffer.length() > 0) rule.setNote(notesBuffer.toString());
         conf.addRule(rule);
+        return rule;
+    }
+
+    /**
+     * ${name:key} in mod_rewrite is ${map:name:key} here.
+     */
+    private void resolveMapReferences(List rules, Set mapNames) {
+        if (mapNames.isEmpty()) return;
+        for (int i = 0; i < rules.size(); i++) {
+            NormalRule rule = (NormalRule) rules.get(i);
+            String to = rule.getTo();
+            if (to == null) continue;
+            for (Iterator iterator = mapNames.iterator(); iterator.hasNext();) {
+                String mapName = (String) iterator.next();
+                to = to.replace("${" + mapName + ":", "${map:" + mapName + ":");
+            }
+            rule.setTo(to);
+        }
+    }
+
+    private void processRewriteMap(Conf conf, Set mapNames, String line) {
+        Matcher mapMatcher = MAP_PATTERN.matcher(line);
+        if (!mapMatcher.matches()) {
+            log.error("cannot parse " + line);
+            return;
+        }
+        String name = mapMatcher.group(1);
+        String type = mapMatcher.group(2);
+        String source = mapMatcher.group(3);
+        MapElem mapElem = new MapElem();
+        mapElem.setName(name);
+        if ("txt".equals(type) || "rnd".equals(type) || "mmap".equals(type)) {
+            mapElem.setType(type);
+            mapElem.setFile(source);
+        } else if ("dbm".equals(type)) {
+            log.error("RewriteMap type dbm not supported, ignored, files built by httxt2dbm cannot be read. Rebuild " +
+                    source + " with MapFileBuilder and use RewriteMap " + name + " mmap:" + source + " instead");
+            return;
+        } else if ("int".equals(type)) {
+            mapElem.setType("int");
+            mapElem.setFunction(source);
+        } else {
+            log.error("RewriteMap type " + type + " not supported, ignored");
+            return;
+        }
+        log.debug("RewriteMap " + name + " parsed as " + type + " " + source);
+        conf.addMap(mapElem);
+        mapNames.add(name);
     }
 
     private String parseLogType(String logTypeStr, String line) {
@@ -0,0 +1,1036 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches a url against a large number of regular expressions in one pass.
+ * <p/>
+ * Each expression is compiled into a single combined NFA which is turned into a DFA lazily as urls are looked up, so
+ * the cost of a lookup depends on the length of the url not the number of expressions.  Each DFA state knows which
+ * expressions have matched so far and the candidates are taken from the state reached at the end of the url.
+ * <p/>
+ * Features the DFA cannot handle exactly (back references, look arounds, anchors other than a leading ^, bounded
+ * repeats, unicode classes) are widened so that the DFA matches a superset of what the real expression matches.  The
+ * real pattern must always be run on the candidates returned.  Expressions that cannot be widened safely (inline
+ * flags, \Q..\E quoting, octal escapes etc) are not indexed and are always returned as candidates.
+ */
+public class MultiPatternIndex implements MatchIndex {
+
+    private static Log log = Log.getLog(MultiPatternIndex.class);
+
+    /**
+     * Default limit on the number of NFA state references held by cached DFA states before the cache is flushed.
+     */
+    public static final int DEFAULT_MAX_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static final int NONE = -1;
+
+    // the NFA, each state has at most one char transition and two epsilon transitions
+    private int stateCount = 0;
+    private CharSet[] charSets = new CharSet[64];
+    private int[] charTargets = new int[64];
+    private int[] epsilon1 = new int[64];
+    private int[] epsilon2 = new int[64];
+    private int[] acceptIds = new int[64];
+
+    private int[] nfaStartStates = new int[16];
+    private int nfaStartStatesCount = 0;
+
+    private int[] unindexedIds = new int[16];
+    private int unindexedCount = 0;
+    private int[] allIds = new int[16];
+    private int size = 0;
+    private int lastId = -1;
+
+    // the lazily built DFA, guarded by this
+    private final int maxCacheSize;
+    private Map dfaStates = new HashMap();
+    private int cacheSize = 0;
+    private int cacheFlushCount = 0;
+    private int[] startClosure;
+    private volatile DfaState startState;
+
+    // scratch space for working out closures, guarded by this
+    private int[] marks;
+    private int markGeneration = 0;
+    private int[] stack;
+
+    public MultiPatternIndex() {
+        this(DEFAULT_MAX_CACHE_SIZE);
+    }
+
+    /**
+     * @param maxCacheSize the number of NFA state references cached DFA states can hold before the cache is flushed
+     */
+    public MultiPatternIndex(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * Add a regular expression.
+     *
+     * @param regex         java regular expression, or null if the id should always be a candidate
+     * @param caseSensitive false if the expression is compiled with CASE_INSENSITIVE
+     * @param id            must be greater than any id previously added
+     * @return true if the expression could be indexed, false if the id will always be a candidate
+     */
+    public boolean add(String regex, boolean caseSensitive, int id) {
+        Node node = null;
+        if (regex != null) {
+            try {
+                node = new Parser(regex, !caseSensitive).parse();
+            } catch (UnsupportedPatternException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("unable to index " + regex + " (" + e.getMessage() + "), it will always be run");
+                }
+            }
+        }
+        if (node == null) {
+            addUnindexed(id);
+            return false;
+        }
+        addNode(node, regex.startsWith("^") && RegexPattern.isFreeOfTopLevelAlternation(regex), id);
+        return true;
+    }
+
+    /**
+     * Add an id that can only match urls starting with a literal prefix.
+     *
+     * @param prefix        literal text, if blank the id will always be a candidate
+     * @param caseSensitive false if the prefix should be matched ignoring US-ASCII case
+     * @param id            must be greater than any id previously added
+     */
+    public void addLiteralPrefix(String prefix, boolean caseSensitive, int id) {
+        if (prefix == null || prefix.length() == 0) {
+            addUnindexed(id);
+            return;
+        }
+        Node[] chars = new Node[prefix.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Node.chars(CharSet.literal(prefix.charAt(i), !caseSensitive));
+        }
+        addNode(Node.concat(chars), true, id);
+    }
+
+    /**
+     * Add an id that is always a candidate.
+     *
+     * @param id must be greater than any id previously added
+     */
+    public void addUnindexed(int id) {
+        checkId(id);
+        unindexedIds = append(unindexedIds, unindexedCount++, id);
+    }
+
+    /**
+     * Must be called once all ids have been added and before any lookups are made.
+     */
+    public synchronized void compile() {
+        unindexedIds = trim(unindexedIds, unindexedCount);
+        allIds = trim(allIds, size);
+        marks = new int[stateCount];
+        stack = new int[stateCount];
+        startClosure = closure(nfaStartStates, nfaStartStatesCount);
+        startState = intern(startClosure);
+        if (log.isDebugEnabled()) {
+            log.debug("compiled " + getIndexedCount() + " of " + size + " patterns into " + stateCount + " nfa states");
+        }
+    }
+
+    /**
+     * Write the NFA so that the index can be read back with readFrom, eg, to a conf cache.  The DFA is not written, it
+     * is built again as urls are looked up.
+     */
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        if (startState == null) throw new IllegalStateException("compile has not been called");
+        out.writeInt(stateCount);
+        for (int s = 0; s < stateCount; s++) {
+            CharSet charSet = charSets[s];
+            if (charSet == null) {
+                out.writeInt(-1);
+            } else {
+                writeInts(out, charSet.ranges, charSet.ranges.length);
+            }
+            out.writeInt(charTargets[s]);
+            out.writeInt(epsilon1[s]);
+            out.writeInt(epsilon2[s]);
+            out.writeInt(acceptIds[s]);
+        }
+        writeInts(out, nfaStartStates, nfaStartStatesCount);
+        writeInts(out, unindexedIds, unindexedCount);
+        writeInts(out, allIds, size);
+    }
+
+    /**
+     * Read an index written by writeTo, it is compiled and ready to use.
+     */
+    public static MultiPatternIndex readFrom(DataInput in) throws IOException {
+        MultiPatternIndex index = new MultiPatternIndex();
+        int count = in.readInt();
+        index.stateCount = count;
+        index.charSets = new CharSet[count];
+        index.charTargets = new int[count];
+        index.epsilon1 = new int[count];
+        index.epsilon2 = new int[count];
+        index.acceptIds = new int[count];
+        for (int s = 0; s < count; s++) {
+            int[] ranges = readInts(in);
+            index.charSets[s] = ranges == null ? null : new CharSet(ranges);
+            index.charTargets[s] = readState(in, count);
+            index.epsilon1[s] = readState(in, count);
+            index.epsilon2[s] = readState(in, count);
+            index.acceptIds[s] = in.readInt();
+        }
+        index.nfaStartStates = readInts(in);
+        index.nfaStartStatesCount = index.nfaStartStates.length;
+        for (int i = 0; i < index.nfaStartStatesCount; i++) {
+            if (index.nfaStartStates[i] < 0 || index.nfaStartStates[i] >= count) {
+                throw new IOException("nfa start state " + index.nfaStartStates[i] + " out of range");
+            }
+        }
+        index.unindexedIds = readInts(in);
+        index.unindexedCount = index.unindexedIds.length;
+        index.allIds = readInts(in);
+        index.size = index.allIds.length;
+        index.lastId = index.size == 0 ? -1 : index.allIds[index.size - 1];
+        index.compile();
+        return index;
+    }
+
+    private static void writeInts(DataOutput out, int[] ints, int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(ints[i]);
+        }
+    }
+
+    /**
+     * @return the ints or null if a negative count was written
+     */
+    private static int[] readInts(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) return null;
+        int[] ints = new int[count];
+        for (int i = 0; i < count; i++) {
+            ints[i] = in.readInt();
+        }
+        return ints;
+    }
+
+    private static int readState(DataInput in, int stateCount) throws IOException {
+        int s = in.readInt();
+        if (s < NONE || s >= stateCount) throw new IOException("nfa state " + s + " out of range");
+        return s;
+    }
+
+    public int[] getCandidates(String url) {
+        DfaState state = startState;
+        if (state == null) throw new IllegalStateException("compile has not been called");
+        // a null url can't match any pattern
+        if (url == null) return unindexedIds;
+        int len = url.length();
+        for (int i = 0; i < len && state.live; i++) {
+            char c = url.charAt(i);
+            if (c >= '\uD800' && c <= '\uDFFF') {
+                // java regex works on code points not chars, so a '.' may eat both halves of a surrogate pair
+                return allIds;
+            }
+            DfaState next = c < 128 ? state.asciiNext[c] : null;
+            if (next == null) next = computeNext(state, c);
+            state = next;
+        }
+        return state.candidates;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getIndexedCount() {
+        return size - unindexedCount;
+    }
+
+    /**
+     * The number of DFA states currently cached.
+     */
+    public synchronized int getCachedStateCount() {
+        return dfaStates.size();
+    }
+
+    /**
+     * The number of times the DFA cache has been thrown away because it grew too large.
+     */
+    public synchronized int getCacheFlushCount() {
+        return cacheFlushCount;
+    }
+
+    private void checkId(int id) {
+        if (id <= lastId) throw new IllegalArgumentException("ids must be added in ascending order");
+        if (startState != null) throw new IllegalStateException("cannot add to a compiled index");
+        lastId = id;
+        allIds = append(allIds, size++, id);
+    }
+
+    private void addNode(Node node, boolean anchored, int id) {
+        checkId(id);
+        // once matched, stay matched for the rest of the url, the real pattern may be unanchored
+        int matched = newState();
+        charSets[matched] = CharSet.ANY;
+        charTargets[matched] = matched;
+        acceptIds[matched] = id;
+
+        int start = compileNode(node, matched);
+        if (!anchored) {
+            // equivalent to prefixing with .*
+            int loop = newState();
+            charSets[loop] = CharSet.ANY;
+            charTargets[loop] = loop;
+            epsilon1[loop] = start;
+            start = loop;
+        }
+        nfaStartStates = append(nfaStartStates, nfaStartStatesCount++, start);
+    }
+
+    /**
+     * Note, newState may replace the state arrays, so the result of a recursive call must be held in a local before it
+     * is stored in one of them, otherwise it would be written to the old array.
+     */
+    private int compileNode(Node node, int next) {
+        switch (node.type) {
+            case Node.EMPTY:
+                return next;
+            case Node.CHARS: {
+                int s = newState();
+                charSets[s] = node.charSet;
+                charTargets[s] = next;
+                return s;
+            }
+            case Node.CONCAT: {
+                int s = next;
+                for (int i = node.children.length - 1; i >= 0; i--) {
+                    s = compileNode(node.children[i], s);
+                }
+                return s;
+            }
+            case Node.ALT: {
+                int s = compileNode(node.children[node.children.length - 1], next);
+                for (int i = node.children.length - 2; i >= 0; i--) {
+                    int split = newState();
+                    int target = compileNode(node.children[i], next);
+                    epsilon1[split] = target;
+                    epsilon2[split] = s;
+                    s = split;
+                }
+                return s;
+            }
+            case Node.STAR: {
+                int loop = newState();
+                epsilon2[loop] = next;
+                int target = compileNode(node.children[0], loop);
+                epsilon1[loop] = target;
+                return loop;
+            }
+            case Node.PLUS: {
+                int loop = newState();
+                epsilon2[loop] = next;
+                int s = compileNode(node.children[0], loop);
+                epsilon1[loop] = s;
+                return s;
+            }
+            case Node.OPTIONAL: {
+                int split = newState();
+                int target = compileNode(node.children[0], next);
+                epsilon1[split] = target;
+                epsilon2[split] = next;
+                return split;
+            }
+            default:
+                throw new IllegalStateException("unknown node type " + node.type);
+        }
+    }
+
+    private int newState() {
+        if (stateCount == charTargets.length) {
+            int newLength = stateCount * 2;
+            CharSet[] newCharSets = new CharSet[newLength];
+            System.arraycopy(charSets, 0, newCharSets, 0, stateCount);
+            charSets = newCharSets;
+            charTargets = grow(charTargets, newLength);
+            epsilon1 = grow(epsilon1, newLength);
+            epsilon2 = grow(epsilon2, newLength);
+            acceptIds = grow(acceptIds, newLength);
+        }
+        int s = stateCount++;
+        charSets[s] = null;
+        charTargets[s] = NONE;
+        epsilon1[s] = NONE;
+        epsilon2[s] = NONE;
+        acceptIds[s] = NONE;
+        return s;
+    }
+
+    private synchronized DfaState computeNext(DfaState state, char c) {
+        DfaState next;
+        if (c < 128) {
+            next = state.asciiNext[c];
+        } else {
+            next = state.otherNext == null ? null : (DfaState) state.otherNext.get(Character.valueOf(c));
+        }
+        if (next != null) return next;
+
+        int[] nfaStates = state.nfaStates;
+        int[] targets = new int[nfaStates.length];
+        int targetsCount = 0;
+        for (int i = 0; i < nfaStates.length; i++) {
+            int s = nfaStates[i];
+            CharSet charSet = charSets[s];
+            if (charSet != null && charSet.matches(c)) {
+                targets[targetsCount++] = charTargets[s];
+            }
+        }
+        next = intern(closure(targets, targetsCount));
+        if (c < 128) {
+            state.asciiNext[c] = next;
+        } else {
+            if (state.otherNext == null) state.otherNext = new HashMap();
+            state.otherNext.put(Character.valueOf(c), next);
+        }
+        return next;
+    }
+
+    /**
+     * Get the sorted set of states reachable from the seeds by epsilon transitions.
+     */
+    private int[] closure(int[] seeds, int seedsCount) {
+        int generation = ++markGeneration;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(marks, 0);
+            markGeneration = generation = 1;
+        }
+        int[] result = new int[Math.max(seedsCount, 16)];
+        int resultCount = 0;
+        int stackCount = 0;
+        for (int i = 0; i < seedsCount; i++) {
+            int s = seeds[i];
+            if (marks[s] == generation) continue;
+            marks[s] = generation;
+            stack[stackCount++] = s;
+        }
+        while (stackCount > 0) {
+            int s = stack[--stackCount];
+            if (charSets[s] != null) {
+                result = append(result, resultCount++, s);
+            }
+            int e1 = epsilon1[s];
+            if (e1 != NONE && marks[e1] != generation) {
+                marks[e1] = generation;
+                stack[stackCount++] = e1;
+            }
+            int e2 = epsilon2[s];
+            if (e2 != NONE && marks[e2] != generation) {
+                marks[e2] = generation;
+                stack[stackCount++] = e2;
+            }
+        }
+        result = trim(result, resultCount);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private DfaState intern(int[] nfaStates) {
+        StateKey key = new StateKey(nfaStates);
+        DfaState state = (DfaState) dfaStates.get(key);
+        if (state != null) return state;
+
+        if (cacheSize + nfaStates.length > maxCacheSize && startState != null) {
+            // start again, requests in progress will finish on the old states
+            log.info("dfa cache full with " + dfaStates.size() + " states, flushing");
+            dfaStates = new HashMap();
+            cacheSize = 0;
+            cacheFlushCount++;
+            DfaState newStartState = createState(startClosure);
+            dfaStates.put(new StateKey(startClosure), newStartState);
+            cacheSize += startClosure.length;
+            startState = newStartState;
+            if (key.equals(new StateKey(startClosure))) return newStartState;
+        }
+        state = createState(nfaStates);
+        dfaStates.put(key, state);
+        cacheSize += nfaStates.length;
+        return state;
+    }
+
+    private DfaState createState(int[] nfaStates) {
+        int[] matchedIds = new int[nfaStates.length];
+        int matchedCount = 0;
+        boolean live = false;
+        for (int i = 0; i < nfaStates.length; i++) {
+            int id = acceptIds[nfaStates[i]];
+            if (id == NONE) {
+                live = true;
+            } else {
+                matchedIds[matchedCount++] = id;
+            }
+        }
+        Arrays.sort(matchedIds, 0, matchedCount);
+        return new DfaState(nfaStates, merge(matchedIds, matchedCount, unindexedIds, unindexedIds.length), live);
+    }
+
+    private static int[] merge(int[] a, int aCount, int[] b, int bCount) {
+        int[] merged = new int[aCount + bCount];
+        int ai = 0;
+        int bi = 0;
+        int mi = 0;
+        while (ai < aCount && bi < bCount) {
+            if (a[ai] < b[bi]) {
+                merged[mi++] = a[ai++];
+            } else {
+                merged[mi++] = b[bi++];
+            }
+        }
+        while (ai < aCount) merged[mi++] = a[ai++];
+        while (bi < bCount) merged[mi++] = b[bi++];
+        return merged;
+    }
+
+    private static int[] append(int[] array, int count, int value) {
+        if (count == array.length) array = grow(array, count * 2 + 1);
+        array[count] = value;
+        return array;
+    }
+
+    private static int[] grow(int[] array, int newLength) {
+        int[] newArray = new int[newLength];
+        System.arraycopy(array, 0, newArray, 0, Math.min(array.length, newLength));
+        return newArray;
+    }
+
+    private static int[] trim(int[] array, int count) {
+        if (array.length == count) return array;
+        return grow(array, count);
+    }
+
+    private static final class DfaState {
+        private final int[] nfaStates;
+        private final int[] candidates;
+        // false when every pattern has either matched or failed, the rest of the url cannot change the result
+        private final boolean live;
+        // read without locking, a missing entry just means it gets worked out again
+        private final DfaState[] asciiNext = new DfaState[128];
+        private Map otherNext;
+
+        DfaState(int[] nfaStates, int[] candidates, boolean live) {
+            this.nfaStates = nfaStates;
+            this.candidates = candidates;
+            this.live = live;
+        }
+    }
+
+    private static final class StateKey {
+        private final int[] nfaStates;
+        private final int hashCode;
+
+        StateKey(int[] nfaStates) {
+            this.nfaStates = nfaStates;
+            this.hashCode = Arrays.hashCode(nfaStates);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof StateKey && Arrays.equals(nfaStates, ((StateKey) o).nfaStates);
+        }
+    }
+
+    private static final class UnsupportedPatternException extends Exception {
+        UnsupportedPatternException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Regular expression syntax tree.
+     */
+    private static final class Node {
+        static final int EMPTY = 0;
+        static final int CHARS = 1;
+        static final int CONCAT = 2;
+        static final int ALT = 3;
+        static final int STAR = 4;
+        static final int PLUS = 5;
+        static final int OPTIONAL = 6;
+
+        static final Node EMPTY_NODE = new Node(EMPTY, null, null);
+
+        final int type;
+        final CharSet charSet;
+        final Node[] children;
+
+        private Node(int type, CharSet charSet, Node[] children) {
+            this.type = type;
+            this.charSet = charSet;
+            this.children = children;
+        }
+
+        static Node chars(CharSet charSet) {
+            return new Node(CHARS, charSet, null);
+        }
+
+        static Node concat(Node[] children) {
+            if (children.length == 0) return EMPTY_NODE;
+            if (children.length == 1) return children[0];
+            return new Node(CONCAT, null, children);
+        }
+
+        static Node alt(Node[] children) {
+            if (children.length == 1) return children[0];
+            return new Node(ALT, null, children);
+        }
+
+        static Node repeat(int type, Node child) {
+            return new Node(type, null, new Node[]{child});
+        }
+    }
+
+    /**
+     * Parses java regular expression syntax, widening where needed.
+     */
+    private static final class Parser {
+        private final String pattern;
+        private final boolean caseInsensitive;
+        private int pos = 0;
+
+        Parser(String pattern, boolean caseInsensitive) {
+            this.pattern = pattern;
+            this.caseInsensitive = caseInsensitive;
+        }
+
+        Node parse() throws UnsupportedPatternException {
+            Node node = parseAlternation();
+            if (pos < pattern.length()) throw new UnsupportedPatternException("unbalanced ) at " + pos);
+            return node;
+        }
+
+        private Node parseAlternation() throws UnsupportedPatternException {
+            List alternatives = new ArrayList();
+            alternatives.add(parseConcat());
+            while (pos < pattern.length() && pattern.charAt(pos) == '|') {
+                pos++;
+                alternatives.add(parseConcat());
+            }
+            return Node.alt((Node[]) alternatives.toArray(new Node[alternatives.size()]));
+        }
+
+        private Node parseConcat() throws UnsupportedPatternException {
+            List items = new ArrayList();
+            while (pos < pattern.length()) {
+                char c = pattern.charAt(pos);
+                if (c == '|' || c == ')') break;
+                items.add(parseQuantifier(parseAtom()));
+            }
+            return Node.concat((Node[]) items.toArray(new Node[items.size()]));
+        }
+
+        private Node parseAtom() throws UnsupportedPatternException {
+            char c = pattern.charAt(pos++);
+            switch (c) {
+                case '(':
+                    return parseGroup();
+                case '[':
+                    return Node.chars(parseClass());
+                case '.':
+                    return Node.chars(CharSet.ANY);
+                case '^':
+                case '$':
+                    // anchors only restrict a match
+                    return Node.EMPTY_NODE;
+                case '\\':
+                    return parseEscape();
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new UnsupportedPatternException("dangling " + c);
+                default:
+                    return Node.chars(CharSet.literal(c, caseInsensitive));
+            }
+        }
+
+        private Node parseGroup() throws UnsupportedPatternException {
+            boolean discard = false;
+            if (peek() == '?') {
+                pos++;
+                char kind = next();
+                if (kind == '=' || kind == '!') {
+                    // look ahead only restricts a match
+                    discard = true;
+                } else if (kind == '<' && (peek() == '=' || peek() == '!')) {
+                    pos++;
+                    discard = true;
+                } else if (kind == '<') {
+                    // named group
+                    int end = pattern.indexOf('>', pos);
+                    if (end == -1) throw new UnsupportedPatternException("bad group name");
+                    pos = end + 1;
+                } else if (kind != ':' && kind != '>') {
+                    throw new UnsupportedPatternException("inline flags");
+                }
+            }
+            Node inner = parseAlternation();
+            if (next() != ')') throw new UnsupportedPatternException("unclosed group");
+            return discard ? Node.EMPTY_NODE : inner;
+        }
+
+        private Node parseQuantifier(Node atom) throws UnsupportedPatternException {
+            if (pos >= pattern.length()) return atom;
+            char c = pattern.charAt(pos);
+            Node node;
+            if (c == '*') {
+                pos++;
+                node = Node.repeat(Node.STAR, atom);
+            } else if (c == '+') {
+                pos++;
+                node = Node.repeat(Node.PLUS, atom);
+            } else if (c == '?') {
+                pos++;
+                node = Node.repeat(Node.OPTIONAL, atom);
+            } else if (c == '{') {
+                pos++;
+                int min = parseNumber();
+                if (peek() == ',') {
+                    pos++;
+                    if (peek() != '}') parseNumber();
+                }
+                if (next() != '}') throw new UnsupportedPatternException("bad repeat");
+                // x{n,m} only ever matches strings that x* or x+ would
+                node = Node.repeat(min == 0 ? Node.STAR : Node.PLUS, atom);
+            } else {
+                return atom;
+            }
+            // reluctant and possessive quantifiers can only match less
+            if (pos < pattern.length() && (pattern.charAt(pos) == '?' || pattern.charAt(pos) == '+')) pos++;
+            return node;
+        }
+
+        private int parseNumber() throws UnsupportedPatternException {
+            int start = pos;
+            while (pos < pattern.length() && Character.isDigit(pattern.charAt(pos))) pos++;
+            if (start == pos) throw new UnsupportedPatternException("bad repeat");
+            return Integer.parseInt(pattern.substring(start, pos));
+        }
+
+        private Node parseEscape() throws UnsupportedPatternException {
+            char c = next();
+            if (c >= '1' && c <= '9') {
+                // back reference, could be anything
+                while (pos < pattern.length() && Character.isDigit(pattern.charAt(pos))) pos++;
+                return Node.repeat(Node.STAR, Node.chars(CharSet.ANY));
+            }
+            switch (c) {
+                case 'b':
+                case 'B':
+                case 'A':
+                case 'G':
+                case 'Z':
+                case 'z':
+                    return Node.EMPTY_NODE;
+                case 'k':
+                    int end = pattern.indexOf('>', pos);
+                    if (end == -1) throw new UnsupportedPatternException("bad back reference");
+                    pos = end + 1;
+                    return Node.repeat(Node.STAR, Node.chars(CharSet.ANY));
+                case 'p':
+                case 'P':
+                    skipProperty();
+                    return Node.chars(CharSet.ANY);
+                default:
+                    CharSet predefined = predefinedClass(c);
+                    if (predefined != null) return Node.chars(predefined);
+                    return Node.chars(CharSet.literal(escapedChar(c), caseInsensitive));
+            }
+        }
+
+        private CharSet parseClass() throws UnsupportedPatternException {
+            boolean negate = false;
+            if (peek() == '^') {
+                pos++;
+                negate = true;
+            }
+            if (peek() == ']') throw new UnsupportedPatternException("leading ] in class");
+            boolean widened = false;
+            List ranges = new ArrayList();
+            while (true) {
+                char c = next();
+                if (c == ']') break;
+                if (c == '[') throw new UnsupportedPatternException("nested class");
+                if (c == '&' && peek() == '&') throw new UnsupportedPatternException("class intersection");
+                char lo;
+                if (c == '\\') {
+                    char e = next();
+                    if (e == 'p' || e == 'P') {
+                        skipProperty();
+                        widened = true;
+                        continue;
+                    }
+                    CharSet predefined = predefinedClass(e);
+                    if (predefined != null) {
+                        ranges.add(predefined);
+                        continue;
+                    }
+                    lo = escapedChar(e);
+                } else {
+                    lo = c;
+                }
+                char hi = lo;
+                if (peek() == '-' && pos + 1 < pattern.length() && pattern.charAt(pos + 1) != ']') {
+                    pos++;
+                    char h = next();
+                    if (h == '[') throw new UnsupportedPatternException("nested class");
+                    if (h == '\\') {
+                        char e = next();
+                        if (predefinedClass(e) != null || e == 'p' || e == 'P') {
+                            throw new UnsupportedPatternException("bad range");
+                        }
+                        h = escapedChar(e);
+                    }
+                    if (h < lo) throw new UnsupportedPatternException("bad range");
+                    hi = h;
+                }
+                ranges.add(CharSet.range(lo, hi));
+            }
+            // when part of a class has been widened a negated class would be narrowed, so give up on the class
+            if (widened) return CharSet.ANY;
+            CharSet charSet = CharSet.union((CharSet[]) ranges.toArray(new CharSet[ranges.size()]));
+            if (caseInsensitive) charSet = charSet.withAsciiCaseVariants();
+            if (negate) charSet = charSet.complement();
+            return charSet;
+        }
+
+        private void skipProperty() throws UnsupportedPatternException {
+            if (peek() == '{') {
+                int end = pattern.indexOf('}', pos);
+                if (end == -1) throw new UnsupportedPatternException("bad property");
+                pos = end + 1;
+            } else {
+                next();
+            }
+        }
+
+        private CharSet predefinedClass(char c) {
+            switch (c) {
+                case 'd':
+                    return CharSet.DIGIT;
+                case 'D':
+                    return CharSet.DIGIT.complement();
+                case 'w':
+                    return CharSet.WORD;
+                case 'W':
+                    return CharSet.WORD.complement();
+                case 's':
+                    return CharSet.SPACE;
+                case 'S':
+                    return CharSet.SPACE.complement();
+                default:
+                    return null;
+            }
+        }
+
+        private char escapedChar(char c) throws UnsupportedPatternException {
+            switch (c) {
+                case 't':
+                    return '\t';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 'f':
+                    return '\f';
+                case 'a':
+                    return '\u0007';
+                case 'e':
+                    return '\u001B';
+                case 'x':
+                    if (peek() == '{') throw new UnsupportedPatternException("\\x{...}");
+                    return parseHex(2);
+                case 'u':
+                    return parseHex(4);
+                default:
+                    if (Character.isLetterOrDigit(c)) throw new UnsupportedPatternException("escape \\" + c);
+                    return c;
+            }
+        }
+
+        private char parseHex(int digits) throws UnsupportedPatternException {
+            if (pos + digits > pattern.length()) throw new UnsupportedPatternException("bad hex escape");
+            try {
+                char c = (char) Integer.parseInt(pattern.substring(pos, pos + digits), 16);
+                pos += digits;
+                return c;
+            } catch (NumberFormatException e) {
+                throw new UnsupportedPatternException("bad hex escape");
+            }
+        }
+
+        private char peek() {
+            return pos < pattern.length() ? pattern.charAt(pos) : 0;
+        }
+
+        private char next() throws UnsupportedPatternException {
+            if (pos >= pattern.length()) throw new UnsupportedPatternException("unexpected end");
+            return pattern.charAt(pos++);
+        }
+    }
+
+    /**
+     * An immutable set of chars stored as sorted, non overlapping, inclusive ranges.
+     */
+    static final class CharSet {
+        static final CharSet ANY = new CharSet(new int[]{0, 0xFFFF});
+        static final CharSet DIGIT = range('0', '9');
+        static final CharSet WORD = union(new CharSet[]{range('a', 'z'), range('A', 'Z'), range('0', '9'), range('_', '_')});
+        static final CharSet SPACE = union(new CharSet[]{range(' ', ' '), range('\t', '\r')});
+
+        private final int[] ranges;
+
+        private CharSet(int[] ranges) {
+            this.ranges = ranges;
+        }
+
+        static CharSet range(char lo, char hi) {
+            return new CharSet(new int[]{lo, hi});
+        }
+
+        static CharSet literal(char c, boolean caseInsensitive) {
+            CharSet charSet = range(c, c);
+            return caseInsensitive ? charSet.withAsciiCaseVariants() : charSet;
+        }
+
+        static CharSet union(CharSet[] charSets) {
+            int total = 0;
+            for (int i = 0; i < charSets.length; i++) total += charSets[i].ranges.length / 2;
+            long[] packed = new long[total];
+            int p = 0;
+            for (int i = 0; i < charSets.length; i++) {
+                int[] r = charSets[i].ranges;
+                for (int j = 0; j < r.length; j += 2) {
+                    packed[p++] = ((long) r[j] << 32) | r[j + 1];
+                }
+            }
+            Arrays.sort(packed);
+            int[] merged = new int[total * 2];
+            int m = 0;
+            for (int i = 0; i < total; i++) {
+                int lo = (int) (packed[i] >>> 32);
+                int hi = (int) packed[i];
+                if (m > 0 && lo <= merged[m - 1] + 1) {
+                    if (hi > merged[m - 1]) merged[m - 1] = hi;
+                } else {
+                    merged[m++] = lo;
+                    merged[m++] = hi;
+                }
+            }
+            return new CharSet(trim(merged, m));
+        }
+
+        CharSet complement() {
+            int[] result = new int[ranges.length + 2];
+            int r = 0;
+            int next = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] > next) {
+                    result[r++] = next;
+                    result[r++] = ranges[i] - 1;
+                }
+                next = ranges[i + 1] + 1;
+            }
+            if (next <= 0xFFFF) {
+                result[r++] = next;
+                result[r++] = 0xFFFF;
+            }
+            return new CharSet(trim(result, r));
+        }
+
+        /**
+         * Java's CASE_INSENSITIVE (without UNICODE_CASE) only folds US-ASCII letters.
+         */
+        CharSet withAsciiCaseVariants() {
+            List variants = new ArrayList();
+            variants.add(this);
+            for (char c = 'a'; c <= 'z'; c++) {
+                char upper = (char) (c - 'a' + 'A');
+                if (matches(c) != matches(upper)) variants.add(range(c, c));
+                if (matches(c) != matches(upper)) variants.add(range(upper, upper));
+            }
+            if (variants.size() == 1) return this;
+            return union((CharSet[]) variants.toArray(new CharSet[variants.size()]));
+        }
+
+        boolean matches(char c) {
+            int[] r = ranges;
+            if (r.length <= 8) {
+                for (int i = 0; i < r.length; i += 2) {
+                    if (c < r[i]) return false;
+                    if (c <= r[i + 1]) return true;
+                }
+                return false;
+            }
+            int low = 0;
+            int high = r.length / 2 - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (c < r[mid * 2]) {
+                    high = mid - 1;
+                } else if (c > r[mid * 2 + 1]) {
+                    low = mid + 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,311 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A trie of literal url prefixes used to find which rules could possibly match a url without running every rule's
+ * pattern.
+ * <p/>
+ * Ids without a prefix can be indexed by a literal suffix instead, eg, <code>*.html</code>, these are held in a
+ * second trie built from the end of the suffix backwards and looked up from the end of the url.
+ * <p/>
+ * Ids must be added in ascending order.  Ids added with a blank prefix and suffix are always returned as candidates.  Prefixes
+ * are compared ignoring US-ASCII case so that the index works for both case sensitive and insensitive rules, this
+ * means the candidates returned are a superset of the rules that actually match, never a subset.
+ */
+public class PrefixIndex implements MatchIndex {
+
+    private static final int[] NO_IDS = new int[0];
+
+    private final Node root = new Node();
+    private final Node suffixRoot = new Node();
+    private int size = 0;
+    private int indexedCount = 0;
+
+    /**
+     * Add an id to the index.
+     *
+     * @param prefix literal text any url matching must start with, may be null or blank if there is none
+     * @param id     the id to return when the prefix matches, must be greater than any id previously added
+     */
+    public void add(String prefix, int id) {
+        add(prefix, null, id);
+    }
+
+    /**
+     * Add an id to the index, by its prefix if it has one otherwise by its suffix.
+     *
+     * @param prefix literal text any url matching must start with, may be null or blank if there is none
+     * @param suffix literal text any url matching must end with, may be null or blank if there is none
+     * @param id     the id to return when the prefix or suffix matches, must be greater than any id previously added
+     */
+    public void add(String prefix, String suffix, int id) {
+        Node node = root;
+        if (prefix != null && prefix.length() > 0) {
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.getOrCreateChild(fold(prefix.charAt(i)));
+            }
+        } else if (suffix != null && suffix.length() > 0) {
+            node = suffixRoot;
+            for (int i = suffix.length() - 1; i >= 0; i--) {
+                node = node.getOrCreateChild(fold(suffix.charAt(i)));
+            }
+        }
+        if (node != root) indexedCount++;
+        node.addId(id);
+        size++;
+    }
+
+    /**
+     * Get the ids that could match the url in ascending order.
+     *
+     * @param url the url to lookup, if null only the ids without a prefix are returned
+     * @return ids in the order they were added, the array may be shared so must not be modified
+     */
+    public int[] getCandidates(String url) {
+        int[] candidates = root.ids;
+        int candidatesCount = root.idsCount;
+        if (url != null) {
+            Node node = root;
+            for (int i = 0; i < url.length(); i++) {
+                node = node.getChild(fold(url.charAt(i)));
+                if (node == null) break;
+                if (node.idsCount == 0) continue;
+                if (candidatesCount == 0) {
+                    candidates = node.ids;
+                    candidatesCount = node.idsCount;
+                } else {
+                    candidates = merge(candidates, candidatesCount, node.ids, node.idsCount);
+                    candidatesCount = candidates.length;
+                }
+            }
+            node = suffixRoot;
+            for (int i = url.length() - 1; i >= 0; i--) {
+                node = node.getChild(fold(url.charAt(i)));
+                if (node == null) break;
+                if (node.idsCount == 0) continue;
+                if (candidatesCount == 0) {
+                    candidates = node.ids;
+                    candidatesCount = node.idsCount;
+                } else {
+                    candidates = merge(candidates, candidatesCount, node.ids, node.idsCount);
+                    candidatesCount = candidates.length;
+                }
+            }
+        }
+        if (candidatesCount == 0) return NO_IDS;
+        if (candidates.length != candidatesCount) {
+            // index has not been compacted
+            int[] trimmed = new int[candidatesCount];
+            System.arraycopy(candidates, 0, trimmed, 0, candidatesCount);
+            return trimmed;
+        }
+        return candidates;
+    }
+
+    /**
+     * Trim all the internal arrays down to size, call once all ids have been added.
+     */
+    public void compact() {
+        root.compact();
+        suffixRoot.compact();
+    }
+
+    /**
+     * Write the index so that it can be read back with readFrom, eg, to a conf cache.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(indexedCount);
+        root.writeTo(out);
+        suffixRoot.writeTo(out);
+    }
+
+    /**
+     * Read an index written by writeTo, it is compacted and ready to use.
+     */
+    public static PrefixIndex readFrom(DataInput in) throws IOException {
+        PrefixIndex index = new PrefixIndex();
+        index.size = in.readInt();
+        index.indexedCount = in.readInt();
+        index.root.readFrom(in);
+        index.suffixRoot.readFrom(in);
+        return index;
+    }
+
+    /**
+     * The total number of ids added.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The number of ids added with a non blank prefix or suffix.
+     */
+    public int getIndexedCount() {
+        return indexedCount;
+    }
+
+    private static int[] merge(int[] a, int aCount, int[] b, int bCount) {
+        int[] merged = new int[aCount + bCount];
+        int ai = 0;
+        int bi = 0;
+        int mi = 0;
+        while (ai < aCount && bi < bCount) {
+            if (a[ai] < b[bi]) {
+                merged[mi++] = a[ai++];
+            } else {
+                merged[mi++] = b[bi++];
+            }
+        }
+        while (ai < aCount) merged[mi++] = a[ai++];
+        while (bi < bCount) merged[mi++] = b[bi++];
+        return merged;
+    }
+
+    private static char fold(char c) {
+        if (c >= 'A' && c <= 'Z') return (char) (c + ('a' - 'A'));
+        return c;
+    }
+
+    private static class Node {
+        private char[] childChars = null;
+        private Node[] children = null;
+        private int childCount = 0;
+        private int[] ids = NO_IDS;
+        private int idsCount = 0;
+
+        Node getChild(char c) {
+            // binary search, children are kept sorted by char
+            int low = 0;
+            int high = childCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char midChar = childChars[mid];
+                if (midChar < c) {
+                    low = mid + 1;
+                } else if (midChar > c) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        Node getOrCreateChild(char c) {
+            Node child = getChild(c);
+            if (child != null) return child;
+            if (children == null) {
+                childChars = new char[2];
+                children = new Node[2];
+            } else if (childCount == children.length) {
+                char[] newChildChars = new char[childCount * 2];
+                Node[] newChildren = new Node[childCount * 2];
+                System.arraycopy(childChars, 0, newChildChars, 0, childCount);
+                System.arraycopy(children, 0, newChildren, 0, childCount);
+                childChars = newChildChars;
+                children = newChildren;
+            }
+            int pos = childCount;
+            while (pos > 0 && childChars[pos - 1] > c) {
+                childChars[pos] = childChars[pos - 1];
+                children[pos] = children[pos - 1];
+                pos--;
+            }
+            child = new Node();
+            childChars[pos] = c;
+            children[pos] = child;
+            childCount++;
+            return child;
+        }
+
+        void addId(int id) {
+            if (idsCount == ids.length) {
+                int[] newIds = new int[idsCount == 0 ? 2 : idsCount * 2];
+                System.arraycopy(ids, 0, newIds, 0, idsCount);
+                ids = newIds;
+            }
+            ids[idsCount++] = id;
+        }
+
+        void compact() {
+            if (ids.length != idsCount) {
+                int[] newIds = new int[idsCount];
+                System.arraycopy(ids, 0, newIds, 0, idsCount);
+                ids = newIds;
+            }
+            for (int i = 0; i < childCount; i++) {
+                children[i].compact();
+            }
+        }
+
+        void writeTo(DataOutput out) throws IOException {
+            out.writeInt(idsCount);
+            for (int i = 0; i < idsCount; i++) {
+                out.writeInt(ids[i]);
+            }
+            out.writeInt(childCount);
+            for (int i = 0; i < childCount; i++) {
+                out.writeChar(childChars[i]);
+                children[i].writeTo(out);
+            }
+        }
+
+        void readFrom(DataInput in) throws IOException {
+            idsCount = in.readInt();
+            ids = idsCount == 0 ? NO_IDS : new int[idsCount];
+            for (int i = 0; i < idsCount; i++) {
+                ids[i] = in.readInt();
+            }
+            childCount = in.readInt();
+            if (childCount > 0) {
+                childChars = new char[childCount];
+                children = new Node[childCount];
+                for (int i = 0; i < childCount; i++) {
+                    childChars[i] = in.readChar();
+                    children[i] = new Node();
+                    children[i].readFrom(in);
+                }
+            }
+        }
+    }
+
+}
@@ -44,15 +44,52 @@ import java.util.regex.PatternSyntaxException;
  */
 public class RegexPattern implements StringMatchingPattern {
 
-    private Pattern pattern;
+    private static Log log = Log.getLog(RegexPattern.class);
+
+    // an empty negative lookahead can never match
+    private static final Pattern NEVER_MATCHES = Pattern.compile("(?!)");
+
+    private final String patternStr;
+    private final boolean caseSensitive;
+    private volatile Pattern pattern;
+    private String literalPrefix;
 
     public RegexPattern(String patternStr, boolean caseSensitive)
             throws StringMatchingPatternSyntaxException {
+        this(patternStr, caseSensitive, false);
+    }
+
+    /**
+     * @param lazy if true the expression is not compiled until it is first used, an invalid expression is then
+     *             logged as an error and matches nothing
+     */
+    public RegexPattern(String patternStr, boolean caseSensitive, boolean lazy)
+            throws StringMatchingPatternSyntaxException {
+        this.patternStr = patternStr;
+        this.caseSensitive = caseSensitive;
+        if (!lazy) pattern = compile(patternStr, caseSensitive);
+        literalPrefix = extractLiteralPrefix(patternStr, caseSensitive);
+    }
+
+    /**
+     * For an expression already known to be valid, eg, one read from a conf cache, it is not compiled until it is
+     * first used.
+     *
+     * @param literalPrefix the prefix worked out by extractLiteralPrefix when the expression was checked
+     */
+    public RegexPattern(String patternStr, boolean caseSensitive, String literalPrefix) {
+        this.patternStr = patternStr;
+        this.caseSensitive = caseSensitive;
+        this.literalPrefix = literalPrefix;
+    }
+
+    private static Pattern compile(String patternStr, boolean caseSensitive)
+            throws StringMatchingPatternSyntaxException {
         try {
             if (caseSensitive) {
-                pattern = Pattern.compile(patternStr);
+                return Pattern.compile(patternStr);
             } else {
-                pattern = Pattern.compile(patternStr, Pattern.CASE_INSENSITIVE);
+                return Pattern.compile(patternStr, Pattern.CASE_INSENSITIVE);
             }
         } catch (PatternSyntaxException e) {
             throw new StringMatchingPatternSyntaxException(e);
@@ -60,7 +97,142 @@ public class RegexPattern implements StringMatchingPattern {
     }
 
     public StringMatchingMatcher matcher(String regex) {
-        return new RegexMatcher(pattern.matcher(regex));
+        Pattern current = pattern;
+        if (current == null) current = compileLazily();
+        return new RegexMatcher(current.matcher(regex));
+    }
+
+    private synchronized Pattern compileLazily() {
+        if (pattern == null) {
+            try {
+                pattern = compile(patternStr, caseSensitive);
+            } catch (StringMatchingPatternSyntaxException e) {
+                log.error("(" + patternStr + ") is an invalid expression, it will not match anything - " +
+                        e.getMessage());
+                pattern = NEVER_MATCHES;
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * @return false if the expression is being compiled lazily and has not been used yet
+     */
+    public boolean isCompiled() {
+        return pattern != null;
+    }
+
+    public String getLiteralPrefix() {
+        return literalPrefix;
+    }
+
+    /**
+     * Regular expressions are not searched for a suffix, it is always blank.
+     */
+    public String getLiteralSuffix() {
+        return "";
+    }
+
+    /**
+     * Works out the literal text any match of the expression must start with.  Only expressions anchored with ^ and
+     * without a top level alternation have a prefix, eg, <code>^/products/([0-9]+)$</code> has the prefix
+     * <code>/products/</code>.  When in doubt an empty string is returned.
+     *
+     * @param patternStr    the regular expression
+     * @param caseSensitive if false the prefix will stop at the first non US-ASCII char as these are matched
+     *                      differently
+     * @return the prefix, never null
+     */
+    public static String extractLiteralPrefix(String patternStr, boolean caseSensitive) {
+        if (patternStr == null || !patternStr.startsWith("^")) return "";
+        if (!isFreeOfTopLevelAlternation(patternStr)) return "";
+
+        StringBuffer prefix = new StringBuffer();
+        int len = patternStr.length();
+        int i = 1;
+        while (i < len) {
+            char c = patternStr.charAt(i);
+            char literal;
+            int next;
+            if (c == '\\') {
+                if (i + 1 >= len) break;
+                char escaped = patternStr.charAt(i + 1);
+                // \d, \w, \Q, \x41 etc are not literals
+                if (Character.isLetterOrDigit(escaped)) break;
+                literal = escaped;
+                next = i + 2;
+            } else if (META_CHARS.indexOf(c) != -1) {
+                break;
+            } else {
+                literal = c;
+                next = i + 1;
+            }
+            if (!caseSensitive && literal > 127) break;
+            if (next < len) {
+                char quantifier = patternStr.charAt(next);
+                // the char may not be there at all
+                if (quantifier == '?' || quantifier == '*' || quantifier == '{') break;
+                if (quantifier == '+') {
+                    prefix.append(literal);
+                    break;
+                }
+            }
+            prefix.append(literal);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    private static final String META_CHARS = "[](){}.*+?^$|";
+
+    /**
+     * Check there is no | outside of a group, a ^ only anchors the first alternative.
+     */
+    static boolean isFreeOfTopLevelAlternation(String patternStr) {
+        int depth = 0;
+        int len = patternStr.length();
+        for (int i = 0; i < len; i++) {
+            char c = patternStr.charAt(i);
+            if (c == '\\') {
+                // quoting makes it too hard to be sure
+                if (i + 1 < len && patternStr.charAt(i + 1) == 'Q') return false;
+                i++;
+            } else if (c == '[') {
+                i = skipCharClass(patternStr, i);
+                if (i == -1) return false;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the closing bracket or -1 if the class could not be understood
+     */
+    private static int skipCharClass(String patternStr, int start) {
+        int len = patternStr.length();
+        int i = start + 1;
+        if (i < len && patternStr.charAt(i) == '^') i++;
+        if (i < len && patternStr.charAt(i) == ']') return -1;
+        int depth = 1;
+        for (; i < len; i++) {
+            char c = patternStr.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < len && patternStr.charAt(i + 1) == 'Q') return -1;
+                i++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+                if (depth == 0) return i;
+            }
+        }
+        return -1;
     }
 
 }
@@ -36,9 +36,7 @@ package org.tuckey.web.filters.urlrewrite.utils;
 
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Utility class for matching server names.
@@ -51,7 +49,6 @@ public class ServerNameMatcher {
     private static Log log = Log.getLog(ServerNameMatcher.class);
 
     private List patterns = new ArrayList();
-    WildcardHelper wh = new WildcardHelper();
 
     public ServerNameMatcher(String options) {
         String[] enableOnHostsArr = options.split(",");
@@ -59,8 +56,7 @@ public class ServerNameMatcher {
             String s = enableOnHostsArr[i];
             if (StringUtils.isBlank(s)) continue;
             String rawPattern = StringUtils.trim(enableOnHostsArr[i]).toLowerCase();
-            int[] compiledPattern = wh.compilePattern(rawPattern);
-            patterns.add(compiledPattern);
+            patterns.add(new CompiledWildcard(rawPattern));
         }
     }
 
@@ -71,9 +67,8 @@ public class ServerNameMatcher {
         }
         serverName = StringUtils.trim(serverName).toLowerCase();
         for (int i = 0; i < patterns.size(); i++) {
-            int[] compiledPattern = (int[]) patterns.get(i);
-            Map map = new HashMap();
-            if (wh.match(map, serverName, compiledPattern)) return true;
+            CompiledWildcard compiledPattern = (CompiledWildcard) patterns.get(i);
+            if (compiledPattern.match(serverName, null)) return true;
         }
         return false;
     }
@@ -42,4 +42,19 @@ public interface StringMatchingPattern {
 
     public StringMatchingMatcher matcher(String matchStr);
 
+    /**
+     * Literal text that any string matching this pattern must start with.  Used to index rules so that the pattern
+     * only needs to be run against strings that have a chance of matching.
+     *
+     * @return the prefix, or an empty string if the pattern can match without a literal prefix
+     */
+    public String getLiteralPrefix();
+
+    /**
+     * Literal text that any string matching this pattern must end with.
+     *
+     * @return the suffix, or an empty string if the pattern can match without a literal suffix
+     */
+    public String getLiteralSuffix();
+
 }
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending on a single value.
+ * <p/>
+ * Each thread adds to one of a number of cells picked by its id, the cells are spaced out so that they do not share
+ * a cache line.  Reading the total sums the cells so is slower than adding and is not an atomic snapshot.
+ * <p/>
+ * Up to 8 separate values can be counted, they share each cell's cache line rather than needing a counter each.  The
+ * cells are only allocated when first added to, so a counter that is never used (eg, for a rule that never runs)
+ * takes very little memory.
+ */
+public class StripedCounter {
+
+    private static final int CELLS;
+    // 8 longs is 64 bytes, the size of a cache line on most cpus
+    private static final int SPACING = 8;
+
+    static {
+        int cells = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (cells < cpus * 2 && cells < 64) cells <<= 1;
+        CELLS = cells;
+    }
+
+    private final int values;
+    private volatile AtomicLongArray cells = null;
+
+    public StripedCounter() {
+        this(1);
+    }
+
+    /**
+     * @param values the number of separate values to count, at most 8
+     */
+    public StripedCounter(int values) {
+        if (values < 1 || values > SPACING) {
+            throw new IllegalArgumentException("values must be between 1 and " + SPACING);
+        }
+        this.values = values;
+    }
+
+    public void increment() {
+        add(0, 1);
+    }
+
+    public void add(long delta) {
+        add(0, delta);
+    }
+
+    public void increment(int value) {
+        add(value, 1);
+    }
+
+    public void add(int value, long delta) {
+        AtomicLongArray current = cells;
+        if (current == null) current = createCells();
+        int cell = (int) Thread.currentThread().getId() & (CELLS - 1);
+        current.addAndGet(cell * SPACING + value, delta);
+    }
+
+    private synchronized AtomicLongArray createCells() {
+        if (cells == null) cells = new AtomicLongArray(CELLS * SPACING);
+        return cells;
+    }
+
+    public long sum() {
+        return sum(0);
+    }
+
+    public long sum(int value) {
+        AtomicLongArray current = cells;
+        if (current == null) return 0;
+        long sum = 0;
+        for (int i = 0; i < CELLS; i++) {
+            sum += current.get(i * SPACING + value);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        AtomicLongArray current = cells;
+        if (current == null) return;
+        for (int i = 0; i < CELLS; i++) {
+            for (int j = 0; j < values; j++) {
+                current.set(i * SPACING + j, 0);
+            }
+        }
+    }
+
+}
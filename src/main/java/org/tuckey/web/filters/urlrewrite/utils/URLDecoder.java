@@ -2,22 +2,45 @@ package org.tuckey.web.filters.urlrewrite.utils;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
+/**
+ * Decodes url encoded strings.  Strings are scanned once first and if there is nothing to decode (no %, no + in a
+ * query and nothing outside of US-ASCII) the very same string is returned.  Otherwise the bytes are put into a buffer
+ * kept for each thread and decoded with a decoder cached for the thread, malformed input is replaced in the same way
+ * as new String(bytes, charset) does and chars outside of US-ASCII become '?'.
+ */
 public class URLDecoder {
 
+	/**
+	 * Buffers are kept for each thread up to this size, anything bigger gets a buffer of its own.
+	 */
+	private static final int MAX_BUFFER_SIZE = 8192;
+
+	private static final ThreadLocal buffers = new ThreadLocal() {
+		protected Object initialValue() {
+			return new DecodeBuffer();
+		}
+	};
+
 	public static String decodeURL(String url, String charset) throws URISyntaxException{
 		int queryPart = url.indexOf('?');
-		String query = null;
-		String path = url;
-		if(queryPart != -1){
-			query = url.substring(queryPart+1);
-			path = url.substring(0, queryPart);
+		if(queryPart == -1)
+			return decodePath(url, charset);
+		if(!needsDecoding(url, 0, queryPart, false) && !needsDecoding(url, queryPart+1, url.length(), true)){
+			// still make sure the charset is ok
+			getBuffer(url, charset);
+			return url;
 		}
+		String query = url.substring(queryPart+1);
+		String path = url.substring(0, queryPart);
 		String decodedPath = decodePath(path, charset);
-		if(query != null)
-			return decodedPath + '?' + decodeQuery(query, charset);
-		else
-			return decodedPath;
+		return decodedPath + '?' + decodeQuery(query, charset);
 	}
 
 	public static String decodePath(String path, String charset) throws URISyntaxException{
@@ -29,32 +52,70 @@ public class URLDecoder {
 	}
 
 	public static String decodeURLEncoded(String part, boolean query, String charset) throws URISyntaxException{
-		try{
-			byte[] ascii = part.getBytes("ASCII");
-			byte[] decoded = new byte[ascii.length];
-			int j=0;
-			for(int i=0;i<ascii.length;i++, j++){
-				if(ascii[i] == '%'){
-					if(i+2 >= ascii.length)
-						throw new URISyntaxException(part, "Invalid URL-encoded string at char "+i);
-					// get the next two bytes
-					byte first = ascii[++i];
-					byte second = ascii[++i];
-					decoded[j] = (byte) ((hexToByte(first) * 16) + hexToByte(second));
-				}else if(query && ascii[i] == '+')
-					decoded[j] = ' ';
-				else
-					decoded[j] = ascii[i];
+		DecodeBuffer buffer = getBuffer(part, charset);
+		if(!needsDecoding(part, 0, part.length(), query))
+			return part;
+
+		byte[] decoded = buffer.bytes;
+		if(decoded.length < part.length()){
+			decoded = new byte[part.length()];
+			if(decoded.length <= MAX_BUFFER_SIZE)
+				buffer.bytes = decoded;
+		}
+		int j=0;
+		for(int i=0;i<part.length();i++, j++){
+			char c = part.charAt(i);
+			if(c == '%'){
+				if(i+2 >= part.length())
+					throw new URISyntaxException(part, "Invalid URL-encoded string at char "+i);
+				// get the next two chars
+				char first = part.charAt(++i);
+				char second = part.charAt(++i);
+				decoded[j] = (byte) ((hexToByte(first) * 16) + hexToByte(second));
+			}else if(query && c == '+')
+				decoded[j] = ' ';
+			else if(c < 128)
+				decoded[j] = (byte) c;
+			else{
+				// not US-ASCII, a surrogate pair counts as one char
+				if(Character.isHighSurrogate(c) && i+1 < part.length() && Character.isLowSurrogate(part.charAt(i+1)))
+					i++;
+				decoded[j] = '?';
+			}
+		}
+		// now decode
+		return buffer.decode(decoded, j);
+	}
+
+	/**
+	 * @return true if the string has anything in it that decoding would change
+	 */
+	private static boolean needsDecoding(String s, int start, int end, boolean query){
+		for(int i=start;i<end;i++){
+			char c = s.charAt(i);
+			if(c == '%' || c >= 128 || (query && c == '+'))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the buffer for this thread ready to decode using the charset.
+	 */
+	private static DecodeBuffer getBuffer(String part, String charset) throws URISyntaxException{
+		DecodeBuffer buffer = (DecodeBuffer) buffers.get();
+		if(!charset.equals(buffer.charsetName)){
+			try{
+				buffer.setCharset(charset);
+			}catch(UnsupportedEncodingException x){
+				throw new URISyntaxException(part, "Invalid encoding: "+charset);
 			}
-			// now decode
-			return new String(decoded, 0, j, charset);
-		}catch(UnsupportedEncodingException x){
-			throw new URISyntaxException(part, "Invalid encoding: "+charset);
 		}
+		return buffer;
 	}
 
 
-	private static byte hexToByte(byte b) throws URISyntaxException{
+	private static byte hexToByte(char b) throws URISyntaxException{
 		switch(b){
 		case '0': return 0;
 		case '1': return 1;
@@ -79,6 +140,52 @@ public class URLDecoder {
 		case 'f':
 		case 'F': return 15;
 		}
-		throw new URISyntaxException(String.valueOf(b), "Invalid URL-encoded string");
+		throw new URISyntaxException(String.valueOf(b < 128 ? (byte) b : (byte) '?'), "Invalid URL-encoded string");
+	}
+
+	/**
+	 * The byte and char buffers and the decoder used by a thread.
+	 */
+	private static class DecodeBuffer {
+		private byte[] bytes = new byte[256];
+		private char[] chars = new char[256];
+		private String charsetName;
+		private Charset charset;
+		private CharsetDecoder decoder;
+
+		void setCharset(String charsetName) throws UnsupportedEncodingException{
+			Charset newCharset;
+			try{
+				newCharset = Charset.forName(charsetName);
+			}catch(IllegalArgumentException x){
+				// illegal or unsupported charset name
+				throw new UnsupportedEncodingException(charsetName);
+			}
+			// the same as new String(bytes, charset)
+			decoder = newCharset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			charset = newCharset;
+			this.charsetName = charsetName;
+		}
+
+		String decode(byte[] decoded, int length){
+			int maxChars = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+			char[] out = chars;
+			if(out.length < maxChars){
+				out = new char[maxChars];
+				if(out.length <= MAX_BUFFER_SIZE)
+					chars = out;
+			}
+			decoder.reset();
+			CharBuffer charBuffer = CharBuffer.wrap(out);
+			ByteBuffer byteBuffer = ByteBuffer.wrap(decoded, 0, length);
+			CoderResult result = decoder.decode(byteBuffer, charBuffer, true);
+			if(!result.isOverflow())
+				result = decoder.flush(charBuffer);
+			if(result.isOverflow())
+				return new String(decoded, 0, length, charset);
+			return new String(out, 0, charBuffer.position());
+		}
 	}
 }
@@ -1,11 +1,20 @@
 package org.tuckey.web.filters.urlrewrite.utils;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.BitSet;
 
 /**
  * URL-encoding utility for each URL part according to the RFC specs
  * see the rfc at http://www.ietf.org/rfc/rfc2396.txt
+ * <p/>
+ * Which US-ASCII chars can be left alone is looked up in a 128 entry table for each part, a string that has nothing
+ * to encode is returned as is.  Anything else is encoded with a CharsetEncoder cached for each thread.
  *
  * @author stephane
  */
@@ -165,6 +174,45 @@ public class URLEncoder {
         PCHAR.set(',');
     }
 
+    /**
+     * Chars left alone in a query by java.net.URLEncoder (which also turns a space into a '+').
+     */
+    private static final boolean[] QUERY_TABLE = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) QUERY_TABLE[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++) QUERY_TABLE[c] = true;
+        for (char c = '0'; c <= '9'; c++) QUERY_TABLE[c] = true;
+        QUERY_TABLE['-'] = true;
+        QUERY_TABLE['_'] = true;
+        QUERY_TABLE['.'] = true;
+        QUERY_TABLE['*'] = true;
+    }
+
+    private static final boolean[] PCHAR_TABLE = toTable(PCHAR);
+
+    private static final char[] LOWER_HEX = "0123456789abcdef".toCharArray();
+    private static final char[] UPPER_HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Buffers are kept for each thread up to this size, anything bigger gets a buffer of its own.
+     */
+    private static final int MAX_BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal encoders = new ThreadLocal() {
+        protected Object initialValue() {
+            return new EncodeBuffer();
+        }
+    };
+
+    private static boolean[] toTable(BitSet bitSet) {
+        boolean[] table = new boolean[128];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = bitSet.get(i);
+        }
+        return table;
+    }
+
     /**
      * Encodes a string to be a valid path parameter URL, which means it can contain PCHAR* only (do not put the leading
      * ";" or it will be escaped.
@@ -185,26 +233,147 @@ public class URLEncoder {
         if (pathSegment == null) {
             return null;
         }
+        return encode(pathSegment, PCHAR_TABLE, false, LOWER_HEX, charset);
+    }
+
+    /**
+     * Encodes a string for use as a name or value in a query string, exactly as java.net.URLEncoder does, ie, a space
+     * becomes '+'.
+     *
+     * @throws UnsupportedEncodingException
+     */
+    public static String encodeQuery(final String query, final String charset) throws UnsupportedEncodingException {
+        if (query == null) {
+            return null;
+        }
+        return encode(query, QUERY_TABLE, true, UPPER_HEX, charset);
+    }
+
+    private static String encode(String s, boolean[] table, boolean query, char[] hex, String charset)
+            throws UnsupportedEncodingException {
+        int length = s.length();
+        int i = 0;
+        while (i < length && isLeftAlone(s.charAt(i), table)) {
+            i++;
+        }
+        if (i == length) return s;
+        EncodeBuffer buffer = getBuffer(charset);
+
         // start at *3 for the worst case when everything is %encoded on one byte
-        final StringBuffer encoded = new StringBuffer(pathSegment.length() * 3);
-        final char[] toEncode = pathSegment.toCharArray();
-        for (int i = 0; i < toEncode.length; i++) {
-            char c = toEncode[i];
-            if (PCHAR.get(c)) {
+        StringBuilder encoded = new StringBuilder(length * 3);
+        encoded.append(s, 0, i);
+        while (i < length) {
+            char c = s.charAt(i);
+            if (isLeftAlone(c, table)) {
                 encoded.append(c);
+                i++;
+            } else if (query && c == ' ') {
+                encoded.append('+');
+                i++;
+            } else if (c < 128 && buffer.asciiCompatible) {
+                appendHex(encoded, c, hex);
+                i++;
             } else {
-                final byte[] bytes = String.valueOf(c).getBytes(charset);
-                for (int j = 0; j < bytes.length; j++) {
-                    byte b = bytes[j];
-                    // make it unsigned
-                    final int u8 = b & 0xFF;
-                    encoded.append("%");
-                    if (u8 < 16)
-                        encoded.append("0");
-                    encoded.append(Integer.toHexString(u8));
+                // encode all of the run of chars together so that surrogate pairs stay together
+                int start = i;
+                i++;
+                while (i < length && !isLeftAlone(s.charAt(i), table) && !(query && s.charAt(i) == ' ') &&
+                        !(s.charAt(i) < 128 && buffer.asciiCompatible)) {
+                    i++;
                 }
-			}
-		}
-		return encoded.toString();
-	}
+                buffer.encode(s, start, i, encoded, hex);
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static boolean isLeftAlone(char c, boolean[] table) {
+        return c < 128 && table[c];
+    }
+
+    private static void appendHex(StringBuilder encoded, int b, char[] hex) {
+        encoded.append('%');
+        encoded.append(hex[(b >> 4) & 0xF]);
+        encoded.append(hex[b & 0xF]);
+    }
+
+    /**
+     * Get the buffer for this thread ready to encode using the charset.
+     */
+    private static EncodeBuffer getBuffer(String charset) throws UnsupportedEncodingException {
+        EncodeBuffer buffer = (EncodeBuffer) encoders.get();
+        if (!charset.equals(buffer.charsetName)) {
+            buffer.setCharset(charset);
+        }
+        return buffer;
+    }
+
+    /**
+     * The encoder and byte buffer used by a thread.
+     */
+    private static class EncodeBuffer {
+        private byte[] bytes = new byte[64];
+        private String charsetName;
+        private Charset charset;
+        private CharsetEncoder encoder;
+        // true if every US-ASCII char encodes to the same single byte
+        private boolean asciiCompatible;
+
+        void setCharset(String charsetName) throws UnsupportedEncodingException {
+            Charset newCharset;
+            try {
+                newCharset = Charset.forName(charsetName);
+            } catch (IllegalArgumentException e) {
+                // illegal or unsupported charset name
+                throw new UnsupportedEncodingException(charsetName);
+            }
+            if (!newCharset.canEncode()) throw new UnsupportedEncodingException(charsetName);
+            // the same as String.getBytes(charset)
+            encoder = newCharset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            charset = newCharset;
+            asciiCompatible = isAsciiCompatible(newCharset);
+            this.charsetName = charsetName;
+        }
+
+        void encode(String s, int start, int end, StringBuilder encoded, char[] hex) {
+            int maxBytes = (int) Math.ceil((end - start) * (double) encoder.maxBytesPerChar());
+            byte[] out = bytes;
+            if (out.length < maxBytes) {
+                out = new byte[maxBytes];
+                if (out.length <= MAX_BUFFER_SIZE) bytes = out;
+            }
+            encoder.reset();
+            ByteBuffer byteBuffer = ByteBuffer.wrap(out);
+            CoderResult result = encoder.encode(CharBuffer.wrap(s, start, end), byteBuffer, true);
+            if (!result.isOverflow()) result = encoder.flush(byteBuffer);
+            int length = byteBuffer.position();
+            if (result.isOverflow()) {
+                out = s.substring(start, end).getBytes(charset);
+                length = out.length;
+            }
+            for (int i = 0; i < length; i++) {
+                appendHex(encoded, out[i] & 0xFF, hex);
+            }
+        }
+
+        private static boolean isAsciiCompatible(Charset charset) {
+            char[] ascii = new char[128];
+            for (int i = 0; i < ascii.length; i++) {
+                ascii[i] = (char) i;
+            }
+            byte[] bytes;
+            try {
+                bytes = new String(ascii).getBytes(charset.name());
+            } catch (UnsupportedEncodingException e) {
+                return false;
+            }
+            if (bytes.length != ascii.length) return false;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != i) return false;
+            }
+            return true;
+        }
+    }
 }
@@ -34,35 +34,44 @@
  */
 package org.tuckey.web.filters.urlrewrite.utils;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Implements a regex like interface on top of WildcardMatcher, this is really just a convenience class
+ * Implements a regex like interface on top of CompiledWildcard, this is really just a convenience class
  * so that it's easier for us to program against regex and wildcard patterns.
+ * <p/>
+ * Groups are kept as offsets into the matched string and only cut out when asked for.
  */
 public class WildcardMatcher implements StringMatchingMatcher {
 
     private static Log log = Log.getLog(WildcardMatcher.class);
 
 
-    private WildcardHelper wh;
-    private int[] compiledPattern;
+    private static final int[] NO_GROUPS = new int[0];
+
+    private CompiledWildcard compiledWildcard;
     private String matchStr;
-    private Map resultMap = new HashMap();
+    private int[] groups;
     private boolean found = false;
 
 
     public WildcardMatcher(WildcardHelper wh, String patternStr, String matchStr) {
-        this.wh = wh;
-        this.compiledPattern = wh.compilePattern(patternStr);
+        this(new CompiledWildcard(patternStr), matchStr);
+    }
+
+    public WildcardMatcher(CompiledWildcard compiledWildcard, String matchStr) {
+        this.compiledWildcard = compiledWildcard;
         this.matchStr = matchStr;
+        int wildcardCount = compiledWildcard.getWildcardCount();
+        this.groups = wildcardCount == 0 ? NO_GROUPS : new int[wildcardCount * 2];
     }
 
     public boolean find() {
-        found = wh.match(resultMap, matchStr, compiledPattern);
+        if (matchStr == null) {
+            throw new NullPointerException("No data provided");
+        }
+        found = compiledWildcard.match(matchStr, groups);
         return found;
     }
 
@@ -131,13 +140,14 @@ public class WildcardMatcher implements StringMatchingMatcher {
     }
 
     public int groupCount() {
-        if (resultMap == null) return 0;
-        return resultMap.size() == 0 ? 0 : resultMap.size() - 1;
+        if (!found) return 0;
+        return groups.length / 2;
     }
 
     public String group(int groupId) {
-        if (resultMap == null) return null;
-        return (String) resultMap.get("" + groupId);
+        if (!found || groupId < 0 || groupId > groups.length / 2) return null;
+        if (groupId == 0) return matchStr;
+        return matchStr.substring(groups[groupId * 2 - 2], groups[groupId * 2 - 1]);
     }
 
 	public int end() {
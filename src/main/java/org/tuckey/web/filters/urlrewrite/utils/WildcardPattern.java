@@ -40,16 +40,28 @@ package org.tuckey.web.filters.urlrewrite.utils;
  */
 public class WildcardPattern implements StringMatchingPattern {
 
-    WildcardHelper wh;
-    private String patternStr;
+    private CompiledWildcard compiledWildcard;
 
     public WildcardPattern(String patternStr) {
-        this.wh = new WildcardHelper();
-        this.patternStr = patternStr;
+        this.compiledWildcard = new CompiledWildcard(patternStr);
     }
 
 
     public StringMatchingMatcher matcher(String matchStr) {
-        return new WildcardMatcher(wh, patternStr, matchStr);
+        return new WildcardMatcher(compiledWildcard, matchStr);
+    }
+
+    /**
+     * Wildcard patterns are always matched from the start so the prefix is everything before the first *.
+     */
+    public String getLiteralPrefix() {
+        return compiledWildcard.getLiteralPrefix();
+    }
+
+    /**
+     * Wildcard patterns must match to the end so the suffix is everything after the last *.
+     */
+    public String getLiteralSuffix() {
+        return compiledWildcard.getLiteralSuffix();
     }
 }
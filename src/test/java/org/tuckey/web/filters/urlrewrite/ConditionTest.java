@@ -39,6 +39,9 @@ import org.tuckey.web.testhelper.MockRequest;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
 
 import javax.servlet.http.Cookie;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Calendar;
 
@@ -622,6 +625,120 @@ public class ConditionTest extends TestCase {
         assertNotNull("condition must match", condition.getConditionMatch(request));
     }
 
+    public void testRemoteAddrInRange() {
+        MockRequest request = new MockRequest();
+        Condition condition = new Condition();
+        condition.setType("remote-addr");
+        condition.setOperator("inrange");
+        condition.setValue("10.0.0.0/8, 192.168.0.0/16 2001:db8::/32");
+        assertTrue(condition.initialise());
+        assertEquals("inrange", condition.getOperator());
+        assertNull("condition must not match", condition.getConditionMatch(request));
+
+        request.setRemoteAddr("192.168.184.23");
+        assertNotNull("condition must match", condition.getConditionMatch(request));
+        request.setRemoteAddr("2001:db8::17");
+        assertNotNull("condition must match", condition.getConditionMatch(request));
+        request.setRemoteAddr("192.169.0.1");
+        assertNull("condition must not match", condition.getConditionMatch(request));
+
+        Condition notCondition = new Condition();
+        notCondition.setType("remote-addr");
+        notCondition.setOperator("notinrange");
+        notCondition.setValue("10.0.0.0/8");
+        assertTrue(notCondition.initialise());
+        assertNotNull("condition must match", notCondition.getConditionMatch(request));
+        request.setRemoteAddr("10.9.9.9");
+        assertNull("condition must not match", notCondition.getConditionMatch(request));
+    }
+
+    public void testForwardedForInRange() {
+        MockRequest request = new MockRequest();
+        Condition condition = new Condition();
+        condition.setName("X-Forwarded-For");
+        condition.setOperator("inrange");
+        condition.setValue("10.0.0.0/8");
+        assertTrue(condition.initialise());
+        assertNull("condition must not match", condition.getConditionMatch(request));
+
+        request.setHeader("X-Forwarded-For", "10.1.1.1");
+        assertNotNull("condition must match", condition.getConditionMatch(request));
+        request.setHeader("X-Forwarded-For", "10.1.1.1, 203.0.113.9");
+        assertNull("last hop must be used", condition.getConditionMatch(request));
+        request.setHeader("X-Forwarded-For", "203.0.113.9, 10.1.1.1");
+        assertNotNull("last hop must be used", condition.getConditionMatch(request));
+    }
+
+    public void testInRangeFile() throws IOException {
+        File file = File.createTempFile("urlrewrite", ".txt");
+        try {
+            FileWriter writer = new FileWriter(file);
+            writer.write("# test ranges\n172.16.0.0/12\n");
+            writer.close();
+            MockRequest request = new MockRequest();
+            request.setRemoteAddr("172.20.0.1");
+            Condition condition = new Condition();
+            condition.setType("remote-addr");
+            condition.setOperator("inrange");
+            condition.setValue("file:" + file.getAbsolutePath());
+            assertTrue(condition.initialise());
+            assertNotNull("condition must match", condition.getConditionMatch(request));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testInRangeFilePerConf() throws IOException {
+        File file = File.createTempFile("urlrewrite", ".txt");
+        try {
+            FileWriter writer = new FileWriter(file);
+            writer.write("172.16.0.0/12\n");
+            writer.close();
+            Conf conf = newInRangeConf(file);
+            Conf otherConf = newInRangeConf(file);
+            assertEquals("shared by the conditions in a conf", 1, conf.getIpRangeFiles().size());
+            assertNotSame("not shared between confs", conf.getIpRangeFiles().iterator().next(),
+                    otherConf.getIpRangeFiles().iterator().next());
+            conf.destroy();
+            assertEquals(0, conf.getIpRangeFiles().size());
+            assertEquals(1, otherConf.getIpRangeFiles().size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static Conf newInRangeConf(File file) {
+        Conf conf = new Conf();
+        for (int i = 0; i < 2; i++) {
+            NormalRule rule = new NormalRule();
+            rule.setFrom("^/internal/" + i + "/");
+            rule.setTo("/blocked");
+            Condition condition = new Condition();
+            condition.setType("remote-addr");
+            condition.setOperator("inrange");
+            condition.setValue("file:" + file.getAbsolutePath());
+            rule.addCondition(condition);
+            conf.addRule(rule);
+        }
+        conf.initialise();
+        assertTrue(conf.isOk());
+        return conf;
+    }
+
+    public void testInRangeInvalid() {
+        Condition condition = new Condition();
+        condition.setType("remote-addr");
+        condition.setOperator("inrange");
+        condition.setValue("10.0.0.0/40");
+        assertFalse(condition.initialise());
+
+        Condition condition2 = new Condition();
+        condition2.setType("remote-addr");
+        condition2.setOperator("inrange");
+        condition2.setValue("file:/does/not/exist.txt");
+        assertFalse(condition2.initialise());
+    }
+
     public void testRemoteHost() throws UnsupportedEncodingException {
         MockRequest request = new MockRequest();
         Condition condition = new Condition();
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+
+public class ConfSnapshotTest extends TestCase {
+
+    public void setUp() {
+        Log.setLevel("DEBUG");
+    }
+
+    private ConfSnapshot newSnapshot() {
+        Conf conf = new Conf();
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^/a/(.*)$");
+        rule.setTo("/b/$1");
+        conf.addRule(rule);
+        conf.initialise();
+        return new ConfSnapshot(new UrlRewriter(conf));
+    }
+
+    public void testAcquireRelease() {
+        ConfSnapshot snapshot = newSnapshot();
+        assertEquals(1, snapshot.getRules().size());
+        assertTrue(snapshot.acquire());
+        assertTrue(snapshot.acquire());
+        assertEquals(2, snapshot.getInFlight());
+        snapshot.release();
+        assertEquals(1, snapshot.getInFlight());
+        assertFalse(snapshot.isDrained());
+
+        snapshot.retire();
+        assertFalse("retired snapshots cannot be acquired", snapshot.acquire());
+        assertEquals(1, snapshot.getInFlight());
+        assertFalse(snapshot.isDrained());
+        snapshot.release();
+        assertTrue(snapshot.isDrained());
+    }
+
+    public void testRulesUnmodifiable() {
+        ConfSnapshot snapshot = newSnapshot();
+        try {
+            snapshot.getRules().clear();
+            fail("rules should not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void testDestroyedByLastRelease() {
+        ConfSnapshot snapshot = newSnapshot();
+        assertTrue(snapshot.acquire());
+        assertTrue(snapshot.acquire());
+        snapshot.retire();
+        assertTrue(snapshot.isRetired());
+        assertFalse("should wait for the requests to release", snapshot.isDestroyed());
+        snapshot.release();
+        assertFalse(snapshot.isDestroyed());
+        snapshot.release();
+        assertTrue(snapshot.isDestroyed());
+    }
+
+    public void testDestroyedOnRetireWhenNotInUse() {
+        ConfSnapshot snapshot = newSnapshot();
+        assertTrue(snapshot.acquire());
+        snapshot.release();
+        assertFalse("not retired", snapshot.isDestroyed());
+        snapshot.retire();
+        assertTrue(snapshot.isDestroyed());
+    }
+
+    public void testRulesCopied() {
+        Conf conf = new Conf();
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^/a/(.*)$");
+        rule.setTo("/b/$1");
+        conf.addRule(rule);
+        conf.initialise();
+        ConfSnapshot snapshot = new ConfSnapshot(new UrlRewriter(conf));
+        conf.getRules().clear();
+        assertEquals(1, snapshot.getRules().size());
+    }
+
+    public void testConcurrentAcquireDuringRetire() throws InterruptedException {
+        final ConfSnapshot snapshot = newSnapshot();
+        final boolean[] usedAfterDestroy = new boolean[1];
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 20000; j++) {
+                        if (!snapshot.acquire()) return;
+                        if (snapshot.isDestroyed()) usedAfterDestroy[0] = true;
+                        snapshot.release();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        Thread.sleep(5);
+        snapshot.retire();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join(5000);
+        }
+        assertTrue(snapshot.isDestroyed());
+        assertFalse(usedAfterDestroy[0]);
+        assertEquals(0, snapshot.getInFlight());
+    }
+
+}
@@ -36,10 +36,21 @@ package org.tuckey.web.filters.urlrewrite;
 
 import junit.framework.TestCase;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.RegexPattern;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
 import org.tuckey.web.testhelper.MockServletContext;
 
+import javax.servlet.ServletException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
 import java.util.List;
 
 
@@ -136,6 +147,13 @@ public class ConfTest extends TestCase {
         assertEquals("wildcard", ((NormalRule) conf.getRules().get(2)).getMatchType());
 
         assertEquals("Included Rule (rule 3)", ((Rule) conf.getRules().get(3)).getDisplayName());
+        assertEquals(1, conf.getIncludedSystemIds().size());
+        assertTrue(((String) conf.getIncludedSystemIds().get(0)).endsWith("/conf-test2-incl.xml"));
+
+        OutboundRule outboundRule = (OutboundRule) conf.getOutboundRules().get(0);
+        assertTrue(outboundRule.isRewriteBody());
+        assertNotNull(conf.getCompiledBodyOutboundRules());
+        assertEquals(1, conf.getCompiledBodyOutboundRules().size());
     }
 
     public void testConfBadParse() throws FileNotFoundException {
@@ -143,5 +161,279 @@ public class ConfTest extends TestCase {
         assertFalse("a validation error should make the conf fail to load", conf.isOk());
     }
 
-}
+    public void testSaxLoaderSameAsDom() throws IOException {
+        String[] files = {"conf-test1.xml", "conf-test2.xml", "conf-test-no-dtd.xml", "conf-test-bad-parse.xml"};
+        for (int i = 0; i < files.length; i++) {
+            URL url = ConfTest.class.getResource(files[i]);
+            Conf domConf = loadConf(url, Conf.LOADER_DOM, true);
+            assertEquals(Conf.LOADER_DOM, domConf.getLoader());
+            Conf saxConf = loadConf(url, Conf.LOADER_SAX, true);
+            assertEquals(Conf.LOADER_SAX, saxConf.getLoader());
+            assertSameConf(files[i], domConf, saxConf);
+            assertSameConf(files[i] + " not validated", domConf, loadConf(url, Conf.LOADER_SAX, false));
+        }
+    }
+
+    public void testSaxLoaderIncludes() throws IOException {
+        Conf conf = loadConf(ConfTest.class.getResource("conf-test2.xml"), Conf.LOADER_SAX, true);
+        assertTrue(conf.isOk());
+        assertEquals("Included Rule (rule 3)", ((Rule) conf.getRules().get(3)).getDisplayName());
+        assertEquals(1, conf.getIncludedSystemIds().size());
+    }
+
+    public void testConfCache() throws IOException {
+        File cacheFile = File.createTempFile("urlrewrite", ".cache");
+        cacheFile.delete();
+        try {
+            String[] files = {"conf-test1.xml", "conf-test2.xml"};
+            for (int i = 0; i < files.length; i++) {
+                URL url = ConfTest.class.getResource(files[i]);
+                Conf domConf = loadConf(url, Conf.LOADER_DOM, true);
+
+                Conf firstConf = loadConf(url, cacheFile);
+                assertFalse(firstConf.isLoadedFromCache());
+                assertTrue("cache should be written", cacheFile.exists());
+                assertSameConf(files[i], domConf, firstConf);
+
+                Conf cachedConf = loadConf(url, cacheFile);
+                assertTrue(cachedConf.isLoadedFromCache());
+                assertEquals("cache", cachedConf.getLoader());
+                assertSameConf(files[i] + " from cache", domConf, cachedConf);
+                assertEquals(domConf.getIncludedSystemIds(), cachedConf.getIncludedSystemIds());
+                cacheFile.delete();
+            }
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    public void testConfCacheKeepsCompiledForm() throws IOException, ServletException, InvocationTargetException {
+        String xml = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<!DOCTYPE urlrewrite PUBLIC \"-//tuckey.org//DTD UrlRewrite 4.0//EN\"\n" +
+                "        \"http://www.tuckey.org/res/dtds/urlrewrite4.0.dtd\">\n" +
+                "<urlrewrite match-engine=\"multi\">\n" +
+                "    <rule><from>^/products/([0-9]+)$</from><to>/product.jsp?id=$1</to></rule>\n" +
+                "    <rule><condition name=\"host\">^www\\.</condition>" +
+                "<from>^/about$</from><to type=\"redirect\">/about-us/%{request-uri}</to></rule>\n" +
+                "    <rule match-type=\"wildcard\"><from>/old/**</from><to>/new/$1</to></rule>\n" +
+                "    <rule><from>^/stop</from><to>null</to></rule>\n" +
+                "    <outbound-rule rewrite-body=\"true\"><from>^/product.jsp\\?id=([0-9]+)$</from>" +
+                "<to>/products/$1</to></outbound-rule>\n" +
+                "    <outbound-rule encodefirst=\"true\"><from>^/x(.*)$</from><to>/y$1</to></outbound-rule>\n" +
+                "</urlrewrite>\n";
+        byte[] bytes = xml.getBytes("UTF-8");
+        File cacheFile = File.createTempFile("urlrewrite", ".cache");
+        cacheFile.delete();
+        try {
+            Conf firstConf = new Conf(new MockServletContext(), new ByteArrayInputStream(bytes), "cached.xml", null,
+                    false, Conf.LOADER_DOM, true, cacheFile);
+            assertTrue(firstConf.isOk());
+            assertFalse(firstConf.isLoadedFromCache());
+            Conf cachedConf = new Conf(new MockServletContext(), new ByteArrayInputStream(bytes), "cached.xml", null,
+                    false, Conf.LOADER_DOM, true, cacheFile);
+            assertTrue(cachedConf.isOk());
+            assertTrue(cachedConf.isLoadedFromCache());
+            assertSameConf("cached.xml from cache", firstConf, cachedConf);
+
+            // the indexes were read from the cache rather than built again
+            assertEquals(firstConf.getRuleIndex().getClass(), cachedConf.getRuleIndex().getClass());
+            String[] urls = {"/products/12", "/about", "/old/a/b", "/stop", "/other"};
+            for (int i = 0; i < urls.length; i++) {
+                assertEquals(urls[i], toString(firstConf.getRuleIndex().getCandidates(urls[i])),
+                        toString(cachedConf.getRuleIndex().getCandidates(urls[i])));
+            }
+            assertNotNull(cachedConf.getCompiledBodyOutboundRules());
+            assertEquals(1, cachedConf.getCompiledOutboundRules(true).size());
+
+            UrlRewriter urlRewriter = new UrlRewriter(cachedConf);
+            MockResponse response = new MockResponse();
+            RewrittenUrl rewrittenUrl = urlRewriter.processRequest(new MockRequest("/products/12"), response);
+            assertEquals("/product.jsp?id=12", rewrittenUrl.getTarget());
+            rewrittenUrl = urlRewriter.processRequest(new MockRequest("/old/a/b"), response);
+            assertEquals("/new/a/b", rewrittenUrl.getTarget());
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    private static String toString(int[] ids) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(ids[i]);
+        }
+        return sb.toString();
+    }
+
+    public void testConfCacheIgnoredWhenConfChanged() throws IOException {
+        File cacheFile = File.createTempFile("urlrewrite", ".cache");
+        cacheFile.delete();
+        try {
+            URL url = ConfTest.class.getResource("conf-test1.xml");
+            loadConf(url, cacheFile);
+            assertTrue(loadConf(url, cacheFile).isLoadedFromCache());
+
+            // the same conf with a comment added is a different file
+            InputStream is = url.openStream();
+            byte[] changed = (new String(ConfCache.readFully(is), "UTF-8") + "<!-- changed -->").getBytes("UTF-8");
+            is.close();
+            Conf changedConf = new Conf(new MockServletContext(), new ByteArrayInputStream(changed), url.getFile(),
+                    url.toString(), false, Conf.LOADER_DOM, true, cacheFile);
+            assertTrue(changedConf.isOk());
+            assertFalse(changedConf.isLoadedFromCache());
+
+            // corrupt the cache, it should be ignored and rewritten
+            RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+            raf.seek(raf.length() / 2);
+            raf.write(~raf.read());
+            raf.close();
+            Conf conf = loadConf(url, cacheFile);
+            assertTrue(conf.isOk());
+            assertFalse(conf.isLoadedFromCache());
+            assertTrue(loadConf(url, cacheFile).isLoadedFromCache());
+        } finally {
+            cacheFile.delete();
+        }
+    }
 
+    private static Conf loadConf(URL url, File cacheFile) throws IOException {
+        InputStream is = url.openStream();
+        try {
+            return new Conf(new MockServletContext(), is, url.getFile(), url.toString(), false, Conf.LOADER_SAX, true,
+                    cacheFile);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static Conf newBigConf(int ruleCount, int threads) {
+        Conf conf = new Conf();
+        conf.setInitThreads(threads);
+        for (int i = 0; i < ruleCount; i++) {
+            NormalRule rule = new NormalRule();
+            // every 100th rule is invalid
+            rule.setFrom(i % 100 == 50 ? "^/bad" + i + "/(" : "^/section" + i + "/([a-z]+)$");
+            rule.setTo("/new/" + i + "/$1");
+            conf.addRule(rule);
+        }
+        OutboundRule outboundRule = new OutboundRule();
+        outboundRule.setFrom("^/a");
+        outboundRule.setTo("/b");
+        conf.addOutboundRule(outboundRule);
+        conf.initialise();
+        return conf;
+    }
+
+    public void testParallelInitialiseSameAsSerial() {
+        Log.setLevel("ERROR");
+        Conf serialConf = newBigConf(2000, 1);
+        Conf parallelConf = newBigConf(2000, 4);
+        assertFalse(serialConf.isOk());
+        assertFalse(parallelConf.isOk());
+        assertEquals(serialConf.getErrors(), parallelConf.getErrors());
+        for (int i = 0; i < 2000; i++) {
+            NormalRule serialRule = (NormalRule) serialConf.getRules().get(i);
+            NormalRule parallelRule = (NormalRule) parallelConf.getRules().get(i);
+            assertEquals("rule " + i, serialRule.isValid(), parallelRule.isValid());
+            assertEquals("rule " + i, serialRule.getErrors(), parallelRule.getErrors());
+            assertEquals("rule " + i, serialRule.getFromLiteralPrefix(), parallelRule.getFromLiteralPrefix());
+        }
+        assertTrue(((OutboundRule) parallelConf.getOutboundRules().get(0)).isValid());
+    }
+
+    public void testLazyCompile() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        conf.setLazyCompile(true);
+        NormalRule badRule = new NormalRule();
+        badRule.setFrom("^/bad/(");
+        badRule.setTo("/never");
+        conf.addRule(badRule);
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^/good/([a-z]+)$");
+        rule.setTo("/new/$1");
+        conf.addRule(rule);
+        conf.initialise();
+        assertTrue("errors in lazily compiled expressions are not found until the rule is run", conf.isOk());
+        assertTrue(rule.isLazyCompile());
+        assertEquals("/good/", rule.getFromLiteralPrefix());
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        MockResponse response = new MockResponse();
+        assertNull(urlRewriter.processRequest(new MockRequest("/bad/("), response));
+        RewrittenUrl rewrittenUrl = urlRewriter.processRequest(new MockRequest("/good/abc"), response);
+        assertEquals("/new/abc", rewrittenUrl.getTarget());
+    }
+
+    public void testLazyRegexPattern() throws Exception {
+        RegexPattern pattern = new RegexPattern("^/a/([0-9]+)$", true, true);
+        assertFalse(pattern.isCompiled());
+        assertEquals("/a/", pattern.getLiteralPrefix());
+        assertTrue(pattern.matcher("/a/12").find());
+        assertTrue(pattern.isCompiled());
+
+        RegexPattern badPattern = new RegexPattern("^/a/(", true, true);
+        assertFalse(badPattern.matcher("/a/(").find());
+    }
+
+    private static Conf loadConf(URL url, String loader, boolean validate) throws IOException {
+        InputStream is = url.openStream();
+        try {
+            return new Conf(new MockServletContext(), is, url.getFile(), url.toString(), false, loader, validate);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void assertSameConf(String message, Conf expected, Conf actual) {
+        assertEquals(message, expected.isOk(), actual.isOk());
+        assertSameBean(message, expected, actual);
+        assertSameList(message + " rules", expected.getRules(), actual.getRules());
+        assertSameList(message + " outbound rules", expected.getOutboundRules(), actual.getOutboundRules());
+        assertSameList(message + " catch elems", expected.getCatchElems(), actual.getCatchElems());
+    }
+
+    private static void assertSameList(String message, List expected, List actual) {
+        assertEquals(message + " size", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Object expectedItem = expected.get(i);
+            Object actualItem = actual.get(i);
+            assertEquals(message, expectedItem.getClass(), actualItem.getClass());
+            assertSameBean(message + " " + i, expectedItem, actualItem);
+        }
+    }
+
+    /**
+     * Compare the simple properties of two beans, and the lists they hold (eg, conditions on a rule).
+     */
+    private static void assertSameBean(String message, Object expected, Object actual) {
+        Method[] methods = expected.getClass().getMethods();
+        for (int i = 0; i < methods.length; i++) {
+            Method method = methods[i];
+            String name = method.getName();
+            if (method.getParameterTypes().length > 0) continue;
+            if (!name.startsWith("get") && !name.startsWith("is")) continue;
+            if ("getLoader".equals(name) || "getLoadTime".equals(name) || "getLoadedDate".equals(name) ||
+                    "getLoadAllocatedBytes".equals(name) || "isLoadedFromCache".equals(name)) continue;
+            Class type = method.getReturnType();
+            if (!type.isPrimitive() && type != String.class && type != List.class) continue;
+            Object expectedValue;
+            Object actualValue;
+            try {
+                expectedValue = method.invoke(expected, new Object[0]);
+                actualValue = method.invoke(actual, new Object[0]);
+            } catch (Exception e) {
+                continue;
+            }
+            if (type == List.class) {
+                if (expectedValue == null || actualValue == null) {
+                    assertEquals(message + " " + name, expectedValue, actualValue);
+                } else if (!(expected instanceof Conf)) {
+                    assertSameList(message + " " + name, (List) expectedValue, (List) actualValue);
+                }
+            } else {
+                assertEquals(message + " " + name, expectedValue, actualValue);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.testhelper.MockRequest;
+
+import javax.servlet.http.Cookie;
+import java.util.Calendar;
+
+public class EvaluationContextTest extends TestCase {
+
+    private CountingRequest request;
+
+    public void setUp() {
+        Log.setLevel("DEBUG");
+        request = new CountingRequest();
+    }
+
+    public void testHeadersLookedUpOnce() {
+        request.setHeader("user-agent", "Mozilla");
+        EvaluationContext evaluationContext = new EvaluationContext(request);
+        assertEquals("Mozilla", evaluationContext.getHeader("user-agent"));
+        assertEquals("Mozilla", evaluationContext.getHeader("user-agent"));
+        assertNull(evaluationContext.getHeader("referer"));
+        assertNull(evaluationContext.getHeader("referer"));
+        assertEquals(2, request.headerLookups);
+    }
+
+    public void testCookies() {
+        EvaluationContext evaluationContext = new EvaluationContext(request);
+        assertNull(evaluationContext.getCookies());
+        assertNull(evaluationContext.getCookie("a"));
+
+        request.addCookie(new Cookie("a", "1"));
+        request.addCookie(new Cookie("b", "2"));
+        request.addCookie(new Cookie("a", "3"));
+        evaluationContext = new EvaluationContext(request);
+        assertEquals("1", evaluationContext.getCookie("a").getValue());
+        assertEquals("2", evaluationContext.getCookie("b").getValue());
+        assertNull(evaluationContext.getCookie("c"));
+        // once for each context
+        assertEquals(2, request.cookieLookups);
+    }
+
+    public void testRequestUrlAndSession() {
+        request.setRequestURL("http://example.com/a");
+        EvaluationContext evaluationContext = new EvaluationContext(request);
+        assertEquals("http://example.com/a", evaluationContext.getRequestURL());
+        assertEquals("http://example.com/a", evaluationContext.getRequestURL());
+        assertEquals(1, request.requestUrlLookups);
+
+        assertNull(evaluationContext.getSession());
+        request.getSession(true);
+        assertNotNull("a session made by a rule must be seen", evaluationContext.getSession());
+    }
+
+    public void testCalendarField() {
+        EvaluationContext evaluationContext = new EvaluationContext(request);
+        int year = Calendar.getInstance().get(Calendar.YEAR);
+        assertTrue(evaluationContext.getCalendarField(Calendar.YEAR) >= year);
+    }
+
+    public void testSharedByConditionsAndTo() throws Exception {
+        request.setHeader("user-agent", "Mozilla");
+        Conf conf = new Conf();
+        for (int i = 0; i < 10; i++) {
+            NormalRule rule = new NormalRule();
+            rule.setFrom("^/a/.*$");
+            rule.setTo("/b/%{header:user-agent}/" + i);
+            Condition condition = new Condition();
+            condition.setType("header");
+            condition.setName("user-agent");
+            condition.setValue("Mozilla");
+            rule.addCondition(condition);
+            conf.addRule(rule);
+        }
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        RuleChain chain = new RuleChain(urlRewriter, "/a/c", null);
+        for (int i = 0; i < 10; i++) {
+            NormalRule rule = (NormalRule) conf.getRules().get(i);
+            assertNotNull(rule.matches("/a/c", request, null, chain));
+        }
+        assertEquals(1, request.headerLookups);
+    }
+
+    private static class CountingRequest extends MockRequest {
+        private int headerLookups;
+        private int cookieLookups;
+        private int requestUrlLookups;
+
+        public String getHeader(String s) {
+            headerLookups++;
+            return super.getHeader(s);
+        }
+
+        public Cookie[] getCookies() {
+            cookieLookups++;
+            return super.getCookies();
+        }
+
+        public StringBuffer getRequestURL() {
+            requestUrlLookups++;
+            return super.getRequestURL();
+        }
+    }
+
+}
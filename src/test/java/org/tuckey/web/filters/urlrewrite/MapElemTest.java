@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.functions.MapFunction;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.MapFileBuilder;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+
+import javax.servlet.ServletException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashSet;
+import java.util.Set;
+
+public class MapElemTest extends TestCase {
+
+    private File textFile;
+    private File mapFile;
+
+    public void setUp() throws IOException {
+        Log.setLevel("DEBUG");
+        textFile = File.createTempFile("urlrewrite", ".txt");
+        FileWriter writer = new FileWriter(textFile);
+        writer.write("# legacy\n/old/a.html /new/a\n/old/b.html /new/b\n");
+        writer.close();
+        mapFile = File.createTempFile("urlrewrite", ".map");
+        MapFileBuilder builder = new MapFileBuilder();
+        builder.put("/old/a.html", "/mapped/a");
+        builder.write(mapFile);
+    }
+
+    public void tearDown() {
+        textFile.delete();
+        mapFile.delete();
+    }
+
+    public void testTxt() {
+        MapElem mapElem = new MapElem();
+        mapElem.setName("legacy-txt");
+        mapElem.setType("txt");
+        mapElem.setFile(textFile.getAbsolutePath());
+        assertTrue(mapElem.initialise(null));
+        assertNull("only available through a conf", MapFunction.getMap("legacy-txt"));
+        assertEquals("/new/b", mapElem.getMap().get("/old/b.html"));
+    }
+
+    public void testRnd() throws IOException {
+        File rndFile = File.createTempFile("urlrewrite", ".txt");
+        try {
+            FileWriter writer = new FileWriter(rndFile);
+            writer.write("static www1|www2\n");
+            writer.close();
+            MapElem mapElem = new MapElem();
+            mapElem.setName("servers");
+            mapElem.setType("rnd");
+            mapElem.setFile(rndFile.getAbsolutePath());
+            assertTrue(mapElem.initialise(null));
+            String server = mapElem.getMap().get("static");
+            assertTrue(server, "www1".equals(server) || "www2".equals(server));
+        } finally {
+            rndFile.delete();
+        }
+    }
+
+    public void testRndNotCached() throws IOException, ServletException, InvocationTargetException {
+        File rndFile = File.createTempFile("urlrewrite", ".txt");
+        try {
+            FileWriter writer = new FileWriter(rndFile);
+            writer.write("static www1|www2|www3|www4\n");
+            writer.close();
+            Conf conf = new Conf();
+            MapElem mapElem = new MapElem();
+            mapElem.setName("rnd-servers");
+            mapElem.setType("rnd");
+            mapElem.setFile(rndFile.getAbsolutePath());
+            conf.addMap(mapElem);
+            NormalRule rule = new NormalRule();
+            rule.setFrom("^/static/(.*)$");
+            rule.setTo("/${map:rnd-servers:static}/$1");
+            conf.addRule(rule);
+            conf.initialise();
+            assertTrue(conf.isOk());
+            assertFalse("functions are not pure", rule.isPure());
+
+            UrlRewriter urlRewriter = new UrlRewriter(conf);
+            Set servers = new HashSet();
+            for (int i = 0; i < 100; i++) {
+                MockRequest request = new MockRequest("/static/a.css");
+                servers.add(urlRewriter.processRequest(request, new MockResponse()).getTarget());
+            }
+            assertTrue("random pick not frozen " + servers, servers.size() > 1);
+        } finally {
+            rndFile.delete();
+        }
+    }
+
+    public void testReload() throws IOException {
+        MapElem mapElem = new MapElem();
+        mapElem.setName("reloading");
+        mapElem.setType("txt");
+        mapElem.setFile(textFile.getAbsolutePath());
+        mapElem.setCheckInterval(0);
+        assertTrue(mapElem.initialise(null));
+        assertEquals("/new/a", mapElem.getMap().get("/old/a.html"));
+
+        FileWriter writer = new FileWriter(textFile);
+        writer.write("/old/a.html /newer/a\n");
+        writer.close();
+        textFile.setLastModified(textFile.lastModified() + 2000);
+        assertEquals("/newer/a", mapElem.getMap().get("/old/a.html"));
+    }
+
+    public void testMmap() {
+        MapElem mapElem = new MapElem();
+        mapElem.setName("legacy-mmap");
+        mapElem.setFile(mapFile.getAbsolutePath());
+        assertEquals("mmap", mapElem.getType());
+        assertTrue(mapElem.initialise(null));
+        assertEquals("/mapped/a", mapElem.getMap().get("/old/a.html"));
+    }
+
+    public void testInt() {
+        MapElem mapElem = new MapElem();
+        mapElem.setName("upper");
+        mapElem.setType("int");
+        mapElem.setFunction("toupper");
+        assertTrue(mapElem.initialise(null));
+        assertEquals("ABC", mapElem.getMap().get("abc"));
+    }
+
+    public void testInvalid() {
+        MapElem noFile = new MapElem();
+        noFile.setName("nofile");
+        noFile.setFile("/does/not/exist.map");
+        assertFalse(noFile.initialise(null));
+        assertNotNull(noFile.getError());
+
+        MapElem badType = new MapElem();
+        badType.setName("badtype");
+        badType.setType("prg");
+        assertFalse(badType.initialise(null));
+
+        MapElem badFunction = new MapElem();
+        badFunction.setName("badfunction");
+        badFunction.setType("int");
+        badFunction.setFunction("nosuchfunction");
+        assertFalse(badFunction.initialise(null));
+    }
+
+    public void testRuleAndCondition() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        MapElem mapElem = new MapElem();
+        mapElem.setName("legacy");
+        mapElem.setType("txt");
+        mapElem.setFile(textFile.getAbsolutePath());
+        conf.addMap(mapElem);
+
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^(/old/.*)$");
+        rule.setTo("${map:legacy:$1}");
+        rule.setToType("permanent-redirect");
+        Condition condition = new Condition();
+        condition.setType("request-uri");
+        condition.setOperator("inmap");
+        condition.setValue("legacy");
+        rule.addCondition(condition);
+        conf.addRule(rule);
+        conf.initialise();
+        assertTrue(conf.isOk());
+
+        MockRequest request = new MockRequest("/old/a.html");
+        NormalRewrittenUrl rewrittenUrl = (NormalRewrittenUrl) rule.matches(request.getRequestURI(), request,
+                new MockResponse());
+        assertEquals("/new/a", rewrittenUrl.getTarget());
+
+        request = new MockRequest("/old/c.html");
+        assertNull("not in the map", rule.matches(request.getRequestURI(), request, new MockResponse()));
+    }
+
+    public void testDefault() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        MapElem mapElem = new MapElem();
+        mapElem.setName("legacy-default");
+        mapElem.setType("txt");
+        mapElem.setFile(textFile.getAbsolutePath());
+        conf.addMap(mapElem);
+
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^(/old/.*)$");
+        rule.setTo("${map:legacy-default:$1|/not-found}");
+        conf.addRule(rule);
+        conf.initialise();
+        assertTrue(conf.isOk());
+
+        MockRequest request = new MockRequest("/old/a.html");
+        assertEquals("/new/a", ((NormalRewrittenUrl) rule.matches(request.getRequestURI(), request,
+                new MockResponse())).getTarget());
+        request = new MockRequest("/old/c.html");
+        assertEquals("/not-found", ((NormalRewrittenUrl) rule.matches(request.getRequestURI(), request,
+                new MockResponse())).getTarget());
+    }
+
+    public void testConfMap() {
+        Conf conf = new Conf();
+        MapElem mapElem = new MapElem();
+        mapElem.setName("conf-legacy");
+        mapElem.setType("txt");
+        mapElem.setFile(textFile.getAbsolutePath());
+        conf.addMap(mapElem);
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^(/old/.*)$");
+        rule.setTo("${map:conf-legacy:$1}");
+        conf.addRule(rule);
+        conf.initialise();
+        assertTrue(conf.isOk());
+        assertTrue(mapElem.isValid());
+        assertEquals(1, conf.getMaps().size());
+    }
+
+    public void testXml() throws IOException {
+        String xml = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<!DOCTYPE urlrewrite PUBLIC \"-//tuckey.org//DTD UrlRewrite 4.0//EN\"\n" +
+                "        \"http://www.tuckey.org/res/dtds/urlrewrite4.0.dtd\">\n" +
+                "<urlrewrite>\n" +
+                "    <map name=\"xml-legacy\" type=\"txt\" file=\"" + textFile.getAbsolutePath() + "\"/>\n" +
+                "    <map name=\"xml-upper\" type=\"int\" function=\"toupper\"/>\n" +
+                "    <rule>\n" +
+                "        <condition type=\"request-uri\" operator=\"inmap\">xml-legacy</condition>\n" +
+                "        <from>^(.*)$</from>\n" +
+                "        <to type=\"permanent-redirect\">${map:xml-legacy:$1}</to>\n" +
+                "    </rule>\n" +
+                "</urlrewrite>\n";
+        Conf conf = new Conf(new ByteArrayInputStream(xml.getBytes("UTF-8")), "map-test.xml");
+        assertTrue(conf.isOk());
+        assertEquals(2, conf.getMaps().size());
+        assertEquals("int", ((MapElem) conf.getMaps().get(1)).getType());
+        assertEquals("/new/a", conf.getRewriteMap("xml-legacy").get("/old/a.html"));
+    }
+
+    public void testMapsPerConf() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = newSharedMapConf(textFile);
+        Conf otherConf = newSharedMapConf(mapFile);
+        assertEquals("/new/a", conf.getRewriteMap("shared").get("/old/a.html"));
+        assertEquals("/mapped/a", otherConf.getRewriteMap("shared").get("/old/a.html"));
+
+        MockRequest request = new MockRequest("/old/a.html");
+        assertEquals("/new/a", new UrlRewriter(conf).processRequest(request, new MockResponse()).getTarget());
+        request = new MockRequest("/old/a.html");
+        assertEquals("/mapped/a", new UrlRewriter(otherConf).processRequest(request, new MockResponse())
+                .getTarget());
+
+        conf.destroy();
+        assertNull(conf.getRewriteMap("shared"));
+        request = new MockRequest("/old/a.html");
+        assertEquals("/mapped/a", new UrlRewriter(otherConf).processRequest(request, new MockResponse())
+                .getTarget());
+    }
+
+    public void testSetUsesConfMaps() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = newSharedMapConf(textFile);
+        NormalRule rule = (NormalRule) conf.getRules().get(0);
+        SetAttribute setAttribute = new SetAttribute();
+        setAttribute.setName("mapped");
+        setAttribute.setValue("${map:shared:$1}");
+        rule.addSetAttribute(setAttribute);
+        conf.initialise();
+
+        MockRequest request = new MockRequest("/old/a.html");
+        new UrlRewriter(conf).processRequest(request, new MockResponse());
+        assertEquals("/new/a", request.getAttribute("mapped"));
+        assertNull("only set while the value is substituted", MapFunction.getCurrentMaps());
+    }
+
+    private static Conf newSharedMapConf(File file) {
+        Conf conf = new Conf();
+        MapElem mapElem = new MapElem();
+        mapElem.setName("shared");
+        mapElem.setType(file.getName().endsWith(".map") ? "mmap" : "txt");
+        mapElem.setFile(file.getAbsolutePath());
+        conf.addMap(mapElem);
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^(/old/.*)$");
+        rule.setTo("${map:shared:$1}");
+        conf.addRule(rule);
+        conf.initialise();
+        assertTrue(conf.isOk());
+        return conf;
+    }
+
+}
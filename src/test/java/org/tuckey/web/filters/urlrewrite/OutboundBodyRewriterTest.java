@@ -0,0 +1,257 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+
+import javax.servlet.ServletOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class OutboundBodyRewriterTest extends TestCase {
+
+    private static final String PAGE = "<!DOCTYPE html>\n" +
+            "<html><head><link rel=\"stylesheet\" HREF='/world.jsp?css=1'>\n" +
+            "<script src=/world.jsp?js=1></script></head>\n" +
+            "<!-- <a href=\"/world.jsp\"> -->\n" +
+            "<body class=\"/world.jsp\"><a title=\"x > y\" href = \"/world.jsp?country=nz\">nz</a>\n" +
+            "<form method=post action=\"/world.jsp\"><img alt='' src=\"\"/></form>\n" +
+            "<p>/world.jsp a < b href=\"/world.jsp\"</p><a href=\"/other.jsp\">other</a></body></html>";
+
+    private static final String REWRITTEN_PAGE = "<!DOCTYPE html>\n" +
+            "<html><head><link rel=\"stylesheet\" HREF='/world?css=1'>\n" +
+            "<script src=/world?js=1></script></head>\n" +
+            "<!-- <a href=\"/world.jsp\"> -->\n" +
+            "<body class=\"/world.jsp\"><a title=\"x > y\" href = \"/world?country=nz\">nz</a>\n" +
+            "<form method=post action=\"/world\"><img alt='' src=\"\"/></form>\n" +
+            "<p>/world.jsp a < b href=\"/world.jsp\"</p><a href=\"/other.jsp\">other</a></body></html>";
+
+    MockResponse response;
+    UrlRewriter urlRewriter;
+
+    public void setUp() {
+        Log.setLevel("DEBUG");
+        response = new MockResponse();
+        Conf conf = new Conf();
+        OutboundRule bodyRule = new OutboundRule();
+        bodyRule.setFrom("^/world\\.jsp(.*)$");
+        bodyRule.setTo("/world$1");
+        bodyRule.setRewriteBody(true);
+        conf.addOutboundRule(bodyRule);
+        OutboundRule encodeRule = new OutboundRule();
+        encodeRule.setFrom("^/other\\.jsp$");
+        encodeRule.setTo("/else");
+        conf.addOutboundRule(encodeRule);
+        conf.initialise();
+        urlRewriter = new UrlRewriter(conf);
+    }
+
+    private UrlRewriteWrappedResponse newWrappedResponse() {
+        return new UrlRewriteWrappedResponse(response, new MockRequest(), urlRewriter);
+    }
+
+    public void testWriter() throws IOException {
+        response.setContentType("text/html; charset=UTF-8");
+        UrlRewriteWrappedResponse wrappedResponse = newWrappedResponse();
+        PrintWriter writer = wrappedResponse.getWriter();
+        writer.print(PAGE);
+        wrappedResponse.finishBody();
+        assertEquals(REWRITTEN_PAGE, response.getWriterAsString());
+        // the rule still applies to encodeURL
+        assertEquals("/world;mockencoded=test?a=b", wrappedResponse.encodeURL("/world.jsp?a=b"));
+    }
+
+    public void testOutputStream() throws IOException {
+        response.setContentType("text/html");
+        UrlRewriteWrappedResponse wrappedResponse = newWrappedResponse();
+        ServletOutputStream outputStream = wrappedResponse.getOutputStream();
+        outputStream.write(PAGE.getBytes("ISO-8859-1"));
+        wrappedResponse.finishBody();
+        assertEquals(REWRITTEN_PAGE, response.getOutputStreamAsString());
+    }
+
+    public void testEveryChunkSplit() throws IOException {
+        for (int split = 0; split <= PAGE.length(); split++) {
+            response = new MockResponse();
+            response.setContentType("text/html");
+            UrlRewriteWrappedResponse wrappedResponse = newWrappedResponse();
+            PrintWriter writer = wrappedResponse.getWriter();
+            writer.write(PAGE, 0, split);
+            writer.write(PAGE, split, PAGE.length() - split);
+            wrappedResponse.finishBody();
+            assertEquals("split at " + split, REWRITTEN_PAGE, response.getWriterAsString());
+        }
+    }
+
+    public void testOneCharAtATime() throws IOException {
+        response.setContentType("text/html");
+        UrlRewriteWrappedResponse wrappedResponse = newWrappedResponse();
+        ServletOutputStream outputStream = wrappedResponse.getOutputStream();
+        byte[] bytes = PAGE.getBytes("ISO-8859-1");
+        for (int i = 0; i < bytes.length; i++) {
+            outputStream.write(bytes[i]);
+        }
+        wrappedResponse.finishBody();
+        assertEquals(REWRITTEN_PAGE, response.getOutputStreamAsString());
+    }
+
+    public void testUtf8Bytes() throws IOException {
+        Conf conf = new Conf();
+        OutboundRule bodyRule = new OutboundRule();
+        bodyRule.setFrom("^/caf\u00e9$");
+        bodyRule.setTo("/\u00fcber");
+        bodyRule.setRewriteBody(true);
+        conf.addOutboundRule(bodyRule);
+        conf.initialise();
+        urlRewriter = new UrlRewriter(conf);
+
+        response.setContentType("text/html");
+        response.setCharacterEncoding("UTF-8");
+        UrlRewriteWrappedResponse wrappedResponse = newWrappedResponse();
+        wrappedResponse.getOutputStream().write("<p>caf\u00e9</p><a href=\"/caf\u00e9\">".getBytes("UTF-8"));
+        wrappedResponse.finishBody();
+        assertEquals("<p>caf\u00e9</p><a href=\"/\u00fcber\">", new String(response.getOutputStreamAsBytes(), "UTF-8"));
+    }
+
+    public void testUrlWrittenInOnePiece() throws IOException {
+        response.setContentType("text/html");
+        final int[] writes = new int[1];
+        StringWriter out = new StringWriter() {
+            public void write(char[] cbuf, int off, int len) {
+                assertTrue("empty write", len > 0);
+                writes[0]++;
+                super.write(cbuf, off, len);
+            }
+
+            public void write(String str) {
+                writes[0]++;
+                super.write(str);
+            }
+        };
+        OutboundBodyRewriter rewriter = new OutboundBodyRewriter(out, newWrappedResponse(), null);
+        char[] page = "<a href=\"/world.jsp?country=nz\">nz</a>".toCharArray();
+        rewriter.write(page, 0, page.length);
+        rewriter.finish();
+        assertEquals("<a href=\"/world?country=nz\">nz</a>", out.toString());
+        // before the url, the url and after it
+        assertEquals(3, writes[0]);
+    }
+
+    public void testUnfinishedValue() throws IOException {
+        response.setContentType("text/html");
+        UrlRewriteWrappedResponse wrappedResponse = newWrappedResponse();
+        PrintWriter writer = wrappedResponse.getWriter();
+        writer.print("<a href=\"/world.jsp");
+        assertEquals("<a href=\"", response.getWriterAsString());
+        wrappedResponse.finishBody();
+        assertEquals("<a href=\"/world.jsp", response.getWriterAsString());
+    }
+
+    public void testLongValue() throws IOException {
+        response.setContentType("text/html");
+        UrlRewriteWrappedResponse wrappedResponse = newWrappedResponse();
+        StringBuilder longUrl = new StringBuilder("/world.jsp?");
+        while (longUrl.length() <= OutboundBodyRewriter.MAX_URL_LENGTH) longUrl.append('a');
+        String page = "<a href=\"" + longUrl + "\">";
+        wrappedResponse.getWriter().print(page);
+        wrappedResponse.finishBody();
+        assertEquals(page, response.getWriterAsString());
+    }
+
+    public void testOtherContentTypesUntouched() throws IOException {
+        response.setContentType("text/plain");
+        UrlRewriteWrappedResponse wrappedResponse = newWrappedResponse();
+        wrappedResponse.getWriter().print(PAGE);
+        wrappedResponse.finishBody();
+        assertEquals(PAGE, response.getWriterAsString());
+    }
+
+    public void testCompressedUntouched() throws IOException {
+        response.setContentType("text/html");
+        response.setHeader("Content-Encoding", "gzip");
+        UrlRewriteWrappedResponse wrappedResponse = newWrappedResponse();
+        wrappedResponse.getOutputStream().write(PAGE.getBytes("ISO-8859-1"));
+        wrappedResponse.finishBody();
+        assertEquals(PAGE, response.getOutputStreamAsString());
+    }
+
+    public void testContentLengthDropped() {
+        response.setContentType("text/html");
+        UrlRewriteWrappedResponse wrappedResponse = newWrappedResponse();
+        wrappedResponse.setContentLength(PAGE.length());
+        assertFalse(response.containsHeader("Content-Length"));
+
+        wrappedResponse.setIntHeader("Content-Length", PAGE.length());
+        wrappedResponse.addIntHeader("Content-Length", PAGE.length());
+        wrappedResponse.addHeader("Content-Length", String.valueOf(PAGE.length()));
+        assertFalse(response.containsHeader("Content-Length"));
+
+        response.setContentType("image/png");
+        wrappedResponse.setContentLength(10);
+        assertEquals("10", response.getHeader("Content-Length"));
+        wrappedResponse.addIntHeader("Content-Length", 11);
+        assertEquals("11", response.getHeader("Content-Length"));
+    }
+
+    public void testNoBodyRules() throws IOException {
+        Conf conf = new Conf();
+        OutboundRule rule = new OutboundRule();
+        rule.setFrom("^/world\\.jsp(.*)$");
+        rule.setTo("/world$1");
+        conf.addOutboundRule(rule);
+        conf.initialise();
+        urlRewriter = new UrlRewriter(conf);
+
+        response.setContentType("text/html");
+        UrlRewriteWrappedResponse wrappedResponse = newWrappedResponse();
+        assertSame(response.getWriter(), wrappedResponse.getWriter());
+    }
+
+    public void testContentTypes() {
+        Conf conf = new Conf();
+        assertTrue(conf.isOutboundBodyContentType("text/html"));
+        assertTrue(conf.isOutboundBodyContentType("TEXT/HTML;charset=UTF-8"));
+        assertFalse(conf.isOutboundBodyContentType("application/xhtml+xml"));
+        assertFalse(conf.isOutboundBodyContentType(null));
+        conf.setOutboundBodyContentTypes(" text/html, application/xhtml+xml ,");
+        assertEquals(2, conf.getOutboundBodyContentTypes().length);
+        assertTrue(conf.isOutboundBodyContentType("application/xhtml+xml; charset=UTF-8"));
+    }
+
+}
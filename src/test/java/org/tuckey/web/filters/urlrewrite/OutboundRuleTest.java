@@ -36,6 +36,7 @@ package org.tuckey.web.filters.urlrewrite;
 
 import junit.framework.TestCase;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.LruCache;
 import org.tuckey.web.testhelper.MockRequest;
 import org.tuckey.web.testhelper.MockResponse;
 
@@ -124,6 +125,181 @@ public class OutboundRuleTest extends TestCase {
         assertEquals("a.jsp", urlRewriteWrappedResponse.encodeURL("a.jsp"));
     }
 
+    public void testOutboundRuleIndex() {
+        assertOutboundRuleIndex(Conf.MATCH_ENGINE_PREFIX);
+        assertOutboundRuleIndex(Conf.MATCH_ENGINE_MULTI);
+    }
+
+    private void assertOutboundRuleIndex(String matchEngine) {
+        Conf conf = new Conf();
+        conf.setMatchEngine(matchEngine);
+        conf.setOutboundCacheSize(0);
+        OutboundRule rule0 = new OutboundRule();
+        rule0.setFrom("^/b/(.*)$");
+        rule0.setTo("/c/$1");
+        conf.addOutboundRule(rule0);
+        OutboundRule rule1 = new OutboundRule();
+        rule1.setFrom("^/a/(.*)$");
+        rule1.setTo("/b/$1");
+        conf.addOutboundRule(rule1);
+        OutboundRule rule2 = new OutboundRule();
+        rule2.setFrom("^/b/(.*)$");
+        rule2.setTo("/d/$1");
+        conf.addOutboundRule(rule2);
+        OutboundRule rule3 = new OutboundRule();
+        rule3.setFrom("^/d/(.*);mockencoded=test$");
+        rule3.setTo("/e/$1");
+        rule3.setEncodeFirst(true);
+        conf.addOutboundRule(rule3);
+        OutboundRule rule4 = new OutboundRule();
+        rule4.setFrom("/x$");
+        rule4.setTo("/y");
+        conf.addOutboundRule(rule4);
+        conf.initialise();
+
+        assertEquals(4, conf.getCompiledOutboundRules(false).size());
+        assertEquals(1, conf.getCompiledOutboundRules(true).size());
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        UrlRewriteWrappedResponse urlRewriteWrappedResponse = new UrlRewriteWrappedResponse(response, request, urlRewriter);
+        // rule 0 has already been passed when the url becomes /b/...
+        assertEquals("/e/1", urlRewriteWrappedResponse.encodeURL("/a/1"));
+        assertEquals("/c/1;mockencoded=test", urlRewriteWrappedResponse.encodeURL("/b/1"));
+        assertEquals("/e/y", urlRewriteWrappedResponse.encodeURL("/a/x"));
+        assertEquals("/static/img.png;mockencoded=test", urlRewriteWrappedResponse.encodeURL("/static/img.png"));
+    }
+
+    /**
+     * Enough rules that the multi engine's NFA arrays grow several times, each url is rewritten by one rule then
+     * must be found again by a rule much further on.
+     */
+    public void testManyOutboundRules() {
+        assertManyOutboundRules(Conf.MATCH_ENGINE_PREFIX);
+        assertManyOutboundRules(Conf.MATCH_ENGINE_MULTI);
+    }
+
+    private void assertManyOutboundRules(String matchEngine) {
+        int count = 200;
+        Conf conf = new Conf();
+        conf.setMatchEngine(matchEngine);
+        conf.setOutboundCacheSize(0);
+        for (int i = 0; i < count; i++) {
+            OutboundRule rule = new OutboundRule();
+            rule.setFrom("^/a" + i + "/(foobarbazquux/|qux/)?x$");
+            rule.setTo("/b" + i + "/$1y");
+            conf.addOutboundRule(rule);
+        }
+        for (int i = 0; i < count; i++) {
+            OutboundRule rule = new OutboundRule();
+            rule.setFrom("^/b" + i + "/(foobarbazquux/|qux/)?y$");
+            rule.setTo("/c" + i);
+            conf.addOutboundRule(rule);
+        }
+        conf.initialise();
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        UrlRewriteWrappedResponse urlRewriteWrappedResponse = new UrlRewriteWrappedResponse(response, request, urlRewriter);
+        String[] middles = {"", "foobarbazquux/", "qux/"};
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < middles.length; j++) {
+                assertEquals(matchEngine, "/c" + i + ";mockencoded=test",
+                        urlRewriteWrappedResponse.encodeURL("/a" + i + "/" + middles[j] + "x"));
+            }
+        }
+    }
+
+    public void testOutboundCache() {
+        Conf conf = new Conf();
+        OutboundRule rule1 = new OutboundRule();
+        rule1.setFrom("^/world\\.jsp\\?country=([a-z]+)$");
+        rule1.setTo("/world/$1");
+        conf.addOutboundRule(rule1);
+        OutboundRule rule2 = new OutboundRule();
+        rule2.setFrom("^(.*);mockencoded=.*?(\\?.*)?$");
+        rule2.setTo("$1$2");
+        rule2.setEncodeFirst(true);
+        conf.addOutboundRule(rule2);
+        conf.initialise();
+        assertTrue(conf.isAllOutboundRulesPure());
+        LruCache outboundCache = conf.getOutboundCache(false);
+        LruCache encodedOutboundCache = conf.getOutboundCache(true);
+        assertNotNull(outboundCache);
+        assertNotNull(encodedOutboundCache);
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        UrlRewriteWrappedResponse urlRewriteWrappedResponse = new UrlRewriteWrappedResponse(response, request, urlRewriter);
+        assertEquals("/world/usa", urlRewriteWrappedResponse.encodeURL("/world.jsp?country=usa"));
+        assertEquals(0, outboundCache.getHitCount());
+        assertEquals(1, outboundCache.size());
+        assertEquals(1, encodedOutboundCache.size());
+        // the cached result must not be changed by the container's encodeURL
+        assertEquals("/world/usa", urlRewriteWrappedResponse.encodeURL("/world.jsp?country=usa"));
+        assertEquals("/world/usa", urlRewriteWrappedResponse.encodeURL("/world.jsp?country=usa"));
+        assertEquals(2, outboundCache.getHitCount());
+        assertEquals(2, encodedOutboundCache.getHitCount());
+        assertEquals("a.jsp", urlRewriteWrappedResponse.encodeURL("a.jsp"));
+        assertEquals(2, outboundCache.size());
+
+        // a rule with a condition depends on the request
+        OutboundRule rule3 = new OutboundRule();
+        rule3.setFrom("^/a$");
+        rule3.setTo("/b");
+        Condition condition = new Condition();
+        condition.setName("user-agent");
+        condition.setValue("bot");
+        rule3.addCondition(condition);
+        conf.addOutboundRule(rule3);
+        conf.initialise();
+        assertFalse(conf.isAllOutboundRulesPure());
+        assertNull(conf.getOutboundCache(false));
+        assertNull(conf.getOutboundCache(true));
+
+        conf = new Conf();
+        conf.addOutboundRule(rule1);
+        conf.setOutboundCacheSize(0);
+        conf.initialise();
+        assertNull(conf.getOutboundCache(false));
+    }
+
+    public void testOutboundCacheHitCountsRule() {
+        Conf conf = new Conf();
+        OutboundRule rule1 = new OutboundRule();
+        rule1.setFrom("^/world\\.jsp\\?country=([a-z]+)$");
+        rule1.setTo("/world/$1");
+        conf.addOutboundRule(rule1);
+        conf.initialise();
+        LruCache outboundCache = conf.getOutboundCache(false);
+        assertNotNull(outboundCache);
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        MockRequest request1 = new MockRequest();
+        assertTrue(new UrlRewriteWrappedResponse(response, request1, urlRewriter)
+                .encodeURL("/world.jsp?country=usa").startsWith("/world/usa"));
+        assertEquals(Boolean.TRUE, request1.getAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched"));
+
+        MockRequest request2 = new MockRequest();
+        assertTrue(new UrlRewriteWrappedResponse(response, request2, urlRewriter)
+                .encodeURL("/world.jsp?country=usa").startsWith("/world/usa"));
+        assertEquals(1, outboundCache.getHitCount());
+        assertEquals("a cache hit is a match", Boolean.TRUE,
+                request2.getAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched"));
+        assertEquals("cache hits are counted", 2, rule1.getStatistics().getEvaluations());
+        assertEquals(2, rule1.getStatistics().getFromMatches());
+        assertEquals(2, rule1.getStatistics().getConditionPasses());
+
+        // a cached miss does not set the attribute, the index rules out the rule so it is not counted either
+        MockRequest request3 = new MockRequest();
+        assertTrue(new UrlRewriteWrappedResponse(response, request3, urlRewriter)
+                .encodeURL("/a.jsp").startsWith("/a.jsp"));
+        MockRequest request4 = new MockRequest();
+        assertTrue(new UrlRewriteWrappedResponse(response, request4, urlRewriter)
+                .encodeURL("/a.jsp").startsWith("/a.jsp"));
+        assertEquals(2, outboundCache.getHitCount());
+        assertNull(request4.getAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched"));
+        assertEquals(2, rule1.getStatistics().getEvaluations());
+        assertEquals(2, rule1.getStatistics().getFromMatches());
+    }
+
     /**
      * To: UrlRewrite <urlrewrite@googlegroups.com>
      * Date: Sep 9, 2005 9:07 AM
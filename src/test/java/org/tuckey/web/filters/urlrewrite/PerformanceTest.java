@@ -2,12 +2,36 @@ package org.tuckey.web.filters.urlrewrite;
 
 import junit.framework.TestCase;
 import org.tuckey.web.filters.urlrewrite.test.TestRunObj;
+import org.tuckey.web.filters.urlrewrite.extend.RewriteMap;
+import org.tuckey.web.filters.urlrewrite.gzip.GzipFilter;
+import org.tuckey.web.filters.urlrewrite.utils.HashRewriteMap;
+import org.tuckey.web.filters.urlrewrite.utils.StringMatchingMatcher;
+import org.tuckey.web.filters.urlrewrite.utils.URLDecoder;
+import org.tuckey.web.filters.urlrewrite.utils.URLEncoder;
+import org.tuckey.web.filters.urlrewrite.utils.WildcardHelper;
+import org.tuckey.web.filters.urlrewrite.utils.WildcardPattern;
 import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.MapFile;
+import org.tuckey.web.filters.urlrewrite.utils.MapFileBuilder;
 import org.tuckey.web.testhelper.*;
 
+import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * A quick way to check the performance of the engine.  Should not be a repleacement for proper performance testing!
@@ -74,6 +98,92 @@ public class PerformanceTest extends TestCase {
     }
 
 
+    /**
+     * Most real world rule sets have "from" patterns that start with a literal, these are looked up using the rule
+     * index so should be at least an order of magnitude faster than running every rule.
+     */
+    public void testLoadsOfPrefixedRules() throws IOException, ServletException, InvocationTargetException {
+        // turn off logging
+        Log.setLevel("ERROR");
+
+        float bench = new BenchmarkRunner().establishBenchmark();
+        float timePerRule = bench * (float) 0.00003; // a tenth of the time allowed in testLoadsOfRules
+        System.out.println("using " + timePerRule + "ms per rule as the standard");
+
+        float testAmount = 10000; // number of times to run test
+
+        Conf conf = new Conf();
+        for (int i = 0; i < 1000; i++) {
+            NormalRule rule = new NormalRule();
+            rule.setFrom("^/section" + i + "/([a-z]+)/([0-9]+)/$");
+            rule.setTo("/blah/a/$2/");
+            conf.addRule(rule);
+        }
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        MockRequest request = new MockRequest("/section999/dir/45/");
+        // warm up, give the jit a chance as a single request takes very little time
+        for (int i = 0; i < testAmount; i++) {
+            urlRewriter.processRequest(request, response);
+        }
+
+        long timeStart = System.currentTimeMillis();
+        for (float i = 0; i < testAmount; i++) {
+            urlRewriter.processRequest(request, response);
+        }
+        long took = System.currentTimeMillis() - timeStart;
+        System.out.println("took " + took + "ms " + (took / testAmount) + "ms  per rule");
+        assertTrue("should take less than " + timePerRule + "ms per rule", (took / testAmount) < timePerRule);
+    }
+
+
+    /**
+     * With match-engine="multi" the time per request should stay roughly flat as the number of rules grows, even when
+     * all the rules start with the same text.
+     */
+    public void testMultiMatchEngineScales() throws IOException, ServletException, InvocationTargetException {
+        // turn off logging
+        Log.setLevel("ERROR");
+
+        float bench = new BenchmarkRunner().establishBenchmark();
+        float timePerRule = bench * (float) 0.00003; // same as testLoadsOfPrefixedRules
+        System.out.println("using " + timePerRule + "ms per rule as the standard");
+
+        float testAmount = 10000; // number of times to run test
+        int[] ruleCounts = new int[]{100, 1000, 10000, 50000};
+        float[] times = new float[ruleCounts.length];
+
+        for (int c = 0; c < ruleCounts.length; c++) {
+            Conf conf = new Conf();
+            conf.setMatchEngine("multi");
+            for (int i = 0; i < ruleCounts[c]; i++) {
+                NormalRule rule = new NormalRule();
+                rule.setFrom("^/([a-z]+)/([0-9]+)/" + i + "/$");
+                rule.setTo("/blah/a/$2/");
+                conf.addRule(rule);
+            }
+            conf.initialise();
+            UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+            MockRequest request = new MockRequest("/dir/999/45/");
+            // warm up, builds the dfa states this url needs
+            for (int i = 0; i < testAmount; i++) {
+                urlRewriter.processRequest(request, response);
+            }
+
+            long timeStart = System.currentTimeMillis();
+            for (float i = 0; i < testAmount; i++) {
+                urlRewriter.processRequest(request, response);
+            }
+            long took = System.currentTimeMillis() - timeStart;
+            times[c] = took / testAmount;
+            System.out.println(ruleCounts[c] + " rules took " + took + "ms " + times[c] + "ms per request");
+            assertTrue("should take less than " + timePerRule + "ms per request with " + ruleCounts[c] + " rules",
+                    times[c] < timePerRule);
+        }
+    }
+
 
     /**
      * Goal is to be able to process 1000 urls a second for a simple rule set of 1000.
@@ -111,8 +221,643 @@ public class PerformanceTest extends TestCase {
         long took = System.currentTimeMillis() - timeStart;
         System.out.println("took " + took + "ms " + (took / testAmount) + "ms per rule");
         assertTrue("should take less than " + timePerRule + "ms per rule", (took / testAmount) < timePerRule);
+
+        // with 1k and 10k rules that have a literal prefix only the rules that could match are run, compare against
+        // the same rules without ^ which can't be indexed and so are all run
+        int[] ruleCounts = {1000, 10000};
+        for (int c = 0; c < ruleCounts.length; c++) {
+            int ruleCount = ruleCounts[c];
+            UrlRewriter indexed = new UrlRewriter(newOutboundConf(ruleCount, "^"));
+            UrlRewriter scanned = new UrlRewriter(newOutboundConf(ruleCount, ""));
+            String[] urls = {"/section" + (ruleCount - 1) + "/45", "/static/img.png"};
+            assertEquals("/blah/" + (ruleCount - 1) + "/45", indexed.processEncodeURL(response, request, false,
+                    urls[0]).getTarget());
+            assertEquals("/static/img.png", indexed.processEncodeURL(response, request, false, urls[1]).getTarget());
+            // warm up
+            timeEncodeUrls(scanned, urls, 100);
+            timeEncodeUrls(indexed, urls, 100);
+
+            int encodeCount = ruleCount == 1000 ? 2000 : 200;
+            long scannedTime = timeEncodeUrls(scanned, urls, encodeCount);
+            long indexedTime = timeEncodeUrls(indexed, urls, encodeCount);
+            System.out.println(ruleCount + " outbound rules took " + scannedTime / (encodeCount * 1000L) +
+                    "us per url running every rule, " + indexedTime / (encodeCount * 1000L) +
+                    "us per url using the index");
+            assertTrue("index should be faster with " + ruleCount + " outbound rules", indexedTime < scannedTime);
+        }
+    }
+
+    private Conf newOutboundConf(int ruleCount, String anchor) {
+        Conf conf = new Conf();
+        conf.setOutboundCacheSize(0);
+        for (int i = 0; i < ruleCount; i++) {
+            OutboundRule rule = new OutboundRule();
+            rule.setFrom(anchor + "/section" + i + "/([0-9]+)$");
+            rule.setTo("/blah/" + i + "/$1");
+            conf.addOutboundRule(rule);
+        }
+        conf.initialise();
+        return conf;
+    }
+
+    /**
+     * @return nanos taken
+     */
+    private long timeEncodeUrls(UrlRewriter urlRewriter, String[] urls, int encodeCount) {
+        long start = System.nanoTime();
+        for (int i = 0; i < encodeCount; i++) {
+            urlRewriter.processEncodeURL(response, request, false, urls[i % urls.length]);
+        }
+        return System.nanoTime() - start;
+    }
+
+
+    /**
+     * Reading a very large conf file with the sax loader should not need a dom of the whole file in memory and
+     * should give the same rules as the dom loader.
+     */
+    public void testLoadsOfRulesFromFile() throws IOException {
+        Log.setLevel("ERROR");
+        int ruleCount = 20000;
+        StringBuffer xml = new StringBuffer();
+        xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+        xml.append("<!DOCTYPE urlrewrite PUBLIC \"-//tuckey.org//DTD UrlRewrite 4.0//EN\"\n");
+        xml.append("        \"http://www.tuckey.org/res/dtds/urlrewrite4.0.dtd\">\n");
+        xml.append("<urlrewrite>\n");
+        for (int i = 0; i < ruleCount; i++) {
+            xml.append("    <rule>\n");
+            xml.append("        <name>redirect ").append(i).append("</name>\n");
+            xml.append("        <from>^/old/section").append(i).append("/(.*)$</from>\n");
+            xml.append("        <to type=\"permanent-redirect\" last=\"true\">/new/").append(i).append("/$1</to>\n");
+            xml.append("    </rule>\n");
+        }
+        xml.append("</urlrewrite>\n");
+        byte[] bytes = xml.toString().getBytes("UTF-8");
+        System.out.println("conf file of " + ruleCount + " rules is " + bytes.length / 1024 + "KB");
+
+        // warm up
+        loadConf(bytes, Conf.LOADER_DOM, true);
+        loadConf(bytes, Conf.LOADER_SAX, true);
+
+        Conf domConf = loadConf(bytes, Conf.LOADER_DOM, true);
+        long domAllocated = lastLoadAllocated;
+        Conf saxConf = loadConf(bytes, Conf.LOADER_SAX, true);
+        long saxAllocated = lastLoadAllocated;
+        loadConf(bytes, Conf.LOADER_SAX, false);
+
+        File cacheFile = File.createTempFile("urlrewrite", ".cache");
+        cacheFile.delete();
+        try {
+            new Conf(null, new ByteArrayInputStream(bytes), "big.xml", null, false, Conf.LOADER_SAX, true, cacheFile);
+            Conf cachedConf = new Conf(null, new ByteArrayInputStream(bytes), "big.xml", null, false,
+                    Conf.LOADER_SAX, true, cacheFile);
+            assertTrue(cachedConf.isLoadedFromCache());
+            assertEquals(ruleCount, cachedConf.getRules().size());
+            System.out.println("loaded from a " + cacheFile.length() / 1024 + "KB cache in " +
+                    cachedConf.getLoadTime() + "ms including initialising the rules");
+        } finally {
+            cacheFile.delete();
+        }
+
+        assertTrue(domConf.isOk());
+        assertTrue(saxConf.isOk());
+        assertEquals(ruleCount, saxConf.getRules().size());
+        for (int i = 0; i < ruleCount; i += 997) {
+            NormalRule domRule = (NormalRule) domConf.getRules().get(i);
+            NormalRule saxRule = (NormalRule) saxConf.getRules().get(i);
+            assertEquals(domRule.getName(), saxRule.getName());
+            assertEquals(domRule.getFrom(), saxRule.getFrom());
+            assertEquals(domRule.getTo(), saxRule.getTo());
+            assertEquals(domRule.getToType(), saxRule.getToType());
+        }
+        if (domAllocated > 0) {
+            System.out.println("sax loader allocated " + (saxAllocated * 100 / domAllocated) + "% of the dom loader");
+        }
+    }
+
+    /**
+     * Heap used and lookup time of a 1M entry map, held on the heap in a HashRewriteMap (as txt maps are) and off the
+     * heap in a MapFile (as mmap maps are).
+     */
+    public void testLargeRewriteMaps() throws IOException {
+        Log.setLevel("ERROR");
+        int entryCount = 1000000;
+        StringBuffer text = new StringBuffer();
+        for (int i = 0; i < entryCount; i++) {
+            text.append("/legacy/section").append(i % 1000).append("/page-").append(i).append(".html ")
+                    .append("/pages/").append(i % 50000).append('\n');
+        }
+        String[] hits = new String[entryCount];
+        String[] misses = new String[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            hits[i] = "/legacy/section" + (i % 1000) + "/page-" + i + ".html";
+            misses[i] = "/legacy/section" + (i % 1000) + "/page-" + (i + entryCount) + ".html";
+        }
+
+        long before = usedMemory();
+        long start = System.currentTimeMillis();
+        HashRewriteMap hashMap = HashRewriteMap.load(new StringReader(text.toString()), false);
+        long loadTime = System.currentTimeMillis() - start;
+        long hashMapBytes = usedMemory() - before;
+        assertEquals(entryCount, hashMap.size());
+        System.out.println("txt map of " + entryCount + " entries loaded in " + loadTime + "ms using " +
+                hashMapBytes / (1024 * 1024) + "MB of heap");
+        timeLookups("txt", hashMap, hits, misses);
+
+        before = usedMemory();
+        start = System.currentTimeMillis();
+        MapFileBuilder builder = new MapFileBuilder();
+        builder.load(new StringReader(text.toString()));
+        MapFile mapFile = builder.build();
+        loadTime = System.currentTimeMillis() - start;
+        builder = null;
+        long mapFileBytes = usedMemory() - before;
+        assertEquals(entryCount, mapFile.size());
+        System.out.println("mmap map of " + entryCount + " entries built in " + loadTime + "ms using " +
+                mapFileBytes / (1024 * 1024) + "MB of heap");
+        timeLookups("mmap", mapFile, hits, misses);
+    }
+
+    private void timeLookups(String label, RewriteMap map, String[] hits, String[] misses) {
+        // warm up
+        for (int i = 0; i < hits.length; i++) {
+            assertNotNull(map.get(hits[i]));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < hits.length; i++) {
+            map.get(hits[i]);
+        }
+        long hitTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < misses.length; i++) {
+            map.get(misses[i]);
+        }
+        long missTime = System.nanoTime() - start;
+        assertNull(map.get(misses[0]));
+        System.out.println(label + " map lookups " + hitTime / hits.length + "ns per hit, " +
+                missTime / misses.length + "ns per miss");
+    }
+
+    /**
+     * Time and bytes allocated matching urls against wildcard patterns with WildcardHelper filling a map with the
+     * groups and with the matcher from a WildcardPattern which only keeps the offsets of the groups.
+     */
+    public void testWildcardMatching() {
+        Log.setLevel("ERROR");
+        String[] patterns = {"/products/*/**", "/images/**/*.jpg", "*.html", "/a/*/b/*/c/*", "/exact/url"};
+        String[] urls = {"/products/shoes/red/10", "/images/2010/summer/beach.jpg", "/about/team.html",
+                "/a/1/b/2/c/3", "/exact/url", "/products", "/images/2010/summer/beach.png", "/other/page"};
+        int iterations = 200000;
+
+        WildcardHelper wh = new WildcardHelper();
+        int[][] compiled = new int[patterns.length][];
+        WildcardPattern[] wildcardPatterns = new WildcardPattern[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            compiled[i] = wh.compilePattern(patterns[i]);
+            wildcardPatterns[i] = new WildcardPattern(patterns[i]);
+        }
+
+        for (int round = 0; round < 2; round++) {
+            // the first round is just warm up
+            int helperMatches = 0;
+            long allocatedBefore = getThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int n = 0; n < iterations; n++) {
+                for (int i = 0; i < patterns.length; i++) {
+                    for (int j = 0; j < urls.length; j++) {
+                        Map map = new HashMap();
+                        if (wh.match(map, urls[j], compiled[i])) helperMatches++;
+                    }
+                }
+            }
+            long helperTime = System.nanoTime() - start;
+            long helperAllocated = getThreadAllocatedBytes() - allocatedBefore;
+
+            int matcherMatches = 0;
+            allocatedBefore = getThreadAllocatedBytes();
+            start = System.nanoTime();
+            for (int n = 0; n < iterations; n++) {
+                for (int i = 0; i < patterns.length; i++) {
+                    for (int j = 0; j < urls.length; j++) {
+                        StringMatchingMatcher matcher = wildcardPatterns[i].matcher(urls[j]);
+                        if (matcher.find()) matcherMatches++;
+                    }
+                }
+            }
+            long matcherTime = System.nanoTime() - start;
+            long matcherAllocated = getThreadAllocatedBytes() - allocatedBefore;
+
+            assertEquals(helperMatches, matcherMatches);
+            if (round == 0) continue;
+            long matchCount = (long) iterations * patterns.length * urls.length;
+            System.out.println("wildcard helper " + helperTime / matchCount + "ns per match" +
+                    (allocatedBefore < 0 ? "" : " allocating " + helperAllocated / matchCount + " bytes") +
+                    ", compiled matcher " + matcherTime / matchCount + "ns per match" +
+                    (allocatedBefore < 0 ? "" : " allocating " + matcherAllocated / matchCount + " bytes"));
+        }
+    }
+
+    /**
+     * Time and bytes allocated decoding urls with nothing to decode, with UTF-8 in the path and with query strings,
+     * java.net.URLDecoder is timed too for comparison.
+     */
+    public void testUrlDecoding() throws URISyntaxException, UnsupportedEncodingException {
+        Log.setLevel("ERROR");
+        String[][] urlSets = {
+                {"/products/shoes/red/10", "/about/team.html", "/images/2010/summer/beach.jpg"},
+                {"/caf%C3%A9/men%C3%BC", "/%E3%83%86%E3%82%B9%E3%83%88/page", "/a%20b/c%20d"},
+                {"/search?q=red+shoes&size=10", "/p?name=caf%C3%A9&x=1+2", "/list?page=2&sort=price"}};
+        String[] labels = {"ascii paths", "utf-8 paths", "query strings"};
+        int iterations = 500000;
+        for (int round = 0; round < 2; round++) {
+            // the first round is just warm up
+            for (int s = 0; s < urlSets.length; s++) {
+                String[] urls = urlSets[s];
+                long allocatedBefore = getThreadAllocatedBytes();
+                long start = System.nanoTime();
+                for (int n = 0; n < iterations; n++) {
+                    for (int i = 0; i < urls.length; i++) {
+                        URLDecoder.decodeURL(urls[i], "UTF-8");
+                    }
+                }
+                long time = System.nanoTime() - start;
+                long allocated = getThreadAllocatedBytes() - allocatedBefore;
+
+                start = System.nanoTime();
+                for (int n = 0; n < iterations; n++) {
+                    for (int i = 0; i < urls.length; i++) {
+                        java.net.URLDecoder.decode(urls[i], "UTF-8");
+                    }
+                }
+                long jdkTime = System.nanoTime() - start;
+                if (round == 0) continue;
+                long decodeCount = (long) iterations * urls.length;
+                System.out.println(labels[s] + " decoded in " + time / decodeCount + "ns" +
+                        (allocatedBefore < 0 ? "" : " allocating " + allocated / decodeCount + " bytes") +
+                        ", java.net.URLDecoder " + jdkTime / decodeCount + "ns");
+            }
+        }
     }
 
+    /**
+     * Time and bytes allocated escaping strings for a path segment and for a query, java.net.URLEncoder is timed too
+     * for comparison.
+     */
+    public void testUrlEncoding() throws UnsupportedEncodingException {
+        Log.setLevel("ERROR");
+        String[][] stringSets = {{"red-shoes", "size10", "summer.html"}, {"red shoes", "a/b", "x=1&y=2"},
+                {"caf\u00e9", "men\u00fc", "\u30c6\u30b9\u30c8"}};
+        String[] labels = {"nothing to escape", "ascii", "utf-8"};
+        int iterations = 500000;
+        for (int round = 0; round < 2; round++) {
+            // the first round is just warm up
+            for (int s = 0; s < stringSets.length; s++) {
+                String[] strings = stringSets[s];
+                long allocatedBefore = getThreadAllocatedBytes();
+                long start = System.nanoTime();
+                for (int n = 0; n < iterations; n++) {
+                    for (int i = 0; i < strings.length; i++) {
+                        URLEncoder.encodePathSegment(strings[i], "UTF-8");
+                    }
+                }
+                long pathTime = System.nanoTime() - start;
+                long pathAllocated = getThreadAllocatedBytes() - allocatedBefore;
+
+                allocatedBefore = getThreadAllocatedBytes();
+                start = System.nanoTime();
+                for (int n = 0; n < iterations; n++) {
+                    for (int i = 0; i < strings.length; i++) {
+                        URLEncoder.encodeQuery(strings[i], "UTF-8");
+                    }
+                }
+                long queryTime = System.nanoTime() - start;
+                long queryAllocated = getThreadAllocatedBytes() - allocatedBefore;
 
+                allocatedBefore = getThreadAllocatedBytes();
+                start = System.nanoTime();
+                for (int n = 0; n < iterations; n++) {
+                    for (int i = 0; i < strings.length; i++) {
+                        java.net.URLEncoder.encode(strings[i], "UTF-8");
+                    }
+                }
+                long jdkTime = System.nanoTime() - start;
+                long jdkAllocated = getThreadAllocatedBytes() - allocatedBefore;
+                if (round == 0) continue;
+                long encodeCount = (long) iterations * strings.length;
+                System.out.println(labels[s] + " escaped for a path in " + pathTime / encodeCount + "ns" +
+                        (allocatedBefore < 0 ? "" : " allocating " + pathAllocated / encodeCount + " bytes") +
+                        ", for a query in " + queryTime / encodeCount + "ns" +
+                        (allocatedBefore < 0 ? "" : " allocating " + queryAllocated / encodeCount + " bytes") +
+                        ", java.net.URLEncoder " + jdkTime / encodeCount + "ns" +
+                        (allocatedBefore < 0 ? "" : " allocating " + jdkAllocated / encodeCount + " bytes"));
+            }
+        }
+    }
+
+    /**
+     * Rewriting the links in a 10MB page should run at close to the speed of writing it out and allocate about the
+     * same whatever the size of the page.
+     */
+    public void testOutboundBodyRewriting() throws IOException {
+        Log.setLevel("ERROR");
+        Conf conf = newOutboundConf(100, "^");
+        OutboundRule bodyRule = new OutboundRule();
+        bodyRule.setFrom("^/world\\.jsp\\?country=([a-z]+)$");
+        bodyRule.setTo("/world/$1");
+        bodyRule.setRewriteBody(true);
+        conf.addOutboundRule(bodyRule);
+        conf.initialise();
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        byte[] block = ("<li class=\"country\"><a href=\"/world.jsp?country=nz\" title=\"nz\">" +
+                "<img src=\"/img/nz.png\" alt=\"\"/>New Zealand</a> some text about the country</li>\n").getBytes("UTF-8");
+        byte[] chunk = new byte[8192 / block.length * block.length];
+        for (int i = 0; i < chunk.length; i += block.length) System.arraycopy(block, 0, chunk, i, block.length);
+        int chunkCount = (10 * 1024 * 1024 + chunk.length - 1) / chunk.length;
+
+        for (int round = 0; round < 3; round++) {
+            // the first round is just warm up
+            for (int rewrite = 0; rewrite < 2; rewrite++) {
+                final ServletOutputStream discard = new ServletOutputStream() {
+                    public void write(int b) {
+                    }
+
+                    public void write(byte[] b, int off, int len) {
+                    }
+                };
+                MockResponse mockResponse = new MockResponse() {
+                    public ServletOutputStream getOutputStream() {
+                        return discard;
+                    }
+                };
+                mockResponse.setContentType(rewrite == 1 ? "text/html" : "text/plain");
+                UrlRewriteWrappedResponse wrappedResponse = new UrlRewriteWrappedResponse(mockResponse, request,
+                        urlRewriter);
+                long allocatedBefore = getThreadAllocatedBytes();
+                long start = System.nanoTime();
+                ServletOutputStream out = wrappedResponse.getOutputStream();
+                for (int i = 0; i < chunkCount; i++) {
+                    out.write(chunk);
+                }
+                wrappedResponse.finishBody();
+                long time = System.nanoTime() - start;
+                long allocated = getThreadAllocatedBytes() - allocatedBefore;
+                if (round == 0) continue;
+                long mb = ((long) chunkCount * chunk.length + 512 * 1024) / (1024 * 1024);
+                System.out.println((rewrite == 1 ? "rewriting links in " : "passing through ") + mb + "MB took " +
+                        time / 1000000 + "ms" + (allocatedBefore < 0 ? "" : " allocating " + allocated / 1024 + "KB"));
+            }
+        }
+    }
+
+    /**
+     * Gzipping a 10MB body should start sending before the body is finished and not hold copies of it.
+     */
+    public void testGzipStreaming() throws IOException, ServletException {
+        Log.setLevel("ERROR");
+        final byte[] body = newJsonBody(10 * 1024 * 1024);
+        request.addHeader("Accept-Encoding", "gzip");
+        // Integer.MAX_VALUE holds the whole body as GzipFilter always used to
+        int[] bufferSizes = {Integer.MAX_VALUE, GzipFilter.DEFAULT_BUFFER_SIZE};
+
+        for (int round = 0; round < 3; round++) {
+            // the first round is just warm up
+            for (int b = 0; b < bufferSizes.length; b++) {
+                MockFilterConfig filterConfig = new MockFilterConfig();
+                filterConfig.setInitParameter("bufferSize", String.valueOf(bufferSizes[b]));
+                GzipFilter gzipFilter = new GzipFilter();
+                gzipFilter.init(filterConfig);
+                final long[] firstByte = {0};
+                final long[] sent = {0};
+                final ServletOutputStream client = new ServletOutputStream() {
+                    public void write(int b) {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    public void write(byte[] b, int off, int len) {
+                        if (firstByte[0] == 0) firstByte[0] = System.nanoTime();
+                        sent[0] += len;
+                    }
+                };
+                MockResponse mockResponse = new MockResponse() {
+                    public ServletOutputStream getOutputStream() {
+                        return client;
+                    }
+                };
+                FilterChain writeBody = new FilterChain() {
+                    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse)
+                            throws IOException {
+                        ServletOutputStream out = servletResponse.getOutputStream();
+                        for (int i = 0; i < body.length; i += 8192) {
+                            out.write(body, i, Math.min(8192, body.length - i));
+                        }
+                    }
+                };
+                long allocatedBefore = getThreadAllocatedBytes();
+                long start = System.nanoTime();
+                gzipFilter.doFilter(request, mockResponse, writeBody);
+                long time = System.nanoTime() - start;
+                long allocated = getThreadAllocatedBytes() - allocatedBefore;
+                if (round == 0) continue;
+                System.out.println("gzipping " + body.length / (1024 * 1024) + "MB to " +
+                        sent[0] / 1024 + "KB " + (b == 0 ? "buffered" : "streamed") + " took " + time / 1000000 +
+                        "ms, first byte after " + (firstByte[0] - start) / 1000000 + "ms" +
+                        (allocatedBefore < 0 ? "" : " allocating " + allocated / 1024 + "KB"));
+            }
+        }
+    }
+
+    /**
+     * CPU per MB and the compression ratio at each compression level and strategy, then the time per small response
+     * with and without Deflaters being pooled.
+     */
+    public void testGzipCompressionLevels() throws IOException, ServletException {
+        Log.setLevel("ERROR");
+        request.addHeader("Accept-Encoding", "gzip");
+        final byte[] body = newJsonBody(4 * 1024 * 1024);
+        String[][] settings = {{"1", "default"}, {"3", "default"}, {"6", "default"}, {"9", "default"},
+                {"6", "filtered"}, {"6", "huffman-only"}};
+        for (int round = 0; round < 2; round++) {
+            // the first round is just warm up
+            for (int i = 0; i < settings.length; i++) {
+                MockFilterConfig filterConfig = new MockFilterConfig();
+                filterConfig.setInitParameter("compressionLevel", settings[i][0]);
+                filterConfig.setInitParameter("compressionStrategy", settings[i][1]);
+                GzipFilter gzipFilter = new GzipFilter();
+                gzipFilter.init(filterConfig);
+                CountingResponse countingResponse = new CountingResponse();
+                long cpuBefore = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+                gzipFilter.doFilter(request, countingResponse, new BodyWritingChain(body));
+                long cpu = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - cpuBefore;
+                gzipFilter.destroy();
+                if (round == 0) continue;
+                System.out.println("gzip level " + settings[i][0] + " " + settings[i][1] + " took " +
+                        cpu / (body.length / (1024 * 1024)) / 1000000 + "ms CPU per MB, ratio " +
+                        Math.round(body.length * 100.0 / countingResponse.sent) / 100.0);
+            }
+        }
+
+        final byte[] smallBody = newJsonBody(4 * 1024);
+        int requests = 20000;
+        String[] poolSizes = {"0", String.valueOf(GzipFilter.DEFAULT_DEFLATER_POOL_SIZE)};
+        for (int round = 0; round < 3; round++) {
+            // the first round is just warm up
+            for (int p = 0; p < poolSizes.length; p++) {
+                MockFilterConfig filterConfig = new MockFilterConfig();
+                filterConfig.setInitParameter("deflaterPoolSize", poolSizes[p]);
+                GzipFilter gzipFilter = new GzipFilter();
+                gzipFilter.init(filterConfig);
+                long allocatedBefore = getThreadAllocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < requests; i++) {
+                    gzipFilter.doFilter(request, new CountingResponse(), new BodyWritingChain(smallBody));
+                }
+                long time = System.nanoTime() - start;
+                long allocated = getThreadAllocatedBytes() - allocatedBefore;
+                gzipFilter.destroy();
+                if (round == 0) continue;
+                System.out.println("gzipping 4KB responses with a deflater pool of " + poolSizes[p] + " took " +
+                        time / requests / 1000 + "us each" +
+                        (allocatedBefore < 0 ? "" : " allocating " + allocated / requests + " bytes"));
+            }
+        }
+    }
+
+    private static byte[] newJsonBody(int length) throws UnsupportedEncodingException {
+        StringBuilder json = new StringBuilder();
+        Random random = new Random(10);
+        while (json.length() < length) {
+            json.append("{\"id\": ").append(random.nextInt(1000000)).append(", \"price\": ")
+                    .append(random.nextDouble()).append(", \"name\": \"item").append(random.nextInt()).append("\"},\n");
+        }
+        return json.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Counts what is sent rather than keeping it.
+     */
+    private static class CountingResponse extends MockResponse {
+        long sent;
+        private final ServletOutputStream client = new ServletOutputStream() {
+            public void write(int b) {
+                sent++;
+            }
+
+            public void write(byte[] b, int off, int len) {
+                sent += len;
+            }
+        };
+
+        public ServletOutputStream getOutputStream() {
+            return client;
+        }
+    }
+
+    private static class BodyWritingChain implements FilterChain {
+        private final byte[] body;
+
+        BodyWritingChain(byte[] body) {
+            this.body = body;
+        }
+
+        public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse) throws IOException {
+            ServletOutputStream out = servletResponse.getOutputStream();
+            for (int i = 0; i < body.length; i += 8192) {
+                out.write(body, i, Math.min(8192, body.length - i));
+            }
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private long lastLoadAllocated;
+
+    private Conf loadConf(byte[] bytes, String loader, boolean validate) {
+        // just the reading of the file, initialising the rules is the same for both
+        Conf readConf = new Conf();
+        long allocatedBefore = getThreadAllocatedBytes();
+        long start = System.currentTimeMillis();
+        if (Conf.LOADER_SAX.equals(loader)) {
+            readConf.loadSax(new ByteArrayInputStream(bytes), validate);
+        } else {
+            readConf.loadDom(new ByteArrayInputStream(bytes));
+        }
+        long readTime = System.currentTimeMillis() - start;
+        lastLoadAllocated = getThreadAllocatedBytes() - allocatedBefore;
+
+        Conf conf = new Conf(null, new ByteArrayInputStream(bytes), "big.xml", null, false, loader, validate);
+        System.out.println(loader + (validate ? "" : " (not validated)") + " loader read the file in " + readTime +
+                "ms" + (allocatedBefore < 0 ? "" : " allocating " + lastLoadAllocated / (1024 * 1024) + "MB") +
+                ", " + conf.getLoadTime() + "ms including initialising the rules");
+        return conf;
+    }
+
+    /**
+     * The bytes allocated by this thread, only available on some jvms.
+     *
+     * @return bytes or -1 if not available
+     */
+    private static long getThreadAllocatedBytes() {
+        try {
+            Object threadBean = ManagementFactory.getThreadMXBean();
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", new Class[]{long.class});
+            Long allocated = (Long) method.invoke(threadBean, new Object[]{new Long(Thread.currentThread().getId())});
+            return allocated.longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Time to initialise confs of 1k, 10k and 100k rules, one thread at a time, spread across threads and with the
+     * "from" of each rule compiled lazily.
+     */
+    public void testStartupTime() {
+        Log.setLevel("ERROR");
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        // warm up
+        initialiseRules(1000, 1, false);
+        initialiseRules(1000, threads, false);
+
+        int[] ruleCounts = {1000, 10000, 100000};
+        for (int i = 0; i < ruleCounts.length; i++) {
+            int ruleCount = ruleCounts[i];
+            long serial = initialiseRules(ruleCount, 1, false);
+            long parallel = initialiseRules(ruleCount, threads, false);
+            long lazy = initialiseRules(ruleCount, threads, true);
+            System.out.println(ruleCount + " rules initialised in " + serial + "ms on one thread, " + parallel +
+                    "ms on " + threads + " threads, " + lazy + "ms compiling lazily");
+        }
+    }
+
+    private long initialiseRules(int ruleCount, int threads, boolean lazy) {
+        Conf conf = new Conf();
+        conf.setInitThreads(threads);
+        conf.setLazyCompile(lazy);
+        for (int i = 0; i < ruleCount; i++) {
+            NormalRule rule = new NormalRule();
+            rule.setFrom("^/section" + i + "/([a-z]+)/([0-9]+)/$");
+            rule.setTo("/blah/" + i + "/$2/");
+            Condition condition = new Condition();
+            condition.setType("header");
+            condition.setName("user-agent");
+            condition.setValue("Mozilla/[0-9]+\\." + (i % 10));
+            rule.addCondition(condition);
+            conf.addRule(rule);
+        }
+        long start = System.currentTimeMillis();
+        conf.initialise();
+        long took = System.currentTimeMillis() - start;
+        assertTrue(conf.isOk());
+        return took;
+    }
 
 }
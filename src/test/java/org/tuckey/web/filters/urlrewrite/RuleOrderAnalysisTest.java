@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+
+public class RuleOrderAnalysisTest extends TestCase {
+
+    MockResponse response;
+
+    public void setUp() {
+        Log.setLevel("DEBUG");
+        response = new MockResponse();
+    }
+
+    private NormalRule addRule(Conf conf, String from, String to, boolean last) {
+        NormalRule rule = new NormalRule();
+        rule.setFrom(from);
+        rule.setTo(to);
+        if (last) rule.setToLast("true");
+        conf.addRule(rule);
+        return rule;
+    }
+
+    public void testGroups() {
+        Conf conf = new Conf();
+        addRule(conf, "^/a/(.*)$", "/x/$1", true);
+        addRule(conf, "^/b/(.*)$", "/x/$1", true);
+        addRule(conf, "^/c/(.*)$", "-", false);
+        // not last, the url it produces could match the rules after it
+        addRule(conf, "^/d/(.*)$", "/x/$1", false);
+        addRule(conf, "^/e/(.*)$", "/x/$1", true);
+        addRule(conf, "^/f/(.*)$", "null", false);
+        // starts with the same text as the rule before it
+        addRule(conf, "^/F/g", "/x", true);
+        addRule(conf, "^/h", "/x", true);
+        conf.initialise();
+
+        RuleOrderAnalysis analysis = new RuleOrderAnalysis(conf.getRules());
+        List groups = analysis.getGroups();
+        assertEquals(3, groups.size());
+        assertEquals("0-3", toString((int[]) groups.get(0)));
+        assertEquals("4-6", toString((int[]) groups.get(1)));
+        assertEquals("6-8", toString((int[]) groups.get(2)));
+    }
+
+    public void testHitWeightedOrder() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule ruleA = addRule(conf, "^/a/(.*)$", "/x/$1", true);
+        NormalRule ruleB = addRule(conf, "^/b/(.*)$", "/y/$1", true);
+        NormalRule ruleC = addRule(conf, "^/c/(.*)$", "/z/$1", true);
+        conf.initialise();
+        assertNull(conf.withHitWeightedOrder());
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("/z/" + i, urlRewriter.processRequest(new MockRequest("/c/" + i), response).getTarget());
+        }
+        assertEquals("/y/1", urlRewriter.processRequest(new MockRequest("/b/1"), response).getTarget());
+        assertEquals(3, ruleC.getStatistics().getEvaluations());
+        assertEquals(3, ruleC.getStatistics().getFromMatches());
+        assertEquals(3, ruleC.getStatistics().getConditionPasses());
+        assertEquals(0, ruleA.getStatistics().getEvaluations());
+        assertEquals("not timed by default", 0, ruleC.getStatistics().getTotalNanos());
+
+        Conf reordered = conf.withHitWeightedOrder();
+        assertNotNull(reordered);
+        assertSame(ruleC, reordered.getRules().get(0));
+        assertSame(ruleB, reordered.getRules().get(1));
+        assertSame(ruleA, reordered.getRules().get(2));
+        assertSame("the conf in use is not changed", ruleA, conf.getRules().get(0));
+        assertNull("already handed on", conf.withHitWeightedOrder());
+        assertNull(reordered.withHitWeightedOrder());
+
+        UrlRewriter reorderedRewriter = new UrlRewriter(reordered);
+        assertEquals("/x/1", reorderedRewriter.processRequest(new MockRequest("/a/1"), response).getTarget());
+        assertEquals("/z/9", reorderedRewriter.processRequest(new MockRequest("/c/9"), response).getTarget());
+        assertNull(reorderedRewriter.processRequest(new MockRequest("/d/1"), response));
+
+        // destroying the old conf leaves the rules to the reordered one
+        conf.destroy();
+        assertEquals("/y/2", reorderedRewriter.processRequest(new MockRequest("/b/2"), response).getTarget());
+    }
+
+    public void testRuleTiming() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule ruleA = addRule(conf, "^/a/(.*)$", "/x/$1", true);
+        conf.setRuleTimingEnabled(true);
+        NormalRule ruleB = addRule(conf, "^/b/(.*)$", "/y/$1", true);
+        conf.initialise();
+        assertTrue(ruleA.isTimed());
+        assertTrue("rules added later are timed too", ruleB.isTimed());
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("/y/" + i, urlRewriter.processRequest(new MockRequest("/b/" + i), response).getTarget());
+        }
+        assertEquals(100, ruleB.getStatistics().getEvaluations());
+        assertTrue(ruleB.getStatistics().getTotalNanos() > 0);
+
+        conf.setRuleTimingEnabled(false);
+        assertFalse(ruleA.isTimed());
+        assertFalse(ruleB.isTimed());
+    }
+
+    private static String toString(int[] group) {
+        return group[0] + "-" + group[1];
+    }
+
+}
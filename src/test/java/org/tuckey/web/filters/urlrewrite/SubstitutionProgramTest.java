@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.extend.RewriteFunction;
+import org.tuckey.web.filters.urlrewrite.substitution.BackReferenceReplacer;
+import org.tuckey.web.filters.urlrewrite.substitution.ChainedSubstitutionFilters;
+import org.tuckey.web.filters.urlrewrite.substitution.FunctionReplacer;
+import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionContext;
+import org.tuckey.web.filters.urlrewrite.substitution.SubstitutionProgram;
+import org.tuckey.web.filters.urlrewrite.substitution.VariableReplacer;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.filters.urlrewrite.utils.RegexPattern;
+import org.tuckey.web.filters.urlrewrite.utils.StringMatchingMatcher;
+import org.tuckey.web.filters.urlrewrite.utils.StringMatchingPatternSyntaxException;
+import org.tuckey.web.filters.urlrewrite.utils.WildcardPattern;
+import org.tuckey.web.testhelper.MockRequest;
+
+/**
+ * Checks a compiled "to" gives exactly the same output as the substitution chain.
+ */
+public class SubstitutionProgramTest extends TestCase {
+
+    private static final String[] TOS = {
+            "/simple",
+            "/a/$1/b/$2",
+            "/a/$1$2$3$9",
+            "/a/$0",
+            "/a/\\$1/b",
+            "/a/\\\\$1/b",
+            "\\\\\\a\\b\\\\c\\",
+            "/c/%1/%2/%3",
+            "/c/\\%1/%",
+            "/v/%{header:user-agent}/%{parameter:p}",
+            "/v/%{header:user-agent}%1$1",
+            "/v/\\%{header:user-agent}/%{bogus}",
+            "/f/${lower:$1}/${upper:%{parameter:p}}",
+            "/f/${replace:$1:o:0}-%1",
+            "/f/${trim: %1 }",
+            "/f/${lower:$1}x${upper:$2}",
+            "/f/${upper:${lower:$1}-%{parameter:p}}",
+            "/f/${replaceFirst:$1-$1:(.)o:$1-}",
+            "/f/${escape:UTF-16:$1 %1}/${unescapePath:a%20b}/${length}/${nosuchfunction:$1}",
+            "/f/\\${lower:A}/$1",
+            "/m/$1%1%{parameter:p}${length:abc}\\x\\\\y",
+            "$$1%%1",
+            "",
+            "/%",
+            "/$"
+    };
+
+    private static final String[] URLS = {
+            "/products/Shoes/Red",
+            "/products/shoes",
+            "/nomatch",
+            "/products/a$1\\b/%1/c"
+    };
+
+    private MockRequest request;
+
+    protected void setUp() {
+        Log.setLevel("DEBUG");
+        request = new MockRequest();
+        request.setHeader("user-agent", "Mozilla $1 \\x");
+        request.setParameter("p", "Param%1");
+    }
+
+    public void testSameAsChainRegex() throws StringMatchingPatternSyntaxException {
+        for (int i = 0; i < TOS.length; i++) {
+            for (int j = 0; j < URLS.length; j++) {
+                assertSameAsChain(new RegexPattern("/products/([a-z]+)(?:/([a-z]+))?", false), TOS[i], URLS[j], true);
+                assertSameAsChain(new RegexPattern("/products/([a-z]+)(?:/([a-z]+))?", false), TOS[i], URLS[j], false);
+                assertSameAsChain(new RegexPattern("[a-z]", true), TOS[i], URLS[j], true);
+            }
+        }
+    }
+
+    public void testSameAsChainWildcard() throws StringMatchingPatternSyntaxException {
+        for (int i = 0; i < TOS.length; i++) {
+            for (int j = 0; j < URLS.length; j++) {
+                assertSameAsChain(new WildcardPattern("/products/*/**"), TOS[i], URLS[j], true);
+                assertSameAsChain(new WildcardPattern("/products/**"), TOS[i], URLS[j], false);
+            }
+        }
+    }
+
+    public void testSegments() {
+        assertEquals(1, compile("/simple").getSegmentCount());
+        assertEquals(4, compile("/a/$1/b/$2").getSegmentCount());
+        assertEquals(4, compile("/v/%{header:user-agent}%1$1").getSegmentCount());
+        // escaped references are literal
+        assertEquals(1, compile("/a/\\$1/b\\%1").getSegmentCount());
+    }
+
+    public void testRuleUsesProgram() throws Exception {
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^/products/([a-z]+)$");
+        rule.setTo("/p/%{parameter:p}/${upper:$1}/\\$1");
+        rule.initialise(null);
+        assertEquals("/p/Param%1/SHOES/$1", rule.matchesBase("/products/shoes", request, null, null).getReplacedUrl());
+    }
+
+    public void testRegisteredFunction() throws Exception {
+        FunctionReplacer.registerFunction("wrap", WrapFunction.class);
+        NormalRule rule = new NormalRule();
+        rule.setFrom("^/products/([a-z]+)$");
+        rule.setTo("/p/${wrap:[:${upper:$1}}");
+        rule.initialise(null);
+        assertEquals("/p/[SHOES]", rule.matchesBase("/products/shoes", request, null, null).getReplacedUrl());
+        assertEquals("/p/[HATS]", rule.matchesBase("/products/hats", request, null, null).getReplacedUrl());
+    }
+
+    /**
+     * Wraps the subject in a bracket given as a constant parameter, eg, ${wrap:[:abc} gives [abc].
+     */
+    public static class WrapFunction extends RewriteFunction {
+        private String open;
+        private String close;
+
+        public String init(String argument) {
+            open = argument.substring(0, 1);
+            close = "[".equals(open) ? "]" : open;
+            return argument.substring(2);
+        }
+
+        public String execute(String subject) {
+            return open + subject + close;
+        }
+    }
+
+    private SubstitutionProgram compile(String to) {
+        return new SubstitutionProgram(to, FunctionReplacer.containsFunction(to), VariableReplacer.containsVariable(to),
+                BackReferenceReplacer.containsBackRef(to), null);
+    }
+
+    private void assertSameAsChain(RegexPattern pattern, String to, String url, boolean withCondition)
+            throws StringMatchingPatternSyntaxException {
+        assertSameAsChain(pattern.matcher(url), pattern.matcher(url), to, url, withCondition);
+    }
+
+    private void assertSameAsChain(WildcardPattern pattern, String to, String url, boolean withCondition)
+            throws StringMatchingPatternSyntaxException {
+        assertSameAsChain(pattern.matcher(url), pattern.matcher(url), to, url, withCondition);
+    }
+
+    private void assertSameAsChain(StringMatchingMatcher chainMatcher, StringMatchingMatcher programMatcher,
+                                   String to, String url, boolean withCondition)
+            throws StringMatchingPatternSyntaxException {
+        if (!chainMatcher.find() || !programMatcher.find()) return;
+        ConditionMatch conditionMatch = null;
+        if (withCondition) {
+            conditionMatch = new ConditionMatch();
+            StringMatchingMatcher conditionMatcher = new RegexPattern("(M[a-z]+) (.)", true).matcher("Mozilla 5");
+            conditionMatcher.find();
+            conditionMatch.setMatcher(conditionMatcher);
+        }
+        boolean withFunction = FunctionReplacer.containsFunction(to);
+        boolean withVariable = VariableReplacer.containsVariable(to);
+        boolean withBackRef = BackReferenceReplacer.containsBackRef(to);
+
+        String expected = ChainedSubstitutionFilters.getDefaultSubstitutionChain(true, withFunction, withVariable,
+                withBackRef).substitute(url, new SubstitutionContext(request, chainMatcher, conditionMatch, to));
+        String actual = new SubstitutionProgram(to, withFunction, withVariable, withBackRef, null)
+                .substitute(url, new EvaluationContext(request), programMatcher, conditionMatch);
+        assertEquals("to " + to + " url " + url, expected, actual);
+    }
+
+}
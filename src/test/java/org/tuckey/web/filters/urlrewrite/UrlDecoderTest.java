@@ -88,5 +88,50 @@ public class UrlDecoderTest extends TestCase {
         assertEquals(katakana, decoded);
     }
 
-}
+    public void testNothingToDecode() throws URISyntaxException {
+        String url = "/products/shoes+hats/?colour=red&size=10";
+        assertSame(url, URLDecoder.decodeURL(url, "UTF-8"));
+        String path = "/a+b";
+        assertSame(path, URLDecoder.decodePath(path, "UTF-8"));
+        assertEquals("/a b", URLDecoder.decodeQuery(path, "UTF-8"));
+    }
+
+    public void testMalformed() throws URISyntaxException, UnsupportedEncodingException {
+        byte[] bytes = {'/', (byte) 0xe3, (byte) 0x82, 'a', (byte) 0xff};
+        assertEquals(new String(bytes, "UTF-8"), URLDecoder.decodeURL("/%E3%82a%ff", "UTF-8"));
+        assertEquals("/caf?", URLDecoder.decodeURL("/caf\u00e9", "UTF-8"));
+        assertEquals("/? ?", URLDecoder.decodeURL("/\ud83d\ude00%20\ud83d", "UTF-8"));
+        try {
+            URLDecoder.decodeURL("/a%2", "UTF-8");
+            fail("should have thrown");
+        } catch (URISyntaxException e) {
+            // expected
+        }
+        try {
+            URLDecoder.decodeURL("/a%zz", "UTF-8");
+            fail("should have thrown");
+        } catch (URISyntaxException e) {
+            // expected
+        }
+        try {
+            URLDecoder.decodeURL("/a", "not-a-charset");
+            fail("should have thrown");
+        } catch (URISyntaxException e) {
+            // expected
+        }
+    }
 
+    public void testCharsetChangesAndLongStrings() throws URISyntaxException, UnsupportedEncodingException {
+        StringBuffer sb = new StringBuffer("/");
+        for (int i = 0; i < 5000; i++) {
+            sb.append("%C3%A9");
+        }
+        String decoded = URLDecoder.decodeURL(sb.toString(), "UTF-8");
+        assertEquals(5001, decoded.length());
+        assertEquals('\u00e9', decoded.charAt(5000));
+        assertEquals("/\u00c3\u00a9", URLDecoder.decodeURL("/%C3%A9", "ISO-8859-1"));
+        assertEquals("/\u00e9", URLDecoder.decodeURL("/%C3%A9", "UTF-8"));
+        assertEquals("/\u3042", URLDecoder.decodeURL("/%82%A0", "Shift_JIS"));
+    }
+
+}
@@ -44,6 +44,8 @@ import org.tuckey.web.testhelper.MockResponse;
 import org.tuckey.web.testhelper.MockServletContext;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 
@@ -432,5 +434,275 @@ public class UrlRewriterTest extends TestCase {
         assertEquals("/?q=foo%2Bbar+gee", rewrittenRequest.getTarget());
     }
 
-}
+    public void testRuleIndexKeepsOrder() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule0 = new NormalRule();
+        rule0.setFrom("^/a/(.*)$");
+        rule0.setTo("/b/$1");
+        conf.addRule(rule0);
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("^/c/(.*)$");
+        rule1.setTo("/d/$1");
+        conf.addRule(rule1);
+        NormalRule rule2 = new NormalRule();
+        rule2.setFrom("/b/");
+        rule2.setTo("/c/x");
+        conf.addRule(rule2);
+        NormalRule rule3 = new NormalRule();
+        rule3.setFrom("^/C/(.*)$");
+        rule3.setTo("/e/$1");
+        conf.addRule(rule3);
+        NormalRule rule4 = new NormalRule();
+        rule4.setFrom("^/C/(.*)$");
+        rule4.setFromCaseSensitive(true);
+        rule4.setTo("/f/$1");
+        conf.addRule(rule4);
+        conf.initialise();
 
+        assertEquals(5, conf.getRuleIndex().size());
+        assertEquals(4, conf.getRuleIndex().getIndexedCount());
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        // rule 0 then 2 (unindexed) then 3 (case insensitive), rule 1 has already been passed
+        MockRequest request = new MockRequest("/a/1");
+        RewrittenUrl rewrittenRequest = urlRewriter.processRequest(request, response);
+        assertEquals("/e/x1", rewrittenRequest.getTarget());
+
+        // rule 1 only, nothing else matches "/d/"
+        request = new MockRequest("/c/2");
+        rewrittenRequest = urlRewriter.processRequest(request, response);
+        assertEquals("/d/2", rewrittenRequest.getTarget());
+
+        request = new MockRequest("/z/2");
+        assertNull(urlRewriter.processRequest(request, response));
+    }
+
+    public void testMultiMatchEngine() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        conf.setMatchEngine("multi");
+        NormalRule rule0 = new NormalRule();
+        rule0.setFrom("^/a/(.*)$");
+        rule0.setTo("/b/$1");
+        conf.addRule(rule0);
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("^/c/([0-9]+)$");
+        rule1.setTo("/d/$1");
+        conf.addRule(rule1);
+        NormalRule rule2 = new NormalRule();
+        rule2.setFrom("/b/");
+        rule2.setTo("/c/x");
+        conf.addRule(rule2);
+        NormalRule rule3 = new NormalRule();
+        rule3.setFrom("^/C/(.*)$");
+        rule3.setTo("/e/$1");
+        conf.addRule(rule3);
+        NormalRule rule4 = new NormalRule();
+        rule4.setFrom("/w/*");
+        rule4.setMatchType("wildcard");
+        rule4.setTo("/f/$1");
+        conf.addRule(rule4);
+        conf.initialise();
+
+        assertEquals("multi", conf.getMatchEngine());
+        assertEquals(5, conf.getRuleIndex().size());
+        assertEquals(5, conf.getRuleIndex().getIndexedCount());
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        MockRequest request = new MockRequest("/a/1");
+        RewrittenUrl rewrittenRequest = urlRewriter.processRequest(request, response);
+        assertEquals("/e/x1", rewrittenRequest.getTarget());
+
+        request = new MockRequest("/c/2");
+        rewrittenRequest = urlRewriter.processRequest(request, response);
+        assertEquals("/d/2", rewrittenRequest.getTarget());
+
+        request = new MockRequest("/c/z");
+        rewrittenRequest = urlRewriter.processRequest(request, response);
+        assertEquals("/e/z", rewrittenRequest.getTarget());
+
+        request = new MockRequest("/w/y");
+        rewrittenRequest = urlRewriter.processRequest(request, response);
+        assertEquals("/f/y", rewrittenRequest.getTarget());
+
+        request = new MockRequest("/z/2");
+        assertNull(urlRewriter.processRequest(request, response));
+    }
+
+    public void testRuleCache() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule0 = new NormalRule();
+        rule0.setFrom("^/a/(.*)$");
+        rule0.setTo("/b/$1");
+        conf.addRule(rule0);
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("^/b/(.*)$");
+        rule1.setTo("/c/$1");
+        rule1.setQueryStringAppend("true");
+        conf.addRule(rule1);
+        NormalRule rule2 = new NormalRule();
+        rule2.setFrom("^/c/(.*)$");
+        rule2.setTo("/d/$1");
+        rule2.setToLast("true");
+        conf.addRule(rule2);
+        NormalRule rule3 = new NormalRule();
+        rule3.setFrom("^/d/");
+        rule3.setTo("/never");
+        conf.addRule(rule3);
+        conf.initialise();
+
+        assertTrue(rule0.isPure());
+        assertFalse(rule1.isPure());
+        assertEquals(1, conf.getPureRunEnd(0));
+        assertEquals(-1, conf.getPureRunEnd(1));
+        assertEquals(4, conf.getPureRunEnd(2));
+        assertEquals(4, conf.getPureRunEnd(3));
+        assertNotNull(conf.getRuleCache());
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+
+        MockRequest request = new MockRequest("/a/x");
+        request.setQueryString("q=1");
+        assertEquals("/d/x?q=1", urlRewriter.processRequest(request, response).getTarget());
+        assertEquals(0, conf.getRuleCache().getHitCount());
+        assertEquals(2, conf.getRuleCache().getMissCount());
+
+        request = new MockRequest("/a/x");
+        request.setQueryString("q=1");
+        assertEquals("/d/x?q=1", urlRewriter.processRequest(request, response).getTarget());
+        assertEquals(Boolean.TRUE, request.getAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched"));
+        assertEquals(2, conf.getRuleCache().getHitCount());
+
+        // the rule that appends the query string is not cached
+        request = new MockRequest("/a/x");
+        request.setQueryString("q=2");
+        assertEquals("/d/x?q=2", urlRewriter.processRequest(request, response).getTarget());
+        assertEquals(3, conf.getRuleCache().getHitCount());
+        assertEquals(3, conf.getRuleCache().getMissCount());
+
+        assertEquals(3, conf.getRuleCache().size());
+
+        conf.setRuleCacheSize(0);
+        assertNull(conf.getRuleCache());
+        urlRewriter = new UrlRewriter(conf);
+        request = new MockRequest("/a/y");
+        request.setQueryString("q=3");
+        assertEquals("/d/y?q=3", urlRewriter.processRequest(request, response).getTarget());
+    }
+
+    public void testRuleCacheStatistics() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule0 = new NormalRule();
+        rule0.setFrom("^/a/(.*)$");
+        rule0.setTo("/b/$1");
+        rule0.setToLast("true");
+        conf.addRule(rule0);
+        conf.initialise();
+        assertNotNull(conf.getRuleCache());
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        for (int i = 0; i < 5; i++) {
+            MockRequest request = new MockRequest("/a/x");
+            assertEquals("/b/x", urlRewriter.processRequest(request, response).getTarget());
+        }
+        assertEquals(4, conf.getRuleCache().getHitCount());
+        assertEquals("cache hits are counted", 5, rule0.getStatistics().getEvaluations());
+        assertEquals(5, rule0.getStatistics().getFromMatches());
+        assertEquals(5, rule0.getStatistics().getConditionPasses());
+    }
+
+    public void testNoMatchCache() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule0 = new NormalRule();
+        rule0.setFrom("^/a/(.*)$");
+        rule0.setTo("/b/$1");
+        conf.addRule(rule0);
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("\\.html$");
+        rule1.setTo("/page");
+        conf.addRule(rule1);
+        conf.initialise();
+        assertTrue(conf.isAllRulesPure());
+        assertNotNull(conf.getNoMatchCache());
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        MockRequest request = new MockRequest("/static/x.css");
+        assertNull(urlRewriter.processRequest(request, response));
+        assertEquals(0, conf.getNoMatchCache().getHitCount());
+        assertEquals(1, conf.getNoMatchCache().size());
+        assertNull(urlRewriter.processRequest(request, response));
+        assertEquals(1, conf.getNoMatchCache().getHitCount());
+
+        request = new MockRequest("/a/x");
+        assertEquals("/b/x", urlRewriter.processRequest(request, response).getTarget());
+        assertEquals(1, conf.getNoMatchCache().size());
+
+        // a rule that depends on the request means a url that matched nothing might match next time
+        NormalRule rule2 = new NormalRule();
+        rule2.setFrom("^/static/");
+        rule2.setTo("/c");
+        rule2.setQueryStringAppend("true");
+        conf.addRule(rule2);
+        conf.initialise();
+        assertFalse(conf.isAllRulesPure());
+        assertNull(conf.getNoMatchCache());
+    }
+
+    public void testNoMatchCacheStatistics() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        NormalRule rule0 = new NormalRule();
+        rule0.setFrom("^/a/(.*)\\.html$");
+        rule0.setTo("/b/$1");
+        conf.addRule(rule0);
+        conf.initialise();
+        assertNotNull(conf.getNoMatchCache());
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        for (int i = 0; i < 5; i++) {
+            MockRequest request = new MockRequest("/a/x.css");
+            assertNull(urlRewriter.processRequest(request, response));
+        }
+        assertEquals(4, conf.getNoMatchCache().getHitCount());
+        assertEquals("cache hits are counted as misses", 5, rule0.getStatistics().getEvaluations());
+        assertEquals(0, rule0.getStatistics().getFromMatches());
+        assertEquals(0, rule0.getStatistics().getConditionPasses());
+    }
+
+    public void testNoMatchCacheMatchWithoutRewrite() throws IOException, ServletException, InvocationTargetException {
+        Conf conf = new Conf();
+        // matches but, like a rule with only set's, gives no rewritten url
+        NormalRule rule0 = new NormalRule() {
+            public RewrittenUrl matches(String url, HttpServletRequest hsRequest, HttpServletResponse hsResponse,
+                                        RuleChain chain)
+                    throws IOException, ServletException, InvocationTargetException {
+                super.matches(url, hsRequest, hsResponse, chain);
+                return null;
+            }
+        };
+        rule0.setFrom("^/static/");
+        rule0.setTo("/never");
+        conf.addRule(rule0);
+        NormalRule rule1 = new NormalRule();
+        rule1.setFrom("^/api/");
+        rule1.setTo("-");
+        conf.addRule(rule1);
+        conf.initialise();
+        assertTrue(conf.isOk());
+        assertTrue(conf.isAllRulesPure());
+        assertNotNull(conf.getNoMatchCache());
+
+        UrlRewriter urlRewriter = new UrlRewriter(conf);
+        for (int i = 0; i < 2; i++) {
+            MockRequest request = new MockRequest("/static/x.css");
+            assertNull(urlRewriter.processRequest(request, response));
+            assertEquals(Boolean.TRUE, request.getAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched"));
+            request = new MockRequest("/api/x");
+            assertEquals("/api/x", urlRewriter.processRequest(request, response).getTarget());
+            assertEquals(Boolean.TRUE, request.getAttribute("org.tuckey.web.filters.urlrewrite.RuleMatched"));
+        }
+        assertEquals("matched urls are not remembered", 0, conf.getNoMatchCache().size());
+        assertEquals(2, rule0.getStatistics().getConditionPasses());
+    }
+
+}
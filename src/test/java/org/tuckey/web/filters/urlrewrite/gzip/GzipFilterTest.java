@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.gzip;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.utils.Log;
+import org.tuckey.web.testhelper.MockFilterConfig;
+import org.tuckey.web.testhelper.MockRequest;
+import org.tuckey.web.testhelper.MockResponse;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+public class GzipFilterTest extends TestCase {
+
+    MockRequest request;
+    MockResponse response;
+    GzipFilter filter;
+
+    public void setUp() throws ServletException {
+        Log.setLevel("DEBUG");
+        request = new MockRequest("/big.json");
+        request.addHeader("Accept-Encoding", "gzip, deflate");
+        response = new MockResponse();
+        filter = new GzipFilter();
+        filter.init(new MockFilterConfig());
+    }
+
+    public void testSmallBodyBuffered() throws IOException, ServletException {
+        byte[] body = "{\"hello\": \"world\"}".getBytes("UTF-8");
+        filter.doFilter(request, response, new WritingChain(body, 0));
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals(String.valueOf(response.getOutputStreamAsBytes().length), response.getHeader("Content-Length"));
+        assertTrue(Arrays.equals(body, gunzip(response.getOutputStreamAsBytes())));
+    }
+
+    public void testLargeBodyStreamed() throws IOException, ServletException {
+        byte[] body = randomBytes(64 * 1024);
+        WritingChain chain = new WritingChain(body, 0);
+        filter.doFilter(request, response, chain);
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertNull("length not known up front", response.getHeader("Content-Length"));
+        assertTrue("streamed before the body was finished", chain.bytesSentWhileWriting > 0);
+        assertTrue(Arrays.equals(body, gunzip(response.getOutputStreamAsBytes())));
+    }
+
+    public void testBufferSize() throws IOException, ServletException {
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.setInitParameter("bufferSize", String.valueOf(1024 * 1024));
+        filter.init(filterConfig);
+        byte[] body = randomBytes(64 * 1024);
+        WritingChain chain = new WritingChain(body, 0);
+        filter.doFilter(request, response, chain);
+        assertEquals(0, chain.bytesSentWhileWriting);
+        assertEquals(String.valueOf(response.getOutputStreamAsBytes().length), response.getHeader("Content-Length"));
+        assertTrue(Arrays.equals(body, gunzip(response.getOutputStreamAsBytes())));
+    }
+
+    public void testEmptyBody() throws IOException, ServletException {
+        filter.doFilter(request, response, new WritingChain(new byte[0], 0));
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals("0", response.getHeader("Content-Length"));
+        assertEquals(0, response.getOutputStreamAsBytes().length);
+    }
+
+    public void testNoContentBodyDropped() throws IOException, ServletException {
+        filter.doFilter(request, response, new WritingChain(randomBytes(64 * 1024),
+                HttpServletResponse.SC_NO_CONTENT));
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(0, response.getOutputStreamAsBytes().length);
+    }
+
+    public void testUngzippedContentLengthDropped() throws IOException, ServletException {
+        final byte[] body = randomBytes(64 * 1024);
+        filter.doFilter(request, response, new FilterChain() {
+            public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse) throws IOException {
+                servletResponse.setContentLength(body.length);
+                servletResponse.getOutputStream().write(body);
+            }
+        });
+        assertNull(response.getHeader("Content-Length"));
+        assertTrue(Arrays.equals(body, gunzip(response.getOutputStreamAsBytes())));
+    }
+
+    public void testNotAccepted() throws IOException, ServletException {
+        request = new MockRequest("/big.json");
+        byte[] body = randomBytes(1024);
+        filter.doFilter(request, response, new WritingChain(body, 0));
+        assertNull(response.getHeader("Content-Encoding"));
+        assertTrue(Arrays.equals(body, response.getOutputStreamAsBytes()));
+    }
+
+    public void testCompressionLevel() throws IOException, ServletException {
+        byte[] body = textBytes(64 * 1024);
+        int[] sizes = new int[2];
+        String[] levels = {"1", "9"};
+        for (int i = 0; i < levels.length; i++) {
+            MockFilterConfig filterConfig = new MockFilterConfig();
+            filterConfig.setInitParameter("bufferSize", String.valueOf(1024 * 1024));
+            filterConfig.setInitParameter("compressionLevel", levels[i]);
+            filterConfig.setInitParameter("compressionStrategy", "filtered");
+            filter.init(filterConfig);
+            response = new MockResponse();
+            filter.doFilter(request, response, new WritingChain(body, 0));
+            assertTrue(Arrays.equals(body, gunzip(response.getOutputStreamAsBytes())));
+            sizes[i] = response.getOutputStreamAsBytes().length;
+        }
+        assertTrue("level 9 " + sizes[1] + " smaller than level 1 " + sizes[0], sizes[1] < sizes[0]);
+    }
+
+    public void testDeflaterReusedAfterException() throws IOException, ServletException {
+        try {
+            filter.doFilter(request, response, new FilterChain() {
+                public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse)
+                        throws IOException {
+                    servletResponse.getOutputStream().write(randomBytes(1024));
+                    throw new IOException("broken");
+                }
+            });
+            fail("exception expected");
+        } catch (IOException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        for (int i = 0; i < 3; i++) {
+            byte[] body = textBytes(1000 + i);
+            response = new MockResponse();
+            filter.doFilter(request, response, new WritingChain(body, 0));
+            assertTrue(Arrays.equals(body, gunzip(response.getOutputStreamAsBytes())));
+        }
+    }
+
+    public void testWriteAfterFinishFails() throws IOException, ServletException {
+        final OutputStream[] leaked = new OutputStream[1];
+        filter.doFilter(request, response, new FilterChain() {
+            public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse) throws IOException {
+                leaked[0] = servletResponse.getOutputStream();
+                leaked[0].write(1);
+            }
+        });
+        try {
+            leaked[0].write(2);
+            fail("the deflater has gone back to the pool");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testReadableByGzipInputStream() throws IOException {
+        byte[] body = textBytes(100 * 1024);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        DeflaterPool pool = new DeflaterPool(1, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Deflater deflater = pool.take();
+            PooledGzipOutputStream pooledGzipOutputStream = new PooledGzipOutputStream(out, deflater, 4096);
+            pooledGzipOutputStream.write(body);
+            pooledGzipOutputStream.close();
+            pooledGzipOutputStream.release();
+            pool.give(deflater);
+
+            byte[] gzipped = out.toByteArray();
+            assertEquals("unknown os", 0xff, gzipped[9] & 0xff);
+            assertEquals("crc", crc.getValue(), littleEndianInt(gzipped, gzipped.length - 8));
+            assertEquals("length", body.length, littleEndianInt(gzipped, gzipped.length - 4));
+            assertTrue(Arrays.equals(body, gunzip(gzipped)));
+        }
+    }
+
+    public void testDeflaterPool() {
+        DeflaterPool pool = new DeflaterPool(1, Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY);
+        Deflater first = pool.take();
+        Deflater second = pool.take();
+        assertNotSame(first, second);
+        pool.give(first);
+        pool.give(second);
+        assertEquals("bounded", 1, pool.getIdleCount());
+        assertSame(first, pool.take());
+        assertEquals(0, pool.getIdleCount());
+        pool.give(first);
+        pool.destroy();
+        assertEquals(0, pool.getIdleCount());
+
+        DeflaterPool noPool = new DeflaterPool(0, Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY);
+        Deflater deflater = noPool.take();
+        noPool.give(deflater);
+        assertNotSame(deflater, noPool.take());
+    }
+
+    private static byte[] textBytes(int length) {
+        byte[] bytes = new byte[length];
+        Random random = new Random(length);
+        String[] words = {"url", "rewrite", "filter", "gzip", "deflate", "pool", "level", "json", "\n", " "};
+        int pos = 0;
+        while (pos < length) {
+            String word = words[random.nextInt(words.length)];
+            for (int i = 0; i < word.length() && pos < length; i++) bytes[pos++] = (byte) word.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static long littleEndianInt(byte[] bytes, int off) {
+        return (bytes[off] & 0xffL) | (bytes[off + 1] & 0xffL) << 8 | (bytes[off + 2] & 0xffL) << 16
+                | (bytes[off + 3] & 0xffL) << 24;
+    }
+
+    private static byte[] gunzip(byte[] gzipped) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the body in 1k chunks, noting how much of the response had been sent before it finished.
+     */
+    private class WritingChain implements FilterChain {
+        private final byte[] body;
+        private final int status;
+        int bytesSentWhileWriting;
+
+        WritingChain(byte[] body, int status) {
+            this.body = body;
+            this.status = status;
+        }
+
+        public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse) throws IOException {
+            if (status != 0) ((HttpServletResponse) servletResponse).setStatus(status);
+            for (int i = 0; i < body.length; i += 1024) {
+                servletResponse.getOutputStream().write(body, i, Math.min(1024, body.length - i));
+            }
+            bytesSentWhileWriting = response.getOutputStreamAsBytes().length;
+        }
+    }
+
+}
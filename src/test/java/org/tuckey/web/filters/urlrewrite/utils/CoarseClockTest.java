@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+
+import java.util.Calendar;
+
+public class CoarseClockTest extends TestCase {
+
+    public void setUp() {
+        Log.setLevel("DEBUG");
+    }
+
+    public void tearDown() {
+        while (CoarseClock.isRunning()) CoarseClock.stop();
+    }
+
+    public void testExactWhenNotRunning() {
+        assertFalse(CoarseClock.isRunning());
+        assertEquals(0, CoarseClock.getResolution());
+        long before = System.currentTimeMillis();
+        long now = CoarseClock.currentTimeMillis();
+        assertTrue(now >= before && now <= System.currentTimeMillis());
+        assertTrue(CoarseClock.now() != CoarseClock.now());
+    }
+
+    public void testTicks() throws InterruptedException {
+        CoarseClock.start(10);
+        assertTrue(CoarseClock.isRunning());
+        CoarseClock.Tick first = CoarseClock.now();
+        assertSame("reading between ticks should not make anything", first, CoarseClock.now());
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (CoarseClock.now() == first && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(5);
+        }
+        CoarseClock.Tick next = CoarseClock.now();
+        assertNotSame(first, next);
+        assertTrue(next.getMillis() >= first.getMillis());
+        assertTrue(Math.abs(System.currentTimeMillis() - CoarseClock.currentTimeMillis()) < 1000);
+    }
+
+    public void testFields() {
+        CoarseClock.start(1000);
+        CoarseClock.Tick tick = CoarseClock.now();
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(tick.getMillis());
+        int[] fields = {Calendar.YEAR, Calendar.MONTH, Calendar.DAY_OF_MONTH, Calendar.DAY_OF_WEEK, Calendar.AM_PM,
+                Calendar.HOUR_OF_DAY, Calendar.MINUTE, Calendar.SECOND, Calendar.MILLISECOND};
+        for (int i = 0; i < fields.length; i++) {
+            assertEquals(calendar.get(fields[i]), tick.get(fields[i]));
+        }
+    }
+
+    public void testStartAndStopAreCounted() {
+        CoarseClock.start(1000);
+        CoarseClock.start(50);
+        assertEquals("the finest resolution asked for should be used", 50, CoarseClock.getResolution());
+        CoarseClock.start(500);
+        assertEquals(50, CoarseClock.getResolution());
+        CoarseClock.stop();
+        CoarseClock.stop();
+        assertTrue(CoarseClock.isRunning());
+        CoarseClock.stop();
+        assertFalse(CoarseClock.isRunning());
+        CoarseClock.stop();
+        assertFalse(CoarseClock.isRunning());
+    }
+
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class CompiledWildcardTest extends TestCase {
+
+    private static final String[] PATTERNS = {"", "/", "*", "**", "***", "/*", "/**", "/*/", "/**/", "/*/*/*/",
+            "/products/*/**", "/products/**/*", "/images/**/*.jpg", "*.html", "**.html", "/a*b*c", "/a**b**c",
+            "/a\\*b/*", "/a\\\\b/*", "/exact", "\\", "*\\", "/*.*", "/**.*", "/*x", "/**x", "x*", "/a/*/b/*/c/*",
+            "/*/**/*", "/*//*"};
+
+    private static final String[] URLS = {"", "/", "//", "/a", "/a/", "/a/b", "/a/b/", "/a/b/c", "/abc", "/aXbYc",
+            "/ab/bc", "/a*b/c", "/a\\b/c", "/exact", "/exactly", "/products/shoes/red/10", "/products/shoes",
+            "/products/", "/images/2010/summer/beach.jpg", "/images/beach.jpg", "/images/x.jpg.jpg", "/page.html",
+            "/dir/page.html", "page.html", ".html", "/a.b.c", "/x", "/xx/x", "x", "xyz", "/a/1/b/2/c/3",
+            "/a/1/b/2/c/3/4", "/a//b", "\\"};
+
+    public void testSameAsWildcardHelper() {
+        WildcardHelper wh = new WildcardHelper();
+        for (int i = 0; i < PATTERNS.length; i++) {
+            int[] expr = wh.compilePattern(PATTERNS[i]);
+            CompiledWildcard compiledWildcard = new CompiledWildcard(PATTERNS[i]);
+            for (int j = 0; j < URLS.length; j++) {
+                String desc = PATTERNS[i] + " against " + URLS[j];
+                Map map = new HashMap();
+                boolean expected = wh.match(map, URLS[j], expr);
+                WildcardMatcher matcher = new WildcardMatcher(compiledWildcard, URLS[j]);
+                assertEquals(desc, expected, matcher.find());
+                if (!expected) continue;
+                assertEquals(desc, map.size() - 1, matcher.groupCount());
+                for (int g = 0; g <= matcher.groupCount(); g++) {
+                    assertEquals(desc + " group " + g, map.get("" + g), matcher.group(g));
+                }
+            }
+        }
+    }
+
+    public void testGroups() {
+        CompiledWildcard compiledWildcard = new CompiledWildcard("/products/*/**");
+        assertEquals(2, compiledWildcard.getWildcardCount());
+        int[] groups = new int[4];
+        assertTrue(compiledWildcard.match("/products/shoes/red/10", groups));
+        assertEquals(10, groups[0]);
+        assertEquals(15, groups[1]);
+        assertEquals(16, groups[2]);
+        assertEquals(22, groups[3]);
+        assertFalse(compiledWildcard.match("/product/shoes/red/10", groups));
+        assertTrue(compiledWildcard.match("/products/shoes/", null));
+
+        WildcardMatcher matcher = new WildcardMatcher(compiledWildcard, "/other");
+        assertFalse(matcher.find());
+        assertEquals(0, matcher.groupCount());
+        assertNull(matcher.group(1));
+    }
+
+    public void testLiterals() {
+        CompiledWildcard compiledWildcard = new CompiledWildcard("/images/**/*.jpg");
+        assertEquals("/images/", compiledWildcard.getLiteralPrefix());
+        assertEquals(".jpg", compiledWildcard.getLiteralSuffix());
+        assertEquals("/images/**/*.jpg", compiledWildcard.toString());
+
+        assertEquals("", new CompiledWildcard("*.html").getLiteralPrefix());
+        assertEquals(".html", new CompiledWildcard("*.html").getLiteralSuffix());
+        assertEquals("", new CompiledWildcard("/a/**").getLiteralSuffix());
+        assertEquals("/exact", new CompiledWildcard("/exact").getLiteralSuffix());
+        assertEquals("/*.gif", new CompiledWildcard("/**/\\*.gif").getLiteralSuffix());
+        assertEquals(".png", new WildcardPattern("/**.png").getLiteralSuffix());
+    }
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.extend.RewriteMap;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class FileRewriteMapTest extends TestCase {
+
+    private File file;
+    private int loads;
+
+    public void setUp() throws IOException {
+        Log.setLevel("DEBUG");
+        file = File.createTempFile("urlrewrite", ".txt");
+    }
+
+    public void tearDown() {
+        file.delete();
+    }
+
+    private FileRewriteMap newMap() {
+        return new FileRewriteMap(file, 0) {
+            protected RewriteMap load(File file) throws IOException {
+                loads++;
+                FileReader reader = new FileReader(file);
+                try {
+                    return HashRewriteMap.load(reader, false);
+                } finally {
+                    reader.close();
+                }
+            }
+        };
+    }
+
+    public void testReload() throws IOException {
+        write("/a /b\n");
+        FileRewriteMap map = newMap();
+        map.reload();
+        assertEquals("/b", map.get("/a"));
+        assertEquals("/b", map.get("/a"));
+        assertEquals("should not reload when unchanged", 1, loads);
+
+        write("/a /c\n/d /e\n");
+        assertEquals("/c", map.get("/a"));
+        assertTrue(map.containsKey("/d"));
+        assertEquals(2, loads);
+    }
+
+    public void testMissingKeepsMap() throws IOException {
+        write("/a /b\n");
+        FileRewriteMap map = newMap();
+        map.reload();
+        file.delete();
+        assertEquals("/b", map.get("/a"));
+    }
+
+    public void testNotLoaded() {
+        file.delete();
+        FileRewriteMap map = newMap();
+        assertNull(map.get("/a"));
+        assertFalse(map.containsKey("/a"));
+    }
+
+    private void write(String s) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        writer.write(s);
+        writer.close();
+        // make sure the change is seen even on file systems with coarse modified times
+        file.setLastModified(file.lastModified() + 2000);
+    }
+
+}
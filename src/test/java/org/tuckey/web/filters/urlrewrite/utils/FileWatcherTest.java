@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FileWatcherTest extends TestCase {
+
+    private File file;
+    private FileWatcher watcher;
+    private volatile int changes;
+
+    public void setUp() throws IOException {
+        Log.setLevel("DEBUG");
+        file = File.createTempFile("urlrewrite", ".xml");
+        write(file, "a");
+        watcher = new FileWatcher(10, 100, new Runnable() {
+            public void run() {
+                changes++;
+            }
+        });
+        List files = new ArrayList();
+        files.add(file);
+        watcher.setFiles(files);
+    }
+
+    public void tearDown() {
+        watcher.stop();
+        file.delete();
+    }
+
+    private static void write(File file, String text) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        writer.write(text);
+        writer.close();
+    }
+
+    public void testDebounce() throws IOException {
+        assertFalse(watcher.poll(1000));
+        assertFalse(watcher.poll(1010));
+
+        write(file, "ab");
+        assertFalse("change seen but not settled", watcher.poll(1020));
+        assertFalse(watcher.poll(1080));
+        write(file, "abc");
+        assertFalse("another write restarts the wait", watcher.poll(1090));
+        assertFalse(watcher.poll(1150));
+        assertTrue("unchanged for the debounce time", watcher.poll(1190));
+        assertFalse("only called back once per burst", watcher.poll(1300));
+    }
+
+    public void testDeleted() {
+        watcher.poll(1000);
+        file.delete();
+        assertFalse(watcher.poll(1010));
+        assertTrue(watcher.poll(1200));
+    }
+
+    public void testBackgroundCallback() throws Exception {
+        watcher.start();
+        assertTrue(watcher.isStarted());
+        write(file, "a longer file");
+        long end = System.currentTimeMillis() + 5000;
+        while (changes == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, changes);
+        watcher.stop();
+        assertFalse(watcher.isStarted());
+    }
+
+}
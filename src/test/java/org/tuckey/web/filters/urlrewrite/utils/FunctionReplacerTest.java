@@ -1,6 +1,7 @@
 package org.tuckey.web.filters.urlrewrite.utils;
 
 import junit.framework.TestCase;
+import org.tuckey.web.filters.urlrewrite.extend.RewriteFunction;
 import org.tuckey.web.filters.urlrewrite.substitution.FunctionReplacer;
 
 import javax.servlet.ServletException;
@@ -95,4 +96,22 @@ public class FunctionReplacerTest extends TestCase {
         assertEquals("aFOOBAR b", FunctionReplacer.replace("a${upper:${lower:fOObAR}} b"));
     }
 
+    public void testRegisteredFunction() {
+        FunctionReplacer.registerFunction("reverse", ReverseFunction.class);
+        assertEquals("a-olleh-b", FunctionReplacer.replace("a-${REVERSE:${lower:HELLO}}-b"));
+        assertEquals("a--b", FunctionReplacer.replace("a-${unknown:x}-b"));
+        try {
+            FunctionReplacer.registerFunction("bad", String.class);
+            fail("only a RewriteFunction should be allowed");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public static class ReverseFunction extends RewriteFunction {
+        public String execute(String subject) {
+            return new StringBuffer(subject).reverse().toString();
+        }
+    }
+
 }
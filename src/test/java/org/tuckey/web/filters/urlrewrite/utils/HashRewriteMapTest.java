@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
+
+public class HashRewriteMapTest extends TestCase {
+
+    public void setUp() {
+        Log.setLevel("DEBUG");
+    }
+
+    public void testPutAndGet() {
+        HashRewriteMap map = new HashRewriteMap();
+        assertTrue(map.put("/old/a", "/new/a"));
+        assertTrue(map.put("/old/b", "/new/b"));
+        assertFalse("first value should be kept", map.put("/old/a", "/new/other"));
+        assertEquals(2, map.size());
+        assertEquals("/new/a", map.get("/old/a"));
+        assertEquals("/new/a", map.get(new String("/old/a")));
+        assertEquals("/new/b", map.get("/old/b"));
+        assertNull(map.get("/old/c"));
+        assertNull(map.get(null));
+        assertTrue(map.containsKey("/old/b"));
+        assertFalse(map.containsKey("/old/c"));
+    }
+
+    public void testGrow() {
+        HashRewriteMap map = new HashRewriteMap(1);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(map.put("key" + i, "value" + (i % 10)));
+        }
+        assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("value" + (i % 10), map.get("key" + i));
+        }
+        assertNull(map.get("key10000"));
+    }
+
+    public void testValuesInterned() {
+        HashRewriteMap map = new HashRewriteMap();
+        map.put("a", new String("/same"));
+        map.put("b", new String("/same"));
+        assertSame(map.get("a"), map.get("b"));
+    }
+
+    public void testChoices() {
+        HashRewriteMap map = new HashRewriteMap();
+        map.putChoices("servers", new String[]{"www1", "www2", "www3"});
+        map.putChoices("one", new String[]{"only"});
+        Set seen = new HashSet();
+        for (int i = 0; i < 1000; i++) {
+            seen.add(map.get("servers"));
+        }
+        assertEquals(3, seen.size());
+        assertEquals("only", map.get("one"));
+    }
+
+    public void testLoad() throws IOException {
+        HashRewriteMap map = HashRewriteMap.load(new StringReader("# legacy\n/a /b\n/c\n  /d /e # comment\n"), false);
+        assertEquals(2, map.size());
+        assertEquals("/b", map.get("/a"));
+        assertEquals("/e", map.get("/d"));
+        assertNull(map.get("/c"));
+
+        HashRewriteMap random = HashRewriteMap.load(new StringReader("static www1|www2\n"), true);
+        String server = random.get("static");
+        assertTrue(server, "www1".equals(server) || "www2".equals(server));
+    }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+public class IpRangeFileTest extends TestCase {
+
+    private File file;
+
+    public void setUp() throws IOException {
+        Log.setLevel("DEBUG");
+        file = File.createTempFile("urlrewrite", ".txt");
+    }
+
+    public void tearDown() {
+        file.delete();
+    }
+
+    public void testReload() throws IOException {
+        write("10.0.0.0/8\n");
+        IpRangeFile ipRangeFile = new IpRangeFile(file, 0);
+        assertTrue(ipRangeFile.contains("10.1.2.3"));
+        assertFalse(ipRangeFile.contains("192.168.0.1"));
+
+        IpRangeTrie before = ipRangeFile.getTrie();
+        assertSame("should not be reloaded when unchanged", before, ipRangeFile.getTrie());
+
+        write("192.168.0.0/16\n# and more\n172.16.0.0/12\n");
+        assertFalse(ipRangeFile.contains("10.1.2.3"));
+        assertTrue(ipRangeFile.contains("192.168.0.1"));
+        assertTrue(ipRangeFile.contains("172.16.0.1"));
+    }
+
+    public void testMissingKeepsRanges() throws IOException {
+        write("10.0.0.0/8\n");
+        IpRangeFile ipRangeFile = new IpRangeFile(file, 0);
+        file.delete();
+        assertTrue(ipRangeFile.contains("10.1.2.3"));
+    }
+
+    public void testShared() throws IOException {
+        write("10.0.0.0/8\n");
+        assertNotSame("not shared unless files are set", IpRangeFile.forFile(file), IpRangeFile.forFile(file));
+        Map files = new HashMap();
+        IpRangeFile.setCurrentFiles(files);
+        try {
+            assertSame(IpRangeFile.forFile(file), IpRangeFile.forFile(new File(file.getPath())));
+        } finally {
+            IpRangeFile.setCurrentFiles(null);
+        }
+        assertEquals(1, files.size());
+    }
+
+    public void testReloadExecutor() throws IOException {
+        write("10.0.0.0/8\n");
+        IpRangeFile ipRangeFile = new IpRangeFile(file, 0);
+        final List tasks = new ArrayList();
+        ipRangeFile.setReloadExecutor(new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        write("192.168.0.0/16\n");
+        assertTrue("reload not done by the request", ipRangeFile.contains("10.1.2.3"));
+        assertEquals(1, tasks.size());
+        assertTrue("one check at a time", ipRangeFile.contains("10.1.2.3"));
+        assertEquals(1, tasks.size());
+
+        ((Runnable) tasks.get(0)).run();
+        assertFalse(ipRangeFile.contains("10.1.2.3"));
+        assertTrue(ipRangeFile.contains("192.168.0.1"));
+        assertEquals(2, tasks.size());
+    }
+
+    private void write(String s) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        writer.write(s);
+        writer.close();
+        // make sure the change is seen even on file systems with coarse modified times
+        file.setLastModified(file.lastModified() + 2000);
+    }
+
+}
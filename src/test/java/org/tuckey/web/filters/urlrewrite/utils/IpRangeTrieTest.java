@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+public class IpRangeTrieTest extends TestCase {
+
+    public void setUp() {
+        Log.setLevel("DEBUG");
+    }
+
+    public void testIpv4() {
+        IpRangeTrie trie = new IpRangeTrie();
+        trie.addAll("10.0.0.0/8, 192.168.1.0/24 172.16.5.5");
+        assertEquals(3, trie.getRangeCount());
+        assertTrue(trie.contains("10.0.0.0"));
+        assertTrue(trie.contains("10.255.255.255"));
+        assertFalse(trie.contains("11.0.0.0"));
+        assertTrue(trie.contains("192.168.1.77"));
+        assertFalse(trie.contains("192.168.2.1"));
+        assertTrue(trie.contains(" 172.16.5.5 "));
+        assertFalse(trie.contains("172.16.5.4"));
+        assertFalse(trie.contains("172.16.5.6"));
+    }
+
+    public void testIpv6() {
+        IpRangeTrie trie = new IpRangeTrie();
+        trie.addAll("2001:db8::/32 ::1 fe80::/10");
+        assertTrue(trie.contains("2001:db8::1"));
+        assertTrue(trie.contains("2001:0db8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertFalse(trie.contains("2001:db9::1"));
+        assertTrue(trie.contains("::1"));
+        assertTrue(trie.contains("0:0:0:0:0:0:0:1"));
+        assertTrue(trie.contains("[::1]"));
+        assertFalse(trie.contains("::2"));
+        assertTrue(trie.contains("fe80::1%eth0"));
+        assertFalse(trie.contains("10.0.0.1"));
+    }
+
+    public void testIpv4Mapped() {
+        IpRangeTrie trie = new IpRangeTrie();
+        trie.addAll("10.0.0.0/8 ::ffff:192.168.0.0/112");
+        assertTrue(trie.contains("::ffff:10.1.2.3"));
+        assertTrue(trie.contains("192.168.44.1"));
+        assertFalse(trie.contains("::ffff:11.1.2.3"));
+    }
+
+    public void testRange() {
+        IpRangeTrie trie = new IpRangeTrie();
+        trie.add("10.0.0.5-10.0.1.2");
+        assertFalse(trie.contains("10.0.0.4"));
+        assertTrue(trie.contains("10.0.0.5"));
+        assertTrue(trie.contains("10.0.0.255"));
+        assertTrue(trie.contains("10.0.1.2"));
+        assertFalse(trie.contains("10.0.1.3"));
+
+        trie.add("2001:db8::ff-2001:db8::1:0");
+        assertFalse(trie.contains("2001:db8::fe"));
+        assertTrue(trie.contains("2001:db8::ffff"));
+        assertTrue(trie.contains("2001:db8::1:0"));
+        assertFalse(trie.contains("2001:db8::1:1"));
+    }
+
+    public void testEverything() {
+        IpRangeTrie trie = new IpRangeTrie();
+        trie.add("0.0.0.0/0");
+        assertTrue(trie.contains("1.2.3.4"));
+        assertFalse(trie.contains("::1"));
+    }
+
+    public void testShorterPrefixCovers() {
+        IpRangeTrie trie = new IpRangeTrie();
+        trie.add("10.1.2.0/24");
+        trie.add("10.0.0.0/8");
+        trie.add("10.3.0.0/16");
+        assertTrue(trie.contains("10.200.0.1"));
+        assertTrue(trie.contains("10.1.2.3"));
+        assertFalse(trie.contains("9.1.2.3"));
+    }
+
+    public void testInvalid() {
+        String[] invalid = {"10.0.0.256", "10.0.0", "10.0.0.0/33", "10.0.0.0/", "1::2::3", "12345::", "1:2:3:4:5:6:7:8:9",
+                "::/129", "10.0.0.9-10.0.0.1", "10.0.0.1-::1", "abc", "1.2.3.4.5", "1:2:3:4:5:6:7::8:9"};
+        for (int i = 0; i < invalid.length; i++) {
+            IpRangeTrie trie = new IpRangeTrie();
+            try {
+                trie.add(invalid[i]);
+                fail(invalid[i] + " should not be valid");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertFalse(new IpRangeTrie().contains("not an address"));
+        assertFalse(new IpRangeTrie().contains((String) null));
+    }
+
+    public void testParseAddress() {
+        assertAddress(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}, "::");
+        assertAddress(new int[]{0x20, 1, 0x0d, 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1}, "2001:db8::1");
+        assertAddress(new int[]{0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}, "1::");
+        assertAddress(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0xff, 0xff, 1, 2, 3, 4}, "::ffff:1.2.3.4");
+        assertAddress(new int[]{127, 0, 0, 1}, "127.0.0.1");
+    }
+
+    private void assertAddress(int[] expected, String address) {
+        byte[] actual = IpRangeTrie.parseAddress(address);
+        assertNotNull(address, actual);
+        assertEquals(address, expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(address + " byte " + i, (byte) expected[i], actual[i]);
+        }
+    }
+
+    public void testLoad() throws IOException {
+        IpRangeTrie trie = new IpRangeTrie();
+        int invalid = trie.load(new StringReader("# blocked\n10.0.0.0/8\n\n192.168.0.1 192.168.0.2 # two hosts\n" +
+                "not-valid\n2001:db8::/32\n"));
+        assertEquals(1, invalid);
+        assertEquals(4, trie.getRangeCount());
+        assertTrue(trie.contains("192.168.0.2"));
+        assertTrue(trie.contains("2001:db8::5"));
+    }
+
+    public void testLotsOfRanges() throws IOException {
+        Random random = new Random(1);
+        int[] prefixes = new int[100000];
+        StringBuffer list = new StringBuffer();
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = random.nextInt() & 0xffffff00;
+            list.append(toString(prefixes[i])).append("/24\n");
+        }
+        long start = System.currentTimeMillis();
+        IpRangeTrie trie = new IpRangeTrie();
+        assertEquals(0, trie.load(new StringReader(list.toString())));
+        System.out.println("loaded " + prefixes.length + " ranges into " + trie.getNodeCount() + " nodes in " +
+                (System.currentTimeMillis() - start) + "ms");
+        for (int i = 0; i < prefixes.length; i++) {
+            assertTrue(trie.contains(toString(prefixes[i] | 0x7f)));
+        }
+    }
+
+    private static String toString(int address) {
+        return (address >>> 24) + "." + ((address >> 16) & 0xff) + "." + ((address >> 8) & 0xff) + "." + (address & 0xff);
+    }
+
+}
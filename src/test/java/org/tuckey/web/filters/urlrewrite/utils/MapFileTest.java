@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+public class MapFileTest extends TestCase {
+
+    public void setUp() {
+        Log.setLevel("DEBUG");
+    }
+
+    public void testBuild() {
+        MapFileBuilder builder = new MapFileBuilder();
+        assertTrue(builder.put("/old/a", "/new/a"));
+        assertTrue(builder.put("/old/b", "/new/b"));
+        assertFalse("first value should be kept", builder.put("/old/a", "/new/other"));
+        assertTrue(builder.put("", "empty"));
+        MapFile map = builder.build();
+        assertEquals(3, map.size());
+        assertEquals("/new/a", map.get("/old/a"));
+        assertEquals("/new/b", map.get("/old/b"));
+        assertEquals("empty", map.get(""));
+        assertTrue(map.containsKey("/old/b"));
+        assertNull(map.get("/old/c"));
+        assertNull(map.get("/old/"));
+        assertNull(map.get("/old/aa"));
+        assertNull(map.get(null));
+        assertFalse(map.containsKey("/old/c"));
+    }
+
+    public void testEmpty() {
+        MapFile map = new MapFileBuilder().build();
+        assertEquals(0, map.size());
+        assertNull(map.get("a"));
+    }
+
+    public void testUnicode() {
+        String[] keys = {"caf\u00e9", "\u65e5\u672c", "\ud83d\ude00smile", "lone\ud800", "\u00ff\u0100\u07ff\u0800\uffff"};
+        MapFileBuilder builder = new MapFileBuilder();
+        for (int i = 0; i < keys.length; i++) {
+            builder.put(keys[i], "value " + i);
+        }
+        MapFile map = builder.build();
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals("value " + i, map.get(keys[i]));
+        }
+        assertEquals("value 0", map.get("caf\u00e9"));
+        assertNull(map.get("cafe"));
+        assertNull(map.get("\ud83d\ude01smile"));
+    }
+
+    public void testValues() {
+        StringBuilder longValue = new StringBuilder();
+        while (longValue.length() < 1000) longValue.append("/\u65e5\u672c/\ud83d\ude00");
+        MapFileBuilder builder = new MapFileBuilder();
+        builder.put("short", "caf\u00e9");
+        builder.put("long", longValue.toString());
+        builder.put("empty", "");
+        MapFile map = builder.build();
+        assertEquals("caf\u00e9", map.get("short"));
+        assertEquals(longValue.toString(), map.get("long"));
+        assertEquals("a shorter value after a longer one", "caf\u00e9", map.get("short"));
+        assertEquals("", map.get("empty"));
+    }
+
+    public void testLoad() throws IOException {
+        MapFileBuilder builder = new MapFileBuilder();
+        int skipped = builder.load(new StringReader("# legacy urls\n/a  /b\n\n  /c\t/d extra # comment\n/e\n/a /f\n"));
+        assertEquals(1, skipped);
+        MapFile map = builder.build();
+        assertEquals(2, map.size());
+        assertEquals("/b", map.get("/a"));
+        assertEquals("/d", map.get("/c"));
+        assertNull(map.get("/e"));
+    }
+
+    public void testWriteAndOpen() throws IOException {
+        File file = File.createTempFile("urlrewrite", ".map");
+        try {
+            MapFileBuilder builder = new MapFileBuilder();
+            for (int i = 0; i < 1000; i++) {
+                builder.put("/old/" + i, "/new/" + i);
+            }
+            builder.write(file);
+            assertEquals(builder.getBuildSize(), file.length());
+            MapFile map = MapFile.open(file);
+            assertEquals(1000, map.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("/new/" + i, map.get("/old/" + i));
+            }
+            assertNull(map.get("/old/1000"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testNotAMapFile() throws IOException {
+        File file = File.createTempFile("urlrewrite", ".map");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write("this is not a map file".getBytes());
+            out.close();
+            MapFile.open(file);
+            fail("should not open");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            file.delete();
+        }
+        try {
+            new MapFile(ByteBuffer.allocate(4));
+            fail("should not open");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testLotsOfEntries() {
+        int count = 500000;
+        long start = System.currentTimeMillis();
+        MapFileBuilder builder = new MapFileBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.put("/legacy/page-" + i + ".html", "/pages/" + i);
+        }
+        MapFile map = builder.build();
+        System.out.println("built " + count + " entries (" + builder.getBuildSize() + " bytes) in " +
+                (System.currentTimeMillis() - start) + "ms");
+        start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            assertTrue(map.containsKey("/legacy/page-" + i + ".html"));
+        }
+        System.out.println("looked up " + count + " keys in " + (System.currentTimeMillis() - start) + "ms");
+        assertEquals("/pages/123456", map.get("/legacy/page-123456.html"));
+        assertFalse(map.containsKey("/legacy/page-" + count + ".html"));
+    }
+
+}
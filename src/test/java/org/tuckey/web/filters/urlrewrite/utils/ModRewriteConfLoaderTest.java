@@ -5,6 +5,8 @@ import org.tuckey.web.filters.urlrewrite.Condition;
 import org.tuckey.web.filters.urlrewrite.Conf;
 import org.tuckey.web.filters.urlrewrite.NormalRule;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -45,6 +47,41 @@ public class ModRewriteConfLoaderTest extends TestCase {
         assertEquals(1, conf.getRules().size());
     }
 
+    public void testRewriteMap() throws IOException {
+        File file = File.createTempFile("urlrewrite", ".txt");
+        File mapFile = File.createTempFile("urlrewrite", ".map");
+        try {
+            MapFileBuilder builder = new MapFileBuilder();
+            builder.put("a.html", "/hashed/a");
+            builder.write(mapFile);
+            FileWriter writer = new FileWriter(file);
+            writer.write("a.html /new/a\n");
+            writer.close();
+            loader.process("\n" +
+                    "RewriteMap legacy txt:" + file.getAbsolutePath() + "\n" +
+                    "RewriteMap random rnd:" + file.getAbsolutePath() + "\n" +
+                    "RewriteMap hashed mmap:" + mapFile.getAbsolutePath() + "\n" +
+                    "RewriteMap apache dbm=sdbm:" + mapFile.getAbsolutePath() + "\n" +
+                    "RewriteMap program prg:/bin/lookup\n" +
+                    "RewriteRule ^/old/(.*)$ ${legacy:$1|/gone} [R=301]\n" +
+                    "RewriteRule ^/up/(.*)$ /${upper:$1} [L]\n" +
+                    "RewriteMap upper int:toupper\n", conf);
+            assertEquals("dbm and prg maps are ignored", 4, conf.getMaps().size());
+            assertEquals("${map:legacy:$1|/gone}", ((NormalRule) conf.getRules().get(0)).getTo());
+            assertEquals("maps declared after the rule are found", "/${map:upper:$1}",
+                    ((NormalRule) conf.getRules().get(1)).getTo());
+            conf.initialise();
+            assertTrue(conf.isOk());
+            assertEquals("/new/a", conf.getRewriteMap("legacy").get("a.html"));
+            assertEquals("ABC", conf.getRewriteMap("upper").get("abc"));
+            assertEquals("/new/a", conf.getRewriteMap("random").get("a.html"));
+            assertEquals("/hashed/a", conf.getRewriteMap("hashed").get("a.html"));
+        } finally {
+            file.delete();
+            mapFile.delete();
+        }
+    }
+
     public void testSimple2() {
         loader.process("\n" +
                 "    # redirect mozilla to another area                         \n" +
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class MultiPatternIndexTest extends TestCase {
+
+    public void testCandidates() {
+        MultiPatternIndex index = new MultiPatternIndex();
+        assertTrue(index.add("^/products/([0-9]+)$", true, 0));
+        assertTrue(index.add("\\.jsp", true, 1));
+        assertTrue(index.add("^/(about|contact)(/.*)?$", false, 2));
+        assertFalse(index.add("(?i)^/secret", true, 3));
+        index.addLiteralPrefix("/static/", true, 4);
+        index.addUnindexed(5);
+        assertTrue(index.add("^/a{2,3}b", true, 6));
+        index.compile();
+
+        assertEquals(7, index.size());
+        assertEquals(5, index.getIndexedCount());
+        assertEquals("0 3 5", toString(index.getCandidates("/products/123")));
+        assertEquals("3 5", toString(index.getCandidates("/products/abc")));
+        assertEquals("1 3 5", toString(index.getCandidates("/products/abc.jsp")));
+        assertEquals("2 3 5", toString(index.getCandidates("/ABOUT/us")));
+        assertEquals("3 4 5", toString(index.getCandidates("/static/x.css")));
+        assertEquals("3 5", toString(index.getCandidates("/STATIC/x.css")));
+        assertEquals("3 5 6", toString(index.getCandidates("/aab")));
+        // bounded repeats are widened, the real pattern will reject this
+        assertEquals("3 5 6", toString(index.getCandidates("/ab")));
+        assertEquals("3 5", toString(index.getCandidates("/b")));
+        assertEquals("3 5", toString(index.getCandidates("")));
+        assertEquals("3 5", toString(index.getCandidates(null)));
+    }
+
+    public void testWriteTo() throws IOException {
+        MultiPatternIndex index = new MultiPatternIndex();
+        index.add("^/products/([0-9]+)$", true, 0);
+        index.add("\\.jsp", true, 1);
+        index.add("^/(about|contact)(/.*)?$", false, 2);
+        index.addUnindexed(3);
+        index.addLiteralPrefix("/static/", true, 4);
+        index.compile();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+
+        MultiPatternIndex read = MultiPatternIndex.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(5, read.size());
+        assertEquals(4, read.getIndexedCount());
+        String[] urls = {"/products/123", "/products/abc.jsp", "/ABOUT/us", "/static/x.css", "/b", "", null};
+        for (int i = 0; i < urls.length; i++) {
+            assertEquals(urls[i], toString(index.getCandidates(urls[i])), toString(read.getCandidates(urls[i])));
+        }
+    }
+
+    public void testUnsupported() {
+        MultiPatternIndex index = new MultiPatternIndex();
+        assertFalse(index.add("^\\Q/a\\E", true, 0));
+        assertFalse(index.add("^/\\0101", true, 1));
+        assertFalse(index.add("^/[a-z&&[^b]]", true, 2));
+        assertFalse(index.add(null, true, 3));
+        assertTrue(index.add("^/(?=a)\\w+\\1(?<name>x)\\k<name>\\p{Lu}\\b$", true, 4));
+        index.compile();
+        assertEquals(1, index.getIndexedCount());
+        assertEquals("0 1 2 3", toString(index.getCandidates("/z")));
+    }
+
+    public void testOrder() {
+        MultiPatternIndex index = new MultiPatternIndex();
+        index.add("^/a", true, 0);
+        try {
+            index.add("^/b", true, 0);
+            fail("ids must ascend");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        index.compile();
+        try {
+            index.add("^/b", true, 1);
+            fail("cannot add once compiled");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The candidates must always include every pattern java would find a match for.
+     */
+    public void testNeverMissesAMatch() {
+        String[] regexes = new String[]{"^/a/(.*)$", "b+c", "^/[^/]+/x", "^/(a|bb)?c{1,2}$", "\\d{3}",
+                "^/A.B", "[A-C]$", "^/a*?b", "^(/a|/b)", "^/a|c$", "(?:ab)+", "[\\w-]+\\.html", "^/\\s?\\S",
+                "\\x41", "^/\\u00e9", "^/(a)\\1", "[^abc]{2}", "^/\\.", "^/[\\]a-]"};
+        MultiPatternIndex index = new MultiPatternIndex(64);
+        Pattern[] patterns = new Pattern[regexes.length * 2];
+        for (int i = 0; i < regexes.length; i++) {
+            patterns[i * 2] = Pattern.compile(regexes[i]);
+            assertTrue(regexes[i], index.add(regexes[i], true, i * 2));
+            patterns[i * 2 + 1] = Pattern.compile(regexes[i], Pattern.CASE_INSENSITIVE);
+            assertTrue(regexes[i], index.add(regexes[i], false, i * 2 + 1));
+        }
+        index.compile();
+
+        String alphabet = "/abcABC.-_1 xé]";
+        Random random = new Random(42);
+        for (int n = 0; n < 20000; n++) {
+            StringBuffer url = new StringBuffer();
+            int len = random.nextInt(8);
+            for (int i = 0; i < len; i++) url.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            String urlStr = url.toString();
+            String candidates = " " + toString(index.getCandidates(urlStr)) + " ";
+            for (int i = 0; i < patterns.length; i++) {
+                if (patterns[i].matcher(urlStr).find()) {
+                    assertTrue(patterns[i].pattern() + " must be a candidate for " + urlStr,
+                            candidates.indexOf(" " + i + " ") != -1);
+                }
+            }
+        }
+        // the small cache will have been flushed
+        assertTrue(index.getCacheFlushCount() > 0);
+    }
+
+    /**
+     * Enough patterns that the NFA arrays are grown several times, including while an alternation, optional or star
+     * is being compiled.
+     */
+    public void testManyPatterns() {
+        int count = 300;
+        MultiPatternIndex index = new MultiPatternIndex();
+        Pattern[] patterns = new Pattern[count];
+        for (int i = 0; i < count; i++) {
+            String regex;
+            if (i % 3 == 0) {
+                regex = "^/p" + i + "/(foobarbazquux|qux)?/x";
+            } else if (i % 3 == 1) {
+                regex = "^/p" + i + "/(ab|cd)*/x";
+            } else {
+                regex = "^/p" + i + "/(foobarbazquux|qux|q)/x";
+            }
+            patterns[i] = Pattern.compile(regex);
+            assertTrue(regex, index.add(regex, true, i));
+        }
+        index.compile();
+
+        String[] middles = {"", "foobarbazquux/", "qux/", "q/", "ab/", "abcd/", "cdab/"};
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < middles.length; j++) {
+                String url = "/p" + i + "/" + middles[j] + "x";
+                String candidates = " " + toString(index.getCandidates(url)) + " ";
+                for (int k = 0; k < count; k++) {
+                    if (patterns[k].matcher(url).find()) {
+                        assertTrue(patterns[k].pattern() + " must be a candidate for " + url,
+                                candidates.indexOf(" " + k + " ") != -1);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String toString(int[] ids) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(ids[i]);
+        }
+        return sb.toString();
+    }
+
+}
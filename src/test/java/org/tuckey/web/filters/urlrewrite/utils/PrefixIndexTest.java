@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class PrefixIndexTest extends TestCase {
+
+    public void testCandidates() {
+        PrefixIndex index = new PrefixIndex();
+        index.add("/products/", 0);
+        index.add("", 1);
+        index.add("/products/shoes/", 2);
+        index.add("/about", 3);
+        index.add(null, 4);
+        index.add("/Products/", 5);
+        index.compact();
+
+        assertEquals(6, index.size());
+        assertEquals(4, index.getIndexedCount());
+        assertEquals("0 1 2 4 5", toString(index.getCandidates("/products/shoes/red")));
+        assertEquals("0 1 4 5", toString(index.getCandidates("/PRODUCTS/hats")));
+        assertEquals("1 3 4", toString(index.getCandidates("/about")));
+        assertEquals("1 4", toString(index.getCandidates("/abou")));
+        assertEquals("1 4", toString(index.getCandidates("")));
+        assertEquals("1 4", toString(index.getCandidates(null)));
+    }
+
+    public void testNoFallback() {
+        PrefixIndex index = new PrefixIndex();
+        index.add("/a", 0);
+        index.add("/b", 1);
+        index.compact();
+        assertEquals("", toString(index.getCandidates("/c")));
+        assertEquals("1", toString(index.getCandidates("/b")));
+    }
+
+    public void testSuffixes() {
+        PrefixIndex index = new PrefixIndex();
+        index.add("/products/", ".html", 0);
+        index.add(null, ".html", 1);
+        index.add("", "/*.JPG", 2);
+        index.add(null, null, 3);
+        index.add("", ".jpg", 4);
+        index.compact();
+
+        assertEquals(5, index.size());
+        assertEquals(4, index.getIndexedCount());
+        assertEquals("0 1 3", toString(index.getCandidates("/products/a.html")));
+        assertEquals("1 3", toString(index.getCandidates("/about.HTML")));
+        assertEquals("3 4", toString(index.getCandidates("/a.jpg")));
+        assertEquals("2 3 4", toString(index.getCandidates("/images/*.jpg")));
+        assertEquals("3", toString(index.getCandidates("/a.png")));
+        assertEquals("3", toString(index.getCandidates("")));
+    }
+
+    public void testWriteTo() throws IOException {
+        PrefixIndex index = new PrefixIndex();
+        index.add("/products/", 0);
+        index.add("/products/shoes/", null, 1);
+        index.add(null, ".html", 2);
+        index.add(null, null, 3);
+        index.compact();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+
+        PrefixIndex read = PrefixIndex.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(4, read.size());
+        assertEquals(3, read.getIndexedCount());
+        assertEquals("0 1 3", toString(read.getCandidates("/Products/shoes/red")));
+        assertEquals("0 2 3", toString(read.getCandidates("/products/a.html")));
+        assertEquals("3", toString(read.getCandidates("/about")));
+    }
+
+    private static String toString(int[] ids) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(ids[i]);
+        }
+        return sb.toString();
+    }
+
+}
@@ -104,4 +104,28 @@ public class StringMatchingMatcherTest extends TestCase {
 
     }
 
+    public void testRegexLiteralPrefix() throws StringMatchingPatternSyntaxException {
+        assertEquals("/products/", new RegexPattern("^/products/([0-9]+)$", false).getLiteralPrefix());
+        assertEquals("/a.b/", RegexPattern.extractLiteralPrefix("^/a\\.b\\/(.*)", true));
+        assertEquals("/pro", RegexPattern.extractLiteralPrefix("^/prod?", true));
+        assertEquals("/prod", RegexPattern.extractLiteralPrefix("^/prod+uct", true));
+        assertEquals("/pro", RegexPattern.extractLiteralPrefix("^/prod{2}", true));
+        assertEquals("/a", RegexPattern.extractLiteralPrefix("^/a(b|c)", true));
+        assertEquals("/a", RegexPattern.extractLiteralPrefix("^/a[|]", true));
+        assertEquals("/", RegexPattern.extractLiteralPrefix("^/\\d", true));
+        assertEquals("", RegexPattern.extractLiteralPrefix("^/a|/b", true));
+        assertEquals("", RegexPattern.extractLiteralPrefix("^/a[(]|/b", true));
+        assertEquals("", RegexPattern.extractLiteralPrefix("/products/", true));
+        assertEquals("", RegexPattern.extractLiteralPrefix("^\\Q/a\\E", true));
+        assertEquals("/caf", RegexPattern.extractLiteralPrefix("^/caf\u00e9", false));
+        assertEquals("/caf\u00e9", RegexPattern.extractLiteralPrefix("^/caf\u00e9", true));
+    }
+
+    public void testWildcardLiteralPrefix() {
+        assertEquals("/aa/", new WildcardPattern("/aa/**").getLiteralPrefix());
+        assertEquals("/a*b/", new WildcardPattern("/a\\*b/*").getLiteralPrefix());
+        assertEquals("", new WildcardPattern("*.html").getLiteralPrefix());
+        assertEquals("/exact", new WildcardPattern("/exact").getLiteralPrefix());
+    }
+
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2005-2007, Paul Tuckey
+ * All rights reserved.
+ * ====================================================================
+ * Licensed under the BSD License. Text as follows.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   - Neither the name tuckey.org nor the names of its contributors
+ *     may be used to endorse or promote products derived from this
+ *     software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ */
+package org.tuckey.web.filters.urlrewrite.utils;
+
+import junit.framework.TestCase;
+
+import java.io.UnsupportedEncodingException;
+
+public class URLEncoderTest extends TestCase {
+
+    private static final String[] STRINGS = {"", "abc", "a b c", "/a/b?c=d&e=f+g", "caf\u00e9", "\u3042\u3044 \u3046",
+            "\ud83d\ude00 smile", "lone \ud83d surrogate", "`~!@#$%^&*()-_=+[{]}\\|;:'\",<.>/?", "100%"};
+
+    private static final String[] CHARSETS = {"UTF-8", "ISO-8859-1", "UTF-16", "Shift_JIS", "US-ASCII"};
+
+    public void testQuerySameAsJdk() throws UnsupportedEncodingException {
+        for (int i = 0; i < STRINGS.length; i++) {
+            for (int j = 0; j < CHARSETS.length; j++) {
+                assertEquals(STRINGS[i] + " in " + CHARSETS[j], java.net.URLEncoder.encode(STRINGS[i], CHARSETS[j]),
+                        URLEncoder.encodeQuery(STRINGS[i], CHARSETS[j]));
+            }
+        }
+    }
+
+    public void testPathSegment() throws UnsupportedEncodingException {
+        assertEquals("a%20b%20c%20:%20other%20%2f%20path", URLEncoder.encodePathSegment("a b c : other / path", "UTF-8"));
+        assertEquals("caf%c3%a9", URLEncoder.encodePathSegment("caf\u00e9", "UTF-8"));
+        assertEquals("caf%e9", URLEncoder.encodePathSegment("caf\u00e9", "ISO-8859-1"));
+        assertEquals("%f0%9f%98%80", URLEncoder.encodePathSegment("\ud83d\ude00", "UTF-8"));
+        assertEquals("%3f", URLEncoder.encodePathSegment("\u3042", "US-ASCII"));
+        assertEquals("%fe%ff%00%2f", URLEncoder.encodePathSegment("/", "UTF-16"));
+        assertNull(URLEncoder.encodePathSegment(null, "UTF-8"));
+        try {
+            URLEncoder.encodePathSegment("a b", "not-a-charset");
+            fail("should have thrown");
+        } catch (UnsupportedEncodingException e) {
+            // expected
+        }
+    }
+
+    public void testNothingToEncode() throws UnsupportedEncodingException {
+        String segment = "products:shoes@red&size=10+$,";
+        assertSame(segment, URLEncoder.encodePathSegment(segment, "UTF-8"));
+        String query = "red-shoes_10.html";
+        assertSame(query, URLEncoder.encodeQuery(query, "UTF-8"));
+    }
+
+    public void testLongStrings() throws UnsupportedEncodingException {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < 5000; i++) {
+            sb.append('\u00e9');
+        }
+        assertEquals(java.net.URLEncoder.encode(sb.toString(), "UTF-8"), URLEncoder.encodeQuery(sb.toString(), "UTF-8"));
+    }
+
+}
@@ -37,6 +37,7 @@ package org.tuckey.web.testhelper;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletContext;
 import java.util.Enumeration;
+import java.util.Hashtable;
 
 /**
  * @author Paul Tuckey
@@ -44,6 +45,7 @@ import java.util.Enumeration;
  */
 public class MockFilterConfig implements FilterConfig {
     private ServletContext servletContext;
+    private Hashtable initParameters = new Hashtable();
 
     public String getFilterName() {
         return null;
@@ -54,11 +56,15 @@ public class MockFilterConfig implements FilterConfig {
     }
 
     public String getInitParameter(String string) {
-        return null;
+        return (String) initParameters.get(string);
     }
 
     public Enumeration getInitParameterNames() {
-        return null;
+        return initParameters.keys();
+    }
+
+    public void setInitParameter(String name, String value) {
+        initParameters.put(name, value);
     }
 
     public void setServletContext(ServletContext servletContext) {
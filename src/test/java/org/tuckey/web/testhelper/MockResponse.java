@@ -57,6 +57,8 @@ public class MockResponse implements HttpServletResponse {
     private String redirectedUrl;
     private List cookies = new ArrayList();
     private Locale locale;
+    private String contentType;
+    private String characterEncoding;
     MockSerlvetOutputStream mockSerlvetOutputStream = new MockSerlvetOutputStream();
     StringWriter stringWriter = new StringWriter();
     PrintWriter writer = new PrintWriter(stringWriter);
@@ -66,7 +68,7 @@ public class MockResponse implements HttpServletResponse {
     }
 
     public boolean containsHeader(String s) {
-        return false;
+        return responseHeaders.containsKey(s);
     }
 
     public String encodeURL(String s) {
@@ -145,11 +147,11 @@ public class MockResponse implements HttpServletResponse {
     }
 
     public String getCharacterEncoding() {
-        return null;
+        return characterEncoding;
     }
 
     public String getContentType() {
-        return null;
+        return contentType;
     }
 
     public ServletOutputStream getOutputStream() throws IOException {
@@ -160,6 +162,10 @@ public class MockResponse implements HttpServletResponse {
         return mockSerlvetOutputStream.getAsString();
     }
 
+    public byte[] getOutputStreamAsBytes() {
+        return mockSerlvetOutputStream.toByteArray();
+    }
+
     public PrintWriter getWriter() throws IOException {
         return writer;
     }
@@ -170,15 +176,15 @@ public class MockResponse implements HttpServletResponse {
     }
 
     public void setCharacterEncoding(String s) {
-
+        characterEncoding = s;
     }
 
     public void setContentLength(int i) {
-
+        responseHeaders.put("Content-Length", i + "");
     }
 
     public void setContentType(String s) {
-
+        contentType = s;
     }
 
     public void setBufferSize(int i) {
@@ -245,4 +251,8 @@ class MockSerlvetOutputStream extends ServletOutputStream {
     public String getAsString() {
         return new String(baos.toByteArray());
     }
+
+    public byte[] toByteArray() {
+        return baos.toByteArray();
+    }
 }
\ No newline at end of file